@@ -0,0 +1,90 @@
+package org.getmarco.medtextanalyze.functions;
+
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.DetectDocumentTextResult;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.getmarco.medtextanalyze.support.CannedResults;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Serializing and deserializing large payloads with {@link FunctionSupport#jsonify} and
+ * {@link FunctionSupport#unjsonify}: a canned Textract result, and function output holding the text assembled from
+ * it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonBenchmarks {
+
+    @Param({"1000", "10000", "50000"})
+    private int lines;
+
+    private FunctionSupport function;
+    private DetectDocumentTextResult result;
+    private TextFromPdf.Output output;
+    private String outputJson;
+
+    /**
+     * Build the canned result and the output assembled from it.
+     * @throws IOException if the output cannot be serialized
+     */
+    @Setup
+    public void setUp() throws IOException {
+        this.function = new FunctionSupport() {
+            @Override
+            protected String createBody(final ProxyRequest request) {
+                return "";
+            }
+        };
+        List<Block> blocks = CannedResults.blocks(this.lines);
+        this.result = new DetectDocumentTextResult().withBlocks(blocks);
+        StringBuilder text = new StringBuilder();
+        for (Block block : blocks)
+            if ("LINE".equals(block.getBlockType()))
+                text.append(block.getText()).append('\n');
+        this.output = new TextFromPdf.Output(text.toString(), null);
+        this.outputJson = this.function.jsonify(this.output);
+    }
+
+    /**
+     * Serialize a Textract result.
+     * @return the JSON
+     * @throws IOException if serialization fails
+     */
+    @Benchmark
+    public String jsonifyResult() throws IOException {
+        return this.function.jsonify(this.result);
+    }
+
+    /**
+     * Serialize function output holding the text of a document.
+     * @return the JSON
+     * @throws IOException if serialization fails
+     */
+    @Benchmark
+    public String jsonifyOutput() throws IOException {
+        return this.function.jsonify(this.output);
+    }
+
+    /**
+     * Deserialize function output holding the text of a document.
+     * @return the output
+     * @throws IOException if deserialization fails
+     */
+    @Benchmark
+    public TextFromPdf.Output unjsonifyOutput() throws IOException {
+        return this.function.unjsonify(this.outputJson, TextFromPdf.Output.class);
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Function benchmarks.
+ */
+package org.getmarco.medtextanalyze.functions;
@@ -0,0 +1,120 @@
+package org.getmarco.medtextanalyze.index;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Looking up terms in an index of ten million postings: a million documents of ten terms each, drawn from
+ * vocabularies of medication names, with a few names far more common than the rest, dosages, name words and
+ * conditions. The index is built once, merged into segments as it grows, and looked up on disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EntityIndexBenchmarks {
+    private static final int DOCUMENTS = 1000000;
+    private static final int MEDICATIONS = 5000;
+    private static final int DOSAGES = 40;
+    private static final int NAME_WORDS = 20000;
+    private static final int CONDITIONS = 10000;
+    // skews medication names so the most common is in about one document in ten
+    private static final double SKEW = 3;
+    private static final int TERMS_PER_FIELD = 2;
+    private static final int OFFSET_STEP = 40;
+
+    private Path directory;
+    private EntityIndex index;
+
+    /**
+     * Build the index.
+     * @throws IOException if the index cannot be written
+     */
+    @Setup
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("entity-index");
+        this.index = new EntityIndex(this.directory);
+        Random random = new Random(1);
+        List<String> terms = new ArrayList<>();
+        IntList offsets = new IntList();
+        for (int doc = 0; doc < DOCUMENTS; doc++) {
+            terms.clear();
+            offsets.clear();
+            for (int i = 0; i < TERMS_PER_FIELD; i++) {
+                terms.add("medication:drug " + (int) (Math.pow(random.nextDouble(), SKEW) * MEDICATIONS));
+                terms.add("dosage:" + (random.nextInt(DOSAGES) + 1) * 25 + " mg");
+                terms.add("name:word " + random.nextInt(NAME_WORDS));
+                terms.add("medical_condition:condition " + random.nextInt(CONDITIONS));
+                terms.add("test_treatment_procedure:procedure " + random.nextInt(CONDITIONS));
+            }
+            for (int i = 0; i < terms.size(); i++)
+                offsets.add(i * OFFSET_STEP);
+            this.index.add("s3://documents/" + doc + ".pdf", terms, offsets);
+        }
+        this.index.flush();
+    }
+
+    /**
+     * Delete the index.
+     * @throws IOException if it cannot be deleted
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        this.index.close();
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    /**
+     * Find a name word, in about a hundred documents.
+     * @return the postings
+     */
+    @Benchmark
+    public List<Posting> findName() {
+        return this.index.find(EntityIndex.NAME, "word 12345");
+    }
+
+    /**
+     * Find the documents mentioning a medication of middling frequency, in about a thousand documents.
+     * @return the document ids
+     */
+    @Benchmark
+    public List<String> documentsMedication() {
+        return this.index.documents(EntityIndex.MEDICATION, "drug 1000");
+    }
+
+    /**
+     * Find the most common medication, in about one document in ten.
+     * @return the postings
+     */
+    @Benchmark
+    public List<Posting> findCommonMedication() {
+        return this.index.find(EntityIndex.MEDICATION, "drug 0");
+    }
+
+    /**
+     * Find a term no document has.
+     * @return the postings
+     */
+    @Benchmark
+    public List<Posting> findMissing() {
+        return this.index.find(EntityIndex.MEDICATION, "no such drug");
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Entity index benchmarks.
+ */
+package org.getmarco.medtextanalyze.index;
@@ -0,0 +1,92 @@
+package org.getmarco.medtextanalyze.match;
+
+import com.amazonaws.services.textract.model.Block;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.getmarco.medtextanalyze.support.CannedResults;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Matching a growing number of rules over the text of a canned document: in one pass with a {@link RuleSet}, against
+ * a pass per rule with {@link Pattern}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RuleSetBenchmarks {
+    private static final int LINES = 2000;
+    private static final String[] PATTERNS = {
+        "\\d{3}-\\d{2}-\\d{4}",
+        "MRN[: ]*\\d{6,8}",
+        "\\b\\d{1,2}/\\d{1,2}/\\d{4}\\b",
+        "(?i)\\b\\d+(?:\\.\\d+)? ?(?:mg|mcg|ml)\\b",
+    };
+
+    @Param({"10", "100", "1000"})
+    private int rules;
+
+    private String text;
+    private RuleSet ruleSet;
+    private List<Pattern> patterns;
+
+    /**
+     * Assemble the document text, and compile the patterns followed by drug name keywords up to the rule count.
+     */
+    @Setup
+    public void setUp() {
+        StringBuilder document = new StringBuilder();
+        for (Block block : CannedResults.blocks(LINES)) {
+            if ("PAGE".equals(block.getBlockType()))
+                document.append('\n');
+            else if ("LINE".equals(block.getBlockType()))
+                document.append(block.getText()).append('\n');
+        }
+        this.text = document.toString();
+
+        RuleSet.Builder builder = RuleSet.builder();
+        this.patterns = new ArrayList<>();
+        for (int i = 0; i < this.rules; i++) {
+            String pattern = i < PATTERNS.length ? PATTERNS[i] : "(?i)\\bdrug" + i + "\\b";
+            builder.pattern("r" + i, pattern);
+            this.patterns.add(Pattern.compile(pattern));
+        }
+        this.ruleSet = builder.build();
+        this.ruleSet.scan(this.text);
+    }
+
+    /**
+     * Match every rule in one pass.
+     * @return the matches
+     */
+    @Benchmark
+    public List<RuleMatch> ruleSet() {
+        return this.ruleSet.scan(this.text);
+    }
+
+    /**
+     * Match each rule in its own pass.
+     * @return the number of matches
+     */
+    @Benchmark
+    public int patternPerRule() {
+        int count = 0;
+        for (Pattern pattern : this.patterns) {
+            Matcher matcher = pattern.matcher(this.text);
+            while (matcher.find())
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Rule matching benchmarks.
+ */
+package org.getmarco.medtextanalyze.match;
@@ -0,0 +1,147 @@
+package org.getmarco.medtextanalyze.server;
+
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.DetectDocumentTextRequest;
+import com.amazonaws.services.textract.model.DetectDocumentTextResult;
+import com.amazonaws.services.textract.model.S3Object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.getmarco.medtextanalyze.functions.StreamFunctionSupport;
+import org.getmarco.medtextanalyze.functions.TextFromImage;
+import org.getmarco.medtextanalyze.support.CallGovernor;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.ProxyResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * The same function called as Lambda calls it, and through {@link FunctionServer} over HTTP, by as many client
+ * threads as the server has workers, with a stubbed Textract answering after a fixed delay. The difference between
+ * the two is the cost of the server: adapting the exchange, queueing for a worker and the loopback round trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(FunctionServerBenchmarks.CLIENTS)
+public class FunctionServerBenchmarks {
+    static final int CLIENTS = 32;
+    private static final String PATH = "/imagetext";
+    private static final String BODY = "{\"bucket\":\"uploads\",\"key\":\"scan.png\"}";
+    private static final long TIMEOUT_MILLIS = 29000;
+    private static final long TEXTRACT_MILLIS = 20;
+    private static final int READ_BUFFER = 4096;
+    private static final CallGovernor GOVERNOR = CallGovernor.forService("benchmark-stub");
+
+    static {
+        GOVERNOR.setQuota("DetectDocumentText", new CallGovernor.Quota(Double.MAX_VALUE, Double.MAX_VALUE, 1024));
+    }
+
+    private final ThreadLocal<StubTextFromImage> functions = ThreadLocal.withInitial(StubTextFromImage::new);
+    private FunctionServer server;
+    private URL url;
+
+    /**
+     * Start the server.
+     * @throws IOException if it cannot listen
+     */
+    @Setup
+    public void setUp() throws IOException {
+        this.server = new FunctionServer(0, CLIENTS, CLIENTS, TIMEOUT_MILLIS)
+          .route(PATH, StubTextFromImage::new)
+          .start();
+        this.url = new URL("http://localhost:" + this.server.getPort() + PATH);
+    }
+
+    /**
+     * Stop the server.
+     */
+    @TearDown
+    public void tearDown() {
+        this.server.shutdown(0);
+    }
+
+    /**
+     * Handle a request as Lambda does, calling the function directly.
+     * @return the status code
+     */
+    @Benchmark
+    public int lambdaPath() {
+        ProxyRequest request = new ProxyRequest();
+        request.setHttpMethod(ProxyRequest.HTTP_POST);
+        request.setPath(PATH);
+        request.setBody(BODY);
+        return this.functions.get().handleRequest(request, new LocalContext("imagetext", TIMEOUT_MILLIS))
+          .getStatusCode();
+    }
+
+    /**
+     * Handle a request through the server.
+     * @return the response body length
+     * @throws IOException if the request fails
+     */
+    @Benchmark
+    public int httpServer() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+        connection.setRequestMethod(ProxyRequest.HTTP_POST);
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(BODY.getBytes(StandardCharsets.UTF_8));
+        }
+        int status = connection.getResponseCode();
+        if (status != ProxyResponse.STATUS_CODE_OK)
+            throw new IOException("request failed with status " + status);
+        // read to the end so the connection is kept alive for the next request
+        int length = 0;
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[READ_BUFFER];
+            for (int n = in.read(buffer); n > 0; n = in.read(buffer))
+                length += n;
+        }
+        return length;
+    }
+
+    /**
+     * Detects text through the real analyzer, with a Textract stub that waits and echoes the S3 object.
+     */
+    private static final class StubTextFromImage
+      extends StreamFunctionSupport<TextFromImage.Input, TextFromImage.Output> {
+
+        StubTextFromImage() {
+            super(TextFromImage.Input.class, TextFromImage.Output.class);
+            getAnalyzer().setTextractGovernor(GOVERNOR);
+            getAnalyzer().setTextractClient((AmazonTextract) Proxy.newProxyInstance(
+              AmazonTextract.class.getClassLoader(), new Class<?>[] {AmazonTextract.class}, (proxy, method, args) -> {
+                  if (!"detectDocumentText".equals(method.getName()))
+                      throw new UnsupportedOperationException(method.getName());
+                  TimeUnit.MILLISECONDS.sleep(TEXTRACT_MILLIS);
+                  S3Object object = ((DetectDocumentTextRequest) args[0]).getDocument().getS3Object();
+                  return new DetectDocumentTextResult().withBlocks(Collections.singletonList(
+                    new Block().withBlockType("LINE").withText(object.getBucket() + "/" + object.getName())));
+              }));
+        }
+
+        @Override
+        protected TextFromImage.Output createOutput(final ProxyRequest request, final TextFromImage.Input input) {
+            return new TextFromImage.Output(getAnalyzer().detectTextImageS3(input.getBucket(), input.getKey(),
+              getDeadline()));
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Server benchmarks.
+ */
+package org.getmarco.medtextanalyze.server;
@@ -0,0 +1,108 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building text and entity reports from canned Textract and Comprehend Medical results. The stub clients return the
+ * same result objects every time, so what is measured is the analyzer's own work: call governance plus assembling
+ * the text from blocks, or the report from entities.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnalyzerBenchmarks {
+    private static final String JOB_ID = "benchmark";
+
+    /**
+     * An analyzer whose Textract client returns a document of so many lines.
+     */
+    @State(Scope.Thread)
+    public static class Text {
+        @Param({"100", "1000", "10000"})
+        private int lines;
+
+        private Analyzer analyzer;
+        private Analyzer layoutAnalyzer;
+        private String firstResultPage;
+
+        /**
+         * Build the canned blocks and analyzers that return them, without and with their layout.
+         */
+        @Setup
+        public void setUp() {
+            this.analyzer = CannedResults.analyzer(CannedResults.textract(CannedResults.blocks(this.lines)), null);
+            this.layoutAnalyzer =
+              CannedResults.analyzer(CannedResults.textract(CannedResults.blocks(this.lines)), null);
+            this.layoutAnalyzer.setRetainLayout(true);
+            this.firstResultPage = CannedResults.firstResultPage(JOB_ID);
+        }
+    }
+
+    /**
+     * An analyzer whose Comprehend Medical client returns so many entities.
+     */
+    @State(Scope.Thread)
+    public static class Entities {
+        @Param({"100", "1000"})
+        private int entities;
+
+        private Analyzer analyzer;
+
+        /**
+         * Build the canned entities and an analyzer that returns them.
+         */
+        @Setup
+        public void setUp() {
+            this.analyzer =
+              CannedResults.analyzer(null, CannedResults.comprehend(CannedResults.entities(this.entities)));
+        }
+    }
+
+    /**
+     * Text from the blocks of a synchronous detection, as for an image.
+     * @param text the analyzer
+     * @return the text
+     */
+    @Benchmark
+    public String detectText(final Text text) {
+        return text.analyzer.detectTextImageS3("bucket", "key");
+    }
+
+    /**
+     * Text from the paged blocks of an asynchronous job, as for a PDF in S3.
+     * @param text the analyzer
+     * @return the text
+     */
+    @Benchmark
+    public DetectedText getDetectedText(final Text text) {
+        return text.analyzer.detectTextPdf2("bucket", "key", Deadline.none(), text.firstResultPage);
+    }
+
+    /**
+     * Text and its layout from the paged blocks of an asynchronous job.
+     * @param text the analyzer
+     * @return the text and layout
+     */
+    @Benchmark
+    public DetectedText getDetectedTextLayout(final Text text) {
+        return text.layoutAnalyzer.detectTextPdf2("bucket", "key", Deadline.none(), text.firstResultPage);
+    }
+
+    /**
+     * The report of medications and names built from detected entities.
+     * @param entities the analyzer
+     * @return the report
+     */
+    @Benchmark
+    public String printEntities(final Entities entities) {
+        return entities.analyzer.getEntities("text");
+    }
+}
@@ -0,0 +1,167 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.services.comprehendmedical.AWSComprehendMedical;
+import com.amazonaws.services.comprehendmedical.model.Attribute;
+import com.amazonaws.services.comprehendmedical.model.DetectEntitiesResult;
+import com.amazonaws.services.comprehendmedical.model.Entity;
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.DetectDocumentTextResult;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionResult;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Canned Textract and Comprehend Medical results, and clients that return them without a network, for benchmarks
+ * that must run offline.
+ */
+public final class CannedResults {
+    /** Sample lines of text, cycled through to make up a document. */
+    private static final String[] LINES = {
+        "Patient: Jane Q. Doe    DOB: 04/12/1961    MRN: 00482913",
+        "Chief complaint: intermittent chest pain radiating to the left arm for two weeks.",
+        "Current medications: lisinopril 20 mg PO daily; metformin 500 mg PO BID with meals.",
+        "Assessment: stable angina, hypertension controlled, type 2 diabetes mellitus.",
+        "Plan: start atorvastatin 40 mg PO nightly, follow up in 4 weeks with lipid panel.",
+    };
+    private static final int BLOCKS_PER_RESULT_PAGE = 1000;
+    private static final int LINES_PER_PAGE = 50;
+    private static final String[] ATTRIBUTE_TYPES = {"DOSAGE", "ROUTE_OR_MODE", "FREQUENCY"};
+    private static final String[] ATTRIBUTE_TEXT = {"20 mg", "PO", "daily"};
+    private static final int ENTITY_KINDS = 3;
+    private static final float CONFIDENCE = 99.0f;
+    private static final float SCORE = 0.98f;
+    private static final String QUOTA_SERVICE = "benchmark";
+
+    private CannedResults() {
+    }
+
+    /**
+     * Returns the blocks Textract returns for a document: a PAGE block every so many lines, each LINE with its
+     * WORD blocks.
+     * @param lines the number of lines
+     * @return the blocks
+     */
+    public static List<Block> blocks(final int lines) {
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            if (i % LINES_PER_PAGE == 0)
+                blocks.add(new Block().withBlockType("PAGE").withPage(i / LINES_PER_PAGE + 1));
+            String line = LINES[i % LINES.length];
+            blocks.add(new Block().withBlockType("LINE").withText(line).withConfidence(CONFIDENCE).withId("l" + i));
+            for (String word : line.split(" +"))
+                blocks.add(new Block().withBlockType("WORD").withText(word).withConfidence(CONFIDENCE));
+        }
+        return blocks;
+    }
+
+    /**
+     * Returns the entities Comprehend Medical returns for a document: medications with attributes, names and other
+     * entities the report leaves out, in turn.
+     * @param count the number of entities
+     * @return the entities
+     */
+    public static List<Entity> entities(final int count) {
+        List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            switch (i % ENTITY_KINDS) {
+                case 0:
+                    List<Attribute> attributes = new ArrayList<>();
+                    for (int a = 0; a < ATTRIBUTE_TYPES.length; a++)
+                        attributes.add(new Attribute().withType(ATTRIBUTE_TYPES[a]).withText(ATTRIBUTE_TEXT[a])
+                          .withScore(SCORE));
+                    entities.add(new Entity().withCategory("MEDICATION").withType("GENERIC_NAME")
+                      .withText("lisinopril").withScore(SCORE).withAttributes(attributes));
+                    break;
+                case 1:
+                    entities.add(new Entity().withCategory("PROTECTED_HEALTH_INFORMATION").withType("NAME")
+                      .withText("Jane Q. Doe").withScore(SCORE));
+                    break;
+                default:
+                    entities.add(new Entity().withCategory("MEDICAL_CONDITION").withType("DX_NAME")
+                      .withText("stable angina").withScore(SCORE));
+                    break;
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Returns a Textract client that answers synchronous detection with the given blocks, and pages through them
+     * for an asynchronous job.
+     * @param blocks the blocks
+     * @return the client
+     */
+    public static AmazonTextract textract(final List<Block> blocks) {
+        DetectDocumentTextResult detected = new DetectDocumentTextResult().withBlocks(blocks);
+        List<GetDocumentTextDetectionResult> pages = new ArrayList<>();
+        for (int from = 0; from < blocks.size(); from += BLOCKS_PER_RESULT_PAGE) {
+            int to = Math.min(blocks.size(), from + BLOCKS_PER_RESULT_PAGE);
+            pages.add(new GetDocumentTextDetectionResult().withJobStatus("SUCCEEDED")
+              .withBlocks(blocks.subList(from, to))
+              .withNextToken(to < blocks.size() ? Integer.toString(pages.size() + 1) : null));
+        }
+        return (AmazonTextract) Proxy.newProxyInstance(AmazonTextract.class.getClassLoader(),
+          new Class<?>[] {AmazonTextract.class}, (proxy, method, args) -> {
+              switch (method.getName()) {
+                  case "detectDocumentText":
+                      return detected;
+                  case "getDocumentTextDetection":
+                      String token = ((GetDocumentTextDetectionRequest) args[0]).getNextToken();
+                      return pages.get(token == null ? 0 : Integer.parseInt(token));
+                  default:
+                      throw new UnsupportedOperationException(method.getName());
+              }
+          });
+    }
+
+    /**
+     * Returns a Comprehend Medical client that answers entity detection with the given entities.
+     * @param entities the entities
+     * @return the client
+     */
+    public static AWSComprehendMedical comprehend(final List<Entity> entities) {
+        DetectEntitiesResult detected = new DetectEntitiesResult().withEntities(entities);
+        return (AWSComprehendMedical) Proxy.newProxyInstance(AWSComprehendMedical.class.getClassLoader(),
+          new Class<?>[] {AWSComprehendMedical.class}, (proxy, method, args) -> {
+              if (!"detectEntities".equals(method.getName()))
+                  throw new UnsupportedOperationException(method.getName());
+              return detected;
+          });
+    }
+
+    /**
+     * Returns an analyzer using the given clients, with call quotas high enough that rate limiting never waits.
+     * @param textract the Textract client
+     * @param comprehend the Comprehend Medical client
+     * @return the analyzer
+     */
+    public static Analyzer analyzer(final AmazonTextract textract, final AWSComprehendMedical comprehend) {
+        CallGovernor governor = CallGovernor.forService(QUOTA_SERVICE);
+        CallGovernor.Quota unlimited = new CallGovernor.Quota(Double.MAX_VALUE, Double.MAX_VALUE, Integer.MAX_VALUE);
+        for (String api : Arrays.asList("DetectDocumentText", "GetDocumentTextDetection", "DetectEntities"))
+            governor.setQuota(api, unlimited);
+        Analyzer analyzer = new Analyzer();
+        analyzer.setTextractClient(textract);
+        analyzer.setComprehendClient(comprehend);
+        analyzer.setTextractGovernor(governor);
+        analyzer.setComprehendGovernor(governor);
+        return analyzer;
+    }
+
+    /**
+     * Returns the continuation token that resumes a finished job at its first page of results, skipping the wait.
+     * @param jobId the job id
+     * @return the token
+     */
+    public static String firstResultPage(final String jobId) {
+        return Base64.getUrlEncoder().withoutPadding()
+          .encodeToString(("P\n" + jobId + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
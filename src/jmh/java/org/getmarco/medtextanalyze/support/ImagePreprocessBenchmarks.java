@@ -0,0 +1,139 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Preparing single images for text detection, on a set of generated fixtures: a 12 megapixel colour phone photo of a
+ * page on a tinted background, a colour scan of a letter page at 300 dpi with wide white margins, and a page already
+ * gray and at 150 dpi. The bytes the image started at and was sent at are reported per operation alongside the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ImagePreprocessBenchmarks {
+    private static final String TEXT =
+      "Current medications: lisinopril 20 mg PO daily; metformin 500 mg PO BID with meals.";
+    private static final int LINE_HEIGHTS = 60;
+    private static final int NOISE = 24;
+    private static final int MAX_LEVEL = 255;
+    private static final int BYTE_MASK = 0xff;
+    private static final Color PAPER_PHOTO = new Color(226, 214, 192);
+
+    @Param({"photo", "colourScan", "grayScan"})
+    private String fixture;
+
+    private ByteBuffer image;
+    private ImagePreprocessor preprocessor;
+
+    /**
+     * Bytes before and after preparation, summed over the operations of an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        /** Bytes of the images given. */
+        public long originalBytes;
+        /** Bytes of the images to send. */
+        public long preparedBytes;
+
+        /**
+         * Reset the counts for an iteration.
+         */
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.originalBytes = 0;
+            this.preparedBytes = 0;
+        }
+    }
+
+    /**
+     * Generate the fixture image.
+     * @throws IOException if the fixture cannot be encoded
+     */
+    @Setup
+    public void setUp() throws IOException {
+        switch (this.fixture) {
+            case "photo":
+                this.image = encode(page(4032, 3024, PAPER_PHOTO, 0, true, BufferedImage.TYPE_INT_RGB), "jpg");
+                break;
+            case "colourScan":
+                this.image = encode(page(2550, 3300, Color.WHITE, 300, false, BufferedImage.TYPE_INT_RGB), "png");
+                break;
+            default:
+                this.image = encode(page(1275, 1650, Color.WHITE, 75, false, BufferedImage.TYPE_BYTE_GRAY), "png");
+                break;
+        }
+        this.preprocessor = new ImagePreprocessor();
+    }
+
+    /**
+     * Prepare the image.
+     * @param sizes the byte counts
+     * @return the prepared image
+     */
+    @Benchmark
+    public ImagePreprocessor.Result prepare(final Sizes sizes) {
+        ImagePreprocessor.Result result = this.preprocessor.prepare(this.image);
+        sizes.originalBytes += result.getOriginalBytes();
+        sizes.preparedBytes += result.getBytes().remaining();
+        return result;
+    }
+
+    // a page of text lines, inset by a margin, with sensor noise for a photo
+    private static BufferedImage page(final int width, final int height, final Color background, final int margin,
+      final boolean noisy, final int type) {
+        BufferedImage page = new BufferedImage(width, height, type);
+        Graphics2D g = page.createGraphics();
+        g.setColor(background);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.DARK_GRAY);
+        int size = Math.max(width, height) / LINE_HEIGHTS;
+        g.setFont(new Font(Font.SERIF, Font.PLAIN, size));
+        int inset = Math.max(margin, size);
+        for (int y = inset + size; y < height - inset; y += size * 3 / 2)
+            g.drawString(TEXT, inset, y);
+        g.dispose();
+        if (noisy) {
+            Random random = new Random(1);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int rgb = page.getRGB(x, y);
+                    int delta = random.nextInt(NOISE) - NOISE / 2;
+                    page.setRGB(x, y, level(rgb >> 16, delta) << 16 | level(rgb >> 8, delta) << 8 | level(rgb, delta));
+                }
+            }
+        }
+        return page;
+    }
+
+    private static int level(final int channel, final int delta) {
+        return Math.max(0, Math.min(MAX_LEVEL, (channel & BYTE_MASK) + delta));
+    }
+
+    private static ByteBuffer encode(final BufferedImage page, final String format) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(page, format, bytes);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,90 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Rendering a PDF page and encoding it for Textract, at several resolutions and in both image formats Textract
+ * takes. The page is a generated letter-size page of text, so the benchmark needs no files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PageRenderBenchmarks {
+    private static final float FONT_SIZE = 11;
+    private static final float MARGIN = 72;
+    private static final float LEADING = 14;
+    private static final int LINES = 45;
+    private static final String TEXT =
+      "Current medications: lisinopril 20 mg PO daily; metformin 500 mg PO BID with meals.";
+
+    @Param({"150", "200", "300"})
+    private int dpi;
+
+    @Param({"png", "jpg"})
+    private String format;
+
+    private PDDocument document;
+    private PDFRenderer renderer;
+    private Analyzer analyzer;
+
+    /**
+     * Generate the page and set up the analyzer for the resolution and format.
+     * @throws IOException if the page cannot be generated
+     */
+    @Setup
+    public void setUp() throws IOException {
+        this.document = new PDDocument();
+        PDPage page = new PDPage();
+        this.document.addPage(page);
+        try (PDPageContentStream content = new PDPageContentStream(this.document, page)) {
+            content.beginText();
+            content.setFont(PDType1Font.HELVETICA, FONT_SIZE);
+            content.newLineAtOffset(MARGIN, page.getMediaBox().getHeight() - MARGIN);
+            for (int i = 0; i < LINES; i++) {
+                content.showText(TEXT);
+                content.newLineAtOffset(0, -LEADING);
+            }
+            content.endText();
+        }
+        this.renderer = new PDFRenderer(this.document);
+        this.analyzer = new Analyzer();
+        this.analyzer.setImageResolutionDpi(this.dpi);
+        this.analyzer.setImageFormat(this.format);
+    }
+
+    /**
+     * Close the document.
+     * @throws IOException if the document cannot be closed
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        this.document.close();
+    }
+
+    /**
+     * Render and encode the page.
+     * @return the encoded image
+     * @throws IOException if the page cannot be rendered or encoded
+     */
+    @Benchmark
+    public ByteBuffer renderPage() throws IOException {
+        return this.analyzer.renderPage(this.renderer, 0);
+    }
+}
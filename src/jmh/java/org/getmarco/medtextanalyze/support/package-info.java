@@ -0,0 +1,4 @@
+/**
+ * Support class benchmarks.
+ */
+package org.getmarco.medtextanalyze.support;
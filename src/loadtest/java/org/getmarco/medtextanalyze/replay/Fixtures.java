@@ -0,0 +1,168 @@
+package org.getmarco.medtextanalyze.replay;
+
+import com.amazonaws.AmazonWebServiceResult;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recorded service results, kept as one JSON file per API in a directory: {@code DetectDocumentText.json} and so on.
+ * A file holds an array of results, or a single result, and replay cycles through them in turn. The results of an
+ * asynchronous job are kept as documents instead: an array in which each element is the array of result pages of
+ * one job, or a single page.
+ * <p>
+ * Property names are matched ignoring case, so the output of the AWS CLI can be used as a fixture as it is.
+ */
+final class Fixtures {
+    private static final String SUFFIX = ".json";
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+      .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+      .configure(MapperFeature.ACCEPT_CASE_INSENSITIVE_PROPERTIES, true)
+      .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+      .addMixIn(AmazonWebServiceResult.class, ResultMixIn.class);
+
+    private final Path directory;
+    private final Map<String, List<?>> loaded = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> cursors = new ConcurrentHashMap<>();
+    // fixtures being recorded, by API, and the documents in them by API and then job id
+    private final Map<String, ArrayNode> recorded = new HashMap<>();
+    private final Map<String, Map<String, ArrayNode>> recordedDocuments = new HashMap<>();
+
+    /**
+     * Constructor.
+     * @param directory the directory holding the fixture files
+     */
+    Fixtures(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the directory holding the fixture files.
+     * @return the directory
+     */
+    Path getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Returns the next of the recorded results of an API.
+     * @param api the API name
+     * @param type the result type
+     * @param <T> the result type
+     * @return the result
+     * @throws IllegalStateException if there is no fixture for the API
+     */
+    <T> T next(final String api, final Class<T> type) {
+        List<T> results = load(api, type, false);
+        return results.get(next(api, results.size()));
+    }
+
+    /**
+     * Returns the result pages of the next of the recorded jobs of an API.
+     * @param api the API name
+     * @param type the result page type
+     * @param <T> the result page type
+     * @return the pages
+     * @throws IllegalStateException if there is no fixture for the API
+     */
+    <T> List<T> nextDocument(final String api, final Class<T> type) {
+        List<List<T>> documents = load(api, type, true);
+        return documents.get(next(api, documents.size()));
+    }
+
+    /**
+     * Add a result to the fixture of an API, and write the fixture file.
+     * @param api the API name
+     * @param document the job id when the result is a page of a job's results, or null
+     * @param result the result
+     * @throws UncheckedIOException if the fixture file cannot be written
+     */
+    synchronized void record(final String api, final String document, final Object result) {
+        Path file = file(api);
+        try {
+            ArrayNode root = this.recorded.get(api);
+            if (root == null) {
+                JsonNode existing = Files.exists(file) ? MAPPER.readTree(file.toFile()) : null;
+                root = existing instanceof ArrayNode ? (ArrayNode) existing : MAPPER.createArrayNode();
+                if (existing != null && !existing.isArray())
+                    root.add(existing);
+                this.recorded.put(api, root);
+            }
+            JsonNode value = MAPPER.valueToTree(result);
+            if (document == null) {
+                root.add(value);
+            } else {
+                ArrayNode documents = root;
+                this.recordedDocuments.computeIfAbsent(api, a -> new HashMap<>())
+                  .computeIfAbsent(document, d -> documents.addArray()).add(value);
+            }
+            Files.createDirectories(this.directory);
+            MAPPER.writerWithDefaultPrettyPrinter().writeValue(file.toFile(), root);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot record fixture " + file, e);
+        }
+    }
+
+    private int next(final String api, final int size) {
+        return Math.floorMod(this.cursors.computeIfAbsent(api, a -> new AtomicInteger()).getAndIncrement(), size);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <L> List<L> load(final String api, final Class<?> type, final boolean documents) {
+        return (List<L>) this.loaded.computeIfAbsent(api, a -> read(a, type, documents));
+    }
+
+    private List<?> read(final String api, final Class<?> type, final boolean documents) {
+        Path file = file(api);
+        if (!Files.isRegularFile(file))
+            throw new IllegalStateException("no fixture for " + api + " in " + this.directory);
+        try {
+            JsonNode root = MAPPER.readTree(file.toFile());
+            List<Object> results = new ArrayList<>();
+            for (JsonNode node : root.isArray() ? root : MAPPER.createArrayNode().add(root)) {
+                if (!documents)
+                    results.add(MAPPER.treeToValue(node, type));
+                else if (!node.isArray())
+                    results.add(Collections.singletonList(MAPPER.treeToValue(node, type)));
+                else {
+                    List<Object> pages = new ArrayList<>();
+                    for (JsonNode page : node)
+                        pages.add(MAPPER.treeToValue(page, type));
+                    results.add(pages);
+                }
+            }
+            if (results.isEmpty())
+                throw new IllegalStateException("empty fixture " + file);
+            return results;
+        } catch (IOException e) {
+            throw new IllegalStateException("invalid fixture " + file, e);
+        }
+    }
+
+    private Path file(final String api) {
+        return this.directory.resolve(api + SUFFIX);
+    }
+
+    /**
+     * Leaves the SDK's response metadata out of recorded results.
+     */
+    @JsonIgnoreProperties({"sdkResponseMetadata", "sdkHttpMetadata"})
+    private abstract static class ResultMixIn {
+    }
+}
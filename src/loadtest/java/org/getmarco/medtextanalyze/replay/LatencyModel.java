@@ -0,0 +1,101 @@
+package org.getmarco.medtextanalyze.replay;
+
+import java.util.Random;
+
+/**
+ * A distribution of service latencies to replay calls with. Written as one of:
+ * <ul>
+ * <li>{@code 0} or empty, for no latency;</li>
+ * <li>{@code fixed:20}, or just {@code 20}, for the same number of milliseconds every time;</li>
+ * <li>{@code uniform:10-50}, for milliseconds drawn evenly from a range;</li>
+ * <li>{@code lognormal:120/0.5}, for a log-normal distribution with the given median in milliseconds and shape.
+ * The long right tail is what real service latencies look like; a shape of 0.5 puts p99 at about 3.2 times the
+ * median.</li>
+ * </ul>
+ */
+public final class LatencyModel {
+    /** No latency at all. */
+    public static final LatencyModel NONE = new LatencyModel("0", Kind.FIXED, 0, 0);
+
+    private enum Kind {
+        FIXED, UNIFORM, LOGNORMAL
+    }
+
+    private final String spec;
+    private final Kind kind;
+    private final double a;
+    private final double b;
+
+    private LatencyModel(final String spec, final Kind kind, final double a, final double b) {
+        this.spec = spec;
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Parse a latency distribution.
+     * @param spec the distribution, as described for the class
+     * @return the latency model
+     * @throws IllegalArgumentException if the distribution cannot be parsed
+     */
+    public static LatencyModel parse(final String spec) {
+        if (spec == null || spec.trim().isEmpty())
+            return NONE;
+        String trimmed = spec.trim();
+        int colon = trimmed.indexOf(':');
+        String kind = colon < 0 ? "fixed" : trimmed.substring(0, colon);
+        String value = trimmed.substring(colon + 1);
+        try {
+            switch (kind) {
+                case "fixed":
+                    return new LatencyModel(trimmed, Kind.FIXED, nonNegative(Double.parseDouble(value), spec), 0);
+                case "uniform":
+                    String[] range = value.split("-", 2);
+                    double low = nonNegative(Double.parseDouble(range[0]), spec);
+                    double high = range.length > 1 ? Double.parseDouble(range[1]) : low;
+                    if (high < low)
+                        throw new IllegalArgumentException("invalid latency: " + spec);
+                    return new LatencyModel(trimmed, Kind.UNIFORM, low, high);
+                case "lognormal":
+                    String[] medianShape = value.split("/", 2);
+                    if (medianShape.length != 2)
+                        throw new IllegalArgumentException("invalid latency: " + spec);
+                    return new LatencyModel(trimmed, Kind.LOGNORMAL,
+                      nonNegative(Double.parseDouble(medianShape[0]), spec),
+                      nonNegative(Double.parseDouble(medianShape[1]), spec));
+                default:
+                    throw new IllegalArgumentException("invalid latency: " + spec);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid latency: " + spec, e);
+        }
+    }
+
+    /**
+     * Draw a latency.
+     * @param random the source of randomness
+     * @return the latency in milliseconds
+     */
+    public long sampleMillis(final Random random) {
+        switch (this.kind) {
+            case UNIFORM:
+                return Math.round(this.a + random.nextDouble() * (this.b - this.a));
+            case LOGNORMAL:
+                return Math.round(this.a * Math.exp(this.b * random.nextGaussian()));
+            default:
+                return Math.round(this.a);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.spec;
+    }
+
+    private static double nonNegative(final double value, final String spec) {
+        if (value < 0 || Double.isNaN(value))
+            throw new IllegalArgumentException("invalid latency: " + spec);
+        return value;
+    }
+}
@@ -0,0 +1,369 @@
+package org.getmarco.medtextanalyze.replay;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.comprehendmedical.AWSComprehendMedical;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.textract.AmazonTextract;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import org.getmarco.medtextanalyze.functions.EntitiesFromText;
+import org.getmarco.medtextanalyze.functions.FunctionSupport;
+import org.getmarco.medtextanalyze.functions.SignedUrlForUpload;
+import org.getmarco.medtextanalyze.functions.TextFromImage;
+import org.getmarco.medtextanalyze.functions.TextFromPdf;
+import org.getmarco.medtextanalyze.server.LocalContext;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.RegionPool;
+
+/**
+ * Drives synthetic API Gateway requests through a function's {@link FunctionSupport#handleRequest handleRequest} at
+ * a set concurrency, and reports throughput and latency percentiles. Each worker thread has its own function
+ * instance, as each Lambda container does. What the functions log is discarded, so writing it does not skew the
+ * timings.
+ * <p>
+ * Run from the command line it drives one route against the {@link ReplayService} set up from the environment, and
+ * refuses to run without one so a load test never reaches the real services. The functions are given the replay
+ * stand-ins through their analyzer's client setters and their S3 and credential getters, and never call AWS.
+ */
+public final class LoadDriver {
+    /** Status recorded for a request whose handler threw instead of returning a response. */
+    public static final int STATUS_THREW = -1;
+    private static final int DEFAULT_CONCURRENCY = 16;
+    private static final int DEFAULT_REQUESTS = 1000;
+    // share of the measured requests sent first, unmeasured, so the request path is compiled
+    private static final int WARMUP_DIVISOR = 10;
+    private static final int USAGE_EXIT = 2;
+    private static final long TIMEOUT_MILLIS = 29000;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double PERCENT = 100;
+    private static final double P50 = 50;
+    private static final double P99 = 99;
+    private static final String SAMPLE_TEXT = "Patient was given lisinopril 20 mg PO daily and metformin 500 mg PO BID "
+      + "with meals. Follow up with Dr. Jane Doe in 4 weeks.";
+    private static final LambdaLogger QUIET = new QuietLogger();
+
+    private final String route;
+    private final Supplier<? extends FunctionSupport> function;
+    private final IntFunction<ProxyRequest> requests;
+    private final int concurrency;
+
+    /**
+     * Constructor.
+     * @param route the route the function serves, used as its function name
+     * @param function creates a function instance for each worker thread
+     * @param requests creates the request with the given sequence number
+     * @param concurrency the number of requests in flight at once
+     */
+    public LoadDriver(final String route, final Supplier<? extends FunctionSupport> function,
+      final IntFunction<ProxyRequest> requests, final int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("invalid concurrency: " + concurrency);
+        this.route = route;
+        this.function = function;
+        this.requests = requests;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Returns a driver for one of the application's routes, sending requests for distinct objects or the same
+     * sample text to functions calling the stand-ins of a replay service.
+     * @param route the route: uploadurl, imagetext, pdftext or textentities
+     * @param concurrency the number of requests in flight at once
+     * @param replay the service whose stand-ins the functions call
+     * @return the driver
+     * @throws IllegalArgumentException for an unknown route
+     */
+    public static LoadDriver forRoute(final String route, final int concurrency, final ReplayService replay) {
+        switch (route) {
+            case "uploadurl":
+                return new LoadDriver(route, () -> new ReplayedSignedUrlForUpload(replay),
+                  i -> request(route, ProxyRequest.HTTP_GET, null), concurrency);
+            case "imagetext":
+                return new LoadDriver(route, () -> new ReplayedTextFromImage(replay), i -> request(route,
+                  ProxyRequest.HTTP_POST, "{\"bucket\":\"replay\",\"key\":\"scan-" + i + ".png\"}"), concurrency);
+            case "pdftext":
+                return new LoadDriver(route, () -> new ReplayedTextFromPdf(replay), i -> request(route,
+                  ProxyRequest.HTTP_POST, "{\"bucket\":\"replay\",\"key\":\"document-" + i + ".pdf\"}"), concurrency);
+            case "textentities":
+                return new LoadDriver(route, () -> new ReplayedEntitiesFromText(replay), i -> request(route,
+                  ProxyRequest.HTTP_POST, "{\"text\":\"" + SAMPLE_TEXT + "\"}"), concurrency);
+            default:
+                throw new IllegalArgumentException("unknown route: " + route);
+        }
+    }
+
+    /**
+     * Send requests and wait for every one to be answered.
+     * @param count the number of requests
+     * @return the throughput, latencies and statuses
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Report run(final int count) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(this.concurrency);
+        ThreadLocal<FunctionSupport> functions = ThreadLocal.withInitial(this.function);
+        long[] latencies = new long[count];
+        int[] statuses = new int[count];
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int w = 0; w < this.concurrency; w++) {
+            workers.execute(() -> {
+                FunctionSupport instance = functions.get();
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    ProxyRequest request = this.requests.apply(i);
+                    long begin = System.nanoTime();
+                    try {
+                        statuses[i] = instance.handleRequest(request, new LocalContext(this.route, TIMEOUT_MILLIS,
+                          QUIET)).getStatusCode();
+                    } catch (RuntimeException e) {
+                        statuses[i] = STATUS_THREW;
+                    }
+                    latencies[i] = System.nanoTime() - begin;
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return new Report(latencies, statuses, System.nanoTime() - start);
+    }
+
+    /**
+     * Drive one route against the replay service set up from the environment, after a warm up, and print the
+     * report.
+     * @param args the route, then optionally the concurrency and the number of requests
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void main(final String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.err.println("usage: LoadDriver uploadurl|imagetext|pdftext|textentities [concurrency] [requests]");
+            System.exit(USAGE_EXIT);
+        }
+        ReplayService replay = ReplayService.fromEnvironment();
+        if (replay == null) {
+            System.err.println("MED_REPLAY_FIXTURES is not set; not load testing the real services");
+            System.exit(USAGE_EXIT);
+        }
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONCURRENCY;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_REQUESTS;
+        LoadDriver driver = forRoute(args[0], concurrency, replay);
+        driver.run(Math.max(concurrency, count / WARMUP_DIVISOR));
+        System.out.println(args[0] + " at concurrency " + concurrency + ": " + driver.run(count));
+        System.out.println("replayed " + replay.report());
+    }
+
+    private static ProxyRequest request(final String route, final String method, final String body) {
+        ProxyRequest request = new ProxyRequest();
+        request.setResource("/" + route);
+        request.setPath("/" + route);
+        request.setHttpMethod(method);
+        request.setBody(body);
+        request.setIsBase64Encoded(false);
+        return request;
+    }
+
+    /**
+     * What a run measured.
+     */
+    public static final class Report {
+        private final long[] sortedLatencies;
+        private final Map<Integer, Integer> statuses = new TreeMap<>();
+        private final long elapsedNanos;
+
+        Report(final long[] latencies, final int[] statuses, final long elapsedNanos) {
+            this.sortedLatencies = latencies.clone();
+            Arrays.sort(this.sortedLatencies);
+            for (int status : statuses)
+                this.statuses.merge(status, 1, Integer::sum);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Returns the number of requests sent.
+         * @return the request count
+         */
+        public int getRequests() {
+            return this.sortedLatencies.length;
+        }
+
+        /**
+         * Returns the requests answered per second.
+         * @return the throughput
+         */
+        public double getThroughput() {
+            return this.sortedLatencies.length * NANOS_PER_SECOND / Math.max(1, this.elapsedNanos);
+        }
+
+        /**
+         * Returns a latency percentile.
+         * @param percentile the percentile, from 0 to 100
+         * @return the latency in milliseconds, or 0 if no requests were sent
+         */
+        public double getPercentileMillis(final double percentile) {
+            if (this.sortedLatencies.length == 0)
+                return 0;
+            int index = (int) Math.ceil(percentile / PERCENT * this.sortedLatencies.length) - 1;
+            return this.sortedLatencies[Math.max(0, Math.min(index, this.sortedLatencies.length - 1))]
+              / NANOS_PER_MILLI;
+        }
+
+        /**
+         * Returns the number of responses with each status code, {@link #STATUS_THREW} counting handlers that threw.
+         * @return the counts by status code
+         */
+        public Map<Integer, Integer> getStatuses() {
+            return this.statuses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %.1f req/s, p50 %.1f ms, p99 %.1f ms, statuses %s", getRequests(),
+              getThroughput(), getPercentileMillis(P50), getPercentileMillis(P99), this.statuses);
+        }
+    }
+
+    /**
+     * SignedUrlForUpload signing with the replay S3 stand-in.
+     */
+    private static final class ReplayedSignedUrlForUpload extends SignedUrlForUpload {
+        private final ReplayService replay;
+
+        ReplayedSignedUrlForUpload(final ReplayService replay) {
+            this.replay = replay;
+        }
+
+        @Override
+        protected AmazonS3 getS3Client() {
+            return this.replay.s3();
+        }
+
+        @Override
+        protected AWSCredentialsProvider getCredentialsProvider() {
+            return this.replay.credentials();
+        }
+    }
+
+    /**
+     * TextFromImage calling the replay Textract stand-in. The function constructor is given no real client, and the
+     * stand-in is set on its analyzer once it is constructed.
+     */
+    private static final class ReplayedTextFromImage extends TextFromImage {
+        private final ReplayService replay;
+
+        ReplayedTextFromImage(final ReplayService replay) {
+            this.replay = replay;
+            getAnalyzer().setTextractClient(replay.textract());
+        }
+
+        @Override
+        protected AmazonTextract getTextractClient() {
+            return null;
+        }
+
+        @Override
+        protected RegionPool<AmazonTextract> getTextractRegions() {
+            return null;
+        }
+
+        @Override
+        protected AmazonS3 getS3Client() {
+            return this.replay.s3();
+        }
+
+        @Override
+        protected AWSCredentialsProvider getCredentialsProvider() {
+            return this.replay.credentials();
+        }
+    }
+
+    /**
+     * TextFromPdf calling the replay Textract stand-in, set on its analyzer as for {@link ReplayedTextFromImage}.
+     */
+    private static final class ReplayedTextFromPdf extends TextFromPdf {
+        private final ReplayService replay;
+
+        ReplayedTextFromPdf(final ReplayService replay) {
+            this.replay = replay;
+            getAnalyzer().setTextractClient(replay.textract());
+        }
+
+        @Override
+        protected AmazonTextract getTextractClient() {
+            return null;
+        }
+
+        @Override
+        protected RegionPool<AmazonTextract> getTextractRegions() {
+            return null;
+        }
+
+        @Override
+        protected AmazonS3 getS3Client() {
+            return this.replay.s3();
+        }
+
+        @Override
+        protected AWSCredentialsProvider getCredentialsProvider() {
+            return this.replay.credentials();
+        }
+    }
+
+    /**
+     * EntitiesFromText calling the replay Comprehend Medical stand-in, set on its analyzer as for
+     * {@link ReplayedTextFromImage}.
+     */
+    private static final class ReplayedEntitiesFromText extends EntitiesFromText {
+        private final ReplayService replay;
+
+        ReplayedEntitiesFromText(final ReplayService replay) {
+            this.replay = replay;
+            getAnalyzer().setComprehendClient(replay.comprehendMedical());
+        }
+
+        @Override
+        protected AWSComprehendMedical getComprehendMedicalClient() {
+            return null;
+        }
+
+        @Override
+        protected RegionPool<AWSComprehendMedical> getComprehendMedicalRegions() {
+            return null;
+        }
+
+        @Override
+        protected AmazonS3 getS3Client() {
+            return this.replay.s3();
+        }
+
+        @Override
+        protected AWSCredentialsProvider getCredentialsProvider() {
+            return this.replay.credentials();
+        }
+    }
+
+    /**
+     * Discards what the functions log.
+     */
+    private static final class QuietLogger implements LambdaLogger {
+        @Override
+        public void log(final String string) {
+        }
+
+        /**
+         * Discard a message given as UTF-8 bytes.
+         * @param message the message
+         */
+        public void log(final byte[] message) {
+        }
+    }
+}
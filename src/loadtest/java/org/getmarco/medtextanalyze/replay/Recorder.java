@@ -0,0 +1,61 @@
+package org.getmarco.medtextanalyze.replay;
+
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionResult;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Records the results of real service calls as fixtures for a {@link ReplayService}. Only the APIs replay answers
+ * from fixtures are recorded; the rest, such as starting a job, replay answers by itself.
+ */
+public final class Recorder {
+    private static final Set<String> RECORDED_APIS = new HashSet<>(Arrays.asList(
+      ReplayService.DETECT_DOCUMENT_TEXT, ReplayService.GET_TEXT_DETECTION, ReplayService.DETECT_ENTITIES));
+    private static final String JOB_SUCCEEDED = "SUCCEEDED";
+
+    private Recorder() {
+    }
+
+    /**
+     * Wrap a client so the results of its calls are recorded in a fixture directory, adding to what is there.
+     * @param type the client interface
+     * @param client the client making the real calls
+     * @param directory the fixture directory
+     * @param <T> the client interface
+     * @return the recording client
+     */
+    public static <T> T wrap(final Class<T> type, final T client, final Path directory) {
+        Fixtures fixtures = new Fixtures(directory);
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+          (proxy, method, args) -> {
+              Object result;
+              try {
+                  result = method.invoke(client, args);
+              } catch (InvocationTargetException e) {
+                  throw e.getCause();
+              }
+              String api = ReplayService.apiName(method.getName());
+              if (RECORDED_APIS.contains(api) && args != null && args.length == 1)
+                  record(fixtures, api, args[0], result);
+              return result;
+          }));
+    }
+
+    private static void record(final Fixtures fixtures, final String api, final Object request, final Object result) {
+        if (!(result instanceof GetDocumentTextDetectionResult)) {
+            fixtures.record(api, null, result);
+            return;
+        }
+        // status polls and unfinished jobs are answered by the replay job state machine, not from fixtures
+        GetDocumentTextDetectionRequest get = (GetDocumentTextDetectionRequest) request;
+        GetDocumentTextDetectionResult page = (GetDocumentTextDetectionResult) result;
+        if (JOB_SUCCEEDED.equals(page.getJobStatus()) && (get.getMaxResults() == null || get.getMaxResults() > 1))
+            fixtures.record(api, get.getJobId(), page);
+    }
+}
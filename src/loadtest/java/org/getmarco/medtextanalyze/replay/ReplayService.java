@@ -0,0 +1,511 @@
+package org.getmarco.medtextanalyze.replay;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
+import com.amazonaws.services.comprehendmedical.AWSComprehendMedical;
+import com.amazonaws.services.comprehendmedical.model.DetectEntitiesResult;
+import com.amazonaws.services.comprehendmedical.model.ListEntitiesDetectionV2JobsResult;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.model.DetectDocumentTextResult;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionResult;
+import com.amazonaws.services.textract.model.InvalidJobIdException;
+import com.amazonaws.services.textract.model.InvalidParameterException;
+import com.amazonaws.services.textract.model.StartDocumentTextDetectionResult;
+
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Local stand-ins for Textract, Comprehend Medical and S3, so the functions can be load tested without calling AWS.
+ * Synchronous Textract and Comprehend Medical calls are answered from recorded {@link Fixtures}; an asynchronous
+ * Textract job runs through the states the real service reports, staying in progress for a time drawn from a
+ * distribution before it succeeds, or fails, and pages out the results of one recorded job. S3 calls are accepted
+ * and forgotten, and URLs are "signed" without credentials.
+ * <p>
+ * Each API can be given its own latency distribution, and a share of its calls can be throttled or fail with a
+ * server error, exactly as the SDK would report them, so the call governor, retries and hedging behave as they do
+ * against the real services. A call whose latency exceeds the client execution timeout on its request times out.
+ * <p>
+ * {@link #fromEnvironment()} sets up a service from the environment when {@code MED_REPLAY_FIXTURES} names a fixture
+ * directory:
+ * <ul>
+ * <li>{@code MED_REPLAY_LATENCY}: latencies by API, for example
+ * {@code *=lognormal:80/0.4,DetectDocumentText=lognormal:900/0.3}; see {@link LatencyModel};</li>
+ * <li>{@code MED_REPLAY_THROTTLE} and {@code MED_REPLAY_ERRORS}: the share of calls throttled, or failed, by API,
+ * for example {@code *=0.02};</li>
+ * <li>{@code MED_REPLAY_JOB_MILLIS}: how long an asynchronous job takes, as a latency distribution;</li>
+ * <li>{@code MED_REPLAY_JOB_FAILURES}: the share of jobs that fail.</li>
+ * </ul>
+ * A setting for API {@code *} applies to every API without a setting of its own.
+ */
+public final class ReplayService {
+    /** Stands for every API in per-API settings. */
+    public static final String ANY_API = "*";
+    static final String DETECT_DOCUMENT_TEXT = "DetectDocumentText";
+    static final String START_TEXT_DETECTION = "StartDocumentTextDetection";
+    static final String GET_TEXT_DETECTION = "GetDocumentTextDetection";
+    static final String DETECT_ENTITIES = "DetectEntities";
+    private static final String FIXTURES_VAR_NAME = "MED_REPLAY_FIXTURES";
+    private static final String LATENCY_VAR_NAME = "MED_REPLAY_LATENCY";
+    private static final String THROTTLE_VAR_NAME = "MED_REPLAY_THROTTLE";
+    private static final String ERRORS_VAR_NAME = "MED_REPLAY_ERRORS";
+    private static final String JOB_MILLIS_VAR_NAME = "MED_REPLAY_JOB_MILLIS";
+    private static final String JOB_FAILURES_VAR_NAME = "MED_REPLAY_JOB_FAILURES";
+    private static final String JOB_IN_PROGRESS = "IN_PROGRESS";
+    private static final String JOB_SUCCEEDED = "SUCCEEDED";
+    private static final String JOB_FAILED = "FAILED";
+    private static final String THROTTLING = "ThrottlingException";
+    private static final String INTERNAL_ERROR = "InternalServerError";
+    private static final int STATUS_CLIENT_ERROR = 400;
+    private static final int STATUS_SERVER_ERROR = 500;
+    private static final LatencyModel DEFAULT_JOB_DURATION = LatencyModel.parse("lognormal:3000/0.5");
+    // finished jobs are forgotten once this many are held, if they are old enough to have been read
+    private static final int MAX_JOBS = 10000;
+    private static final long JOB_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final String SIGNED_HOST = ".s3.replay.invalid";
+    private static final String SIGNATURE = "X-Amz-Algorithm=AWS4-HMAC-SHA256&X-Amz-Signature=replay";
+    private static final AWSCredentialsProvider CREDENTIALS =
+      new AWSStaticCredentialsProvider(new BasicAWSCredentials("replay", "replay"));
+
+    private final Fixtures fixtures;
+    private final Map<String, LatencyModel> latencies = new ConcurrentHashMap<>();
+    private final Map<String, Double> throttleRates = new ConcurrentHashMap<>();
+    private final Map<String, Double> errorRates = new ConcurrentHashMap<>();
+    private final Map<String, Counts> counts = new ConcurrentSkipListMap<>();
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AmazonTextract textract;
+    private final AWSComprehendMedical comprehendMedical;
+    private final AmazonS3 s3;
+    private volatile LatencyModel jobDuration = DEFAULT_JOB_DURATION;
+    private volatile double jobFailureRate;
+
+    /**
+     * Constructor, for a service with no latency, throttling or errors until they are set.
+     * @param fixtureDirectory the directory holding the recorded results
+     */
+    public ReplayService(final Path fixtureDirectory) {
+        this.fixtures = new Fixtures(fixtureDirectory);
+        this.textract = client(AmazonTextract.class, "AmazonTextract", this::answerTextract);
+        this.comprehendMedical = client(AWSComprehendMedical.class, "AWSComprehendMedical", this::answerComprehend);
+        this.s3 = client(AmazonS3.class, "Amazon S3", this::answerS3);
+    }
+
+    /**
+     * Returns the Textract client.
+     * @return the client
+     */
+    public AmazonTextract textract() {
+        return this.textract;
+    }
+
+    /**
+     * Returns the Comprehend Medical client.
+     * @return the client
+     */
+    public AWSComprehendMedical comprehendMedical() {
+        return this.comprehendMedical;
+    }
+
+    /**
+     * Returns the S3 client.
+     * @return the client
+     */
+    public AmazonS3 s3() {
+        return this.s3;
+    }
+
+    /**
+     * Returns credentials for signing, which nothing checks.
+     * @return the credentials provider
+     */
+    public AWSCredentialsProvider credentials() {
+        return CREDENTIALS;
+    }
+
+    /**
+     * Set the latency of an API.
+     * @param api the API name, or {@link #ANY_API}
+     * @param latency the latency distribution
+     */
+    public void setLatency(final String api, final LatencyModel latency) {
+        this.latencies.put(api, latency);
+    }
+
+    /**
+     * Set the share of the calls to an API that are throttled.
+     * @param api the API name, or {@link #ANY_API}
+     * @param rate the share, from 0 to 1
+     * @throws IllegalArgumentException if the share is out of range
+     */
+    public void setThrottleRate(final String api, final double rate) {
+        this.throttleRates.put(api, share(rate));
+    }
+
+    /**
+     * Set the share of the calls to an API that fail with a server error.
+     * @param api the API name, or {@link #ANY_API}
+     * @param rate the share, from 0 to 1
+     * @throws IllegalArgumentException if the share is out of range
+     */
+    public void setErrorRate(final String api, final double rate) {
+        this.errorRates.put(api, share(rate));
+    }
+
+    /**
+     * Set how long an asynchronous job stays in progress.
+     * @param jobDuration the distribution of job durations
+     */
+    public void setJobDuration(final LatencyModel jobDuration) {
+        this.jobDuration = jobDuration;
+    }
+
+    /**
+     * Set the share of asynchronous jobs that fail.
+     * @param jobFailureRate the share, from 0 to 1
+     * @throws IllegalArgumentException if the share is out of range
+     */
+    public void setJobFailureRate(final double jobFailureRate) {
+        this.jobFailureRate = share(jobFailureRate);
+    }
+
+    /**
+     * Returns what has been replayed so far: calls, throttles, errors and timeouts by API.
+     * @return the report
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        this.counts.forEach((api, apiCounts) -> {
+            if (report.length() > 0)
+                report.append("; ");
+            report.append(api).append(" calls ").append(apiCounts.calls.sum())
+              .append(", throttled ").append(apiCounts.throttles.sum())
+              .append(", failed ").append(apiCounts.errors.sum())
+              .append(", timed out ").append(apiCounts.timeouts.sum());
+        });
+        return report.toString();
+    }
+
+    /**
+     * Returns the API name for a client method name.
+     * @param method the method name
+     * @return the API name
+     */
+    static String apiName(final String method) {
+        return Character.toUpperCase(method.charAt(0)) + method.substring(1);
+    }
+
+    /**
+     * Returns a service set up from the environment, as described above.
+     * @return the service, or null if {@code MED_REPLAY_FIXTURES} is not set
+     * @throws IllegalArgumentException if a setting is invalid
+     */
+    public static ReplayService fromEnvironment() {
+        String directory = System.getenv(FIXTURES_VAR_NAME);
+        if (directory == null || directory.isEmpty())
+            return null;
+        ReplayService service = new ReplayService(Paths.get(directory));
+        settings(System.getenv(LATENCY_VAR_NAME), (api, value) -> service.setLatency(api, LatencyModel.parse(value)));
+        settings(System.getenv(THROTTLE_VAR_NAME), (api, value) -> service.setThrottleRate(api, number(value)));
+        settings(System.getenv(ERRORS_VAR_NAME), (api, value) -> service.setErrorRate(api, number(value)));
+        String jobMillis = System.getenv(JOB_MILLIS_VAR_NAME);
+        if (jobMillis != null && !jobMillis.isEmpty())
+            service.setJobDuration(LatencyModel.parse(jobMillis));
+        String jobFailures = System.getenv(JOB_FAILURES_VAR_NAME);
+        if (jobFailures != null && !jobFailures.isEmpty())
+            service.setJobFailureRate(number(jobFailures));
+        return service;
+    }
+
+    private static void settings(final String spec, final BiConsumer<String, String> setting) {
+        if (spec == null || spec.trim().isEmpty())
+            return;
+        for (String entry : spec.split(",")) {
+            String[] apiValue = entry.trim().split("=", 2);
+            if (apiValue.length == 1)
+                setting.accept(ANY_API, apiValue[0]);
+            else
+                setting.accept(apiValue[0].trim(), apiValue[1]);
+        }
+    }
+
+    private static double number(final String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid replay setting: " + value, e);
+        }
+    }
+
+    private static double share(final double rate) {
+        if (!(rate >= 0 && rate <= 1))
+            throw new IllegalArgumentException("invalid share of calls: " + rate);
+        return rate;
+    }
+
+    private <T> T client(final Class<T> type, final String service, final Answer answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+          (proxy, method, args) -> {
+              switch (method.getName()) {
+                  case "toString":
+                      return "replayed " + service;
+                  case "hashCode":
+                      return System.identityHashCode(proxy);
+                  case "equals":
+                      return proxy == args[0];
+                  case "shutdown":
+                      return null;
+                  // signing is local, so it takes no time and is never throttled
+                  case "generatePresignedUrl":
+                      return presign(args);
+                  default:
+                      String api = apiName(method.getName());
+                      return call(service, api, args, () -> answer.answer(api, args));
+              }
+          }));
+    }
+
+    private Object call(final String service, final String api, final Object[] args, final Supplier<Object> answer) {
+        Counts apiCounts = this.counts.computeIfAbsent(api, a -> new Counts());
+        apiCounts.calls.increment();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // a throttled call is turned away before the service does any work
+        if (random.nextDouble() < setting(this.throttleRates, api, 0.0)) {
+            apiCounts.throttles.increment();
+            throw fault(new AmazonServiceException("Rate exceeded"), service, THROTTLING, STATUS_CLIENT_ERROR,
+              AmazonServiceException.ErrorType.Client);
+        }
+        long latency = setting(this.latencies, api, LatencyModel.NONE).sampleMillis(random);
+        Integer timeout = args != null && args.length > 0 && args[0] instanceof AmazonWebServiceRequest
+          ? ((AmazonWebServiceRequest) args[0]).getSdkClientExecutionTimeout() : null;
+        if (timeout != null && timeout > 0 && latency > timeout) {
+            sleep(timeout);
+            apiCounts.timeouts.increment();
+            throw new ClientExecutionTimeoutException("Client execution did not complete before the specified timeout "
+              + "configuration.");
+        }
+        sleep(latency);
+        if (random.nextDouble() < setting(this.errorRates, api, 0.0)) {
+            apiCounts.errors.increment();
+            throw fault(new AmazonServiceException("replayed service error"), service, INTERNAL_ERROR,
+              STATUS_SERVER_ERROR, AmazonServiceException.ErrorType.Service);
+        }
+        return answer.get();
+    }
+
+    private Object answerTextract(final String api, final Object[] args) {
+        switch (api) {
+            case DETECT_DOCUMENT_TEXT:
+                return this.fixtures.next(api, DetectDocumentTextResult.class);
+            case START_TEXT_DETECTION:
+                return new StartDocumentTextDetectionResult().withJobId(startJob());
+            case GET_TEXT_DETECTION:
+                return jobResult((GetDocumentTextDetectionRequest) args[0]);
+            default:
+                throw new UnsupportedOperationException(api);
+        }
+    }
+
+    private Object answerComprehend(final String api, final Object[] args) {
+        switch (api) {
+            case DETECT_ENTITIES:
+                return this.fixtures.next(api, DetectEntitiesResult.class);
+            case "ListEntitiesDetectionV2Jobs":
+                return new ListEntitiesDetectionV2JobsResult();
+            default:
+                throw new UnsupportedOperationException(api);
+        }
+    }
+
+    private Object answerS3(final String api, final Object[] args) {
+        switch (api) {
+            case "DoesBucketExistV2":
+                return true;
+            case "PutObject":
+                PutObjectResult put = new PutObjectResult();
+                put.setETag(etag());
+                return put;
+            case "InitiateMultipartUpload":
+                InitiateMultipartUploadRequest initiate = (InitiateMultipartUploadRequest) args[0];
+                InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+                initiated.setBucketName(initiate.getBucketName());
+                initiated.setKey(initiate.getKey());
+                initiated.setUploadId(UUID.randomUUID().toString());
+                return initiated;
+            case "UploadPart":
+                UploadPartResult part = new UploadPartResult();
+                part.setPartNumber(((UploadPartRequest) args[0]).getPartNumber());
+                part.setETag(etag());
+                return part;
+            case "CompleteMultipartUpload":
+                CompleteMultipartUploadRequest complete = (CompleteMultipartUploadRequest) args[0];
+                CompleteMultipartUploadResult completed = new CompleteMultipartUploadResult();
+                completed.setBucketName(complete.getBucketName());
+                completed.setKey(complete.getKey());
+                completed.setETag(etag());
+                return completed;
+            case "AbortMultipartUpload":
+                return null;
+            default:
+                throw new UnsupportedOperationException(api);
+        }
+    }
+
+    private String startJob() {
+        long now = System.currentTimeMillis();
+        if (this.jobs.size() >= MAX_JOBS)
+            this.jobs.values().removeIf(job -> now - job.startMillis > JOB_RETENTION_MILLIS);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String jobId = UUID.randomUUID().toString().replace("-", "");
+        this.jobs.put(jobId, new Job(now, now + this.jobDuration.sampleMillis(random),
+          random.nextDouble() < this.jobFailureRate,
+          this.fixtures.nextDocument(GET_TEXT_DETECTION, GetDocumentTextDetectionResult.class)));
+        return jobId;
+    }
+
+    private GetDocumentTextDetectionResult jobResult(final GetDocumentTextDetectionRequest request) {
+        Job job = this.jobs.get(request.getJobId());
+        if (job == null)
+            throw fault(new InvalidJobIdException("Request has invalid Job Id"), "AmazonTextract",
+              "InvalidJobIdException", STATUS_CLIENT_ERROR, AmazonServiceException.ErrorType.Client);
+        if (System.currentTimeMillis() < job.readyMillis)
+            return new GetDocumentTextDetectionResult().withJobStatus(JOB_IN_PROGRESS)
+              .withBlocks(Collections.emptyList());
+        if (job.failed)
+            return new GetDocumentTextDetectionResult().withJobStatus(JOB_FAILED)
+              .withStatusMessage("replayed job failure").withBlocks(Collections.emptyList());
+        int index;
+        try {
+            index = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+        } catch (NumberFormatException e) {
+            index = -1;
+        }
+        if (index < 0 || index >= job.pages.size())
+            throw fault(new InvalidParameterException("Request has invalid parameters"), "AmazonTextract",
+              "InvalidParameterException", STATUS_CLIENT_ERROR, AmazonServiceException.ErrorType.Client);
+        // pages are served as recorded, whatever number of results the request asks for
+        GetDocumentTextDetectionResult page = job.pages.get(index);
+        return new GetDocumentTextDetectionResult().withJobStatus(JOB_SUCCEEDED)
+          .withDocumentMetadata(page.getDocumentMetadata())
+          .withBlocks(page.getBlocks())
+          .withNextToken(index + 1 < job.pages.size() ? Integer.toString(index + 1) : null);
+    }
+
+    private static URL presign(final Object[] args) {
+        String bucket;
+        String key;
+        StringBuilder query = new StringBuilder();
+        if (args[0] instanceof GeneratePresignedUrlRequest) {
+            GeneratePresignedUrlRequest request = (GeneratePresignedUrlRequest) args[0];
+            bucket = request.getBucketName();
+            key = request.getKey();
+            request.getRequestParameters().forEach((name, value) -> query.append(name).append('=').append(value)
+              .append('&'));
+        } else {
+            bucket = (String) args[0];
+            key = (String) args[1];
+        }
+        try {
+            return new URL("https://" + bucket + SIGNED_HOST + "/" + key + "?" + query + SIGNATURE);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("cannot sign url for " + bucket + "/" + key, e);
+        }
+    }
+
+    private static <V> V setting(final Map<String, V> settings, final String api, final V fallback) {
+        V value = settings.get(api);
+        if (value == null)
+            value = settings.get(ANY_API);
+        return value == null ? fallback : value;
+    }
+
+    private static <E extends AmazonServiceException> E fault(final E e, final String service, final String code,
+      final int status, final AmazonServiceException.ErrorType type) {
+        e.setServiceName(service);
+        e.setErrorCode(code);
+        e.setStatusCode(status);
+        e.setErrorType(type);
+        e.setRequestId(UUID.randomUUID().toString());
+        return e;
+    }
+
+    private static String etag() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    private static void sleep(final long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException(e);
+        }
+    }
+
+    /**
+     * Answers a call to a client method.
+     */
+    @FunctionalInterface
+    private interface Answer {
+        Object answer(String api, Object[] args);
+    }
+
+    /**
+     * Counters for the calls replayed for one API.
+     */
+    private static final class Counts {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder throttles = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+    }
+
+    /**
+     * An asynchronous text detection job: when it started, when it finishes, whether it fails, and the result
+     * pages of the recorded job it replays.
+     */
+    private static final class Job {
+        private final long startMillis;
+        private final long readyMillis;
+        private final boolean failed;
+        private final List<GetDocumentTextDetectionResult> pages;
+
+        Job(final long startMillis, final long readyMillis, final boolean failed,
+          final List<GetDocumentTextDetectionResult> pages) {
+            this.startMillis = startMillis;
+            this.readyMillis = readyMillis;
+            this.failed = failed;
+            this.pages = pages;
+        }
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Offline stand-ins for the AWS services the functions call, replaying recorded results, and a load driver to run
+ * the functions against them.
+ */
+package org.getmarco.medtextanalyze.replay;
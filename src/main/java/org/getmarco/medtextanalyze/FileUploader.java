@@ -0,0 +1,292 @@
+package org.getmarco.medtextanalyze;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.getmarco.medtextanalyze.functions.SignedUrlForUpload;
+
+/**
+ * Uploads files to the pre-signed S3 URLs handed out by {@link SignedUrlForUpload}. Multipart uploads send their
+ * parts in parallel and retry each part independently, so a failure only costs the part that failed.
+ */
+@CommonsLog
+public class FileUploader {
+    private static final int PART_MAX_ATTEMPTS = 4;
+    private static final long PART_RETRY_BASE_MILLIS = 500;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final CloseableHttpClient httpClient;
+    private final ExecutorService executor;
+
+    /**
+     * Class constructor.
+     * @param httpClient the HTTP client, which should allow as many connections per route as upload threads
+     * @param executor the executor used to upload parts in parallel
+     */
+    public FileUploader(final CloseableHttpClient httpClient, final ExecutorService executor) {
+        this.httpClient = httpClient;
+        this.executor = executor;
+    }
+
+    /**
+     * Upload a file to the location described by the pre-signed URL output.
+     * @param file the file to upload
+     * @param target the upload location and pre-signed URL(s)
+     * @throws IOException if the upload fails
+     */
+    public void upload(final File file, final SignedUrlForUpload.Output target) throws IOException {
+        if (target.isMultipart())
+            uploadMultipart(file, target);
+        else
+            uploadSingle(file, target.getLink(), target.getContentType());
+    }
+
+    private void uploadSingle(final File file, final String url, final String contentType) throws IOException {
+        HttpPut put = new HttpPut(url);
+        // a content type included in the signature must be sent exactly as signed
+        put.setEntity(contentType == null
+          ? new FileEntity(file)
+          : new FileEntity(file, ContentType.parse(contentType)));
+        try (CloseableHttpResponse response = this.httpClient.execute(put)) {
+            EntityUtils.consume(response.getEntity());
+            int status = response.getStatusLine().getStatusCode();
+            log.info("upload put response status: " + status);
+            if (status != HttpStatus.SC_OK)
+                throw new IOException("upload failed with status " + status);
+        }
+    }
+
+    private void uploadMultipart(final File file, final SignedUrlForUpload.Output target) throws IOException {
+        long size = file.length();
+        long partSize = target.getPartSize();
+        List<String> partLinks = target.getPartLinks();
+        if ((size + partSize - 1) / partSize != partLinks.size())
+            throw new IOException("part count mismatch for file of " + size + " bytes: " + partLinks.size());
+
+        long start = System.currentTimeMillis();
+        List<Future<String>> parts = new ArrayList<>(partLinks.size());
+        for (int i = 0; i < partLinks.size(); ++i) {
+            final String link = partLinks.get(i);
+            final long offset = i * partSize;
+            final long length = Math.min(partSize, size - offset);
+            parts.add(this.executor.submit(() -> uploadPart(file, link, offset, length)));
+        }
+
+        List<String> etags = new ArrayList<>(parts.size());
+        try {
+            for (Future<String> part : parts)
+                etags.add(part.get());
+        } catch (InterruptedException | ExecutionException e) {
+            parts.forEach(part -> part.cancel(true));
+            abort(target);
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            throw new IOException("multipart upload failed", e.getCause() != null ? e.getCause() : e);
+        }
+
+        try {
+            complete(target, etags);
+        } catch (IOException e) {
+            // parts of an upload that is neither completed nor aborted are kept, and billed, until the bucket
+            // lifecycle rule removes them
+            abort(target);
+            throw e;
+        }
+        log.info(String.format("uploaded %d bytes in %d parts in %d ms", size, etags.size(),
+          System.currentTimeMillis() - start));
+    }
+
+    private String uploadPart(final File file, final String url, final long offset, final long length)
+      throws IOException, InterruptedException {
+        IOException failure = null;
+        for (int attempt = 1; attempt <= PART_MAX_ATTEMPTS; ++attempt) {
+            HttpPut put = new HttpPut(url);
+            put.setEntity(new FileRangeEntity(file, offset, length));
+            int status = 0;
+            try (CloseableHttpResponse response = this.httpClient.execute(put)) {
+                EntityUtils.consume(response.getEntity());
+                status = response.getStatusLine().getStatusCode();
+                if (status == HttpStatus.SC_OK) {
+                    Header etag = response.getFirstHeader("ETag");
+                    if (etag != null && etag.getValue() != null && !etag.getValue().isEmpty())
+                        return etag.getValue();
+                    // the part cannot be named in the completion without its ETag
+                    failure = new IOException("part upload returned no ETag");
+                } else {
+                    failure = new IOException("part upload failed with status " + status);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            // client errors (e.g. an expired signature) and a missing ETag will not succeed on retry
+            if (status != 0 && status < HttpStatus.SC_INTERNAL_SERVER_ERROR)
+                throw failure;
+            if (attempt < PART_MAX_ATTEMPTS) {
+                long backoff = PART_RETRY_BASE_MILLIS << (attempt - 1);
+                TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+            }
+        }
+        throw failure;
+    }
+
+    private void complete(final SignedUrlForUpload.Output target, final List<String> etags) throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); ++i) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber>")
+              .append("<ETag>").append(etags.get(i)).append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+
+        HttpPost post = new HttpPost(target.getCompleteLink());
+        post.setEntity(new StringEntity(xml.toString(), ContentType.APPLICATION_XML));
+        try (CloseableHttpResponse response = this.httpClient.execute(post)) {
+            String content = EntityUtils.toString(response.getEntity());
+            int status = response.getStatusLine().getStatusCode();
+            // S3 may report a failed completion with a 200 status and an error document
+            if (status != HttpStatus.SC_OK || content.contains("<Error>"))
+                throw new IOException("multipart completion failed with status " + status + ": " + content);
+        }
+    }
+
+    private void abort(final SignedUrlForUpload.Output target) {
+        try (CloseableHttpResponse response = this.httpClient.execute(new HttpDelete(target.getAbortLink()))) {
+            EntityUtils.consume(response.getEntity());
+        } catch (IOException e) {
+            // the bucket lifecycle rule cleans up incomplete uploads anyway
+            log.warn("unable to abort multipart upload " + target.getUploadId(), e);
+        }
+    }
+
+    /**
+     * Repeatable HTTP entity for a byte range of a file, so a retried part is re-read from disk instead of being
+     * buffered in memory.
+     */
+    private static final class FileRangeEntity extends AbstractHttpEntity {
+        private final File file;
+        private final long offset;
+        private final long length;
+
+        FileRangeEntity(final File file, final long offset, final long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return this.length;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            FileInputStream in = new FileInputStream(this.file);
+            try {
+                in.getChannel().position(this.offset);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            return new RangeInputStream(in, this.length);
+        }
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            try (InputStream in = getContent()) {
+                long remaining = this.length;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0)
+                        throw new IOException("unexpected end of file " + this.file);
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * Stream of at most a given number of bytes of another stream.
+     */
+    private static final class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(final InputStream in, final long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0)
+                return -1;
+            int b = super.read();
+            if (b >= 0)
+                this.remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (this.remaining <= 0)
+                return -1;
+            int read = super.read(b, off, (int) Math.min(len, this.remaining));
+            if (read > 0)
+                this.remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = super.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
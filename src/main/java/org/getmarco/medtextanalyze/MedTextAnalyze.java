@@ -1,29 +1,45 @@
 package org.getmarco.medtextanalyze;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import lombok.extern.apachecommons.CommonsLog;
 
-import org.apache.http.HttpResponse;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.ParseException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.entity.FileEntity;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
 import org.getmarco.medtextanalyze.functions.EntitiesFromText;
+import org.getmarco.medtextanalyze.functions.FunctionOutput;
 import org.getmarco.medtextanalyze.functions.SignedUrlForUpload;
 import org.getmarco.medtextanalyze.functions.TextFromImage;
 import org.getmarco.medtextanalyze.functions.TextFromPdf;
+import org.getmarco.medtextanalyze.match.RuleMatch;
+import org.getmarco.medtextanalyze.match.RuleScanner;
+import org.getmarco.medtextanalyze.match.RuleSet;
 
 @CommonsLog
 public class MedTextAnalyze {
@@ -35,16 +51,89 @@ public class MedTextAnalyze {
     private static final String IMAGE_TEXT = API_ENDPOINT + "imagetext";
     private static final String PDF_TEXT = API_ENDPOINT + "pdftext";
     private static final String TEXT_ENTITIES = API_ENDPOINT + "textentities";
+    private static final int UPLOAD_THREADS = 8;
+    private static final int FILE_WORKERS = 4;
+    private static final int URL_BATCH_SIZE = 50;
+    private static final int URL_LOW_WATER = 10;
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final String CBOR_CONTENT_TYPE = "application/cbor";
 
     private final ObjectMapper mapper;
+    private final ObjectMapper cborMapper;
+    private final boolean binaryResponses;
     private final CloseableHttpClient httpClient;
+    private final FileUploader uploader;
+    private final ExecutorService fileExecutor;
+    private final UploadUrlPrefetcher urlPrefetcher;
 
     /**
      * Class constructor.
      */
     public MedTextAnalyze() {
+        this(false);
+    }
+
+    /**
+     * Class constructor. Responses are always requested gzip compressed, which the HTTP client decompresses.
+     * @param binaryResponses whether to ask for CBOR rather than JSON responses
+     */
+    public MedTextAnalyze(final boolean binaryResponses) {
+        this.binaryResponses = binaryResponses;
         mapper = new ObjectMapper();
-        httpClient = HttpClientBuilder.create().build();
+        cborMapper = new ObjectMapper(new CBORFactory());
+        httpClient = HttpClientBuilder.create()
+          .setMaxConnPerRoute(UPLOAD_THREADS)
+          .setMaxConnTotal(UPLOAD_THREADS * 2)
+          .build();
+        uploader = new FileUploader(httpClient, Executors.newFixedThreadPool(UPLOAD_THREADS, daemonThreads("upload")));
+        fileExecutor = Executors.newFixedThreadPool(FILE_WORKERS, daemonThreads("upload-file"));
+        urlPrefetcher = new UploadUrlPrefetcher(count -> getUploadUrls(count, null),
+          Executors.newSingleThreadExecutor(daemonThreads("upload-url")), URL_BATCH_SIZE, URL_LOW_WATER);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Upload a batch of files in parallel. Small files take pre-signed URLs prefetched in batches; large files get
+     * their multipart URLs from a single batch request.
+     * @param files the files to upload
+     * @return the upload location of each file, in the same order
+     * @throws Exception for any network or response parsing errors
+     */
+    public List<SignedUrlForUpload.Output> uploadFiles(final List<File> files) throws Exception {
+        List<File> large = files.stream()
+          .filter(file -> file.length() >= SignedUrlForUpload.MULTIPART_THRESHOLD)
+          .collect(Collectors.toList());
+        List<SignedUrlForUpload.Output> largeTargets = large.isEmpty() ? new ArrayList<>()
+          : getUploadUrls(large.size(), large.stream().map(File::length).collect(Collectors.toList()));
+
+        List<Future<SignedUrlForUpload.Output>> uploads = new ArrayList<>(files.size());
+        int nextLarge = 0;
+        for (File file : files) {
+            final SignedUrlForUpload.Output largeTarget =
+              file.length() >= SignedUrlForUpload.MULTIPART_THRESHOLD ? largeTargets.get(nextLarge++) : null;
+            uploads.add(this.fileExecutor.submit(() -> {
+                SignedUrlForUpload.Output target = largeTarget != null ? largeTarget : this.urlPrefetcher.take();
+                this.uploader.upload(file, target);
+                return target;
+            }));
+        }
+
+        List<SignedUrlForUpload.Output> targets = new ArrayList<>(files.size());
+        try {
+            for (Future<SignedUrlForUpload.Output> upload : uploads)
+                targets.add(upload.get());
+        } catch (ExecutionException e) {
+            uploads.forEach(upload -> upload.cancel(true));
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        return targets;
     }
 
     /**
@@ -101,66 +190,130 @@ public class MedTextAnalyze {
         return matcher;
     }
 
+    /**
+     * Run sample process to upload a PDF, detect text from it, and match a set of rules against it. The text is
+     * scanned as each piece of it arrives, in one pass for all of the rules.
+     * @param pdfFile the PDF to analyze
+     * @param rules the rules to match
+     * @throws Exception for any network or response parsing errors
+     * @return the matches, in order of position
+     */
+    public List<RuleMatch> submitPdfAndMatchRules(final File pdfFile, final RuleSet rules) throws Exception {
+        SignedUrlForUpload.Output uploadInfo = uploadFile(pdfFile);
+
+        List<RuleMatch> matches = new ArrayList<>();
+        RuleScanner scanner = rules.scanner(matches::add);
+        pullTextFromPdf(uploadInfo.getBucket(), uploadInfo.getKey(), scanner::accept);
+        scanner.finish();
+        log.info("rule matches: " + matches.size() + " on " + scanner.getPage() + " pages");
+
+        Collections.sort(matches);
+        return matches;
+    }
+
     private SignedUrlForUpload.Output uploadFile(final File imageFile) throws Exception {
-        // Get a pre-signed upload URL
-        SignedUrlForUpload.Output uploadUrlOutput = getUploadUrl();
+        // Get a pre-signed upload URL, or a set of part URLs for a large file
+        long size = imageFile.length();
+        SignedUrlForUpload.Output uploadUrlOutput = size >= SignedUrlForUpload.MULTIPART_THRESHOLD
+          ? getUploadUrl(UPLOAD_URL + "?" + SignedUrlForUpload.SIZE_PARAM + "=" + size)
+          : getUploadUrl(UPLOAD_URL);
         String bucket = uploadUrlOutput.getBucket();
         String key = uploadUrlOutput.getKey();
-        String uploadUrl = uploadUrlOutput.getLink();
-        log.info(String.format("upload bucket: %s, key: %s, link: %s", bucket, key, uploadUrl));
+        if (uploadUrlOutput.isMultipart()) {
+            log.info(String.format("upload bucket: %s, key: %s, parts: %d", bucket, key,
+              uploadUrlOutput.getPartLinks().size()));
+        } else {
+            log.info(String.format("upload bucket: %s, key: %s, link: %s", bucket, key, uploadUrlOutput.getLink()));
+        }
 
         // Upload a sample image to S3
-        HttpResponse uploadFileResponse = doUploadFile(imageFile, uploadUrl);
-        log.info("upload put response status: " + uploadFileResponse.getStatusLine().getStatusCode());
+        this.uploader.upload(imageFile, uploadUrlOutput);
 
         return uploadUrlOutput;
     }
 
-    private SignedUrlForUpload.Output getUploadUrl() throws IOException, ParseException {
-        CloseableHttpResponse response = this.httpClient.execute(new HttpGet(UPLOAD_URL));
-        String responseContent = EntityUtils.toString(response.getEntity());
-        SignedUrlForUpload.Output output = fromJson(responseContent, SignedUrlForUpload.Output.class);
-        return output;
+    private SignedUrlForUpload.Output getUploadUrl(final String url) throws IOException, ParseException {
+        return execute(new HttpGet(url), SignedUrlForUpload.Output.class);
     }
 
-    private HttpResponse doUploadFile(final File file, final String url) throws IOException {
-        HttpPut put = new HttpPut(url);
-        put.setEntity(new FileEntity(file));
-        CloseableHttpResponse response = this.httpClient.execute(put);
-        return response;
+    private List<SignedUrlForUpload.Output> getUploadUrls(final int count, final List<Long> sizes)
+      throws IOException {
+        String url = UPLOAD_URL + "?" + SignedUrlForUpload.COUNT_PARAM + "=" + count;
+        if (sizes != null) {
+            url += "&" + SignedUrlForUpload.SIZES_PARAM + "="
+              + sizes.stream().map(String::valueOf).collect(Collectors.joining(","));
+        }
+        return execute(new HttpGet(url), SignedUrlForUpload.BatchOutput.class).getUploads();
     }
 
     private TextFromImage.Output pullTextFromImage(final String bucket, final String key) throws IOException {
-        HttpPost post = new HttpPost(IMAGE_TEXT);
-        String input = toJson(new TextFromImage.Input(bucket, key));
-        post.setEntity(new StringEntity(input));
-        CloseableHttpResponse response = this.httpClient.execute(post);
-        String responseContent = EntityUtils.toString(response.getEntity());
-        TextFromImage.Output output = fromJson(responseContent, TextFromImage.Output.class);
-        return output;
+        return post(IMAGE_TEXT, new TextFromImage.Input(bucket, key), TextFromImage.Output.class);
     }
 
     private TextFromPdf.Output pullTextFromPdf(final String bucket, final String key) throws IOException {
-        HttpPost post = new HttpPost(PDF_TEXT);
-        String input = toJson(new TextFromPdf.Input(bucket, key));
-        post.setEntity(new StringEntity(input));
-        CloseableHttpResponse response = this.httpClient.execute(post);
-        String responseContent = EntityUtils.toString(response.getEntity());
-        TextFromPdf.Output output = fromJson(responseContent, TextFromPdf.Output.class);
+        StringBuilder text = new StringBuilder();
+        TextFromPdf.Output output = pullTextFromPdf(bucket, key, text::append);
+        output.setText(text.toString());
+        return output;
+    }
+
+    private TextFromPdf.Output pullTextFromPdf(final String bucket, final String key, final Consumer<String> pieces)
+      throws IOException {
+        // large documents come back in pieces; keep resuming until the text is complete
+        String continuation = null;
+        TextFromPdf.Output output;
+        do {
+            output = post(PDF_TEXT, new TextFromPdf.Input(bucket, key, continuation), TextFromPdf.Output.class);
+            if (output.getText() != null)
+                pieces.accept(output.getText());
+            continuation = output.getContinuation();
+        } while (continuation != null);
         return output;
     }
 
     private EntitiesFromText.Output findTextEntities(final String text) throws IOException {
-        EntitiesFromText.Output textEntitiesContent;
-        HttpPost post = new HttpPost(TEXT_ENTITIES);
-        String input = toJson(new EntitiesFromText.Input(text));
-        post.setEntity(new StringEntity(input));
-        CloseableHttpResponse response = this.httpClient.execute(post);
-        String responseContent = EntityUtils.toString(response.getEntity());
-        EntitiesFromText.Output output = fromJson(responseContent, EntitiesFromText.Output.class);
+        return post(TEXT_ENTITIES, new EntitiesFromText.Input(text), EntitiesFromText.Output.class);
+    }
+
+    private <X> X post(final String url, final Object input, final Class<X> clazz) throws IOException {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new StringEntity(toJson(input), ContentType.APPLICATION_JSON));
+        return execute(post, clazz);
+    }
+
+    /**
+     * Execute a request and read the response body as the given type. A gzip body has already been decompressed by
+     * the HTTP client; a CBOR body is told apart by its content type. Output too large to return inline is fetched
+     * from the link the response carries instead.
+     */
+    private <X> X execute(final HttpUriRequest request, final Class<X> clazz) throws IOException {
+        request.setHeader(HttpHeaders.ACCEPT, this.binaryResponses ? CBOR_CONTENT_TYPE : JSON_CONTENT_TYPE);
+        X output = read(request, clazz);
+        if (output instanceof FunctionOutput && ((FunctionOutput) output).getResultLink() != null) {
+            FunctionOutput summary = (FunctionOutput) output;
+            log.info("fetching " + summary.getResultBytes() + " byte result from link");
+            output = read(new HttpGet(summary.getResultLink()), clazz);
+        }
         return output;
     }
 
+    private <X> X read(final HttpUriRequest request, final Class<X> clazz) throws IOException {
+        try (CloseableHttpResponse response = this.httpClient.execute(request)) {
+            Header contentType = response.getEntity().getContentType();
+            if (contentType != null && contentType.getValue().startsWith(CBOR_CONTENT_TYPE)) {
+                byte[] responseContent = EntityUtils.toByteArray(response.getEntity());
+                try {
+                    return this.cborMapper.readValue(responseContent, clazz);
+                } catch (IOException e) {
+                    log.error("unable to deserialize '" + clazz.getName() + "' from " + responseContent.length
+                      + " bytes of CBOR");
+                    throw e;
+                }
+            }
+            return fromJson(EntityUtils.toString(response.getEntity()), clazz);
+        }
+    }
+
     private String toJson(final Object object) throws IOException {
         return this.mapper.writeValueAsString(object);
     }
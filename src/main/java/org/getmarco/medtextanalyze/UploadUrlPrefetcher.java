@@ -0,0 +1,111 @@
+package org.getmarco.medtextanalyze;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+import org.getmarco.medtextanalyze.functions.SignedUrlForUpload;
+
+/**
+ * Keeps a queue of pre-signed upload URLs filled ahead of the upload workers. URLs are fetched in batches in the
+ * background whenever the queue drops to its low water mark, so a worker normally takes a URL without a round trip.
+ */
+@CommonsLog
+public class UploadUrlPrefetcher {
+    // pre-signed URLs are valid for 30 minutes; leave headroom for the upload itself
+    private static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(20);
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Source of pre-signed upload URLs.
+     */
+    @FunctionalInterface
+    public interface BatchSource {
+        /**
+         * Fetch a batch of pre-signed upload URLs.
+         * @param count the number of URLs to fetch
+         * @return the upload URLs
+         * @throws IOException for any network or response parsing errors
+         */
+        List<SignedUrlForUpload.Output> fetch(int count) throws IOException;
+    }
+
+    private final BatchSource source;
+    private final Executor executor;
+    private final int batchSize;
+    private final int lowWater;
+    private final BlockingQueue<Entry> ready = new LinkedBlockingQueue<>();
+    private final AtomicBoolean fetching = new AtomicBoolean();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    /**
+     * Class constructor.
+     * @param source the source of upload URL batches
+     * @param executor the executor for background fetches
+     * @param batchSize the number of URLs fetched per batch
+     * @param lowWater the queue size at or below which another batch is fetched
+     */
+    public UploadUrlPrefetcher(final BatchSource source, final Executor executor, final int batchSize,
+      final int lowWater) {
+        this.source = source;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.lowWater = lowWater;
+    }
+
+    /**
+     * Take a pre-signed upload URL, waiting for a background fetch if none is ready.
+     * @return the upload URL
+     * @throws IOException if fetching URLs failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public SignedUrlForUpload.Output take() throws IOException, InterruptedException {
+        while (true) {
+            if (this.ready.size() <= this.lowWater)
+                refill();
+            Entry entry = this.ready.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (entry != null) {
+                if (System.currentTimeMillis() - entry.fetched < MAX_AGE_MILLIS)
+                    return entry.output;
+                continue;
+            }
+            IOException e = this.failure.getAndSet(null);
+            if (e != null)
+                throw e;
+        }
+    }
+
+    private void refill() {
+        if (!this.fetching.compareAndSet(false, true))
+            return;
+        this.executor.execute(() -> {
+            try {
+                long fetched = System.currentTimeMillis();
+                for (SignedUrlForUpload.Output output : this.source.fetch(this.batchSize))
+                    this.ready.add(new Entry(output, fetched));
+            } catch (IOException | RuntimeException e) {
+                log.warn("unable to prefetch upload urls", e);
+                this.failure.set(e instanceof IOException ? (IOException) e : new IOException(e));
+            } finally {
+                this.fetching.set(false);
+            }
+        });
+    }
+
+    private static final class Entry {
+        private final SignedUrlForUpload.Output output;
+        private final long fetched;
+
+        Entry(final SignedUrlForUpload.Output output, final long fetched) {
+            this.output = output;
+            this.fetched = fetched;
+        }
+    }
+}
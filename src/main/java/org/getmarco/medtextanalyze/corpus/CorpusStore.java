@@ -0,0 +1,373 @@
+package org.getmarco.medtextanalyze.corpus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.getmarco.medtextanalyze.support.StructuredLogger;
+
+/**
+ * An append-only store of the text detected in documents, page by page, so it can be analyzed again without
+ * detecting it again. Documents are appended to segment files, which are read through memory maps, and found by an
+ * index of their offsets kept in memory.
+ * <p>
+ * Each store instance writes only to segments of its own, named for it, so processes sharing a directory never write
+ * to the same file; a segment is full at a set size. Appending a document again supersedes the earlier copy. Opening
+ * a store indexes every segment in the directory, reading only the record headers, and skips a record left
+ * incomplete by a writer that stopped midway, or that is still being written by another process. Records appended by
+ * other processes after that are not seen until the store is opened again.
+ * <p>
+ * Each record carries a checksum, which is checked as it is read. A store is safe for use by any number of threads.
+ */
+public final class CorpusStore implements Closeable {
+    /** Environment variable for the directory of the store the analyzers of a process append to. */
+    public static final String DIRECTORY_VAR_NAME = "MED_CORPUS_DIR";
+    /** Default size a segment is full at. */
+    public static final long DEFAULT_SEGMENT_BYTES = 256L << 20;
+    static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MAGIC = 0x4d454443;
+    // magic, body length and checksum, then the body: time appended, id, page count, page lengths and page text
+    private static final int HEADER_BYTES = 12;
+    private static final int TIME_BYTES = 8;
+    private static final int SEGMENT_SHIFT = 32;
+    private static final long OFFSET_MASK = 0xffffffffL;
+    private static final int MAX_ID_BYTES = 0xffff;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final String writer;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    // document id to segment number and offset, packed in a long
+    private final Map<String, Long> index = new ConcurrentHashMap<>();
+    // the segment being appended to is mapped for writing at its full size, and cut to what was written once done
+    private Segment active;
+    private FileChannel output;
+    private int written;
+
+    /**
+     * Constructor.
+     * @param directory the directory of segment files, created if it does not exist
+     * @param segmentBytes the size a segment is full at, at most 2 GiB as segments are mapped whole
+     * @throws IOException if the directory cannot be created or a segment cannot be read
+     */
+    public CorpusStore(final Path directory, final long segmentBytes) throws IOException {
+        if (segmentBytes < 1 || segmentBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid segment size: " + segmentBytes);
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.writer = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX) + "-"
+          + Integer.toString(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE), Character.MAX_RADIX);
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + SEGMENT_SUFFIX)) {
+            files.forEach(paths::add);
+        }
+        Collections.sort(paths);
+        for (Path path : paths)
+            load(path);
+    }
+
+    /**
+     * Constructor, with the default segment size.
+     * @param directory the directory of segment files, created if it does not exist
+     * @throws IOException if the directory cannot be created or a segment cannot be read
+     */
+    public CorpusStore(final Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Returns the store the analyzers of a process append to, in the directory named by MED_CORPUS_DIR, opening it
+     * the first time. A store that cannot be opened is logged and left off.
+     * @return the store, or null if none is set or it cannot be opened
+     */
+    public static CorpusStore shared() {
+        return Shared.STORE;
+    }
+
+    private static CorpusStore fromEnvironment() {
+        String directory = System.getenv(DIRECTORY_VAR_NAME);
+        if (directory == null || directory.isEmpty())
+            return null;
+        try {
+            return new CorpusStore(Paths.get(directory));
+        } catch (IOException | RuntimeException e) {
+            StructuredLogger.deferWarning("cannot open corpus store " + directory + ", not keeping text: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Append the text of a document, superseding any earlier copy.
+     * @param id the document id
+     * @param pages the text of each page
+     * @throws IOException if the record cannot be written
+     */
+    public void append(final String id, final List<String> pages) throws IOException {
+        ByteBuffer record = encode(id, pages);
+        synchronized (this) {
+            if (this.output == null || this.written + (long) record.remaining() > this.active.mapped.capacity())
+                roll(record.remaining());
+            int offset = this.written;
+            ByteBuffer target = this.active.mapped.duplicate();
+            target.position(offset);
+            target.put(record);
+            this.written = target.position();
+            this.active.length = this.written;
+            this.index.put(id, location(this.active.number, offset));
+        }
+    }
+
+    /**
+     * Returns the latest copy of a document.
+     * @param id the document id
+     * @return the document, or null if the store has none
+     * @throws UncheckedIOException if the record is corrupt or cannot be read
+     */
+    public StoredDocument get(final String id) {
+        Long location = this.index.get(id);
+        return location == null ? null : read(location);
+    }
+
+    /**
+     * Returns the ids of the documents in the store.
+     * @return a view of the ids
+     */
+    public Set<String> ids() {
+        return Collections.unmodifiableSet(this.index.keySet());
+    }
+
+    /**
+     * Returns the number of documents in the store.
+     * @return the document count
+     */
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Returns the latest copy of every document, in the order they are stored in so a scan reads each segment front
+     * to back. The stream splits into runs of neighboring records, so it may be made parallel.
+     * @param select the ids of the documents to return
+     * @return the documents; reading one throws {@link UncheckedIOException} if it is corrupt or cannot be read
+     */
+    public Stream<StoredDocument> documents(final Predicate<String> select) {
+        return Arrays.stream(locations(select)).mapToObj(this::read);
+    }
+
+    /**
+     * Returns the latest copy of every document, in the order they are stored in.
+     * @return the documents
+     * @see #documents(Predicate)
+     */
+    public Stream<StoredDocument> documents() {
+        return documents(id -> true);
+    }
+
+    /**
+     * Write what has been appended through to the device.
+     * @throws IOException if it cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if (this.output != null)
+            this.active.mapped.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        finish();
+        for (Segment segment : this.segments)
+            segment.close();
+    }
+
+    // open a new segment of this store's own to append to, large enough for at least the next record
+    private void roll(final int recordBytes) throws IOException {
+        finish();
+        Path path = this.directory.resolve(String.format("%s-%06d%s", this.writer, this.segments.size(),
+          SEGMENT_SUFFIX));
+        this.output = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+        Segment segment = new Segment(this.segments.size(), path, 0);
+        segment.mapped = this.output.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.segmentBytes, recordBytes));
+        this.written = 0;
+        this.active = segment;
+        this.segments.add(segment);
+    }
+
+    // write the active segment through and cut it to the records written; its mapping stays in use for reading
+    private void finish() throws IOException {
+        if (this.output == null)
+            return;
+        flush();
+        this.output.truncate(this.written);
+        this.output.close();
+        this.output = null;
+    }
+
+    // index the complete records of a segment, stopping at the first that is not
+    private void load(final Path path) throws IOException {
+        Segment segment = new Segment(this.segments.size(), path, (int) Math.min(Files.size(path), Integer.MAX_VALUE));
+        this.segments.add(segment);
+        ByteBuffer buffer = segment.map(segment.length);
+        int offset = 0;
+        while (offset + HEADER_BYTES <= segment.length && buffer.getInt(offset) == MAGIC) {
+            int length = buffer.getInt(offset + Integer.BYTES);
+            int end = offset + HEADER_BYTES + length;
+            if (length < TIME_BYTES + Short.BYTES + Integer.BYTES || end < 0 || end > segment.length)
+                break;
+            // only the last record can have been cut short, or be still being written into a segment mapped at its
+            // full size; the ones before it were written whole
+            boolean last = end + HEADER_BYTES > segment.length || buffer.getInt(end) != MAGIC;
+            if (last && !checksumMatches(buffer, offset))
+                break;
+            String id = decodeId(buffer, offset);
+            long location = location(segment.number, offset);
+            Long earlier = this.index.putIfAbsent(id, location);
+            if (earlier != null && appendedMillis(earlier) <= buffer.getLong(offset + HEADER_BYTES))
+                this.index.put(id, location);
+            offset = end;
+        }
+        segment.length = offset;
+    }
+
+    // the locations of the selected documents, in the order they are stored in
+    long[] locations(final Predicate<String> select) {
+        long[] locations = this.index.entrySet().stream().filter(e -> select.test(e.getKey()))
+          .mapToLong(Map.Entry::getValue).toArray();
+        Arrays.sort(locations);
+        return locations;
+    }
+
+    StoredDocument read(final long location) {
+        Segment segment = this.segments.get((int) (location >>> SEGMENT_SHIFT));
+        int offset = (int) (location & OFFSET_MASK);
+        try {
+            ByteBuffer buffer = segment.map(offset + HEADER_BYTES);
+            int length = buffer.getInt(offset + Integer.BYTES);
+            buffer = segment.map(offset + HEADER_BYTES + length);
+            if (!checksumMatches(buffer, offset))
+                throw new IOException("corrupt record at " + offset + " in " + segment.path);
+            ByteBuffer body = buffer.duplicate();
+            body.position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + length);
+            return new StoredDocument(body.slice());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long appendedMillis(final long location) throws IOException {
+        Segment segment = this.segments.get((int) (location >>> SEGMENT_SHIFT));
+        int offset = (int) (location & OFFSET_MASK);
+        return segment.map(offset + HEADER_BYTES + TIME_BYTES).getLong(offset + HEADER_BYTES);
+    }
+
+    private static long location(final int segment, final int offset) {
+        return (long) segment << SEGMENT_SHIFT | offset;
+    }
+
+    private static String decodeId(final ByteBuffer buffer, final int offset) {
+        int position = offset + HEADER_BYTES + TIME_BYTES;
+        byte[] id = new byte[Short.toUnsignedInt(buffer.getShort(position))];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position + Short.BYTES);
+        slice.get(id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    private static boolean checksumMatches(final ByteBuffer buffer, final int offset) {
+        int length = buffer.getInt(offset + Integer.BYTES);
+        ByteBuffer body = buffer.duplicate();
+        body.position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + length);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue() == buffer.getInt(offset + Integer.BYTES * 2);
+    }
+
+    private static ByteBuffer encode(final String id, final List<String> pages) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > MAX_ID_BYTES)
+            throw new IllegalArgumentException("document id is too long: " + id);
+        byte[][] pageBytes = new byte[pages.size()][];
+        long length = TIME_BYTES + Short.BYTES + idBytes.length + Integer.BYTES + (long) Integer.BYTES * pages.size();
+        for (int i = 0; i < pageBytes.length; i++) {
+            pageBytes[i] = pages.get(i).getBytes(StandardCharsets.UTF_8);
+            length += pageBytes[i].length;
+        }
+        if (HEADER_BYTES + length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("document is too large to store: " + id);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + (int) length);
+        record.putInt(MAGIC).putInt((int) length).putInt(0);
+        record.putLong(System.currentTimeMillis()).putShort((short) idBytes.length).put(idBytes);
+        record.putInt(pageBytes.length);
+        for (byte[] page : pageBytes)
+            record.putInt(page.length);
+        for (byte[] page : pageBytes)
+            record.put(page);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_BYTES, (int) length);
+        record.putInt(Integer.BYTES * 2, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * A segment file, mapped for reading. A segment loaded from the directory is mapped once, over what it held when
+     * loaded; the segment being appended to is read through the mapping it is written through.
+     */
+    private static final class Shared {
+        private static final CorpusStore STORE = fromEnvironment();
+    }
+
+    private static final class Segment {
+        private final int number;
+        private final Path path;
+        private volatile int length;
+        private volatile MappedByteBuffer mapped;
+
+        Segment(final int number, final Path path, final int length) {
+            this.number = number;
+            this.path = path;
+            this.length = length;
+        }
+
+        // returns the segment mapped up to at least the given size
+        ByteBuffer map(final int size) throws IOException {
+            MappedByteBuffer buffer = this.mapped;
+            if (buffer != null && buffer.capacity() >= size)
+                return buffer;
+            synchronized (this) {
+                if (this.mapped == null || this.mapped.capacity() < size) {
+                    try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+                        this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                          Math.max(size, Math.min(this.length, channel.size())));
+                    }
+                }
+                return this.mapped;
+            }
+        }
+
+        void close() {
+            this.mapped = null;
+        }
+    }
+}
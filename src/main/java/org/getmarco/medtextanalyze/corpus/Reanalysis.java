@@ -0,0 +1,248 @@
+package org.getmarco.medtextanalyze.corpus;
+
+import com.amazonaws.services.comprehendmedical.model.Attribute;
+import com.amazonaws.services.comprehendmedical.model.Entity;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.getmarco.medtextanalyze.index.EntityIndex;
+import org.getmarco.medtextanalyze.match.RuleMatch;
+import org.getmarco.medtextanalyze.match.RuleSet;
+import org.getmarco.medtextanalyze.support.Analyzer;
+import org.getmarco.medtextanalyze.support.Deadline;
+
+/**
+ * Runs the documents of a {@link CorpusStore} through an analysis stage again, such as entity detection after the
+ * entity rules change, without detecting their text again. Documents are read in the order they are stored in and
+ * spread over a fork-join pool of a set parallelism, so the run is bound by the stage: by CPU for a
+ * {@link #rules rule set}, or by the Comprehend Medical quota, which the analyzer's call governor enforces, for
+ * {@link #entities entity detection}. A stage that waits on calls needs a parallelism of at least the calls the quota
+ * allows in flight.
+ * <p>
+ * A document the stage fails on is counted and its id reported, and the run goes on; a failure of the sink stops it.
+ */
+public final class Reanalysis {
+    private static final double NANOS_PER_SECOND = 1e9;
+    // failed document ids kept in a report, so a run over a broken store does not keep them all
+    private static final int MAX_REPORTED_FAILURES = 1000;
+
+    private final CorpusStore store;
+    private final int parallelism;
+
+    /**
+     * Constructor.
+     * @param store the store to read documents from
+     * @param parallelism the number of documents analyzed at once
+     */
+    public Reanalysis(final CorpusStore store, final int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("invalid parallelism: " + parallelism);
+        this.store = store;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns a stage detecting the medical entities on each page of a document.
+     * @param analyzer the analyzer, with a Comprehend Medical client set
+     * @return the stage, giving the report of each page's entities
+     */
+    public static Function<StoredDocument, List<String>> entities(final Analyzer analyzer) {
+        return document -> {
+            List<String> reports = new ArrayList<>(document.getPageCount());
+            for (String page : document.getPages())
+                reports.add(page.trim().isEmpty() ? "" : analyzer.getEntities(page));
+            return reports;
+        };
+    }
+
+    /**
+     * Returns a stage detecting the medical entities on each page of a document and adding them to an index, with
+     * offsets into the document's {@link StoredDocument#getText text}.
+     * @param analyzer the analyzer, with a Comprehend Medical client set
+     * @param index the index
+     * @return the stage, giving the number of entities indexed
+     */
+    public static Function<StoredDocument, Integer> index(final Analyzer analyzer, final EntityIndex index) {
+        return document -> {
+            List<Entity> entities = new ArrayList<>();
+            int start = 0;
+            for (String page : document.getPages()) {
+                // each page starts after the empty line before it
+                start++;
+                if (!page.trim().isEmpty()) {
+                    for (Entity entity : analyzer.detectEntities(page, Deadline.none()))
+                        entities.add(shift(entity, start));
+                }
+                start += page.length() + (page.isEmpty() || page.endsWith("\n") ? 0 : 1);
+            }
+            try {
+                index.add(document.getId(), entities);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return entities.size();
+        };
+    }
+
+    private static Entity shift(final Entity entity, final int start) {
+        if (entity.getBeginOffset() != null)
+            entity.setBeginOffset(entity.getBeginOffset() + start);
+        if (entity.getEndOffset() != null)
+            entity.setEndOffset(entity.getEndOffset() + start);
+        if (entity.getAttributes() != null) {
+            for (Attribute attribute : entity.getAttributes()) {
+                if (attribute.getBeginOffset() != null)
+                    attribute.setBeginOffset(attribute.getBeginOffset() + start);
+                if (attribute.getEndOffset() != null)
+                    attribute.setEndOffset(attribute.getEndOffset() + start);
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * Returns a stage matching a rule set against a document.
+     * @param rules the rules
+     * @return the stage, giving the matches in order of position
+     */
+    public static Function<StoredDocument, List<RuleMatch>> rules(final RuleSet rules) {
+        return document -> rules.scan(document.getText());
+    }
+
+    /**
+     * Analyze every document.
+     * @param stage the analysis, called from several threads at once
+     * @param sink receives each document and the result of its analysis, from several threads at once
+     * @param <R> the result type
+     * @return what the run did
+     * @throws InterruptedException if interrupted while waiting for the run to finish
+     */
+    public <R> Report run(final Function<StoredDocument, R> stage, final BiConsumer<StoredDocument, R> sink)
+      throws InterruptedException {
+        return run(id -> true, stage, sink);
+    }
+
+    /**
+     * Analyze the selected documents.
+     * @param select the ids of the documents to analyze
+     * @param stage the analysis, called from several threads at once
+     * @param sink receives each document and the result of its analysis, from several threads at once
+     * @param <R> the result type
+     * @return what the run did
+     * @throws InterruptedException if interrupted while waiting for the run to finish
+     */
+    public <R> Report run(final Predicate<String> select, final Function<StoredDocument, R> stage,
+      final BiConsumer<StoredDocument, R> sink) throws InterruptedException {
+        AtomicLong documents = new AtomicLong();
+        AtomicLong pages = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        Queue<String> failed = new ConcurrentLinkedQueue<>();
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            // a parallel stream started from within a pool runs its tasks in that pool
+            pool.submit(() -> Arrays.stream(this.store.locations(select)).parallel().forEach(location -> {
+                StoredDocument document = null;
+                R result;
+                try {
+                    document = this.store.read(location);
+                    result = stage.apply(document);
+                } catch (RuntimeException e) {
+                    if (failures.incrementAndGet() <= MAX_REPORTED_FAILURES && document != null)
+                        failed.add(document.getId());
+                    return;
+                }
+                sink.accept(document, result);
+                documents.incrementAndGet();
+                pages.addAndGet(document.getPageCount());
+            })).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Report(documents.get(), pages.get(), failures.get(), new ArrayList<>(failed),
+          System.nanoTime() - start);
+    }
+
+    /**
+     * What a run did.
+     */
+    public static final class Report {
+        private final long documents;
+        private final long pages;
+        private final long failures;
+        private final List<String> failedIds;
+        private final long elapsedNanos;
+
+        Report(final long documents, final long pages, final long failures, final List<String> failedIds,
+          final long elapsedNanos) {
+            this.documents = documents;
+            this.pages = pages;
+            this.failures = failures;
+            this.failedIds = Collections.unmodifiableList(failedIds);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Returns the number of documents analyzed.
+         * @return the document count
+         */
+        public long getDocuments() {
+            return this.documents;
+        }
+
+        /**
+         * Returns the number of pages in the documents analyzed.
+         * @return the page count
+         */
+        public long getPages() {
+            return this.pages;
+        }
+
+        /**
+         * Returns the number of documents the stage failed on, or that could not be read.
+         * @return the failure count
+         */
+        public long getFailures() {
+            return this.failures;
+        }
+
+        /**
+         * Returns the ids of the documents the stage failed on, up to a thousand of them, to run again.
+         * @return the ids
+         */
+        public List<String> getFailedIds() {
+            return this.failedIds;
+        }
+
+        /**
+         * Returns the pages analyzed per second.
+         * @return the throughput
+         */
+        public double getPagesPerSecond() {
+            return this.pages * NANOS_PER_SECOND / Math.max(1, this.elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d documents, %d pages, %d failures, %.1f pages/s", this.documents, this.pages,
+              this.failures, getPagesPerSecond());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.getmarco.medtextanalyze.corpus;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * The text of a document as read from a {@link CorpusStore}. The pages are decoded from the mapped segment as they
+ * are asked for, so reading a document only to look at some of its pages costs little.
+ */
+public final class StoredDocument {
+    private static final int TIME_BYTES = 8;
+
+    private final ByteBuffer record;
+    private final long appendedMillis;
+    private final String id;
+    private final int[] pageOffsets;
+
+    /**
+     * Constructor.
+     * @param record the body of the document's record
+     */
+    StoredDocument(final ByteBuffer record) {
+        this.record = record;
+        this.appendedMillis = record.getLong(0);
+        byte[] idBytes = new byte[Short.toUnsignedInt(record.getShort(TIME_BYTES))];
+        ByteBuffer slice = record.duplicate();
+        slice.position(TIME_BYTES + Short.BYTES);
+        slice.get(idBytes);
+        this.id = new String(idBytes, StandardCharsets.UTF_8);
+        int position = slice.position();
+        int pages = record.getInt(position);
+        this.pageOffsets = new int[pages + 1];
+        this.pageOffsets[0] = position + Integer.BYTES * (pages + 1);
+        for (int i = 0; i < pages; i++)
+            this.pageOffsets[i + 1] = this.pageOffsets[i] + record.getInt(position + Integer.BYTES * (i + 1));
+    }
+
+    /**
+     * Returns the document id.
+     * @return the id
+     */
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * Returns when the document was appended.
+     * @return the time, in milliseconds since the epoch
+     */
+    public long getAppendedMillis() {
+        return this.appendedMillis;
+    }
+
+    /**
+     * Returns the number of pages.
+     * @return the page count
+     */
+    public int getPageCount() {
+        return this.pageOffsets.length - 1;
+    }
+
+    /**
+     * Returns the text of a page.
+     * @param page the page index, starting at 0
+     * @return the text
+     */
+    public String getPage(final int page) {
+        ByteBuffer slice = this.record.duplicate();
+        slice.position(this.pageOffsets[page]).limit(this.pageOffsets[page + 1]);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * Returns the text of each page.
+     * @return a view decoding each page as it is read
+     */
+    public List<String> getPages() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(final int index) {
+                return getPage(index);
+            }
+
+            @Override
+            public int size() {
+                return getPageCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the text of the whole document, each page starting with an empty line and ending with a line break as in
+     * the text Textract detects in a PDF.
+     * @return the text
+     */
+    public String getText() {
+        StringBuilder s = new StringBuilder();
+        for (int page = 0; page < getPageCount(); page++) {
+            String text = getPage(page);
+            s.append('\n').append(text);
+            if (!text.isEmpty() && !text.endsWith("\n"))
+                s.append('\n');
+        }
+        return s.toString();
+    }
+
+    @Override
+    public String toString() {
+        return this.id + " (" + getPageCount() + " pages)";
+    }
+}
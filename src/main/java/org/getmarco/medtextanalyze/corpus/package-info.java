@@ -0,0 +1,5 @@
+/**
+ * A store of the text detected in documents, kept so the documents can be analyzed again without detecting it again,
+ * and a job to analyze them in bulk.
+ */
+package org.getmarco.medtextanalyze.corpus;
@@ -0,0 +1,331 @@
+package org.getmarco.medtextanalyze.functions;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.services.comprehendmedical.AWSComprehendMedical;
+import com.amazonaws.services.comprehendmedical.AWSComprehendMedicalClient;
+import com.amazonaws.services.comprehendmedical.model.ListEntitiesDetectionV2JobsRequest;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.AmazonTextractClientBuilder;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.getmarco.medtextanalyze.support.CallGovernor;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.ProxyResponse;
+import org.getmarco.medtextanalyze.support.RegionPool;
+
+/**
+ * AWS clients shared by every function in the process. Each handler warms the clients it uses from its static
+ * initializer, so client construction, credential resolution and, when priming is turned on, the first TLS
+ * handshake all happen during the Lambda init phase rather than on the first request.
+ * <p>
+ * When {@code MED_AWS_REGIONS} lists regions besides {@code MED_AWS_REGION}, Textract and Comprehend Medical calls
+ * are spread over clients in all of them by a {@link RegionPool}, with the buckets Textract can read in each region
+ * set by {@code MED_BUCKET_REGIONS}.
+ */
+final class ClientRegistry {
+    private static final String AWS_REGION_VAR_NAME = "MED_AWS_REGION";
+    private static final String AWS_REGIONS_VAR_NAME = "MED_AWS_REGIONS";
+    private static final String BUCKET_REGIONS_VAR_NAME = "MED_BUCKET_REGIONS";
+    private static final String UPLOAD_BUCKET_VAR_NAME = "MED_UPLOAD_BUCKET";
+    private static final String PRIME_VAR_NAME = "MED_PRIME";
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int CONNECTION_TIMEOUT_MILLIS = 2000;
+    // long enough for a synchronous Textract call on a dense page
+    private static final int SOCKET_TIMEOUT_MILLIS = 30000;
+    // a frozen container may find pooled connections closed by the server when it thaws
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+    private static final long CONNECTION_MAX_IDLE_MILLIS = 55000;
+    // a job id that cannot exist, so priming Textract costs one cheap rejected request
+    private static final String PRIMING_JOB_ID = "00000000000000000000000000000000000000000000000000000000000000ff";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final StringBuilder INIT_REPORT = new StringBuilder();
+    private static volatile AmazonS3 s3Client;
+    private static volatile AmazonTextract textractClient;
+    private static volatile AWSComprehendMedical comprehendMedicalClient;
+    private static volatile RegionPool<AmazonTextract> textractRegions;
+    private static volatile RegionPool<AWSComprehendMedical> comprehendMedicalRegions;
+
+    /**
+     * The clients the registry can build.
+     */
+    enum Client {
+        /** AWS S3. */
+        S3,
+        /** AWS Textract. */
+        TEXTRACT,
+        /** AWS Comprehend Medical. */
+        COMPREHEND_MEDICAL
+    }
+
+    private ClientRegistry() {
+    }
+
+    /**
+     * Build the given clients now and, if priming is turned on, open a connection from each and warm Jackson.
+     * Failures are logged and left for the first request to report.
+     * @param clients the clients to warm
+     */
+    static void warm(final Client... clients) {
+        boolean prime = Boolean.parseBoolean(System.getenv(PRIME_VAR_NAME));
+        long start = System.nanoTime();
+        try {
+            time("credentials", () -> getCredentialsProvider().getCredentials());
+            for (Client client : clients) {
+                time("build " + client, () -> get(client));
+                if (prime)
+                    time("prime " + client, () -> prime(client));
+            }
+            if (prime)
+                time("prime json", ClientRegistry::primeJson);
+        } catch (RuntimeException e) {
+            log("client warm up failed: " + e);
+        }
+        log("client registry init: " + initReport() + " (" + elapsedMillis(start) + " ms)");
+    }
+
+    /**
+     * Returns the timings recorded while warming clients, for reporting with the first request.
+     * @return the timings, empty if nothing was warmed
+     */
+    static synchronized String initReport() {
+        return INIT_REPORT.toString();
+    }
+
+    /**
+     * Returns the shared Jackson object mapper.
+     * @return the object mapper
+     */
+    static ObjectMapper getObjectMapper() {
+        return MAPPER;
+    }
+
+    /**
+     * Returns the shared AWS credentials provider.
+     * @return the credentials provider
+     */
+    static AWSCredentialsProvider getCredentialsProvider() {
+        return DefaultAWSCredentialsProviderChain.getInstance();
+    }
+
+    /**
+     * Returns the shared AWS S3 client.
+     * @return the S3 client
+     * @throws IllegalArgumentException if no region is configured
+     */
+    static AmazonS3 getS3Client() {
+        if (s3Client == null) {
+            synchronized (ClientRegistry.class) {
+                if (s3Client == null)
+                    s3Client = AmazonS3ClientBuilder.standard()
+                      .withCredentials(getCredentialsProvider())
+                      .withClientConfiguration(tuned(new ClientConfiguration()))
+                      .withRegion(region()).build();
+            }
+        }
+        return s3Client;
+    }
+
+    /**
+     * Returns the shared AWS Textract client. Its calls are expected to go through a {@link CallGovernor}.
+     * @return the Textract client
+     * @throws IllegalArgumentException if no region is configured
+     */
+    static AmazonTextract getTextractClient() {
+        if (textractClient == null) {
+            synchronized (ClientRegistry.class) {
+                if (textractClient == null)
+                    textractClient = textractClient(region());
+            }
+        }
+        return textractClient;
+    }
+
+    /**
+     * Returns the shared pool of Textract clients for the configured regions, the first of them the shared client.
+     * @return the pool, or null if no regions besides the primary region are configured
+     * @throws IllegalArgumentException if no region is configured
+     */
+    static RegionPool<AmazonTextract> getTextractRegions() {
+        if (otherRegions().isEmpty())
+            return null;
+        if (textractRegions == null) {
+            synchronized (ClientRegistry.class) {
+                if (textractRegions == null) {
+                    RegionPool<AmazonTextract> pool = new RegionPool<>(CallGovernor.TEXTRACT);
+                    pool.add(region(), getTextractClient());
+                    for (String region : otherRegions())
+                        pool.add(region, textractClient(region));
+                    pool.configureBuckets(System.getenv(BUCKET_REGIONS_VAR_NAME));
+                    textractRegions = pool;
+                }
+            }
+        }
+        return textractRegions;
+    }
+
+    private static AmazonTextract textractClient(final String region) {
+        return AmazonTextractClientBuilder.standard()
+          .withCredentials(getCredentialsProvider())
+          .withClientConfiguration(tuned(CallGovernor.governedClientConfiguration()))
+          .withRegion(region).build();
+    }
+
+    /**
+     * Returns the shared AWS Comprehend Medical client. Its calls are expected to go through a {@link CallGovernor}.
+     * @return the Comprehend Medical client
+     * @throws IllegalArgumentException if no region is configured
+     */
+    static AWSComprehendMedical getComprehendMedicalClient() {
+        if (comprehendMedicalClient == null) {
+            synchronized (ClientRegistry.class) {
+                if (comprehendMedicalClient == null)
+                    comprehendMedicalClient = comprehendMedicalClient(region());
+            }
+        }
+        return comprehendMedicalClient;
+    }
+
+    /**
+     * Returns the shared pool of Comprehend Medical clients for the configured regions, the first of them the shared
+     * client.
+     * @return the pool, or null if no regions besides the primary region are configured
+     * @throws IllegalArgumentException if no region is configured
+     */
+    static RegionPool<AWSComprehendMedical> getComprehendMedicalRegions() {
+        if (otherRegions().isEmpty())
+            return null;
+        if (comprehendMedicalRegions == null) {
+            synchronized (ClientRegistry.class) {
+                if (comprehendMedicalRegions == null) {
+                    RegionPool<AWSComprehendMedical> pool = new RegionPool<>(CallGovernor.COMPREHEND_MEDICAL);
+                    pool.add(region(), getComprehendMedicalClient());
+                    for (String region : otherRegions())
+                        pool.add(region, comprehendMedicalClient(region));
+                    comprehendMedicalRegions = pool;
+                }
+            }
+        }
+        return comprehendMedicalRegions;
+    }
+
+    private static AWSComprehendMedical comprehendMedicalClient(final String region) {
+        return AWSComprehendMedicalClient.builder()
+          .withCredentials(getCredentialsProvider())
+          .withClientConfiguration(tuned(CallGovernor.governedClientConfiguration()))
+          .withRegion(region).build();
+    }
+
+    private static ClientConfiguration tuned(final ClientConfiguration configuration) {
+        return configuration
+          .withMaxConnections(MAX_CONNECTIONS)
+          .withConnectionTimeout(CONNECTION_TIMEOUT_MILLIS)
+          .withSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+          .withTcpKeepAlive(true)
+          .withValidateAfterInactivityMillis(VALIDATE_AFTER_INACTIVITY_MILLIS)
+          .withConnectionMaxIdleMillis(CONNECTION_MAX_IDLE_MILLIS);
+    }
+
+    private static String region() {
+        String region = System.getenv(AWS_REGION_VAR_NAME);
+        if (region == null || region.isEmpty())
+            throw new IllegalArgumentException("missing region");
+        return region;
+    }
+
+    // the regions in MED_AWS_REGIONS other than the primary region
+    private static List<String> otherRegions() {
+        List<String> regions = new ArrayList<>();
+        String spec = System.getenv(AWS_REGIONS_VAR_NAME);
+        if (spec == null || spec.trim().isEmpty())
+            return regions;
+        String primary = region();
+        for (String region : spec.split(",")) {
+            if (!region.trim().isEmpty() && !region.trim().equals(primary) && !regions.contains(region.trim()))
+                regions.add(region.trim());
+        }
+        return regions;
+    }
+
+    private static Object get(final Client client) {
+        switch (client) {
+            case S3:
+                return getS3Client();
+            case TEXTRACT:
+                getTextractRegions();
+                return getTextractClient();
+            default:
+                getComprehendMedicalRegions();
+                return getComprehendMedicalClient();
+        }
+    }
+
+    /**
+     * Make one cheap request with the client so its connection pool holds an open TLS connection. The request is
+     * expected to be rejected; only reaching the service matters.
+     */
+    private static void prime(final Client client) {
+        try {
+            switch (client) {
+                case S3:
+                    String bucket = System.getenv(UPLOAD_BUCKET_VAR_NAME);
+                    if (bucket != null && !bucket.isEmpty())
+                        getS3Client().doesBucketExistV2(bucket);
+                    break;
+                case TEXTRACT:
+                    getTextractClient().getDocumentTextDetection(
+                      new GetDocumentTextDetectionRequest().withJobId(PRIMING_JOB_ID).withMaxResults(1));
+                    break;
+                default:
+                    getComprehendMedicalClient().listEntitiesDetectionV2Jobs(
+                      new ListEntitiesDetectionV2JobsRequest().withMaxResults(1));
+                    break;
+            }
+        } catch (SdkBaseException e) {
+            // expected for the Textract probe; the connection is open either way
+        }
+    }
+
+    private static void primeJson() {
+        try {
+            ProxyRequest request = MAPPER.readValue("{\"httpMethod\":\"GET\",\"body\":\"{}\"}", ProxyRequest.class);
+            MAPPER.writeValueAsString(request);
+            MAPPER.writeValueAsString(new ProxyResponse.ProxyResponseBuilder().withOkStatus().build());
+        } catch (IOException e) {
+            log("json warm up failed: " + e);
+        }
+    }
+
+    private static void time(final String step, final Runnable runnable) {
+        long start = System.nanoTime();
+        runnable.run();
+        synchronized (ClientRegistry.class) {
+            if (INIT_REPORT.length() > 0)
+                INIT_REPORT.append(", ");
+            INIT_REPORT.append(step).append(' ').append(elapsedMillis(start)).append(" ms");
+        }
+    }
+
+    private static long elapsedMillis(final long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static void log(final String message) {
+        LambdaLogger logger = LambdaRuntime.getLogger();
+        if (logger != null)
+            logger.log(message);
+    }
+}
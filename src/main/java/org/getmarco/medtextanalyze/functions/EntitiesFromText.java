@@ -6,28 +6,35 @@ import lombok.NoArgsConstructor;
 import lombok.Setter;
 
 import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.StructuredLogger;
 
-public class EntitiesFromText extends FunctionSupport {
+public class EntitiesFromText extends StreamFunctionSupport<EntitiesFromText.Input, EntitiesFromText.Output> {
+
+    static {
+        ClientRegistry.warm(ClientRegistry.Client.COMPREHEND_MEDICAL);
+    }
 
     /**
      * Constructor.
      */
     public EntitiesFromText() {
+        super(Input.class, Output.class);
         getAnalyzer().setComprehendClient(getComprehendMedicalClient());
+        getAnalyzer().setComprehendRegions(getComprehendMedicalRegions());
     }
 
     /**
-     * Generate response body content for this function.
+     * Generate output for this function.
      * @param request the API Gateway proxy request
-     * @return the body content for the function response
+     * @param input the function input
+     * @return the function output
      */
     @Override
-    public String createBody(final ProxyRequest request) throws Exception {
-        Input input = unjsonify(request.getBody(), Input.class);
+    protected Output createOutput(final ProxyRequest request, final Input input) throws Exception {
         requiredValue(input.getText(), "text input");
-        log("get entities for input text: " + input.getText());
-        String text = getAnalyzer().getEntities(input.getText());
-        return jsonify(new Output(text));
+        log("get entities for input text " + StructuredLogger.summarize(input.getText()));
+        String text = analyze(request, input, () -> getAnalyzer().getEntities(input.getText(), getDeadline()));
+        return new Output(text);
     }
 
     @Getter
@@ -42,7 +49,7 @@ public class EntitiesFromText extends FunctionSupport {
     @Setter
     @NoArgsConstructor
     @AllArgsConstructor
-    public static class Input {
+    public static class Input extends FunctionInput {
         private String text;
     }
 }
@@ -0,0 +1,13 @@
+package org.getmarco.medtextanalyze.functions;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class FunctionInput {
+    // the lane to admit the request in, interactive or batch; the X-Med-Priority header sets it too
+    private String priority;
+    // who the request is for, to share a lane fairly; the X-Med-Tenant header sets it too
+    private String tenant;
+}
@@ -1,5 +1,7 @@
 package org.getmarco.medtextanalyze.functions;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import lombok.Getter;
 import lombok.Setter;
 
@@ -11,6 +13,11 @@ public class FunctionOutput {
     private Status status;
     // API Gateway timeout will return JSON with just message property
     private String message;
+    // set when the output was too large to return inline; the full output is at this pre-signed link
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String resultLink;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long resultBytes;
 
     /**
      * Constructor defaults status to success.
@@ -2,84 +2,180 @@ package org.getmarco.medtextanalyze.functions;
 
 import com.amazonaws.HttpMethod;
 import com.amazonaws.SdkClientException;
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.services.comprehendmedical.AWSComprehendMedical;
-import com.amazonaws.services.comprehendmedical.AWSComprehendMedicalClient;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.textract.AmazonTextract;
-import com.amazonaws.services.textract.AmazonTextractClientBuilder;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 import org.getmarco.medtextanalyze.support.Analyzer;
+import org.getmarco.medtextanalyze.support.CallGovernor;
+import org.getmarco.medtextanalyze.support.Deadline;
+import org.getmarco.medtextanalyze.support.DeadlineExceededException;
+import org.getmarco.medtextanalyze.support.Hedger;
+import org.getmarco.medtextanalyze.support.InvalidRequestException;
+import org.getmarco.medtextanalyze.support.LaneScheduler;
+import org.getmarco.medtextanalyze.support.Metrics;
 import org.getmarco.medtextanalyze.support.ProxyRequest;
 import org.getmarco.medtextanalyze.support.ProxyResponse;
+import org.getmarco.medtextanalyze.support.RegionPool;
+import org.getmarco.medtextanalyze.support.S3OutputStream;
+import org.getmarco.medtextanalyze.support.StructuredLogger;
 
 public abstract class FunctionSupport implements RequestHandler<ProxyRequest, ProxyResponse> {
     private static final String UPLOAD_BUCKET_VAR_NAME = "MED_UPLOAD_BUCKET";
     private static final String AWS_REGION_VAR_NAME = "MED_AWS_REGION";
+    private static final String CALL_QUOTAS_VAR_NAME = "MED_CALL_QUOTAS";
+    private static final String HEDGE_BUDGET_VAR_NAME = "MED_HEDGE_BUDGET_PERCENT";
+    private static final String HEDGE_PERCENTILE_VAR_NAME = "MED_HEDGE_PERCENTILE";
+    private static final String OVERFLOW_BYTES_VAR_NAME = "MED_OVERFLOW_BYTES";
+    private static final String PRIORITY_HEADER = "X-Med-Priority";
+    private static final String TENANT_HEADER = "X-Med-Tenant";
+    // Lambda returns at most 6 MB; leave room for escaping and the rest of the response
+    private static final long DEFAULT_OVERFLOW_BYTES = 4L * 1024 * 1024;
+    private static final String OVERFLOW_PREFIX = "results/";
+    // a UTF-16 char encodes to at most 3 bytes of UTF-8
+    private static final int MAX_UTF8_BYTES_PER_CHAR = 3;
+    private static final int OVERFLOW_GZIP_BUFFER = 64 * 1024;
+    private static final double DEFAULT_HEDGE_PERCENTILE = 95;
+    private static final double PERCENT = 100;
     private static final int PRESIGNED_URL_VALIDITY = 30 * 60 * 1000; //30 minutes
+    private static final String UPLOAD_ID_PARAM = "uploadId";
+    private static final String PART_NUMBER_PARAM = "partNumber";
+    // API Gateway gives up on the integration after 29 seconds, whatever the function timeout
+    private static final long API_GATEWAY_TIMEOUT_MILLIS = 29000;
+    // time kept back from the deadline for building and returning the response
+    private static final long RESPONSE_MARGIN_MILLIS = 1500;
+
+    private static final String METRICS_NAMESPACE = "MedTextAnalyze";
+    private static final String METRICS_DIMENSION = "Function";
+
+    private static final AtomicBoolean COLD_START = new AtomicBoolean(true);
+    // shared so latency history carries over between invocations of a warm container
+    private static final Hedger HEDGER;
+
+    static {
+        // a bad setting falls back to the default rather than failing every invocation of the container
+        try {
+            CallGovernor.configure(System.getenv(CALL_QUOTAS_VAR_NAME));
+        } catch (IllegalArgumentException e) {
+            StructuredLogger.deferWarning("ignoring invalid " + CALL_QUOTAS_VAR_NAME + " (" + e.getMessage()
+              + "), using default quotas");
+        }
+        HEDGER = hedger(System.getenv(HEDGE_BUDGET_VAR_NAME), System.getenv(HEDGE_PERCENTILE_VAR_NAME));
+    }
+
+    private static Hedger hedger(final String budget, final String percentile) {
+        if (budget == null || budget.trim().isEmpty())
+            return null;
+        double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+        if (percentile != null && !percentile.trim().isEmpty()) {
+            try {
+                hedgePercentile = Double.parseDouble(percentile.trim());
+            } catch (NumberFormatException e) {
+                hedgePercentile = Double.NaN;
+            }
+            if (!(hedgePercentile > 0 && hedgePercentile < PERCENT)) {
+                StructuredLogger.deferWarning("ignoring invalid " + HEDGE_PERCENTILE_VAR_NAME + " '" + percentile
+                  + "', using " + DEFAULT_HEDGE_PERCENTILE);
+                hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+            }
+        }
+        try {
+            return new Hedger(hedgePercentile, Double.parseDouble(budget.trim()));
+        } catch (IllegalArgumentException e) {
+            StructuredLogger.deferWarning("ignoring invalid " + HEDGE_BUDGET_VAR_NAME + " '" + budget
+              + "', not hedging");
+            return null;
+        }
+    }
 
-    private ObjectMapper mapper;
-    private AmazonS3 s3Client;
-    private AmazonTextract textractClient;
-    private AWSComprehendMedical comprehendMedicalClient;
     private Analyzer analyzer;
-    private LambdaLogger logger;
+    private StructuredLogger logger;
+    private Deadline deadline;
+    // a fresh set for each request, flushed as a log line when it ends
+    private Metrics metrics = new Metrics();
 
     /**
      * Returns a Jackson {@link com.fasterxml.jackson.databind.ObjectMapper ObjectMapper}.
      * @return the object mapper
      */
     protected ObjectMapper getObjectMapper() {
-        if (this.mapper == null)
-            this.mapper = new ObjectMapper();
-        return this.mapper;
+        return ClientRegistry.getObjectMapper();
+    }
+
+    /**
+     * Returns the AWS credentials provider shared by the clients of this function.
+     * @return the credentials provider
+     */
+    protected AWSCredentialsProvider getCredentialsProvider() {
+        return ClientRegistry.getCredentialsProvider();
     }
 
     /**
-     * Returns an AWS S3 client.
+     * Returns the shared AWS S3 client.
      * @return the S3 client
      */
     protected AmazonS3 getS3Client() {
-        if (this.s3Client == null) {
-            String region = getRegion();
-            this.s3Client = AmazonS3ClientBuilder.standard().withRegion(region).build();
-        }
-        return this.s3Client;
+        return ClientRegistry.getS3Client();
     }
 
     /**
-     * Returns an AWS Textract client.
+     * Returns the shared AWS Textract client.
      * @return the Textract client
      */
     protected AmazonTextract getTextractClient() {
-        if (this.textractClient == null) {
-            String region = getRegion();
-            this.textractClient = AmazonTextractClientBuilder.standard().withRegion(region).build();
-        }
-        return this.textractClient;
+        return ClientRegistry.getTextractClient();
     }
 
     /**
-     * Returns an AWS Comprehend Medical client.
+     * Returns the shared AWS Comprehend Medical client.
      * @return the Comprehend Medical client
      */
     protected AWSComprehendMedical getComprehendMedicalClient() {
-        if (this.comprehendMedicalClient == null) {
-            String region = getRegion();
-            this.comprehendMedicalClient = AWSComprehendMedicalClient.builder()
-              .withCredentials(new DefaultAWSCredentialsProviderChain())
-              .withRegion(region).build();
-        }
-        return this.comprehendMedicalClient;
+        return ClientRegistry.getComprehendMedicalClient();
+    }
+
+    /**
+     * Returns the shared pool of Textract clients to spread calls over, when regions besides the configured region
+     * are listed in MED_AWS_REGIONS.
+     * @return the pool, or null to make every call with the shared Textract client
+     */
+    protected RegionPool<AmazonTextract> getTextractRegions() {
+        return ClientRegistry.getTextractRegions();
+    }
+
+    /**
+     * Returns the shared pool of Comprehend Medical clients to spread calls over, when regions besides the configured
+     * region are listed in MED_AWS_REGIONS.
+     * @return the pool, or null to make every call with the shared Comprehend Medical client
+     */
+    protected RegionPool<AWSComprehendMedical> getComprehendMedicalRegions() {
+        return ClientRegistry.getComprehendMedicalRegions();
     }
 
     /**
@@ -87,11 +183,22 @@ public abstract class FunctionSupport implements RequestHandler<ProxyRequest, Pr
      * @return the analyzer
      */
     protected Analyzer getAnalyzer() {
-        if (this.analyzer == null)
+        if (this.analyzer == null) {
             this.analyzer = new Analyzer();
+            this.analyzer.setHedger(HEDGER);
+            this.analyzer.setMetrics(this.metrics);
+        }
         return this.analyzer;
     }
 
+    /**
+     * Returns the metrics recorded for the request being handled.
+     * @return the metrics
+     */
+    protected Metrics getMetrics() {
+        return this.metrics;
+    }
+
     /**
      * Returns the name of the configured S3 bucket for this application.
      * @return S3 bucket name
@@ -120,22 +227,129 @@ public abstract class FunctionSupport implements RequestHandler<ProxyRequest, Pr
      */
     @Override
     public final ProxyResponse handleRequest(final ProxyRequest request, final Context context) {
+        long start = System.nanoTime();
+        beginRequest(request, StructuredLogger.summarize(request.getBody()), context);
+
+        //CORS Preflight
+        if (request.isHttpOptions())
+            return preflightResponse();
+        try {
+            return createResponse(request);
+        } finally {
+            endRequest(start);
+        }
+    }
+
+    /**
+     * Set up for handling a request: logger, deadline, metrics and request logging.
+     * @param request the request from API Gateway
+     * @param body a summary of the request body, safe to log
+     * @param context the Lambda context
+     */
+    final void beginRequest(final ProxyRequest request, final String body, final Context context) {
         // Don't forget or all logging attempts will throw NPE.
-        this.logger = context.getLogger();
+        LambdaLogger lambdaLogger = context.getLogger();
+        this.logger = new StructuredLogger(lambdaLogger::log, getClass().getSimpleName(), context.getAwsRequestId());
+        this.deadline = Deadline.after(
+          Math.min(context.getRemainingTimeInMillis(), API_GATEWAY_TIMEOUT_MILLIS) - RESPONSE_MARGIN_MILLIS);
+        this.metrics = new Metrics();
+        if (this.analyzer != null)
+            this.analyzer.setMetrics(this.metrics);
 
-        log(String.format("requestId: %s, fxn: %s, ver: %s",
-          context.getAwsRequestId(), context.getFunctionName(),
+        this.logger.debug(() -> String.format("fxn: %s, ver: %s", context.getFunctionName(),
           context.getFunctionVersion()));
-        log("received proxy request: " + request.toString());
+        this.logger.info(request.getHttpMethod() + " " + request.getPath() + " " + body);
+        this.logger.debug(() -> "headers: " + request.getHeaders() + ", query: " + request.getQueryStringParameters());
+    }
 
-        //CORS Preflight
-        if (request.isHttpOptions()) {
-            return new ProxyResponse.ProxyResponseBuilder()
-              .withOkStatus()
-              .withCorsHeaders()
-              .build();
+    /**
+     * Returns the response to a CORS preflight request.
+     * @return the response for API Gateway
+     */
+    final ProxyResponse preflightResponse() {
+        return new ProxyResponse.ProxyResponseBuilder()
+          .withOkStatus()
+          .withCorsHeaders()
+          .build();
+    }
+
+    /**
+     * Log the per-request statistics once a request other than a preflight has been handled.
+     * @param startNanos when handling of the request started
+     */
+    final void endRequest(final long startNanos) {
+        logCallStats();
+        String metrics = this.metrics.flush(METRICS_NAMESPACE, METRICS_DIMENSION, getClass().getSimpleName());
+        if (metrics != null)
+            this.logger.raw(metrics);
+        // the first real request of the container reports what init saved it
+        if (COLD_START.getAndSet(false))
+            log("cold start: init " + ClientRegistry.initReport() + "; first request "
+              + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+    }
+
+    private void logCallStats() {
+        if (!this.logger.isEnabled(StructuredLogger.Level.DEBUG))
+            return;
+        for (CallGovernor governor : CallGovernor.all().values()) {
+            String stats = governor.toString();
+            if (hasLength(stats))
+                this.logger.debug(() -> "call stats: " + stats);
+        }
+        if (this.analyzer != null) {
+            for (RegionPool<?> pool : new RegionPool<?>[] {this.analyzer.getTextractRegions(),
+              this.analyzer.getComprehendRegions()}) {
+                if (pool != null)
+                    this.logger.debug(() -> "region stats: " + pool);
+            }
         }
-        return createResponse(request);
+        if (HEDGER != null)
+            this.logger.debug(() -> "hedge stats: " + HEDGER);
+        this.logger.debug(() -> "lane stats: " + getLaneScheduler());
+    }
+
+    /**
+     * Returns the scheduler that admits analyses by priority lane.
+     * @return the scheduler
+     */
+    protected LaneScheduler getLaneScheduler() {
+        return LaneScheduler.shared();
+    }
+
+    /**
+     * Run an analysis once the {@link #getLaneScheduler lane scheduler} admits it, in the lane and for the tenant
+     * named by the request's X-Med-Priority and X-Med-Tenant headers or, failing those, by the input. Requests that
+     * name no lane are interactive.
+     * @param request the request
+     * @param input the function input
+     * @param analysis the analysis
+     * @param <T> the result type
+     * @return the result of the analysis
+     * @throws DeadlineExceededException if the request's deadline passes before it is admitted
+     * @throws InvalidRequestException if the lane named is not known
+     * @throws Exception as thrown by the analysis
+     */
+    protected final <T> T analyze(final ProxyRequest request, final FunctionInput input, final Callable<T> analysis)
+      throws Exception {
+        String priority = header(request, PRIORITY_HEADER);
+        String tenant = header(request, TENANT_HEADER);
+        LaneScheduler.Lane lane = LaneScheduler.Lane.parse(priority != null ? priority : input.getPriority(),
+          LaneScheduler.Lane.INTERACTIVE);
+        try (LaneScheduler.Permit permit = getLaneScheduler().admit(lane,
+          tenant != null ? tenant : input.getTenant(), getDeadline())) {
+            permit.record(this.metrics);
+            return analysis.call();
+        }
+    }
+
+    private String header(final ProxyRequest request, final String name) {
+        if (request.getHeaders() == null)
+            return null;
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && hasLength(header.getValue()))
+                return header.getValue();
+        }
+        return null;
     }
 
     /**
@@ -146,18 +360,137 @@ public abstract class FunctionSupport implements RequestHandler<ProxyRequest, Pr
      */
     protected final ProxyResponse createResponse(final ProxyRequest request) {
         try {
-            ProxyResponse response =  new ProxyResponse.ProxyResponseBuilder()
+            ProxyResponse.ProxyResponseBuilder builder = new ProxyResponse.ProxyResponseBuilder()
               .withStatusCode(ProxyResponse.STATUS_CODE_OK)
               .withCorsHeaders()
-              .withContentType(getContentType())
-              .withBody(createBody(request))
-              .build();
-            return response;
+              .withContentType(getContentType());
+            String body = createBody(request);
+            // the limit is on encoded bytes, so only a body that might exceed it needs encoding to find out
+            if ((long) body.length() * MAX_UTF8_BYTES_PER_CHAR > getOverflowBytes()) {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > getOverflowBytes())
+                    body = overflow(bytes);
+            }
+            ResponseEncoding encoding = ResponseEncoding.negotiate(request);
+            if (encoding.isIdentity())
+                return builder.withBody(body).build();
+            return encode(builder, body, encoding).build();
+        } catch (DeadlineExceededException e) {
+            log(e.getMessage());
+            return getError(e.getMessage());
+        } catch (InvalidRequestException e) {
+            log(e.getMessage());
+            return getError(ProxyResponse.STATUS_CODE_BAD_REQUEST, e.getMessage());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private String overflow(final byte[] bytes) throws IOException {
+        String key = overflowKey();
+        try (OutputStream out = openOverflow(key)) {
+            out.write(bytes);
+        }
+        return jsonify(overflowOutput(key, bytes.length));
+    }
+
+    /**
+     * Returns the largest response body returned inline; larger output goes to S3. Set with MED_OVERFLOW_BYTES.
+     * @return the limit in bytes
+     */
+    protected long getOverflowBytes() {
+        String bytes = System.getenv(OVERFLOW_BYTES_VAR_NAME);
+        if (!hasLength(bytes))
+            return DEFAULT_OVERFLOW_BYTES;
+        try {
+            long limit = Long.parseLong(bytes.trim());
+            if (limit >= 0)
+                return limit;
+        } catch (NumberFormatException e) {
+            // logged below
+        }
+        this.logger.warn("ignoring invalid " + OVERFLOW_BYTES_VAR_NAME + " '" + bytes + "', using "
+          + DEFAULT_OVERFLOW_BYTES);
+        return DEFAULT_OVERFLOW_BYTES;
+    }
+
+    /**
+     * Returns a new key for output written to S3.
+     * @return the S3 object key
+     */
+    static String overflowKey() {
+        return OVERFLOW_PREFIX + UUID.randomUUID() + ".json";
+    }
+
+    /**
+     * Open a stream that writes output to an S3 object in the upload bucket, gzip compressed. The object is stored
+     * with a gzip content encoding so HTTP clients decompress it as they fetch it.
+     * @param key the S3 object key
+     * @return the stream
+     * @throws IOException if the stream cannot be opened
+     */
+    final OutputStream openOverflow(final String key) throws IOException {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(getContentType());
+        metadata.setContentEncoding("gzip");
+        return new GZIPOutputStream(new S3OutputStream(getS3Client(), getUploadBucket(), key, metadata),
+          OVERFLOW_GZIP_BUFFER);
+    }
+
+    /**
+     * Returns the output that stands in for output written to S3: a pre-signed link to it and its size.
+     * @param key the S3 object key
+     * @param bytes the size of the output before compression
+     * @return the output to return inline
+     */
+    final FunctionOutput overflowOutput(final String key, final long bytes) {
+        log("output of " + bytes + " bytes written to s3://" + getUploadBucket() + "/" + key);
+        FunctionOutput output = new FunctionOutput();
+        output.setResultLink(urlSigner(getUploadBucket()).get(key).toString());
+        output.setResultBytes(bytes);
+        return output;
+    }
+
+    private ProxyResponse.ProxyResponseBuilder encode(final ProxyResponse.ProxyResponseBuilder builder,
+      final String json, final ResponseEncoding encoding) throws IOException {
+        StringWriter encoded = new StringWriter();
+        ResponseEncoding.Body body = encoding.open(encoded);
+        try (OutputStream out = body) {
+            if (encoding.isCbor()) {
+                try (JsonParser parser = getObjectMapper().getFactory().createParser(json);
+                  JsonGenerator generator = encoding.factory(getObjectMapper().getFactory()).createGenerator(out)) {
+                    parser.nextToken();
+                    generator.copyCurrentStructure(parser);
+                }
+            } else {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        recordEncoding(body);
+        return encoding.describe(builder.withBody(encoded.toString()), body, getContentType());
+    }
+
+    /**
+     * Record how large a response body was and what compressing it saved.
+     * @param body the encoded body, closed
+     */
+    final void recordEncoding(final ResponseEncoding.Body body) {
+        this.metrics.record(Metrics.Metric.RESPONSE_BYTES, body.getRawBytes());
+        if (!body.isCompressed())
+            return;
+        this.metrics.record(Metrics.Metric.RESPONSE_COMPRESSED_BYTES, body.getEncodedBytes());
+        this.metrics.record(Metrics.Metric.RESPONSE_COMPRESS, TimeUnit.NANOSECONDS.toMicros(body.getEncodeNanos()));
+    }
+
+    /**
+     * Returns the deadline for the request being handled, derived from the remaining Lambda execution time and the
+     * API Gateway integration timeout.
+     * @return the deadline, unbounded if no request is being handled
+     */
+    protected Deadline getDeadline() {
+        return this.deadline == null ? Deadline.none() : this.deadline;
+    }
+
     /**
      * Subclasses may override to set response content type as needed.
      * @return the content type
@@ -174,22 +507,43 @@ public abstract class FunctionSupport implements RequestHandler<ProxyRequest, Pr
      */
     protected abstract String createBody(ProxyRequest request) throws Exception;
 
-    private ProxyResponse getError(final String message) {
+    /**
+     * Returns an error response.
+     * @param message the error message
+     * @return the response for API Gateway
+     */
+    final ProxyResponse getError(final String message) {
+        return getError(ProxyResponse.STATUS_CODE_SERVER_ERROR, message);
+    }
+
+    /**
+     * Returns an error response with the given status.
+     * @param statusCode the HTTP status code
+     * @param message the error message
+     * @return the response for API Gateway
+     */
+    final ProxyResponse getError(final int statusCode, final String message) {
+        String body;
+        try {
+            body = jsonify(Collections.singletonMap("message", message));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
         return new ProxyResponse.ProxyResponseBuilder()
-          .withStatusCode(ProxyResponse.STATUS_CODE_SERVER_ERROR)
+          .withStatusCode(statusCode)
           .withCorsHeaders()
-          .withBody("{\"message\": \"" + message + "\"}")
+          .withBody(body)
           .build();
     }
 
-    private GeneratePresignedUrlRequest signedUrlRequest(final String bucket, final String key) {
-        java.util.Date expiration = new java.util.Date();
-        long expTimeMillis = expiration.getTime();
-        expTimeMillis += PRESIGNED_URL_VALIDITY;
-        expiration.setTime(expTimeMillis);
-
-        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucket, key).withExpiration(expiration);
-        return request;
+    /**
+     * Returns a signer for pre-signed S3 URLs on the given bucket.
+     * @param bucket the S3 bucket name
+     * @return the signer
+     * @throws SdkClientException if no AWS credentials can be resolved
+     */
+    protected UrlSigner urlSigner(final String bucket) throws SdkClientException {
+        return new UrlSigner(bucket);
     }
 
     /**
@@ -200,10 +554,37 @@ public abstract class FunctionSupport implements RequestHandler<ProxyRequest, Pr
      * @return the pre-signed URL
      */
     protected URL signedPutUrl(final String bucket, final String key) throws SdkClientException {
-        GeneratePresignedUrlRequest request = signedUrlRequest(bucket, key);
-        request.withMethod(HttpMethod.PUT);
-        URL url = getS3Client().generatePresignedUrl(request);
-        return url;
+        return urlSigner(bucket).put(key, null);
+    }
+
+    /**
+     * Start an S3 multipart upload for the given object.
+     * @param bucket the S3 bucket name
+     * @param key the S3 object key
+     * @param contentType the content type for the object, or null for the S3 default
+     * @throws SdkClientException for problems initiating the multipart upload
+     * @return the multipart upload id
+     */
+    protected String initiateMultipartUpload(final String bucket, final String key, final String contentType)
+      throws SdkClientException {
+        InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucket, key);
+        if (hasLength(contentType)) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType(contentType);
+            request.setObjectMetadata(metadata);
+        }
+        return getS3Client().initiateMultipartUpload(request).getUploadId();
+    }
+
+    /**
+     * Returns a query string parameter from the request.
+     * @param request the request from API Gateway
+     * @param name the parameter name
+     * @return the parameter value, or null if not present
+     */
+    protected String queryParameter(final ProxyRequest request, final String name) {
+        Map<String, String> params = request.getQueryStringParameters();
+        return params == null ? null : params.get(name);
     }
 
     /**
@@ -227,12 +608,20 @@ public abstract class FunctionSupport implements RequestHandler<ProxyRequest, Pr
     }
 
     /**
-     * Log a message using the {@link com.amazonaws.services.lambda.runtime.LambdaLogger LambdaLogger} provided to this
-     * Lambda function {@link com.amazonaws.services.lambda.runtime.RequestHandler RequestHandler}.
+     * Log a message at INFO using the {@link StructuredLogger} for the request being handled.
      * @param message the log message
      */
     protected void log(final String message) {
-        this.logger.log(message);
+        this.logger.info(message);
+    }
+
+    /**
+     * Log a message built only if the level is enabled for the request being handled.
+     * @param level the log level
+     * @param message supplies the log message
+     */
+    protected void log(final StructuredLogger.Level level, final Supplier<String> message) {
+        this.logger.log(level, message);
     }
 
     /**
@@ -260,9 +649,110 @@ public abstract class FunctionSupport implements RequestHandler<ProxyRequest, Pr
         try {
             object = getObjectMapper().readValue(value, clazz);
         } catch (IOException e) {
-            log("unable to deserialize '" + clazz.getName() + "' from value: " + value);
+            this.logger.warn("unable to deserialize '" + clazz.getName() + "' from value "
+              + StructuredLogger.summarize(value));
             throw e;
         }
         return object;
     }
+
+    /**
+     * Pre-signs S3 URLs for one bucket. The expiration time and AWS credentials are resolved once when the signer is
+     * created and shared by every URL it signs, so signing a batch of keys costs only the local signature
+     * computation for each one.
+     */
+    protected final class UrlSigner {
+        private final String bucket;
+        private final Date expiration;
+        private final AWSCredentialsProvider credentials;
+
+        private UrlSigner(final String bucket) {
+            this.bucket = bucket;
+            this.expiration = new Date(System.currentTimeMillis() + PRESIGNED_URL_VALIDITY);
+            this.credentials = new AWSStaticCredentialsProvider(getCredentialsProvider().getCredentials());
+        }
+
+        /**
+         * Returns the bucket this signer signs URLs for.
+         * @return the S3 bucket name
+         */
+        public String getBucket() {
+            return this.bucket;
+        }
+
+        /**
+         * Sign a URL for downloading an object.
+         * @param key the S3 object key
+         * @return the pre-signed URL
+         * @throws SdkClientException for problems pre-signing the request
+         */
+        public URL get(final String key) throws SdkClientException {
+            return sign(request(key, HttpMethod.GET));
+        }
+
+        /**
+         * Sign a URL for uploading a whole object with a single PUT.
+         * @param key the S3 object key
+         * @param contentType the content type the client must send, or null to leave it unsigned
+         * @return the pre-signed URL
+         * @throws SdkClientException for problems pre-signing the request
+         */
+        public URL put(final String key, final String contentType) throws SdkClientException {
+            GeneratePresignedUrlRequest request = request(key, HttpMethod.PUT);
+            if (hasLength(contentType))
+                request.setContentType(contentType);
+            return sign(request);
+        }
+
+        /**
+         * Sign a URL for uploading one part of a multipart upload.
+         * @param key the S3 object key
+         * @param uploadId the multipart upload id
+         * @param partNumber the part number, starting at 1
+         * @return the pre-signed URL
+         * @throws SdkClientException for problems pre-signing the request
+         */
+        public URL part(final String key, final String uploadId, final int partNumber) throws SdkClientException {
+            GeneratePresignedUrlRequest request = request(key, HttpMethod.PUT);
+            request.addRequestParameter(UPLOAD_ID_PARAM, uploadId);
+            request.addRequestParameter(PART_NUMBER_PARAM, Integer.toString(partNumber));
+            return sign(request);
+        }
+
+        /**
+         * Sign a URL for completing a multipart upload. The client POSTs the CompleteMultipartUpload part list to
+         * this URL once all parts are uploaded.
+         * @param key the S3 object key
+         * @param uploadId the multipart upload id
+         * @return the pre-signed URL
+         * @throws SdkClientException for problems pre-signing the request
+         */
+        public URL complete(final String key, final String uploadId) throws SdkClientException {
+            GeneratePresignedUrlRequest request = request(key, HttpMethod.POST);
+            request.addRequestParameter(UPLOAD_ID_PARAM, uploadId);
+            return sign(request);
+        }
+
+        /**
+         * Sign a URL for aborting a multipart upload.
+         * @param key the S3 object key
+         * @param uploadId the multipart upload id
+         * @return the pre-signed URL
+         * @throws SdkClientException for problems pre-signing the request
+         */
+        public URL abort(final String key, final String uploadId) throws SdkClientException {
+            GeneratePresignedUrlRequest request = request(key, HttpMethod.DELETE);
+            request.addRequestParameter(UPLOAD_ID_PARAM, uploadId);
+            return sign(request);
+        }
+
+        private GeneratePresignedUrlRequest request(final String key, final HttpMethod method) {
+            return new GeneratePresignedUrlRequest(this.bucket, key, method).withExpiration(this.expiration);
+        }
+
+        private URL sign(final GeneratePresignedUrlRequest request) {
+            request.setRequestCredentialsProvider(this.credentials);
+            return getS3Client().generatePresignedUrl(request);
+        }
+    }
 }
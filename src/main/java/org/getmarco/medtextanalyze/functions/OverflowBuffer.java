@@ -0,0 +1,116 @@
+package org.getmarco.medtextanalyze.functions;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds serialized output in memory up to a limit. Output that grows past the limit spills: what is held is written
+ * to a stream opened on demand, and everything after goes straight to it, so memory use never exceeds the limit
+ * however large the output. Closing the buffer closes the spill stream.
+ */
+final class OverflowBuffer extends OutputStream {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Opens the stream output spills to.
+     */
+    interface Spill {
+        /**
+         * Open the stream.
+         * @return the stream
+         * @throws IOException if the stream cannot be opened
+         */
+        OutputStream open() throws IOException;
+    }
+
+    private final long limit;
+    private final Spill spill;
+    private List<byte[]> chunks = new ArrayList<>();
+    private int used = CHUNK_SIZE;
+    private OutputStream spilled;
+    private long size;
+
+    /**
+     * Constructor.
+     * @param limit the most bytes held in memory
+     * @param spill opens the stream to spill to
+     */
+    OverflowBuffer(final long limit, final Spill spill) {
+        this.limit = limit;
+        this.spill = spill;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        this.size += length;
+        if (this.spilled == null && this.size > this.limit) {
+            this.spilled = this.spill.open();
+            for (int i = 0; i < this.chunks.size(); i++)
+                this.spilled.write(this.chunks.get(i), 0, i == this.chunks.size() - 1 ? this.used : CHUNK_SIZE);
+            this.chunks = null;
+        }
+        if (this.spilled != null) {
+            this.spilled.write(bytes, offset, length);
+            return;
+        }
+        int done = 0;
+        while (done < length) {
+            if (this.used == CHUNK_SIZE) {
+                this.chunks.add(new byte[CHUNK_SIZE]);
+                this.used = 0;
+            }
+            int n = Math.min(length - done, CHUNK_SIZE - this.used);
+            System.arraycopy(bytes, offset + done, this.chunks.get(this.chunks.size() - 1), this.used, n);
+            this.used += n;
+            done += n;
+        }
+    }
+
+    /**
+     * Returns whether the output outgrew the limit and was spilled.
+     * @return true if spilled
+     */
+    boolean isSpilled() {
+        return this.spilled != null;
+    }
+
+    /**
+     * Returns the number of bytes written.
+     * @return the output size
+     */
+    long size() {
+        return this.size;
+    }
+
+    /**
+     * Returns a stream over the bytes held in memory.
+     * @return the stream
+     * @throws IllegalStateException if the output was spilled
+     */
+    InputStream read() {
+        if (this.spilled != null)
+            throw new IllegalStateException("output was spilled");
+        List<InputStream> streams = new ArrayList<>(this.chunks.size());
+        for (int i = 0; i < this.chunks.size(); i++)
+            streams.add(new ByteArrayInputStream(this.chunks.get(i), 0,
+              i == this.chunks.size() - 1 ? this.used : CHUNK_SIZE));
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.spilled != null)
+            this.spilled.close();
+    }
+}
@@ -0,0 +1,317 @@
+package org.getmarco.medtextanalyze.functions;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.ProxyResponse;
+
+/**
+ * The encoding of a response body, negotiated from the request's {@code Accept-Encoding} and {@code Accept} headers.
+ * A body may be gzip compressed, encoded as CBOR instead of JSON, or both; either way API Gateway receives it base64
+ * encoded and decodes it for the client. Bodies too small to gain from compression are sent as they are.
+ */
+final class ResponseEncoding {
+    /** Content type of a CBOR encoded body. */
+    static final String CBOR_CONTENT_TYPE = "application/cbor";
+    private static final String GZIP = "gzip";
+    // gzip framing and base64 cost more than compression saves below this
+    private static final int MIN_COMPRESS_BYTES = 1024;
+    private static final int BUFFER_SIZE = 8192;
+    private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+    private static final ResponseEncoding IDENTITY = new ResponseEncoding(false, false);
+
+    private final boolean gzip;
+    private final boolean cbor;
+
+    private ResponseEncoding(final boolean gzip, final boolean cbor) {
+        this.gzip = gzip;
+        this.cbor = cbor;
+    }
+
+    /**
+     * Negotiate the response encoding for a request.
+     * @param request the request from API Gateway
+     * @return the encoding to use
+     */
+    static ResponseEncoding negotiate(final ProxyRequest request) {
+        Map<String, String> headers = request.getHeaders();
+        if (headers == null)
+            return IDENTITY;
+        String acceptEncoding = null;
+        String accept = null;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if ("Accept-Encoding".equalsIgnoreCase(header.getKey()))
+                acceptEncoding = header.getValue();
+            else if ("Accept".equalsIgnoreCase(header.getKey()))
+                accept = header.getValue();
+        }
+        boolean gzip = accepts(acceptEncoding, GZIP);
+        boolean cbor = accepts(accept, CBOR_CONTENT_TYPE);
+        return gzip || cbor ? new ResponseEncoding(gzip, cbor) : IDENTITY;
+    }
+
+    /**
+     * Check whether a header lists a value without giving it a zero quality.
+     */
+    private static boolean accepts(final String header, final String value) {
+        if (header == null)
+            return false;
+        for (String item : header.toLowerCase(Locale.ROOT).split(",")) {
+            String[] parts = item.split(";");
+            if (!parts[0].trim().equals(value))
+                continue;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the body is sent as plain JSON text.
+     * @return true if neither compressed nor CBOR
+     */
+    boolean isIdentity() {
+        return !this.gzip && !this.cbor;
+    }
+
+    /**
+     * Returns whether the body is encoded as CBOR.
+     * @return true for CBOR
+     */
+    boolean isCbor() {
+        return this.cbor;
+    }
+
+    /**
+     * Returns the factory for generators of the negotiated body format.
+     * @param json the factory for JSON
+     * @return the JSON factory, or a CBOR factory if CBOR was negotiated
+     */
+    JsonFactory factory(final JsonFactory json) {
+        return this.cbor ? CBOR_FACTORY : json;
+    }
+
+    /**
+     * Open a body that takes the serialized output and writes it, encoded, to the given target.
+     * @param target where the encoded body characters go
+     * @return the body
+     */
+    Body open(final Writer target) {
+        return new Body(target);
+    }
+
+    /**
+     * Set the headers and base64 flag that describe an encoded body.
+     * @param builder the response builder
+     * @param body the body, closed
+     * @param contentType the content type of a JSON body
+     * @return the builder
+     */
+    ProxyResponse.ProxyResponseBuilder describe(final ProxyResponse.ProxyResponseBuilder builder, final Body body,
+      final String contentType) {
+        builder.withContentType(this.cbor ? CBOR_CONTENT_TYPE : contentType)
+          .withHeader("Vary", "Accept, Accept-Encoding")
+          .withBase64Encoded(body.isBase64Encoded());
+        if (body.isCompressed())
+            builder.withHeader("Content-Encoding", GZIP);
+        return builder;
+    }
+
+    /**
+     * The serialized output as it is written. Bytes are held until there are enough to be worth compressing; a body
+     * that ends first is written as text, or base64 if it is CBOR. Closing the body writes what remains but leaves the
+     * target open.
+     */
+    final class Body extends OutputStream {
+        private final Writer target;
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private OutputStream sink;
+        private CountingStream compressed;
+        private long rawBytes;
+        private long startNanos;
+        private long encodeNanos;
+        private boolean base64;
+        private boolean closed;
+
+        private Body(final Writer target) {
+            this.target = target;
+            if (!ResponseEncoding.this.gzip)
+                startSink(false);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            this.rawBytes += length;
+            if (this.sink == null) {
+                this.pending.write(bytes, offset, length);
+                if (this.pending.size() < MIN_COMPRESS_BYTES)
+                    return;
+                startSink(true);
+                this.pending.writeTo(this.sink);
+                this.pending = null;
+                return;
+            }
+            this.sink.write(bytes, offset, length);
+        }
+
+        private void startSink(final boolean compress) {
+            this.startNanos = System.nanoTime();
+            this.base64 = true;
+            OutputStream encoder = Base64.getEncoder().wrap(new AsciiStream(this.target));
+            if (!compress) {
+                this.sink = encoder;
+                return;
+            }
+            this.compressed = new CountingStream(encoder);
+            try {
+                this.sink = new GZIPOutputStream(this.compressed, BUFFER_SIZE);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed)
+                return;
+            this.closed = true;
+            if (this.sink == null) {
+                if (ResponseEncoding.this.cbor) {
+                    startSink(false);
+                    this.pending.writeTo(this.sink);
+                } else {
+                    this.target.write(new String(this.pending.toByteArray(), StandardCharsets.UTF_8));
+                }
+                this.pending = null;
+            }
+            if (this.sink != null) {
+                // closes the base64 encoder too, which writes its padding; the target stays open
+                this.sink.close();
+                this.encodeNanos = System.nanoTime() - this.startNanos;
+            }
+            this.target.flush();
+        }
+
+        /**
+         * Returns whether the body was written base64 encoded.
+         * @return true if compressed or CBOR
+         */
+        boolean isBase64Encoded() {
+            return this.base64;
+        }
+
+        /**
+         * Returns whether the body was gzip compressed.
+         * @return true if compressed
+         */
+        boolean isCompressed() {
+            return this.compressed != null;
+        }
+
+        /**
+         * Returns the size of the body before compression.
+         * @return bytes written to the body
+         */
+        long getRawBytes() {
+            return this.rawBytes;
+        }
+
+        /**
+         * Returns the size of the body after compression, before base64.
+         * @return compressed bytes, or the raw size if not compressed
+         */
+        long getEncodedBytes() {
+            return this.compressed == null ? this.rawBytes : this.compressed.count;
+        }
+
+        /**
+         * Returns the time spent compressing and base64 encoding the body, including serializing into it.
+         * @return nanoseconds
+         */
+        long getEncodeNanos() {
+            return this.encodeNanos;
+        }
+    }
+
+    /**
+     * Passes base64 output, which is all ASCII, on to a writer. Closing it leaves the writer open.
+     */
+    private static final class AsciiStream extends OutputStream {
+        private final Writer target;
+        private final char[] chars = new char[BUFFER_SIZE];
+
+        AsciiStream(final Writer target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.target.write(b);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            int done = 0;
+            while (done < length) {
+                int n = Math.min(length - done, this.chars.length);
+                for (int i = 0; i < n; i++)
+                    this.chars[i] = (char) bytes[offset + done + i];
+                this.target.write(this.chars, 0, n);
+                done += n;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Counts the bytes passed through it.
+     */
+    private static final class CountingStream extends FilterOutputStream {
+        private long count;
+
+        CountingStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            this.out.write(bytes, offset, length);
+            this.count += length;
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package org.getmarco.medtextanalyze.functions;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import lombok.AllArgsConstructor;
@@ -8,9 +15,32 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
+import org.getmarco.medtextanalyze.support.InvalidRequestException;
 import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.StructuredLogger;
 
 public class SignedUrlForUpload extends FunctionSupport {
+    /** Query string parameter with the file size in bytes; when present a multipart upload is started. */
+    public static final String SIZE_PARAM = "size";
+    /** Query string parameter with the number of upload URLs to create in one batch. */
+    public static final String COUNT_PARAM = "count";
+    /** Query string parameter with comma separated file sizes for a batch, one per requested URL. */
+    public static final String SIZES_PARAM = "sizes";
+    /** Query string parameter with comma separated content types for a batch, either one for all or one per URL. */
+    public static final String CONTENT_TYPES_PARAM = "contentTypes";
+    /** Files at least this large are uploaded as multipart uploads. */
+    public static final long MULTIPART_THRESHOLD = 16L * 1024 * 1024;
+    /** Maximum number of uploads in one batch. */
+    public static final int MAX_BATCH = 1000;
+    // keep the total response well inside the Lambda response payload limit
+    private static final int MAX_SIGNED_URLS = 4000;
+    // S3 requires every part except the last to be at least 5 MB and allows at most 10,000 parts
+    private static final long DEFAULT_PART_SIZE = 8L * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    static {
+        ClientRegistry.warm(ClientRegistry.Client.S3);
+    }
 
     /**
      * Generate response body content for this function.
@@ -20,20 +50,164 @@ public class SignedUrlForUpload extends FunctionSupport {
     @Override
     public String createBody(final ProxyRequest request) throws Exception {
         String bucket = getUploadBucket();
+        String count = queryParameter(request, COUNT_PARAM);
+        if (hasLength(count))
+            return jsonify(createBatch(bucket, request, parsePositive(count, COUNT_PARAM)));
+
         String key = UUID.randomUUID().toString();
+        String size = queryParameter(request, SIZE_PARAM);
+        if (hasLength(size))
+            return jsonify(createMultipart(urlSigner(bucket), key, parsePositive(size, SIZE_PARAM), null));
+
         log("creating pre-signed URL for upload to bucket '" + bucket + "' and key '" + key + "'");
         URL url = signedPutUrl(bucket, key);
-        log("created url: " + url.toString());
+        log(StructuredLogger.Level.DEBUG, () -> "created url: " + url);
         return jsonify(new Output(bucket, key, url.toString()));
     }
 
+    private BatchOutput createBatch(final String bucket, final ProxyRequest request, final long requested) {
+        if (requested > MAX_BATCH)
+            throw new InvalidRequestException("invalid " + COUNT_PARAM + ": at most " + MAX_BATCH + " per batch");
+        int count = (int) requested;
+        List<String> sizes = splitList(queryParameter(request, SIZES_PARAM), count, SIZES_PARAM);
+        List<String> contentTypes = splitList(queryParameter(request, CONTENT_TYPES_PARAM), count,
+          CONTENT_TYPES_PARAM);
+
+        long signedUrls = 0;
+        for (String size : sizes) {
+            long bytes = parsePositive(size, SIZES_PARAM);
+            signedUrls += bytes >= MULTIPART_THRESHOLD ? partCount(bytes) + 2 : 1;
+        }
+        signedUrls += count - sizes.size();
+        if (signedUrls > MAX_SIGNED_URLS)
+            throw new InvalidRequestException("batch needs too many pre-signed URLs: " + signedUrls);
+
+        log("creating " + count + " pre-signed URLs for upload to bucket '" + bucket + "'");
+        UrlSigner signer = urlSigner(bucket);
+        List<Output> uploads = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            String key = UUID.randomUUID().toString();
+            String contentType = contentTypes.isEmpty() ? null
+              : contentTypes.get(contentTypes.size() == 1 ? 0 : i).trim();
+            long size = sizes.isEmpty() ? 0 : parsePositive(sizes.get(i), SIZES_PARAM);
+            if (size >= MULTIPART_THRESHOLD) {
+                uploads.add(createMultipart(signer, key, size, contentType));
+            } else {
+                Output output = new Output(bucket, key, signer.put(key, contentType).toString());
+                output.setContentType(contentType);
+                uploads.add(output);
+            }
+        }
+        return new BatchOutput(uploads);
+    }
+
+    private Output createMultipart(final UrlSigner signer, final String key, final long size,
+      final String contentType) {
+        long partSize = partSize(size);
+        int parts = partCount(size);
+        String bucket = signer.getBucket();
+        log("starting multipart upload of " + parts + " parts to bucket '" + bucket + "' and key '" + key + "'");
+        String uploadId = initiateMultipartUpload(bucket, key, contentType);
+
+        List<String> partLinks = new ArrayList<>(parts);
+        for (int partNumber = 1; partNumber <= parts; ++partNumber)
+            partLinks.add(signer.part(key, uploadId, partNumber).toString());
+
+        Output output = new Output(bucket, key, null);
+        output.setContentType(contentType);
+        output.setUploadId(uploadId);
+        output.setPartSize(partSize);
+        output.setPartLinks(partLinks);
+        output.setCompleteLink(signer.complete(key, uploadId).toString());
+        output.setAbortLink(signer.abort(key, uploadId).toString());
+        return output;
+    }
+
+    private List<String> splitList(final String value, final int count, final String label) {
+        if (!hasLength(value))
+            return Collections.emptyList();
+        List<String> values = Arrays.asList(value.split(","));
+        boolean sharedValue = CONTENT_TYPES_PARAM.equals(label) && values.size() == 1;
+        if (values.size() != count && !sharedValue)
+            throw new InvalidRequestException("invalid " + label + ": expected " + count + " values");
+        return values;
+    }
+
+    private long parsePositive(final String value, final String label) {
+        long number;
+        try {
+            number = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            number = 0;
+        }
+        if (number <= 0)
+            throw new InvalidRequestException("invalid " + label + ": expected a positive whole number");
+        return number;
+    }
+
+    /**
+     * Choose the part size for a multipart upload so the part count stays within the S3 limit.
+     * @param size the total file size in bytes
+     * @return the part size in bytes
+     */
+    static long partSize(final long size) {
+        long minForCount = (size + MAX_PARTS - 1) / MAX_PARTS;
+        return Math.max(DEFAULT_PART_SIZE, minForCount);
+    }
+
+    private static int partCount(final long size) {
+        long partSize = partSize(size);
+        return (int) ((size + partSize - 1) / partSize);
+    }
+
     @Getter
     @Setter
     @NoArgsConstructor
     @AllArgsConstructor
+    public static class BatchOutput extends FunctionOutput {
+        private List<Output> uploads;
+    }
+
+    @Getter
+    @Setter
+    @NoArgsConstructor
     public static class Output extends FunctionOutput {
         private String bucket;
         private String key;
+        @JsonInclude(JsonInclude.Include.NON_NULL)
         private String link;
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private String contentType;
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private String uploadId;
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private Long partSize;
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private List<String> partLinks;
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private String completeLink;
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private String abortLink;
+
+        /**
+         * Constructor for a single pre-signed PUT upload.
+         * @param bucket the S3 bucket name
+         * @param key the S3 object key
+         * @param link the pre-signed upload URL
+         */
+        public Output(final String bucket, final String key, final String link) {
+            this.bucket = bucket;
+            this.key = key;
+            this.link = link;
+        }
+
+        /**
+         * Determine if this output describes a multipart upload.
+         * @return true if the file should be uploaded in parts
+         */
+        @JsonIgnore
+        public boolean isMultipart() {
+            return this.uploadId != null;
+        }
     }
 }
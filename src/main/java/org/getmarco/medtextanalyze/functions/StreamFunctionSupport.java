@@ -0,0 +1,482 @@
+package org.getmarco.medtextanalyze.functions;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.getmarco.medtextanalyze.support.DeadlineExceededException;
+import org.getmarco.medtextanalyze.support.InvalidRequestException;
+import org.getmarco.medtextanalyze.support.Metrics;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.ProxyResponse;
+import org.getmarco.medtextanalyze.support.StructuredLogger;
+
+/**
+ * Base class for functions that take a JSON input and return a JSON output, handled as streams. Configure the Lambda
+ * handler as {@code Class::handleStream}: the proxy event is read with a streaming parser, the request body is bound
+ * straight to the input type, and the output is serialized as UTF-8 bytes rather than an intermediate string. Output
+ * up to {@link #getOverflowBytes()} is held and copied into the response body; larger output is streamed to an S3
+ * object and the response carries a pre-signed link to it instead.
+ *
+ * <p>The function also still works as a {@link com.amazonaws.services.lambda.runtime.RequestHandler RequestHandler}
+ * through {@link #handleRequest}.</p>
+ *
+ * @param <I> the input type, bound from the request body
+ * @param <O> the output type, written as the response body
+ */
+public abstract class StreamFunctionSupport<I, O> extends FunctionSupport {
+    private static final ConcurrentMap<Class<?>, ObjectReader> READERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, ObjectWriter> WRITERS = new ConcurrentHashMap<>();
+    private static final ObjectReader STRING_MAP_READER =
+      ClientRegistry.getObjectMapper().readerFor(new TypeReference<Map<String, String>>() { });
+    private static final String[] ESCAPES = new String[128];
+    private static final int REPLAY_CHARS = 8192;
+
+    static {
+        for (int c = 0; c < ' '; c++)
+            ESCAPES[c] = String.format("\\u%04x", c);
+        ESCAPES['"'] = "\\\"";
+        ESCAPES['\\'] = "\\\\";
+        ESCAPES['\n'] = "\\n";
+        ESCAPES['\r'] = "\\r";
+        ESCAPES['\t'] = "\\t";
+        ESCAPES['\b'] = "\\b";
+        ESCAPES['\f'] = "\\f";
+    }
+
+    private final Class<I> inputType;
+    private final Class<O> outputType;
+
+    /**
+     * Constructor.
+     * @param inputType the input type
+     * @param outputType the output type
+     */
+    protected StreamFunctionSupport(final Class<I> inputType, final Class<O> outputType) {
+        this.inputType = inputType;
+        this.outputType = outputType;
+    }
+
+    /**
+     * Generate the output for this function.
+     * @param request the API Gateway proxy request; its body is not set when handled as a stream
+     * @param input the input bound from the request body
+     * @return the output
+     * @throws Exception as needed by subclass
+     */
+    protected abstract O createOutput(ProxyRequest request, I input) throws Exception;
+
+    /**
+     * Generate the response body for a request handled through {@link #handleRequest}.
+     * @param request the API Gateway proxy request
+     * @return the body content for the function response
+     * @throws Exception as thrown by {@link #createOutput}
+     */
+    @Override
+    protected final String createBody(final ProxyRequest request) throws Exception {
+        requiredValue(request.getBody(), "request body");
+        I input;
+        long start = getMetrics().start();
+        try {
+            if (Boolean.TRUE.equals(request.getIsBase64Encoded()))
+                input = reader(this.inputType).readValue(Base64.getDecoder().decode(request.getBody()));
+            else
+                input = reader(this.inputType).readValue(request.getBody());
+        } catch (IOException e) {
+            log("unable to deserialize '" + this.inputType.getName() + "' from request body");
+            throw e;
+        }
+        getMetrics().stop(Metrics.Metric.JSON_PARSE, start);
+        O output = createOutput(request, input);
+        start = getMetrics().start();
+        String body = writer(this.outputType).writeValueAsString(output);
+        getMetrics().stop(Metrics.Metric.JSON_SERIALIZE, start);
+        return body;
+    }
+
+    /**
+     * Stream handler for AWS Lambda function using AWS API Gateway proxy integration.
+     * @param input the proxy event
+     * @param output the stream for the proxy response
+     * @param context the Lambda context
+     * @throws IOException if the event cannot be read or the response written
+     */
+    public final void handleStream(final InputStream input, final OutputStream output, final Context context)
+      throws IOException {
+        long start = System.nanoTime();
+        Event event = readEvent(input);
+        beginRequest(event.request, event.bodySummary, context);
+
+        //CORS Preflight
+        if (event.request.isHttpOptions()) {
+            writeResponse(output, preflightResponse(), null, null);
+            return;
+        }
+        try {
+            O result;
+            try {
+                long parseStart = getMetrics().start();
+                I bound = bind(event);
+                // counts the binding done while the event was read as well
+                getMetrics().stop(Metrics.Metric.JSON_PARSE, parseStart - event.parseNanos);
+                result = createOutput(event.request, bound);
+            } catch (DeadlineExceededException e) {
+                log(e.getMessage());
+                writeResponse(output, getError(e.getMessage()), null, null);
+                return;
+            } catch (InvalidRequestException e) {
+                log(e.getMessage());
+                writeResponse(output, getError(ProxyResponse.STATUS_CODE_BAD_REQUEST, e.getMessage()), null, null);
+                return;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            ProxyResponse response = new ProxyResponse.ProxyResponseBuilder()
+              .withStatusCode(ProxyResponse.STATUS_CODE_OK)
+              .withCorsHeaders()
+              .withContentType(getContentType())
+              .build();
+            writeResponse(output, response, serialize(result), ResponseEncoding.negotiate(event.request));
+        } finally {
+            endRequest(start);
+        }
+    }
+
+    /**
+     * Serialize the output, keeping it in memory if it is small enough to return inline and otherwise streaming it
+     * to an S3 object.
+     * @return writes the body: the held output, or a summary linking to the object
+     */
+    private Content serialize(final O result) throws IOException {
+        String key = overflowKey();
+        OverflowBuffer buffer = new OverflowBuffer(getOverflowBytes(), () -> openOverflow(key));
+        long start = getMetrics().start();
+        try (JsonGenerator generator = getObjectMapper().getFactory().createGenerator(buffer)) {
+            writer(this.outputType).writeValue(generator, result);
+        }
+        getMetrics().stop(Metrics.Metric.JSON_SERIALIZE, start);
+        if (!buffer.isSpilled())
+            return generator -> replay(buffer, generator);
+        FunctionOutput summary = overflowOutput(key, buffer.size());
+        return generator -> writer(FunctionOutput.class).writeValue(generator, summary);
+    }
+
+    /**
+     * Write held output to a generator: re-encoded for a binary format, copied as is for JSON.
+     */
+    private void replay(final OverflowBuffer buffer, final JsonGenerator generator) throws IOException {
+        if (generator.canWriteBinaryNatively()) {
+            try (JsonParser parser = getObjectMapper().getFactory().createParser(buffer.read())) {
+                parser.nextToken();
+                generator.copyCurrentStructure(parser);
+            }
+            return;
+        }
+        try (Reader reader = new InputStreamReader(buffer.read(), StandardCharsets.UTF_8)) {
+            char[] chars = new char[REPLAY_CHARS];
+            int carry = 0;
+            int n;
+            while ((n = reader.read(chars, carry, chars.length - carry)) > 0) {
+                int end = carry + n;
+                // a surrogate pair must not be split between raw writes
+                carry = Character.isHighSurrogate(chars[end - 1]) ? 1 : 0;
+                generator.writeRaw(chars, 0, end - carry);
+                if (carry > 0)
+                    chars[0] = chars[end - 1];
+            }
+            if (carry > 0)
+                generator.writeRaw(chars, 0, carry);
+        }
+    }
+
+    private Event readEvent(final InputStream input) throws IOException {
+        Event event = new Event();
+        try (JsonParser parser = getObjectMapper().getFactory().createParser(input)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("proxy event is not a JSON object");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.VALUE_NULL)
+                    continue;
+                switch (field) {
+                    case "resource":
+                        event.request.setResource(parser.getText());
+                        break;
+                    case "path":
+                        event.request.setPath(parser.getText());
+                        break;
+                    case "httpMethod":
+                        event.request.setHttpMethod(parser.getText());
+                        break;
+                    case "headers":
+                        event.request.setHeaders(readMap(parser));
+                        break;
+                    case "queryStringParameters":
+                        event.request.setQueryStringParameters(readMap(parser));
+                        break;
+                    case "pathParameters":
+                        event.request.setPathParameters(readMap(parser));
+                        break;
+                    case "stageVariables":
+                        event.request.setStageVariables(readMap(parser));
+                        break;
+                    case "isBase64Encoded":
+                        event.request.setIsBase64Encoded(parser.getValueAsBoolean());
+                        break;
+                    case "body":
+                        long start = System.nanoTime();
+                        // summarized from the parser buffer, as it is only bound from there and never kept
+                        event.bodySummary = StructuredLogger.summarize(CharBuffer.wrap(parser.getTextCharacters(),
+                          parser.getTextOffset(), parser.getTextLength()));
+                        readBody(event, parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                        event.parseNanos = System.nanoTime() - start;
+                        break;
+                    default:
+                        parser.skipChildren();
+                        break;
+                }
+            }
+        }
+        return event;
+    }
+
+    private static Map<String, String> readMap(final JsonParser parser) throws IOException {
+        return STRING_MAP_READER.readValue(parser);
+    }
+
+    /**
+     * Bind the body straight from the characters in the parser buffer when it is plain JSON; base64 never starts with
+     * a brace or bracket. Otherwise keep a copy until the rest of the event says how it is encoded.
+     */
+    private void readBody(final Event event, final char[] chars, final int offset, final int length)
+      throws IOException {
+        int start = offset;
+        while (start < offset + length && Character.isWhitespace(chars[start]))
+            start++;
+        if (start < offset + length && (chars[start] == '{' || chars[start] == '[')) {
+            event.input = parse(chars, offset, length);
+            return;
+        }
+        event.body = Arrays.copyOfRange(chars, offset, offset + length);
+    }
+
+    private I parse(final char[] chars, final int offset, final int length) throws IOException {
+        JsonFactory factory = getObjectMapper().getFactory();
+        try (JsonParser parser = factory.createParser(chars, offset, length)) {
+            return reader(this.inputType).readValue(parser);
+        } catch (IOException e) {
+            log("unable to deserialize '" + this.inputType.getName() + "' from request body");
+            throw e;
+        }
+    }
+
+    private I bind(final Event event) throws IOException {
+        if (event.input != null)
+            return event.input;
+        if (event.body == null || event.body.length == 0)
+            throw new IllegalArgumentException("missing request body");
+        if (Boolean.TRUE.equals(event.request.getIsBase64Encoded())) {
+            byte[] encoded = new byte[event.body.length];
+            for (int i = 0; i < encoded.length; i++)
+                encoded[i] = (byte) event.body[i];
+            return reader(this.inputType).readValue(Base64.getDecoder().decode(encoded));
+        }
+        return parse(event.body, 0, event.body.length);
+    }
+
+    private void writeResponse(final OutputStream output, final ProxyResponse response, final Content content,
+      final ResponseEncoding encoding) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        if (content != null && !encoding.isIdentity()) {
+            writeEncodedResponse(writer, response, content, encoding);
+            return;
+        }
+        writer.write("{\"statusCode\":");
+        writer.write(Integer.toString(response.getStatusCode()));
+        writer.write(",\"headers\":");
+        writeHeaders(writer, response.getHeaders());
+        writer.write(",\"isBase64Encoded\":false,\"body\":\"");
+        if (content == null) {
+            escape(writer, response.getBody());
+        } else {
+            JsonStringWriter body = new JsonStringWriter(writer);
+            try (JsonGenerator generator = getObjectMapper().getFactory().createGenerator(body)) {
+                content.writeTo(generator);
+            }
+        }
+        writer.write("\"}");
+        writer.flush();
+    }
+
+    /**
+     * Write a response whose body is encoded as it is serialized. The body goes first, since whether it ends up
+     * compressed, and so the headers and base64 flag, is only known once it is written.
+     */
+    private void writeEncodedResponse(final Writer writer, final ProxyResponse response, final Content content,
+      final ResponseEncoding encoding) throws IOException {
+        writer.write("{\"body\":\"");
+        ResponseEncoding.Body body = encoding.open(new JsonStringWriter(writer));
+        try (OutputStream out = body;
+          JsonGenerator generator = encoding.factory(getObjectMapper().getFactory()).createGenerator(out)) {
+            content.writeTo(generator);
+        }
+        recordEncoding(body);
+        ProxyResponse described = encoding.describe(new ProxyResponse.ProxyResponseBuilder()
+          .withHeaders(new HashMap<>(response.getHeaders())), body, getContentType()).build();
+        writer.write("\",\"statusCode\":");
+        writer.write(Integer.toString(response.getStatusCode()));
+        writer.write(",\"headers\":");
+        writeHeaders(writer, described.getHeaders());
+        writer.write(",\"isBase64Encoded\":");
+        writer.write(Boolean.toString(described.getIsBase64Encoded()));
+        writer.write('}');
+        writer.flush();
+    }
+
+    private static void writeHeaders(final Writer writer, final Map<String, String> headers) throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (!first)
+                writer.write(',');
+            first = false;
+            writeString(writer, header.getKey());
+            writer.write(':');
+            writeString(writer, header.getValue());
+        }
+        writer.write('}');
+    }
+
+    private static void writeString(final Writer writer, final String value) throws IOException {
+        writer.write('"');
+        escape(writer, value);
+        writer.write('"');
+    }
+
+    private static void escape(final Writer writer, final String value) throws IOException {
+        if (value == null)
+            return;
+        for (int i = 0; i < value.length(); i++)
+            escape(writer, value.charAt(i));
+    }
+
+    private static void escape(final Writer writer, final char c) throws IOException {
+        if (c < ESCAPES.length && ESCAPES[c] != null)
+            writer.write(ESCAPES[c]);
+        else
+            writer.write(c);
+    }
+
+    private ObjectReader reader(final Class<?> type) {
+        return READERS.computeIfAbsent(type, t -> getObjectMapper().readerFor(t));
+    }
+
+    private ObjectWriter writer(final Class<?> type) {
+        return WRITERS.computeIfAbsent(type, t -> getObjectMapper().writerFor(t));
+    }
+
+    /**
+     * Writes a response body to a generator.
+     */
+    private interface Content {
+        /**
+         * Write the body.
+         * @param generator the generator for the body
+         * @throws IOException if the body cannot be written
+         */
+        void writeTo(JsonGenerator generator) throws IOException;
+    }
+
+    /**
+     * The proxy event as read from the stream, with the input bound from its body or, when the body is not plain
+     * JSON, the body characters kept until the input can be bound.
+     */
+    private final class Event {
+        private final ProxyRequest request = new ProxyRequest();
+        private I input;
+        private char[] body;
+        // time spent binding the input while reading the event
+        private long parseNanos;
+        private String bodySummary = StructuredLogger.summarize(null);
+    }
+
+    /**
+     * Writer that escapes what is written to it as the contents of a JSON string, buffering the escaped characters
+     * so the target sees large writes. Closing it only flushes, leaving the target open for the rest of the response.
+     */
+    private static final class JsonStringWriter extends Writer {
+        private static final int BUFFER_SIZE = 8192;
+        // longest escape sequence, backslash u and four hex digits
+        private static final int MAX_ESCAPE = 6;
+
+        private final Writer target;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int used;
+
+        JsonStringWriter(final Writer target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(final char[] chars, final int offset, final int length) throws IOException {
+            for (int i = offset; i < offset + length; i++)
+                put(chars[i]);
+        }
+
+        @Override
+        public void write(final int c) throws IOException {
+            put((char) c);
+        }
+
+        private void put(final char c) throws IOException {
+            if (this.used > BUFFER_SIZE - MAX_ESCAPE)
+                drain();
+            String escape = c < ESCAPES.length ? ESCAPES[c] : null;
+            if (escape == null) {
+                this.buffer[this.used++] = c;
+            } else {
+                escape.getChars(0, escape.length(), this.buffer, this.used);
+                this.used += escape.length();
+            }
+        }
+
+        private void drain() throws IOException {
+            this.target.write(this.buffer, 0, this.used);
+            this.used = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            this.target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -7,29 +7,36 @@ import lombok.Setter;
 
 import org.getmarco.medtextanalyze.support.ProxyRequest;
 
-public class TextFromImage extends FunctionSupport {
+public class TextFromImage extends StreamFunctionSupport<TextFromImage.Input, TextFromImage.Output> {
+
+    static {
+        ClientRegistry.warm(ClientRegistry.Client.TEXTRACT);
+    }
 
     /**
      * Constructor.
      */
     public TextFromImage() {
+        super(Input.class, Output.class);
         getAnalyzer().setTextractClient(getTextractClient());
+        getAnalyzer().setTextractRegions(getTextractRegions());
     }
 
     /**
-     * Generate response body content for this function.
+     * Generate output for this function.
      * @param request the API Gateway proxy request
-     * @return the body content for the function response
+     * @param input the function input
+     * @return the function output
      */
     @Override
-    public String createBody(final ProxyRequest request) throws Exception {
-        Input input = unjsonify(request.getBody(), Input.class);
+    protected Output createOutput(final ProxyRequest request, final Input input) throws Exception {
         requiredValue(input.getBucket(), "bucket name");
         requiredValue(input.getKey(), "object key");
 
         log("detect text for image in bucket '" + input.getBucket() + "' and key '" + input.getKey() + "'");
-        String text = getAnalyzer().detectTextImageS3(input.getBucket(), input.getKey());
-        return jsonify(new Output(text));
+        String text = analyze(request, input,
+          () -> getAnalyzer().detectTextImageS3(input.getBucket(), input.getKey(), getDeadline()));
+        return new Output(text);
     }
 
     @Getter
@@ -44,7 +51,7 @@ public class TextFromImage extends FunctionSupport {
     @Setter
     @NoArgsConstructor
     @AllArgsConstructor
-    public static class Input {
+    public static class Input extends FunctionInput {
         private String bucket;
         private String key;
     }
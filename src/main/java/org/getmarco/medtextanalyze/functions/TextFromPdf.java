@@ -1,34 +1,46 @@
 package org.getmarco.medtextanalyze.functions;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.getmarco.medtextanalyze.support.DetectedText;
 import org.getmarco.medtextanalyze.support.ProxyRequest;
 
-public class TextFromPdf extends FunctionSupport {
+public class TextFromPdf extends StreamFunctionSupport<TextFromPdf.Input, TextFromPdf.Output> {
+
+    static {
+        ClientRegistry.warm(ClientRegistry.Client.TEXTRACT);
+    }
 
     /**
      * Constructor.
      */
     public TextFromPdf() {
+        super(Input.class, Output.class);
         getAnalyzer().setTextractClient(getTextractClient());
+        getAnalyzer().setTextractRegions(getTextractRegions());
     }
 
     /**
-     * Generate response body content for this function.
+     * Generate output for this function.
      * @param request the API Gateway proxy request
-     * @return the body content for the function response
+     * @param input the function input
+     * @return the function output
      */
     @Override
-    protected String createBody(final ProxyRequest request) throws Exception {
-        Input input = unjsonify(request.getBody(), Input.class);
+    protected Output createOutput(final ProxyRequest request, final Input input) throws Exception {
         requiredValue(input.getBucket(), "bucket name");
         requiredValue(input.getKey(), "object key");
 
         log("detect text for pdf in bucket '" + input.getBucket() + "' and key '" + input.getKey() + "'");
-        String text = getAnalyzer().detectTextPdf2(input.getBucket(), input.getKey());
-        return jsonify(new Output(text));
+        DetectedText text = analyze(request, input, () -> getAnalyzer().detectTextPdf2(input.getBucket(),
+          input.getKey(), getDeadline(), input.getContinuation()));
+        if (!text.isComplete())
+            log("returning partial text, " + getDeadline().remainingMillis() + " ms left before deadline");
+        return new Output(text.getText(), text.getContinuation());
     }
 
 
@@ -38,14 +50,18 @@ public class TextFromPdf extends FunctionSupport {
     @AllArgsConstructor
     public static class Output extends FunctionOutput {
         private String text;
+        // present when the text is partial; pass back in the input to get the rest
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private String continuation;
     }
 
     @Getter
     @Setter
     @NoArgsConstructor
     @AllArgsConstructor
-    public static class Input {
+    public static class Input extends FunctionInput {
         private String bucket;
         private String key;
+        private String continuation;
     }
 }
@@ -0,0 +1,455 @@
+package org.getmarco.medtextanalyze.index;
+
+import com.amazonaws.services.comprehendmedical.model.Attribute;
+import com.amazonaws.services.comprehendmedical.model.Entity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An inverted index of the medical entities detected in documents, kept on disk, to find the documents that mention a
+ * medication or name without analyzing them again. Terms are a field and a normalized value: a medication's name,
+ * under {@link #MEDICATION}; each of its attributes, under the attribute type in lower case, such as dosage; each
+ * word of a name, under {@link #NAME}; and other entities under their category in lower case. Other protected health
+ * information is not indexed. Each posting is a document and the offset the term's entity or attribute begins at.
+ * <p>
+ * Postings are gathered in memory and written out as an immutable segment once there are a set number of them, or
+ * when flushed. Segments are merged in tens, the newest ones of the same size class at a time, so each posting is
+ * rewritten a number of times that grows with the logarithm of the index size; a merge runs in the thread whose
+ * postings filled the last segment, while other threads go on adding and looking up. Indexing a document again
+ * supersedes its earlier postings, which merges drop. What was not flushed is lost if the process stops.
+ * <p>
+ * A lookup binary searches the term dictionary of each segment, held in memory, and decodes the term's postings
+ * through a memory map, so it costs little more than reading the postings it returns. An index is safe for use by
+ * any number of threads, but only one process may open its directory at a time.
+ */
+public final class EntityIndex implements Closeable {
+    /** Field of medication names. */
+    public static final String MEDICATION = "medication";
+    /** Field of the words of names of people. */
+    public static final String NAME = "name";
+    /** Default number of postings gathered in memory before they are written out. */
+    public static final int DEFAULT_BUFFER_POSTINGS = 1 << 20;
+    private static final String MEDICATION_CATEGORY = "MEDICATION";
+    private static final String PHI_CATEGORY = "PROTECTED_HEALTH_INFORMATION";
+    private static final String NAME_TYPE = "NAME";
+    private static final char FIELD_SEPARATOR = ':';
+    private static final int MERGE_FACTOR = 10;
+    private static final int INITIAL_DOCS = 1024;
+    private static final int WORD_SHIFT = 6;
+
+    private final Path directory;
+    private final int bufferPostings;
+    private final Object segmentsLock = new Object();
+    private final Object mergeLock = new Object();
+    private volatile List<IndexSegment> segments;
+    // the latest document number of each document id, and the numbers superseded by a later one
+    private final Map<String, Integer> current = new ConcurrentHashMap<>();
+    private volatile AtomicLongArray dead = new AtomicLongArray(INITIAL_DOCS >> WORD_SHIFT);
+    // postings gathered since the last flush, by term, as pairs of document number and offset; guarded by this
+    private final Map<String, IntList> buffer = new HashMap<>();
+    private final IntList bufferNumbers = new IntList();
+    private final List<String> bufferIds = new ArrayList<>();
+    private int buffered;
+    private int nextNumber;
+    private long nextGeneration;
+    // every document numbered below this has been written to a segment
+    private volatile int flushedBelow;
+
+    /**
+     * Constructor.
+     * @param directory the directory of segment files, created if it does not exist
+     * @param bufferPostings the number of postings gathered in memory before they are written out
+     * @throws IOException if the directory cannot be created or a segment cannot be read
+     */
+    public EntityIndex(final Path directory, final int bufferPostings) throws IOException {
+        if (bufferPostings < 1)
+            throw new IllegalArgumentException("invalid buffer size: " + bufferPostings);
+        this.directory = Files.createDirectories(directory);
+        this.bufferPostings = bufferPostings;
+        this.segments = Collections.unmodifiableList(load());
+        this.flushedBelow = this.nextNumber;
+    }
+
+    /**
+     * Constructor, with the default buffer size.
+     * @param directory the directory of segment files, created if it does not exist
+     * @throws IOException if the directory cannot be created or a segment cannot be read
+     */
+    public EntityIndex(final Path directory) throws IOException {
+        this(directory, DEFAULT_BUFFER_POSTINGS);
+    }
+
+    /**
+     * Normalize a value for lookup: lower case, with each run of characters other than letters and digits made a
+     * single space, and trimmed.
+     * @param value the value
+     * @return the normalized value
+     */
+    public static String normalize(final String value) {
+        StringBuilder s = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isLetterOrDigit(c))
+                s.append(c);
+            else if (s.length() > 0 && s.charAt(s.length() - 1) != ' ')
+                s.append(' ');
+        }
+        if (s.length() > 0 && s.charAt(s.length() - 1) == ' ')
+            s.setLength(s.length() - 1);
+        return s.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Index the entities detected in a document, superseding any earlier postings of it.
+     * @param documentId the document id
+     * @param entities the entities, with offsets into the document's text
+     * @throws IOException if the postings fill a segment that cannot be written or merged
+     */
+    public void add(final String documentId, final List<Entity> entities) throws IOException {
+        List<String> terms = new ArrayList<>();
+        IntList offsets = new IntList();
+        for (Entity entity : entities) {
+            int begin = entity.getBeginOffset() == null ? 0 : entity.getBeginOffset();
+            if (MEDICATION_CATEGORY.equals(entity.getCategory())) {
+                addTerm(terms, offsets, MEDICATION, entity.getText(), begin);
+                if (entity.getAttributes() != null) {
+                    for (Attribute attribute : entity.getAttributes()) {
+                        addTerm(terms, offsets, attribute.getType().toLowerCase(Locale.ROOT), attribute.getText(),
+                          attribute.getBeginOffset() == null ? begin : attribute.getBeginOffset());
+                    }
+                }
+            } else if (PHI_CATEGORY.equals(entity.getCategory())) {
+                if (NAME_TYPE.equals(entity.getType()))
+                    addWords(terms, offsets, entity.getText(), begin);
+            } else if (entity.getCategory() != null) {
+                addTerm(terms, offsets, entity.getCategory().toLowerCase(Locale.ROOT), entity.getText(), begin);
+            }
+        }
+        add(documentId, terms, offsets);
+    }
+
+    private static void addTerm(final List<String> terms, final IntList offsets, final String field,
+      final String value, final int offset) {
+        String normalized = value == null ? "" : normalize(value);
+        if (!normalized.isEmpty()) {
+            terms.add(field + FIELD_SEPARATOR + normalized);
+            offsets.add(Math.max(offset, 0));
+        }
+    }
+
+    private static void addWords(final List<String> terms, final IntList offsets, final String name,
+      final int begin) {
+        int start = -1;
+        for (int i = 0; i <= name.length(); i++) {
+            boolean word = i < name.length() && Character.isLetterOrDigit(name.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                addTerm(terms, offsets, NAME, name.substring(start, i), begin + start);
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Index terms of a document, superseding any earlier postings of it.
+     * @param documentId the document id
+     * @param terms the terms, each a field, a colon and a normalized value
+     * @param offsets the offset of each term
+     * @throws IOException if the postings fill a segment that cannot be written or merged
+     */
+    void add(final String documentId, final List<String> terms, final IntList offsets) throws IOException {
+        Integer[] order = new Integer[terms.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparing((Integer i) -> terms.get(i)).thenComparingInt(offsets::get));
+        boolean full;
+        synchronized (this) {
+            int number = this.nextNumber++;
+            Integer previous = this.current.put(documentId, number);
+            if (previous != null)
+                markDead(previous);
+            this.bufferNumbers.add(number);
+            this.bufferIds.add(documentId);
+            for (Integer i : order) {
+                IntList pairs = this.buffer.computeIfAbsent(terms.get(i), t -> new IntList());
+                pairs.add(number);
+                pairs.add(offsets.get(i));
+            }
+            this.buffered += order.length;
+            full = this.buffered >= this.bufferPostings;
+            if (full)
+                flushBuffer();
+        }
+        if (full)
+            merge();
+    }
+
+    /**
+     * Returns the postings of a term.
+     * @param field the field, such as {@link #MEDICATION}
+     * @param value the value, normalized as by {@link #normalize} if it is not already
+     * @return the postings, in the order the documents were indexed, then by offset
+     */
+    public List<Posting> find(final String field, final String value) {
+        String term = field + FIELD_SEPARATOR + normalize(value);
+        List<IndexSegment> snapshot;
+        List<Posting> buffered = new ArrayList<>();
+        synchronized (this) {
+            // both at once, so postings being flushed are found in exactly one of them
+            snapshot = this.segments;
+            IntList pairs = this.buffer.get(term);
+            for (int i = 0; pairs != null && i < pairs.size(); i += 2) {
+                int number = pairs.get(i);
+                if (!isDead(number))
+                    buffered.add(new Posting(bufferedId(number), pairs.get(i + 1)));
+            }
+        }
+        List<Posting> postings = new ArrayList<>();
+        IntList pairs = new IntList();
+        for (IndexSegment segment : snapshot) {
+            pairs.clear();
+            segment.postings(term, pairs);
+            for (int i = 0; i < pairs.size(); i += 2) {
+                int number = pairs.get(i);
+                if (!isDead(number))
+                    postings.add(new Posting(segment.idOf(number), pairs.get(i + 1)));
+            }
+        }
+        postings.addAll(buffered);
+        return postings;
+    }
+
+    /**
+     * Returns the documents a term occurs in.
+     * @param field the field, such as {@link #MEDICATION}
+     * @param value the value, normalized as by {@link #normalize} if it is not already
+     * @return the document ids, in the order the documents were indexed
+     */
+    public List<String> documents(final String field, final String value) {
+        LinkedHashSet<String> ids = new LinkedHashSet<>();
+        for (Posting posting : find(field, value))
+            ids.add(posting.getDocumentId());
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Returns the number of documents indexed.
+     * @return the document count
+     */
+    public int size() {
+        return this.current.size();
+    }
+
+    /**
+     * Returns the number of segments on disk.
+     * @return the segment count
+     */
+    public int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * Write out the postings gathered in memory, and merge segments as needed.
+     * @throws IOException if a segment cannot be written or merged
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            flushBuffer();
+        }
+        merge();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    @Override
+    public String toString() {
+        return size() + " documents in " + this.segments;
+    }
+
+    private String bufferedId(final int number) {
+        int low = 0;
+        int high = this.bufferNumbers.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.bufferNumbers.get(middle) < number)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return this.bufferIds.get(low);
+    }
+
+    // write the buffer out as a segment; holding the lock on this
+    private void flushBuffer() throws IOException {
+        if (this.bufferIds.isEmpty())
+            return;
+        IndexSegment.Writer writer = new IndexSegment.Writer();
+        for (int i = 0; i < this.bufferIds.size(); i++)
+            writer.addDoc(this.bufferNumbers.get(i), this.bufferIds.get(i));
+        for (String term : new TreeSet<>(this.buffer.keySet()))
+            writer.addTerm(term, this.buffer.get(term));
+        long generation = this.nextGeneration;
+        IndexSegment segment = writer.write(this.directory, 0, generation, generation);
+        this.nextGeneration++;
+        synchronized (this.segmentsLock) {
+            List<IndexSegment> updated = new ArrayList<>(this.segments);
+            updated.add(segment);
+            this.segments = Collections.unmodifiableList(updated);
+        }
+        this.buffer.clear();
+        this.bufferNumbers.clear();
+        this.bufferIds.clear();
+        this.buffered = 0;
+        this.flushedBelow = this.nextNumber;
+    }
+
+    // merge the newest segments while there are enough of the same level
+    private void merge() throws IOException {
+        synchronized (this.mergeLock) {
+            while (true) {
+                List<IndexSegment> snapshot = this.segments;
+                int end = snapshot.size();
+                if (end < MERGE_FACTOR)
+                    return;
+                List<IndexSegment> inputs = snapshot.subList(end - MERGE_FACTOR, end);
+                int level = inputs.get(inputs.size() - 1).getLevel();
+                for (IndexSegment segment : inputs) {
+                    if (segment.getLevel() != level)
+                        return;
+                }
+                replace(inputs, merge(inputs, level + 1));
+            }
+        }
+    }
+
+    private IndexSegment merge(final List<IndexSegment> inputs, final int level) throws IOException {
+        IndexSegment.Writer writer = new IndexSegment.Writer();
+        // a document superseded by one already written out is dropped; one superseded only in memory is kept, as
+        // the memory may yet be lost
+        int flushed = this.flushedBelow;
+        BitSet dropped = new BitSet();
+        TreeSet<String> terms = new TreeSet<>();
+        for (IndexSegment segment : inputs) {
+            for (int doc = 0; doc < segment.getDocCount(); doc++) {
+                int number = segment.getDocNumber(doc);
+                Integer latest = this.current.get(segment.getDocId(doc));
+                if (latest != null && latest != number && latest < flushed)
+                    dropped.set(number);
+                else
+                    writer.addDoc(number, segment.getDocId(doc));
+            }
+            terms.addAll(Arrays.asList(segment.getTerms()));
+        }
+        IntList pairs = new IntList();
+        IntList kept = new IntList();
+        for (String term : terms) {
+            kept.clear();
+            for (IndexSegment segment : inputs) {
+                pairs.clear();
+                segment.postings(term, pairs);
+                for (int i = 0; i < pairs.size(); i += 2) {
+                    if (!dropped.get(pairs.get(i))) {
+                        kept.add(pairs.get(i));
+                        kept.add(pairs.get(i + 1));
+                    }
+                }
+            }
+            if (kept.size() > 0)
+                writer.addTerm(term, kept);
+        }
+        return writer.write(this.directory, level, inputs.get(0).getMinGeneration(),
+          inputs.get(inputs.size() - 1).getMaxGeneration());
+    }
+
+    private void replace(final List<IndexSegment> inputs, final IndexSegment merged) throws IOException {
+        synchronized (this.segmentsLock) {
+            List<IndexSegment> updated = new ArrayList<>(this.segments);
+            int first = updated.indexOf(inputs.get(0));
+            updated.subList(first, first + inputs.size()).clear();
+            updated.add(first, merged);
+            this.segments = Collections.unmodifiableList(updated);
+        }
+        // lookups still reading the inputs keep them mapped after they are deleted
+        for (IndexSegment segment : inputs)
+            Files.deleteIfExists(segment.getPath());
+    }
+
+    // open the segments in the directory, dropping ones a merge has superseded, and number documents after theirs
+    private List<IndexSegment> load() throws IOException {
+        List<IndexSegment> loaded = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(IndexSegment.SUFFIX))
+                    loaded.add(IndexSegment.open(path));
+                else if (name.endsWith(IndexSegment.SUFFIX + ".tmp"))
+                    Files.delete(path);
+            }
+        }
+        loaded.sort(Comparator.comparingLong(IndexSegment::getMinGeneration)
+          .thenComparing(Comparator.comparingLong(IndexSegment::getMaxGeneration).reversed()));
+        List<IndexSegment> live = new ArrayList<>();
+        for (IndexSegment segment : loaded) {
+            if (!live.isEmpty() && segment.getMaxGeneration() <= live.get(live.size() - 1).getMaxGeneration()) {
+                Files.delete(segment.getPath());
+                continue;
+            }
+            live.add(segment);
+            this.nextGeneration = segment.getMaxGeneration() + 1;
+            for (int doc = 0; doc < segment.getDocCount(); doc++) {
+                int number = segment.getDocNumber(doc);
+                Integer previous = this.current.get(segment.getDocId(doc));
+                if (previous == null || previous < number) {
+                    this.current.put(segment.getDocId(doc), number);
+                    if (previous != null)
+                        markDead(previous);
+                } else {
+                    markDead(number);
+                }
+                this.nextNumber = Math.max(this.nextNumber, number + 1);
+            }
+        }
+        return live;
+    }
+
+    // only called holding the lock on this, or while loading
+    private void markDead(final int number) {
+        AtomicLongArray bits = this.dead;
+        int word = number >>> WORD_SHIFT;
+        if (word >= bits.length()) {
+            AtomicLongArray grown = new AtomicLongArray(Math.max(bits.length() * 2, word + 1));
+            for (int i = 0; i < bits.length(); i++)
+                grown.set(i, bits.get(i));
+            bits = grown;
+            this.dead = grown;
+        }
+        bits.accumulateAndGet(word, 1L << number, (a, b) -> a | b);
+    }
+
+    private boolean isDead(final int number) {
+        AtomicLongArray bits = this.dead;
+        int word = number >>> WORD_SHIFT;
+        return word < bits.length() && (bits.get(word) & 1L << number) != 0;
+    }
+}
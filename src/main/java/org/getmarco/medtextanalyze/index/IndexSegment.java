@@ -0,0 +1,308 @@
+package org.getmarco.medtextanalyze.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * An immutable index segment file: the documents indexed in it, a sorted term dictionary held in memory, and the
+ * posting lists of the terms, read through a memory map.
+ * <p>
+ * A posting list is a run of variable-length integers, a byte per seven bits: each posting is the difference from
+ * the previous posting's document number, then the offset, or where the document is the same, the difference from
+ * the previous offset. Document numbers are global to the index and increase from one segment to the next, so
+ * segments next to each other merge by concatenating their lists.
+ */
+final class IndexSegment {
+    static final String SUFFIX = ".idx";
+    private static final int MAGIC = 0x4d454449;
+    private static final int VERSION = 1;
+    private static final int VARINT_BITS = 7;
+    private static final int VARINT_MORE = 0x80;
+    private static final int VARINT_MASK = 0x7f;
+
+    private final Path path;
+    private final int level;
+    private final long minGeneration;
+    private final long maxGeneration;
+    private final int[] docNumbers;
+    private final String[] docIds;
+    private final String[] terms;
+    private final int[] counts;
+    private final int[] starts;
+    private final long postingCount;
+    private final ByteBuffer postings;
+
+    private IndexSegment(final Path path) throws IOException {
+        this.path = path;
+        ByteBuffer file;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("index segment is too large to map: " + path);
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (file.getInt() != MAGIC || file.getInt() != VERSION)
+            throw new IOException("not an index segment: " + path);
+        this.level = file.getInt();
+        this.minGeneration = file.getLong();
+        this.maxGeneration = file.getLong();
+        this.docNumbers = new int[file.getInt()];
+        this.docIds = new String[this.docNumbers.length];
+        this.terms = new String[file.getInt()];
+        this.counts = new int[this.terms.length];
+        this.starts = new int[this.terms.length + 1];
+        int number = 0;
+        for (int i = 0; i < this.docNumbers.length; i++) {
+            number += readVarInt(file);
+            this.docNumbers[i] = number;
+            this.docIds[i] = readString(file);
+        }
+        long total = 0;
+        for (int i = 0; i < this.terms.length; i++) {
+            this.terms[i] = readString(file);
+            this.counts[i] = readVarInt(file);
+            this.starts[i + 1] = this.starts[i] + readVarInt(file);
+            total += this.counts[i];
+        }
+        this.postingCount = total;
+        this.postings = file.slice();
+    }
+
+    /**
+     * Open a segment file.
+     * @param path the file
+     * @return the segment
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    static IndexSegment open(final Path path) throws IOException {
+        return new IndexSegment(path);
+    }
+
+    Path getPath() {
+        return this.path;
+    }
+
+    int getLevel() {
+        return this.level;
+    }
+
+    long getMinGeneration() {
+        return this.minGeneration;
+    }
+
+    long getMaxGeneration() {
+        return this.maxGeneration;
+    }
+
+    int getDocCount() {
+        return this.docNumbers.length;
+    }
+
+    int getDocNumber(final int doc) {
+        return this.docNumbers[doc];
+    }
+
+    String getDocId(final int doc) {
+        return this.docIds[doc];
+    }
+
+    long getPostingCount() {
+        return this.postingCount;
+    }
+
+    String[] getTerms() {
+        return this.terms;
+    }
+
+    /**
+     * Returns the id of a document indexed in this segment.
+     * @param number the document number
+     * @return the id, or null if the document is not in this segment
+     */
+    String idOf(final int number) {
+        // numbers are consecutive unless a merge dropped superseded documents
+        int guess = this.docNumbers.length == 0 ? -1 : number - this.docNumbers[0];
+        if (guess >= 0 && guess < this.docNumbers.length && this.docNumbers[guess] == number)
+            return this.docIds[guess];
+        int doc = Arrays.binarySearch(this.docNumbers, number);
+        return doc < 0 ? null : this.docIds[doc];
+    }
+
+    /**
+     * Append the postings of a term to a list, as pairs of document number and offset.
+     * @param term the term
+     * @param pairs the list
+     */
+    void postings(final String term, final IntList pairs) {
+        int index = Arrays.binarySearch(this.terms, term);
+        if (index < 0)
+            return;
+        int[] position = {this.starts[index]};
+        int doc = 0;
+        int offset = 0;
+        for (int i = 0; i < this.counts[index]; i++) {
+            int delta = readVarInt(this.postings, position);
+            doc += delta;
+            offset = delta == 0 ? offset + readVarInt(this.postings, position) : readVarInt(this.postings, position);
+            pairs.add(doc);
+            pairs.add(offset);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.path.getFileName() + " (level " + this.level + ", " + this.docNumbers.length + " documents, "
+          + this.terms.length + " terms, " + this.postingCount + " postings)";
+    }
+
+    private static int readVarInt(final ByteBuffer buffer) {
+        int[] position = {buffer.position()};
+        int value = readVarInt(buffer, position);
+        buffer.position(position[0]);
+        return value;
+    }
+
+    private static int readVarInt(final ByteBuffer buffer, final int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(position[0]++);
+            value |= (b & VARINT_MASK) << shift;
+            shift += VARINT_BITS;
+        } while ((b & VARINT_MORE) != 0);
+        return value;
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        byte[] bytes = new byte[readVarInt(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a segment file. Documents are added in order of number, then terms in sorted order with their postings.
+     */
+    static final class Writer {
+        private final Bytes docs = new Bytes();
+        private final Bytes dictionary = new Bytes();
+        private final Bytes postings = new Bytes();
+        private int docCount;
+        private int lastNumber;
+        private int termCount;
+
+        /**
+         * Add a document.
+         * @param number the document number, greater than the last
+         * @param id the document id
+         */
+        void addDoc(final int number, final String id) {
+            this.docs.writeVarInt(number - this.lastNumber);
+            this.docs.writeString(id);
+            this.lastNumber = number;
+            this.docCount++;
+        }
+
+        /**
+         * Add a term, after any term it sorts before.
+         * @param term the term
+         * @param pairs the postings, as pairs of document number and offset in order
+         */
+        void addTerm(final String term, final IntList pairs) {
+            int start = this.postings.size();
+            int doc = 0;
+            int offset = 0;
+            for (int i = 0; i < pairs.size(); i += 2) {
+                int delta = pairs.get(i) - doc;
+                this.postings.writeVarInt(delta);
+                this.postings.writeVarInt(delta == 0 ? pairs.get(i + 1) - offset : pairs.get(i + 1));
+                doc = pairs.get(i);
+                offset = pairs.get(i + 1);
+            }
+            this.dictionary.writeString(term);
+            this.dictionary.writeVarInt(pairs.size() / 2);
+            this.dictionary.writeVarInt(this.postings.size() - start);
+            this.termCount++;
+        }
+
+        /**
+         * Write the segment to a file, in full under a temporary name first so a partly written file is never taken
+         * for a segment.
+         * @param directory the index directory
+         * @param level how many times the segment's postings have been merged
+         * @param minGeneration the generation of the oldest segment merged into this one, or its own
+         * @param maxGeneration the generation of the newest segment merged into this one, or its own
+         * @return the segment
+         * @throws IOException if the file cannot be written
+         */
+        IndexSegment write(final Path directory, final int level, final long minGeneration, final long maxGeneration)
+          throws IOException {
+            Path path = directory.resolve(String.format("%016x-%016x%s", minGeneration, maxGeneration, SUFFIX));
+            Path temporary = directory.resolve(path.getFileName() + ".tmp");
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 5 + Long.BYTES * 2);
+            header.putInt(MAGIC).putInt(VERSION).putInt(level).putLong(minGeneration).putLong(maxGeneration)
+              .putInt(this.docCount).putInt(this.termCount).flip();
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (ByteBuffer buffer : new ByteBuffer[] {header, this.docs.buffer(), this.dictionary.buffer(),
+                  this.postings.buffer()}) {
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return open(path);
+        }
+    }
+
+    /**
+     * A growable byte array.
+     */
+    private static final class Bytes {
+        private static final int INITIAL_CAPACITY = 1024;
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private int size;
+
+        int size() {
+            return this.size;
+        }
+
+        void writeVarInt(final int value) {
+            int v = value;
+            while ((v & ~VARINT_MASK) != 0) {
+                write(v & VARINT_MASK | VARINT_MORE);
+                v >>>= VARINT_BITS;
+            }
+            write(v);
+        }
+
+        void writeString(final String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, this.bytes, this.size, b.length);
+            this.size += b.length;
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(this.bytes, 0, this.size);
+        }
+
+        private void write(final int b) {
+            ensure(1);
+            this.bytes[this.size++] = (byte) b;
+        }
+
+        private void ensure(final int more) {
+            if (this.size + more > this.bytes.length)
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + more));
+        }
+    }
+}
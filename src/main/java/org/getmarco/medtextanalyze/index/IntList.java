@@ -0,0 +1,31 @@
+package org.getmarco.medtextanalyze.index;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of ints, so posting lists being built hold no boxed values.
+ */
+final class IntList {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size;
+
+    void add(final int value) {
+        if (this.size == this.values.length)
+            this.values = Arrays.copyOf(this.values, this.size * 2);
+        this.values[this.size++] = value;
+    }
+
+    int get(final int index) {
+        return this.values[index];
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    void clear() {
+        this.size = 0;
+    }
+}
@@ -0,0 +1,40 @@
+package org.getmarco.medtextanalyze.index;
+
+import lombok.Getter;
+
+/**
+ * An occurrence of a term in an indexed document.
+ */
+@Getter
+public final class Posting {
+    private final String documentId;
+    private final int offset;
+
+    /**
+     * Constructor.
+     * @param documentId the document id
+     * @param offset the offset in the document's text where the entity or attribute the term is from begins
+     */
+    public Posting(final String documentId, final int offset) {
+        this.documentId = documentId;
+        this.offset = offset;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof Posting))
+            return false;
+        Posting other = (Posting) o;
+        return this.offset == other.offset && this.documentId.equals(other.documentId);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.documentId.hashCode() * 31 + this.offset;
+    }
+
+    @Override
+    public String toString() {
+        return this.documentId + "@" + this.offset;
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * An inverted index of the medical entities detected in documents, kept on disk, for looking up the documents that
+ * mention a medication or name.
+ */
+package org.getmarco.medtextanalyze.index;
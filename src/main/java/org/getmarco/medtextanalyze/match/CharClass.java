@@ -0,0 +1,156 @@
+package org.getmarco.medtextanalyze.match;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable set of characters, held as sorted, disjoint, non-adjacent ranges.
+ */
+final class CharClass {
+    /** Every character. */
+    static final CharClass ANY = range(Character.MIN_VALUE, Character.MAX_VALUE);
+    /** ASCII digits, as {@code \d}. */
+    static final CharClass DIGIT = range('0', '9');
+    /** ASCII word characters, as {@code \w}. */
+    static final CharClass WORD = range('a', 'z').union(range('A', 'Z')).union(DIGIT).union(of('_'));
+    /** Whitespace, as {@code \s}. */
+    static final CharClass SPACE = of(' ').union(range('\t', '\r'));
+    /** Any character but a line feed, as {@code .}. */
+    static final CharClass DOT = of('\n').negate();
+
+    private static final int CASE_OFFSET = 'a' - 'A';
+
+    // start and end (inclusive) of each range, in pairs
+    private final char[] ranges;
+
+    private CharClass(final char[] ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * Returns the class of one character.
+     * @param c the character
+     * @return the class
+     */
+    static CharClass of(final char c) {
+        return new CharClass(new char[] {c, c});
+    }
+
+    /**
+     * Returns the class of a range of characters.
+     * @param from the first character
+     * @param to the last character
+     * @return the class
+     */
+    static CharClass range(final char from, final char to) {
+        return new CharClass(new char[] {from, to});
+    }
+
+    /**
+     * Determine if a character is an ASCII word character, the test {@code \b} makes.
+     * @param c the character
+     * @return true for a letter, digit or underscore
+     */
+    static boolean isWord(final char c) {
+        return c < '\u0080' && (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_');
+    }
+
+    /**
+     * Determine if the class holds a character.
+     * @param c the character
+     * @return true if it does
+     */
+    boolean contains(final char c) {
+        int low = 0;
+        int high = this.ranges.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (c < this.ranges[2 * mid])
+                high = mid - 1;
+            else if (c > this.ranges[2 * mid + 1])
+                low = mid + 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the characters in this class or the other.
+     * @param other the other class
+     * @return the union
+     */
+    CharClass union(final CharClass other) {
+        char[] all = Arrays.copyOf(this.ranges, this.ranges.length + other.ranges.length);
+        System.arraycopy(other.ranges, 0, all, this.ranges.length, other.ranges.length);
+        return normalize(all);
+    }
+
+    /**
+     * Returns the characters not in this class.
+     * @return the complement
+     */
+    CharClass negate() {
+        List<Character> result = new ArrayList<>();
+        int next = Character.MIN_VALUE;
+        for (int i = 0; i < this.ranges.length; i += 2) {
+            if (this.ranges[i] > next) {
+                result.add((char) next);
+                result.add((char) (this.ranges[i] - 1));
+            }
+            next = this.ranges[i + 1] + 1;
+        }
+        if (next <= Character.MAX_VALUE) {
+            result.add((char) next);
+            result.add(Character.MAX_VALUE);
+        }
+        char[] negated = new char[result.size()];
+        for (int i = 0; i < negated.length; i++)
+            negated[i] = result.get(i);
+        return new CharClass(negated);
+    }
+
+    /**
+     * Returns this class with the other case of every ASCII letter in it added.
+     * @return the case-insensitive class
+     */
+    CharClass ignoreCase() {
+        CharClass folded = this;
+        for (int i = 0; i < this.ranges.length; i += 2) {
+            folded = folded.union(shifted(this.ranges[i], this.ranges[i + 1], 'a', 'z', -CASE_OFFSET))
+              .union(shifted(this.ranges[i], this.ranges[i + 1], 'A', 'Z', CASE_OFFSET));
+        }
+        return folded;
+    }
+
+    private static CharClass shifted(final char from, final char to, final char low, final char high,
+      final int offset) {
+        char start = (char) Math.max(from, low);
+        char end = (char) Math.min(to, high);
+        if (start > end)
+            return new CharClass(new char[0]);
+        return range((char) (start + offset), (char) (end + offset));
+    }
+
+    private static CharClass normalize(final char[] unsorted) {
+        int count = unsorted.length / 2;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Character.compare(unsorted[2 * a], unsorted[2 * b]));
+        char[] merged = new char[unsorted.length];
+        int size = 0;
+        for (int index : order) {
+            char from = unsorted[2 * index];
+            char to = unsorted[2 * index + 1];
+            if (size > 0 && from <= merged[size - 1] + 1) {
+                merged[size - 1] = (char) Math.max(merged[size - 1], to);
+            } else {
+                merged[size++] = from;
+                merged[size++] = to;
+            }
+        }
+        return new CharClass(Arrays.copyOf(merged, size));
+    }
+}
@@ -0,0 +1,249 @@
+package org.getmarco.medtextanalyze.match;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A deterministic automaton built lazily from an {@link Nfa}, one state the first time a scan reaches it. A state is
+ * the set of automaton states reached by consuming the text so far, along with whether the last character was a word
+ * character, so word boundaries can be decided once the next character is known.
+ * <p>
+ * Transitions are cached on the states, in an array for ASCII and a map for anything else, so once warm a step is a
+ * single lookup. States are shared by every scan of the rule set, on any thread; building one takes a lock. If more
+ * than a set number of states have been built, the cache is dropped and rebuilt as needed, which bounds memory for
+ * rule sets whose automaton would be too large to build in full.
+ */
+final class Dfa {
+    private static final int ASCII = 128;
+    private static final int MAX_CACHED_STATES = 20000;
+    private static final int[] NONE = new int[0];
+
+    private final Nfa nfa;
+    private final int root;
+    private final boolean unanchored;
+    private final Map<Key, State> states = new HashMap<>();
+    // closure bookkeeping, only touched while holding the lock
+    private final int[] visited;
+    private int visit;
+    private volatile State startWord;
+    private volatile State startOther;
+
+    /**
+     * Constructor.
+     * @param nfa the nondeterministic automaton
+     * @param root the state to start from
+     * @param unanchored whether a match may start anywhere, rather than only where the scan starts
+     */
+    Dfa(final Nfa nfa, final int root, final boolean unanchored) {
+        this.nfa = nfa;
+        this.root = root;
+        this.unanchored = unanchored;
+        this.visited = new int[nfa.size()];
+    }
+
+    /**
+     * Returns the state a scan starts in.
+     * @param prevWord whether the character before the scan is a word character
+     * @return the start state
+     */
+    State start(final boolean prevWord) {
+        State start = prevWord ? this.startWord : this.startOther;
+        return start != null ? start : buildStart(prevWord);
+    }
+
+    private synchronized State buildStart(final boolean prevWord) {
+        State start = intern(new int[] {this.root}, prevWord);
+        if (prevWord)
+            this.startWord = start;
+        else
+            this.startOther = start;
+        return start;
+    }
+
+    /**
+     * Returns the state after consuming a character.
+     * @param state the current state
+     * @param c the character
+     * @return the next state
+     */
+    State next(final State state, final char c) {
+        State next = c < ASCII ? state.ascii[c] : state.other.get(c);
+        return next != null ? next : build(state, c);
+    }
+
+    /**
+     * Returns the state that also has a match starting here, for following matches that may start anywhere in a
+     * stretch of text with an anchored automaton.
+     * @param state the current state
+     * @return the state with the start added
+     */
+    State restart(final State state) {
+        State restarted = state.restarted;
+        return restarted != null ? restarted : buildRestart(state);
+    }
+
+    private synchronized State buildRestart(final State state) {
+        int[] kernel = state.kernel;
+        if (Arrays.binarySearch(kernel, this.root) < 0) {
+            kernel = Arrays.copyOf(kernel, kernel.length + 1);
+            kernel[kernel.length - 1] = this.root;
+            Arrays.sort(kernel);
+        }
+        State restarted = intern(kernel, state.prevWord);
+        state.restarted = restarted;
+        return restarted;
+    }
+
+    private synchronized State build(final State state, final char c) {
+        boolean word = CharClass.isWord(c);
+        TreeSet<Integer> kernel = new TreeSet<>();
+        for (int s : closure(state.kernel, state.prevWord, word)) {
+            if (this.nfa.type(s) == Nfa.CHAR && this.nfa.chars(s).contains(c))
+                kernel.add(this.nfa.outs(s)[0]);
+        }
+        if (this.unanchored)
+            kernel.add(this.root);
+        State next = intern(kernel.stream().mapToInt(Integer::intValue).toArray(), word);
+        if (c < ASCII)
+            state.ascii[c] = next;
+        else
+            state.other.put(c, next);
+        return next;
+    }
+
+    private State intern(final int[] kernel, final boolean prevWord) {
+        Key key = new Key(kernel, prevWord);
+        State state = this.states.get(key);
+        if (state == null) {
+            if (this.states.size() >= MAX_CACHED_STATES)
+                flush();
+            state = new State(kernel, prevWord, accepts(kernel, prevWord, true), accepts(kernel, prevWord, false));
+            this.states.put(key, state);
+        }
+        return state;
+    }
+
+    // unlink the cached states from each other so scans holding one of them do not keep the rest alive
+    private void flush() {
+        for (State state : this.states.values()) {
+            Arrays.fill(state.ascii, null);
+            state.other.clear();
+            state.restarted = null;
+        }
+        this.states.clear();
+        this.startWord = null;
+        this.startOther = null;
+    }
+
+    private int[] accepts(final int[] kernel, final boolean prevWord, final boolean nextWord) {
+        TreeSet<Integer> rules = new TreeSet<>();
+        for (int s : closure(kernel, prevWord, nextWord)) {
+            if (this.nfa.type(s) == Nfa.MATCH)
+                rules.add(this.nfa.rule(s));
+        }
+        return rules.isEmpty() ? NONE : rules.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // the character consuming and match states reachable without consuming anything
+    private int[] closure(final int[] kernel, final boolean prevWord, final boolean nextWord) {
+        if (++this.visit == 0) {
+            Arrays.fill(this.visited, 0);
+            this.visit = 1;
+        }
+        int[] stack = new int[this.nfa.size()];
+        int[] reached = new int[this.nfa.size()];
+        int depth = 0;
+        int count = 0;
+        for (int s : kernel) {
+            if (this.visited[s] != this.visit) {
+                this.visited[s] = this.visit;
+                stack[depth++] = s;
+            }
+        }
+        while (depth > 0) {
+            int s = stack[--depth];
+            switch (this.nfa.type(s)) {
+                case Nfa.SPLIT:
+                    break;
+                case Nfa.ASSERT:
+                    if ((prevWord != nextWord) == this.nfa.negated(s))
+                        continue;
+                    break;
+                default:
+                    reached[count++] = s;
+                    continue;
+            }
+            for (int out : this.nfa.outs(s)) {
+                if (this.visited[out] != this.visit) {
+                    this.visited[out] = this.visit;
+                    stack[depth++] = out;
+                }
+            }
+        }
+        return Arrays.copyOf(reached, count);
+    }
+
+    /**
+     * A state of the automaton.
+     */
+    static final class State {
+        private final int[] kernel;
+        private final boolean prevWord;
+        private final int[] acceptWord;
+        private final int[] acceptOther;
+        private final State[] ascii = new State[ASCII];
+        private final Map<Character, State> other = new ConcurrentHashMap<>();
+        private volatile State restarted;
+
+        State(final int[] kernel, final boolean prevWord, final int[] acceptWord, final int[] acceptOther) {
+            this.kernel = kernel;
+            this.prevWord = prevWord;
+            this.acceptWord = acceptWord;
+            this.acceptOther = acceptOther;
+        }
+
+        /**
+         * Returns the rules with a match ending here, which depends on the character that follows because of word
+         * boundaries.
+         * @param nextWord whether the next character is a word character; false at the end of the text
+         * @return the rule numbers, in order
+         */
+        int[] accepts(final boolean nextWord) {
+            return nextWord ? this.acceptWord : this.acceptOther;
+        }
+
+        /**
+         * Determine if no match can be reached from here.
+         * @return true for the dead state of an anchored automaton
+         */
+        boolean isDead() {
+            return this.kernel.length == 0;
+        }
+    }
+
+    private static final class Key {
+        private final int[] kernel;
+        private final boolean prevWord;
+
+        Key(final int[] kernel, final boolean prevWord) {
+            this.kernel = kernel;
+            this.prevWord = prevWord;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return this.prevWord == other.prevWord && Arrays.equals(this.kernel, other.kernel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(this.kernel) * 2 + (this.prevWord ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.getmarco.medtextanalyze.match;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A nondeterministic automaton built from parsed patterns by Thompson's construction. Each state either consumes one
+ * character of a class, branches to several states without consuming anything, asserts a word boundary, or reports
+ * a match of a rule.
+ */
+final class Nfa {
+    /** Consumes one character of the state's class. */
+    static final int CHAR = 0;
+    /** Branches to each of the state's outs. */
+    static final int SPLIT = 1;
+    /** Passes only at a word boundary, or with negated set, only where there is none. */
+    static final int ASSERT = 2;
+    /** Reports a match of the state's rule. */
+    static final int MATCH = 3;
+
+    // past this many states the expanded repetitions are too large to be worth determinizing
+    private static final int MAX_STATES = 100000;
+    private static final int[] NO_OUTS = new int[0];
+
+    private final List<Integer> types = new ArrayList<>();
+    private final List<CharClass> classes = new ArrayList<>();
+    private final List<int[]> outs = new ArrayList<>();
+    private final List<Integer> values = new ArrayList<>();
+
+    /**
+     * Add a rule.
+     * @param node the parsed pattern
+     * @param rule the rule number its matches report
+     * @return the state the rule starts from
+     * @throws IllegalArgumentException if the automaton grows too large
+     */
+    int addRule(final Node node, final int rule) {
+        return compile(node, add(MATCH, null, NO_OUTS, rule));
+    }
+
+    /**
+     * Add a state branching to each of the given states.
+     * @param targets the states
+     * @return the new state
+     */
+    int addSplit(final int[] targets) {
+        return add(SPLIT, null, targets.clone(), 0);
+    }
+
+    int size() {
+        return this.types.size();
+    }
+
+    int type(final int state) {
+        return this.types.get(state);
+    }
+
+    CharClass chars(final int state) {
+        return this.classes.get(state);
+    }
+
+    int[] outs(final int state) {
+        return this.outs.get(state);
+    }
+
+    int rule(final int state) {
+        return this.values.get(state);
+    }
+
+    boolean negated(final int state) {
+        return this.values.get(state) != 0;
+    }
+
+    // compiles the node so it continues to next, built back to front so each state's outs already exist
+    private int compile(final Node node, final int next) {
+        switch (node.getKind()) {
+            case CHARS:
+                return add(CHAR, node.getChars(), new int[] {next}, 0);
+            case BOUNDARY:
+                return add(ASSERT, null, new int[] {next}, node.isNegated() ? 1 : 0);
+            case CONCAT:
+                int start = next;
+                for (int i = node.getChildren().size() - 1; i >= 0; i--)
+                    start = compile(node.getChildren().get(i), start);
+                return start;
+            case ALTERNATE:
+                int[] alternatives = new int[node.getChildren().size()];
+                for (int i = 0; i < alternatives.length; i++)
+                    alternatives[i] = compile(node.getChildren().get(i), next);
+                return add(SPLIT, null, alternatives, 0);
+            default:
+                return repeat(node.getChildren().get(0), node.getMin(), node.getMax(), next);
+        }
+    }
+
+    private int repeat(final Node child, final int min, final int max, final int next) {
+        int start = next;
+        if (max == Node.UNBOUNDED) {
+            int loop = add(SPLIT, null, NO_OUTS, 0);
+            this.outs.set(loop, new int[] {compile(child, loop), start});
+            start = loop;
+        } else {
+            for (int i = min; i < max; i++)
+                start = add(SPLIT, null, new int[] {compile(child, start), start}, 0);
+        }
+        for (int i = 0; i < min; i++)
+            start = compile(child, start);
+        return start;
+    }
+
+    private int add(final int type, final CharClass chars, final int[] targets, final int value) {
+        if (this.types.size() >= MAX_STATES)
+            throw new IllegalArgumentException("rules expand to more than " + MAX_STATES + " automaton states");
+        this.types.add(type);
+        this.classes.add(chars);
+        this.outs.add(targets);
+        this.values.add(value);
+        return this.types.size() - 1;
+    }
+}
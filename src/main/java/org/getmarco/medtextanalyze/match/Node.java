@@ -0,0 +1,116 @@
+package org.getmarco.medtextanalyze.match;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A node of a parsed pattern.
+ */
+final class Node {
+    /** Repeat without an upper bound. */
+    static final int UNBOUNDED = -1;
+
+    /**
+     * What a node matches.
+     */
+    enum Kind {
+        /** One character of a class. */
+        CHARS,
+        /** Each child in turn. */
+        CONCAT,
+        /** Any one child. */
+        ALTERNATE,
+        /** The child repeated from min to max times. */
+        REPEAT,
+        /** A word boundary, or with negated set, anything but one. */
+        BOUNDARY
+    }
+
+    private final Kind kind;
+    private final CharClass chars;
+    private final List<Node> children;
+    private final int min;
+    private final int max;
+    private final boolean negated;
+
+    private Node(final Kind kind, final CharClass chars, final List<Node> children, final int min, final int max,
+      final boolean negated) {
+        this.kind = kind;
+        this.chars = chars;
+        this.children = children;
+        this.min = min;
+        this.max = max;
+        this.negated = negated;
+    }
+
+    static Node chars(final CharClass chars) {
+        return new Node(Kind.CHARS, chars, Collections.emptyList(), 1, 1, false);
+    }
+
+    static Node concat(final List<Node> children) {
+        return children.size() == 1 ? children.get(0)
+          : new Node(Kind.CONCAT, null, Collections.unmodifiableList(new ArrayList<>(children)), 1, 1, false);
+    }
+
+    static Node alternate(final List<Node> children) {
+        return children.size() == 1 ? children.get(0)
+          : new Node(Kind.ALTERNATE, null, Collections.unmodifiableList(new ArrayList<>(children)), 1, 1, false);
+    }
+
+    static Node repeat(final Node child, final int min, final int max) {
+        return new Node(Kind.REPEAT, null, Collections.singletonList(child), min, max, false);
+    }
+
+    static Node boundary(final boolean negated) {
+        return new Node(Kind.BOUNDARY, null, Collections.emptyList(), 1, 1, negated);
+    }
+
+    Kind getKind() {
+        return this.kind;
+    }
+
+    CharClass getChars() {
+        return this.chars;
+    }
+
+    List<Node> getChildren() {
+        return this.children;
+    }
+
+    int getMin() {
+        return this.min;
+    }
+
+    int getMax() {
+        return this.max;
+    }
+
+    boolean isNegated() {
+        return this.negated;
+    }
+
+    /**
+     * Returns a node matching the reverse of what this one matches, for scanning backwards to find where a match
+     * starts.
+     * @return the reversed node
+     */
+    Node reverse() {
+        switch (this.kind) {
+            case CONCAT:
+                List<Node> reversed = new ArrayList<>();
+                for (int i = this.children.size() - 1; i >= 0; i--)
+                    reversed.add(this.children.get(i).reverse());
+                return concat(reversed);
+            case ALTERNATE:
+                List<Node> alternatives = new ArrayList<>();
+                for (Node child : this.children)
+                    alternatives.add(child.reverse());
+                return alternate(alternatives);
+            case REPEAT:
+                return repeat(this.children.get(0).reverse(), this.min, this.max);
+            default:
+                return this;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.getmarco.medtextanalyze.match;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the subset of {@link java.util.regex.Pattern} syntax a {@link RuleSet} compiles into its automaton:
+ * literals and escapes, character classes with ranges and negation, {@code .}, {@code \d \w \s} and their negations,
+ * groups, alternation, greedy quantifiers {@code * + ? {n} {n,} {n,m}}, word boundaries {@code \b \B}, and a leading
+ * {@code (?i)} for ASCII case-insensitive matching. Constructs that need backtracking, such as back references,
+ * look-around and lazy or possessive quantifiers, are rejected, as are the anchors {@code ^} and {@code $}.
+ */
+final class PatternParser {
+    private static final String IGNORE_CASE = "(?i)";
+    private static final int MAX_REPEAT = 1000;
+
+    private final String pattern;
+    private final boolean ignoreCase;
+    private int position;
+
+    private PatternParser(final String pattern) {
+        this.ignoreCase = pattern.startsWith(IGNORE_CASE);
+        this.pattern = pattern;
+        this.position = this.ignoreCase ? IGNORE_CASE.length() : 0;
+    }
+
+    /**
+     * Parse a pattern.
+     * @param pattern the pattern
+     * @return the parsed pattern
+     * @throws IllegalArgumentException if the pattern is invalid or uses an unsupported construct
+     */
+    static Node parse(final String pattern) {
+        PatternParser parser = new PatternParser(pattern);
+        Node node = parser.alternation();
+        if (parser.position < pattern.length())
+            throw parser.error("unmatched ')'");
+        return node;
+    }
+
+    /**
+     * Returns a node matching a literal string, case-insensitively if asked, and only as a whole word where its ends
+     * are word characters.
+     * @param text the string
+     * @param ignoreCase whether to ignore ASCII case
+     * @return the node
+     */
+    static Node literal(final String text, final boolean ignoreCase) {
+        List<Node> sequence = new ArrayList<>();
+        if (!text.isEmpty() && CharClass.isWord(text.charAt(0)))
+            sequence.add(Node.boundary(false));
+        for (char c : text.toCharArray())
+            sequence.add(Node.chars(ignoreCase ? CharClass.of(c).ignoreCase() : CharClass.of(c)));
+        if (!text.isEmpty() && CharClass.isWord(text.charAt(text.length() - 1)))
+            sequence.add(Node.boundary(false));
+        return Node.concat(sequence);
+    }
+
+    private Node alternation() {
+        List<Node> alternatives = new ArrayList<>();
+        alternatives.add(sequence());
+        while (peek('|')) {
+            this.position++;
+            alternatives.add(sequence());
+        }
+        return Node.alternate(alternatives);
+    }
+
+    private Node sequence() {
+        List<Node> items = new ArrayList<>();
+        while (this.position < this.pattern.length() && !peek('|') && !peek(')'))
+            items.add(quantified(atom()));
+        return Node.concat(items);
+    }
+
+    private Node quantified(final Node atom) {
+        Node node = atom;
+        while (this.position < this.pattern.length()) {
+            char c = this.pattern.charAt(this.position);
+            int min;
+            int max;
+            if (c == '*') {
+                min = 0;
+                max = Node.UNBOUNDED;
+                this.position++;
+            } else if (c == '+') {
+                min = 1;
+                max = Node.UNBOUNDED;
+                this.position++;
+            } else if (c == '?') {
+                min = 0;
+                max = 1;
+                this.position++;
+            } else if (c == '{') {
+                this.position++;
+                min = number();
+                max = min;
+                if (peek(',')) {
+                    this.position++;
+                    max = peek('}') ? Node.UNBOUNDED : number();
+                }
+                expect('}');
+                if (max != Node.UNBOUNDED && max < min || min > MAX_REPEAT || max > MAX_REPEAT)
+                    throw error("invalid repetition");
+            } else {
+                return node;
+            }
+            if (peek('?') || peek('+'))
+                throw error("lazy and possessive quantifiers are not supported");
+            if (node.getKind() == Node.Kind.BOUNDARY)
+                throw error("a word boundary cannot be repeated");
+            node = Node.repeat(node, min, max);
+        }
+        return node;
+    }
+
+    private Node atom() {
+        char c = this.pattern.charAt(this.position++);
+        switch (c) {
+            case '(':
+                if (peek('?')) {
+                    if (!this.pattern.startsWith("?:", this.position))
+                        throw error("only non-capturing groups are supported");
+                    this.position += 2;
+                }
+                Node group = alternation();
+                expect(')');
+                return group;
+            case '[':
+                return chars(charClass());
+            case '.':
+                return chars(CharClass.DOT);
+            case '\\':
+                return escape();
+            case '^':
+            case '$':
+                throw error("anchors are not supported");
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw error("nothing to repeat");
+            default:
+                return chars(CharClass.of(c));
+        }
+    }
+
+    private Node escape() {
+        if (this.position >= this.pattern.length())
+            throw error("trailing backslash");
+        char c = this.pattern.charAt(this.position++);
+        switch (c) {
+            case 'b':
+                return Node.boundary(false);
+            case 'B':
+                return Node.boundary(true);
+            default:
+                CharClass escaped = classEscape(c);
+                if (escaped == null)
+                    throw error("unsupported escape \\" + c);
+                return chars(escaped);
+        }
+    }
+
+    private CharClass charClass() {
+        boolean negate = peek('^');
+        if (negate)
+            this.position++;
+        CharClass result = null;
+        boolean first = true;
+        while (this.position < this.pattern.length() && (first || !peek(']'))) {
+            first = false;
+            CharClass item;
+            char from = this.pattern.charAt(this.position++);
+            if (from == '\\') {
+                if (this.position >= this.pattern.length())
+                    throw error("trailing backslash");
+                char c = this.pattern.charAt(this.position++);
+                item = classEscape(c);
+                if (item == null)
+                    throw error("unsupported escape \\" + c);
+            } else if (from == '[') {
+                throw error("nested classes are not supported");
+            } else if (peek('-') && this.position + 1 < this.pattern.length()
+              && this.pattern.charAt(this.position + 1) != ']') {
+                this.position++;
+                char to = this.pattern.charAt(this.position++);
+                if (to == '\\')
+                    throw error("escaped range ends are not supported");
+                if (to < from)
+                    throw error("invalid range");
+                item = CharClass.range(from, to);
+            } else {
+                item = CharClass.of(from);
+            }
+            result = result == null ? item : result.union(item);
+        }
+        expect(']');
+        return negate ? result.negate() : result;
+    }
+
+    private CharClass classEscape(final char c) {
+        switch (c) {
+            case 'd':
+                return CharClass.DIGIT;
+            case 'D':
+                return CharClass.DIGIT.negate();
+            case 'w':
+                return CharClass.WORD;
+            case 'W':
+                return CharClass.WORD.negate();
+            case 's':
+                return CharClass.SPACE;
+            case 'S':
+                return CharClass.SPACE.negate();
+            case 't':
+                return CharClass.of('\t');
+            case 'n':
+                return CharClass.of('\n');
+            case 'r':
+                return CharClass.of('\r');
+            case 'f':
+                return CharClass.of('\f');
+            default:
+                return Character.isLetterOrDigit(c) ? null : CharClass.of(c);
+        }
+    }
+
+    private Node chars(final CharClass chars) {
+        return Node.chars(this.ignoreCase ? chars.ignoreCase() : chars);
+    }
+
+    private int number() {
+        int start = this.position;
+        while (this.position < this.pattern.length() && Character.isDigit(this.pattern.charAt(this.position)))
+            this.position++;
+        if (start == this.position || this.position - start > String.valueOf(MAX_REPEAT).length())
+            throw error("invalid repetition");
+        return Integer.parseInt(this.pattern.substring(start, this.position));
+    }
+
+    private boolean peek(final char c) {
+        return this.position < this.pattern.length() && this.pattern.charAt(this.position) == c;
+    }
+
+    private void expect(final char c) {
+        if (!peek(c))
+            throw error("expected '" + c + "'");
+        this.position++;
+    }
+
+    private IllegalArgumentException error(final String message) {
+        return new IllegalArgumentException(message + " at index " + this.position + " in pattern " + this.pattern);
+    }
+}
@@ -0,0 +1,65 @@
+package org.getmarco.medtextanalyze.match;
+
+import lombok.Getter;
+
+/**
+ * A match of one rule of a {@link RuleSet}. Offsets are into the whole text scanned, as a
+ * {@link java.util.regex.Matcher} on that text would report them.
+ */
+@Getter
+public final class RuleMatch implements Comparable<RuleMatch> {
+    private final String ruleId;
+    private final int page;
+    private final int start;
+    private final int end;
+    private final String text;
+
+    /**
+     * Constructor.
+     * @param ruleId the id of the rule that matched
+     * @param page the page the match is on, from 1
+     * @param start the offset of the first character matched
+     * @param end the offset after the last character matched
+     * @param text the text matched
+     */
+    public RuleMatch(final String ruleId, final int page, final int start, final int end, final String text) {
+        this.ruleId = ruleId;
+        this.page = page;
+        this.start = start;
+        this.end = end;
+        this.text = text;
+    }
+
+    /**
+     * Order by position, earliest first, then longest first, then by rule id.
+     * @param other the match to compare with
+     * @return the comparison
+     */
+    @Override
+    public int compareTo(final RuleMatch other) {
+        if (this.start != other.start)
+            return Integer.compare(this.start, other.start);
+        if (this.end != other.end)
+            return Integer.compare(other.end, this.end);
+        return this.ruleId.compareTo(other.ruleId);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof RuleMatch))
+            return false;
+        RuleMatch other = (RuleMatch) o;
+        return this.start == other.start && this.end == other.end && this.page == other.page
+          && this.ruleId.equals(other.ruleId);
+    }
+
+    @Override
+    public int hashCode() {
+        return (this.ruleId.hashCode() * 31 + this.start) * 31 + this.end;
+    }
+
+    @Override
+    public String toString() {
+        return this.ruleId + "@" + this.page + "[" + this.start + "," + this.end + ")=" + this.text;
+    }
+}
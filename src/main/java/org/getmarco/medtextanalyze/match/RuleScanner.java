@@ -0,0 +1,223 @@
+package org.getmarco.medtextanalyze.match;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Scans text for the rules of a {@link RuleSet} as it arrives, a piece at a time, in one pass. The pieces may split
+ * the text anywhere.
+ * <p>
+ * The text is split into pages as detected document text is: each page starts with an empty line, except that a
+ * line break at the very start of the text does not start a second page. Pages are numbered from 1, and matches do
+ * not cross them. Only the current page is held in memory.
+ * <p>
+ * The combined automaton reports where matches end. For a rule with no match outstanding, the scanner then finds
+ * where the match starts by running the rule backwards over the page, and follows every match of the rule that could
+ * start as early with the rule's own automaton until none is left, to settle on the leftmost and then longest. The
+ * match is reported then, or at the latest when its page ends, so matches of different rules may be reported out of
+ * order. A scanner is for one thread.
+ */
+public final class RuleScanner {
+    private static final int NONE = -1;
+
+    private final RuleSet rules;
+    private final Dfa forward;
+    private final Consumer<RuleMatch> consumer;
+    private final StringBuilder page = new StringBuilder();
+    // per rule: where its next match may start, as an offset into the whole text
+    private final int[] origin;
+    // per rule with a match outstanding: the match, and how far on the page its rivals have been followed
+    private final int[] pendingStart;
+    private final int[] pendingEnd;
+    private final Dfa.State[] rivals;
+    private final int[] followed;
+    private final int[] pendingIndex;
+    private final int[] pendingRules;
+    private int pendingCount;
+    private Dfa.State state;
+    private int pageNumber = 1;
+    private int pageOffset;
+    private int offset;
+    private boolean lineStart = true;
+    private boolean finished;
+
+    RuleScanner(final RuleSet rules, final Consumer<RuleMatch> consumer) {
+        this.rules = rules;
+        this.forward = rules.forward();
+        this.consumer = consumer;
+        this.origin = new int[rules.size()];
+        this.pendingStart = new int[rules.size()];
+        this.pendingEnd = new int[rules.size()];
+        Arrays.fill(this.pendingEnd, NONE);
+        this.rivals = new Dfa.State[rules.size()];
+        this.followed = new int[rules.size()];
+        this.pendingIndex = new int[rules.size()];
+        this.pendingRules = new int[rules.size()];
+        this.state = this.forward.start(false);
+    }
+
+    /**
+     * Scan the next piece of text.
+     * @param text the text
+     * @throws IllegalStateException if the scan has finished
+     */
+    public void accept(final CharSequence text) {
+        if (this.finished)
+            throw new IllegalStateException("scan has finished");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' && this.lineStart && this.offset > 0) {
+                endPage();
+                this.pageNumber++;
+                this.pageOffset = ++this.offset;
+                continue;
+            }
+            int position = this.page.length();
+            this.page.append(c);
+            for (int rule : this.state.accepts(CharClass.isWord(c))) {
+                if (this.pendingEnd[rule] == NONE)
+                    search(rule, position, position);
+            }
+            // back to front, as a rule settling drops out of the list and may come back at the end
+            for (int pending = this.pendingCount - 1; pending >= 0; pending--) {
+                if (pending < this.pendingCount)
+                    follow(this.pendingRules[pending], position);
+            }
+            this.state = this.forward.next(this.state, c);
+            this.offset++;
+            this.lineStart = c == '\n';
+        }
+    }
+
+    /**
+     * End the scan, reporting the matches left on the last page.
+     */
+    public void finish() {
+        if (!this.finished) {
+            endPage();
+            this.finished = true;
+        }
+    }
+
+    /**
+     * Returns the number of the page being scanned.
+     * @return the page number, from 1
+     */
+    public int getPage() {
+        return this.pageNumber;
+    }
+
+    private void endPage() {
+        int end = this.page.length();
+        for (int rule : this.state.accepts(false)) {
+            if (this.pendingEnd[rule] == NONE)
+                search(rule, end, end);
+        }
+        while (this.pendingCount > 0) {
+            int rule = this.pendingRules[this.pendingCount - 1];
+            follow(rule, end);
+            if (this.pendingEnd[rule] != NONE)
+                settle(rule, end);
+        }
+        this.page.setLength(0);
+        this.state = this.forward.start(false);
+    }
+
+    // a match of the rule, which has none outstanding, may end at the position; if so it is outstanding until its
+    // rivals, the matches of the rule starting no later than it, have been followed up to the limit
+    private boolean search(final int rule, final int end, final int limit) {
+        int bound = Math.max(this.origin[rule] - this.pageOffset, 0);
+        int start = matchStart(this.rules.reverse(rule), end, bound);
+        if (start < 0 || start == end)
+            return false;
+        // rivals starting before this can only be as far back as text that is the start of a match runs
+        int from = matchStart(this.rules.suffixes(rule), end, bound);
+        from = from < 0 ? start : Math.min(from, start);
+        this.pendingStart[rule] = start;
+        this.pendingEnd[rule] = end;
+        this.pendingIndex[rule] = this.pendingCount;
+        this.pendingRules[this.pendingCount++] = rule;
+        Dfa anchored = this.rules.anchored(rule);
+        Dfa.State s = anchored.start(from > 0 && CharClass.isWord(this.page.charAt(from - 1)));
+        for (int p = from; p < start; p++)
+            s = anchored.restart(anchored.next(s, this.page.charAt(p)));
+        for (int p = start; p < end; p++)
+            s = anchored.next(s, this.page.charAt(p));
+        this.rivals[rule] = s;
+        this.followed[rule] = end;
+        follow(rule, limit);
+        return true;
+    }
+
+    // follow the rivals of the rule's outstanding match up to the limit, taking any that start earlier or, from the
+    // same start, end later; settle the match once none are left
+    private void follow(final int rule, final int limit) {
+        Dfa anchored = this.rules.anchored(rule);
+        while (this.followed[rule] < limit) {
+            int p = this.followed[rule];
+            this.rivals[rule] = anchored.next(this.rivals[rule], this.page.charAt(p));
+            this.followed[rule] = ++p;
+            if (this.rivals[rule].isDead()) {
+                settle(rule, limit);
+                return;
+            }
+            if (this.rivals[rule].accepts(nextWord(p)).length > 0) {
+                int start = matchStart(this.rules.reverse(rule), p, Math.max(this.origin[rule] - this.pageOffset, 0));
+                if (start >= 0 && start < p && start <= this.pendingStart[rule]) {
+                    this.pendingStart[rule] = start;
+                    this.pendingEnd[rule] = p;
+                }
+            }
+        }
+    }
+
+    // report the rule's outstanding match, then look for the rule's next match from its end up to the limit
+    private void settle(final int rule, final int limit) {
+        report(rule);
+        int end = this.pendingEnd[rule];
+        int last = this.pendingRules[--this.pendingCount];
+        this.pendingRules[this.pendingIndex[rule]] = last;
+        this.pendingIndex[last] = this.pendingIndex[rule];
+        this.pendingEnd[rule] = NONE;
+        this.rivals[rule] = null;
+        this.origin[rule] = this.pageOffset + end;
+
+        Dfa anchored = this.rules.anchored(rule);
+        Dfa.State s = anchored.start(end > 0 && CharClass.isWord(this.page.charAt(end - 1)));
+        for (int p = end; p <= limit; p++) {
+            if (s.accepts(nextWord(p)).length > 0 && search(rule, p, limit))
+                return;
+            if (p < limit)
+                s = anchored.restart(anchored.next(s, this.page.charAt(p)));
+        }
+    }
+
+    // the leftmost position, no earlier than the bound, the reversed automaton accepts running back from the end; or
+    // NONE
+    private int matchStart(final Dfa reverse, final int end, final int bound) {
+        Dfa.State s = reverse.start(nextWord(end));
+        int start = NONE;
+        for (int p = end; p >= bound; p--) {
+            if (s.accepts(p > 0 && CharClass.isWord(this.page.charAt(p - 1))).length > 0)
+                start = p;
+            if (p == bound)
+                break;
+            s = reverse.next(s, this.page.charAt(p - 1));
+            if (s.isDead())
+                break;
+        }
+        return start;
+    }
+
+    // whether the character at the position is a word character; false past the end of the page so far
+    private boolean nextWord(final int position) {
+        return position < this.page.length() && CharClass.isWord(this.page.charAt(position));
+    }
+
+    private void report(final int rule) {
+        int start = this.pendingStart[rule];
+        int end = this.pendingEnd[rule];
+        this.consumer.accept(new RuleMatch(this.rules.ruleId(rule), this.pageNumber, this.pageOffset + start,
+          this.pageOffset + end, this.page.substring(start, end)));
+    }
+}
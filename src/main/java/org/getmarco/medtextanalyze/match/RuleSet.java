@@ -0,0 +1,177 @@
+package org.getmarco.medtextanalyze.match;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Keywords and patterns compiled together into one automaton, so text is matched against all of them in a single
+ * pass at a cost per character that does not grow with the number of rules. A {@link RuleScanner} takes the text a
+ * piece at a time, as it arrives, and reports each match with its rule id and page.
+ * <p>
+ * Each rule reports matches that do not overlap one another, scanning left to right as repeated calls to
+ * {@link java.util.regex.Matcher#find()} would; matches of different rules may overlap. Among a rule's overlapping
+ * candidates the leftmost is reported, then the longest from there, rather than the first alternative that matches
+ * as {@link java.util.regex.Pattern} would. Patterns are the subset of regular expression syntax that needs no
+ * backtracking; see {@link Builder#pattern}.
+ * <p>
+ * A rule set is immutable and may be shared by scans on any number of threads.
+ */
+public final class RuleSet {
+    private final String[] ruleIds;
+    private final Dfa forward;
+    private final Dfa[] anchored;
+    private final Dfa[] reverse;
+    private final Dfa[] suffixes;
+
+    private RuleSet(final List<String> ruleIds, final List<Node> nodes) {
+        this.ruleIds = ruleIds.toArray(new String[0]);
+        Nfa nfa = new Nfa();
+        int[] starts = new int[nodes.size()];
+        this.anchored = new Dfa[nodes.size()];
+        this.reverse = new Dfa[nodes.size()];
+        this.suffixes = new Dfa[nodes.size()];
+        for (int rule = 0; rule < starts.length; rule++) {
+            starts[rule] = nfa.addRule(nodes.get(rule), rule);
+            // each rule alone, to follow the matches starting in a stretch of text
+            Nfa single = new Nfa();
+            this.anchored[rule] = new Dfa(single, single.addRule(nodes.get(rule), rule), false);
+            // and backwards, from where a match ends to find where it starts, or from anywhere in one to find where a
+            // match still in progress could have started
+            Nfa reversed = new Nfa();
+            int end = reversed.addRule(nodes.get(rule).reverse(), rule);
+            int[] everywhere = new int[reversed.size()];
+            for (int state = 0; state < everywhere.length; state++)
+                everywhere[state] = state;
+            int anywhere = reversed.addSplit(everywhere);
+            this.reverse[rule] = new Dfa(reversed, end, false);
+            this.suffixes[rule] = new Dfa(reversed, anywhere, false);
+        }
+        this.forward = new Dfa(nfa, nfa.addSplit(starts), true);
+    }
+
+    /**
+     * Returns a builder for a rule set.
+     * @return the builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the number of rules.
+     * @return the rule count
+     */
+    public int size() {
+        return this.ruleIds.length;
+    }
+
+    /**
+     * Returns a scanner that reports matches to a consumer as the text is given to it.
+     * @param consumer receives each match
+     * @return the scanner
+     */
+    public RuleScanner scanner(final Consumer<RuleMatch> consumer) {
+        return new RuleScanner(this, consumer);
+    }
+
+    /**
+     * Find the matches in a text.
+     * @param text the text
+     * @return the matches, in order of position
+     */
+    public List<RuleMatch> scan(final String text) {
+        List<RuleMatch> matches = new ArrayList<>();
+        RuleScanner scanner = scanner(matches::add);
+        scanner.accept(text);
+        scanner.finish();
+        Collections.sort(matches);
+        return matches;
+    }
+
+    String ruleId(final int rule) {
+        return this.ruleIds[rule];
+    }
+
+    Dfa forward() {
+        return this.forward;
+    }
+
+    Dfa anchored(final int rule) {
+        return this.anchored[rule];
+    }
+
+    Dfa reverse(final int rule) {
+        return this.reverse[rule];
+    }
+
+    Dfa suffixes(final int rule) {
+        return this.suffixes[rule];
+    }
+
+    /**
+     * Collects the rules of a rule set. Several rules may share an id, as a list of keywords for one kind of term
+     * would.
+     */
+    public static final class Builder {
+        private final List<String> ids = new ArrayList<>();
+        private final List<Node> nodes = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Add a keyword, matched exactly, and only as a whole word where it starts or ends with a word character.
+         * @param id the rule id
+         * @param keyword the keyword
+         * @return this builder
+         */
+        public Builder keyword(final String id, final String keyword) {
+            return keyword(id, keyword, false);
+        }
+
+        /**
+         * Add a keyword, matched only as a whole word where it starts or ends with a word character.
+         * @param id the rule id
+         * @param keyword the keyword
+         * @param ignoreCase whether to ignore the case of ASCII letters
+         * @return this builder
+         * @throws IllegalArgumentException if the keyword is empty
+         */
+        public Builder keyword(final String id, final String keyword, final boolean ignoreCase) {
+            if (keyword.isEmpty())
+                throw new IllegalArgumentException("empty keyword for rule " + id);
+            return add(id, PatternParser.literal(keyword, ignoreCase));
+        }
+
+        /**
+         * Add a pattern. The syntax is that of {@link java.util.regex.Pattern}, limited to literals and escapes,
+         * character classes with ranges and negation, {@code .}, {@code \d \w \s} and their negations, groups,
+         * alternation, greedy quantifiers, the word boundaries {@code \b \B}, and a leading {@code (?i)} to ignore
+         * the case of ASCII letters. Character classes are ASCII, as they are by default in {@code Pattern}.
+         * @param id the rule id
+         * @param pattern the pattern
+         * @return this builder
+         * @throws IllegalArgumentException if the pattern is invalid or uses a construct outside the subset
+         */
+        public Builder pattern(final String id, final String pattern) {
+            return add(id, PatternParser.parse(pattern));
+        }
+
+        /**
+         * Compile the rules.
+         * @return the rule set
+         * @throws IllegalArgumentException if the rules are too large to compile
+         */
+        public RuleSet build() {
+            return new RuleSet(this.ids, this.nodes);
+        }
+
+        private Builder add(final String id, final Node node) {
+            this.ids.add(id);
+            this.nodes.add(node);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Matching many patterns and keywords over detected text in a single pass, with the rules compiled into one
+ * automaton.
+ */
+package org.getmarco.medtextanalyze.match;
@@ -0,0 +1,245 @@
+package org.getmarco.medtextanalyze.runtime;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.getmarco.medtextanalyze.functions.FunctionSupport;
+import org.getmarco.medtextanalyze.functions.StreamFunctionSupport;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.StdoutLogger;
+import org.getmarco.medtextanalyze.support.StructuredLogger;
+
+/**
+ * A Lambda custom runtime for the functions: the {@code bootstrap} entry point of the native build. It creates the
+ * handler named by the function's Handler setting, the same value the Java runtime takes, then loops fetching
+ * invocations from the runtime API and posting back their responses or errors.
+ *
+ * <p>A handler named {@code Class::handleStream} is called as a {@link StreamFunctionSupport} stream handler; any
+ * other is called through {@link FunctionSupport#handleRequest} with the event bound to a {@link ProxyRequest}.</p>
+ *
+ * <p>After the first invocation it logs how long the runtime took to get ready, how long that first invocation took,
+ * and the peak resident memory.</p>
+ */
+public final class Bootstrap {
+    private static final long LOADED_NANOS = System.nanoTime();
+    private static final String API_VERSION = "/2018-06-01/runtime";
+    private static final String HEADER_REQUEST_ID = "Lambda-Runtime-Aws-Request-Id";
+    private static final String HEADER_DEADLINE = "Lambda-Runtime-Deadline-Ms";
+    private static final String HEADER_FUNCTION_ARN = "Lambda-Runtime-Invoked-Function-Arn";
+    private static final String HEADER_TRACE_ID = "Lambda-Runtime-Trace-Id";
+    private static final String HEADER_ERROR_TYPE = "Lambda-Runtime-Function-Error-Type";
+    private static final String TRACE_PROPERTY = "com.amazonaws.xray.traceHeader";
+    private static final String ERROR_TYPE_UNHANDLED = "Unhandled";
+    private static final String STREAM_METHOD = "handleStream";
+    private static final String STATUS_FILE = "/proc/self/status";
+    private static final String PEAK_RSS_FIELD = "VmHWM:";
+    private static final int READ_BUFFER = 8192;
+    private static final long KB_PER_MB = 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+      .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final String runtimeApi;
+    private final String handler;
+    private Invoker invoker;
+    private long readyNanos;
+    private boolean reported;
+
+    /**
+     * Constructor.
+     * @param runtimeApi the runtime API host and port
+     * @param handler the handler setting: a class name, optionally followed by {@code ::} and a method name
+     */
+    public Bootstrap(final String runtimeApi, final String handler) {
+        this.runtimeApi = runtimeApi;
+        this.handler = handler;
+    }
+
+    /**
+     * Create the handler, running its static initialization. A failure is reported to the runtime API as an init
+     * error before being thrown.
+     * @throws IOException if the handler cannot be created
+     */
+    public void init() throws IOException {
+        try {
+            this.invoker = invoker(this.handler);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            post(API_VERSION + "/init/error", error(e), "Runtime.InitError");
+            throw new IOException("unable to create handler '" + this.handler + "'", e);
+        }
+        this.readyNanos = System.nanoTime();
+    }
+
+    /**
+     * Fetch the next invocation, waiting for one as long as it takes, handle it and post the result. Anything the
+     * handler throws, errors included, is posted as the invocation's error, and a failure to post either is logged,
+     * so one bad invocation does not stop the runtime serving the next.
+     * @throws IOException if the next invocation cannot be fetched from the runtime API
+     */
+    public void next() throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = open(API_VERSION + "/invocation/next");
+        connection.setReadTimeout(0);
+        byte[] event = read(connection);
+        String requestId = connection.getHeaderField(HEADER_REQUEST_ID);
+        String traceId = connection.getHeaderField(HEADER_TRACE_ID);
+        if (traceId != null)
+            System.setProperty(TRACE_PROPERTY, traceId);
+        else
+            System.clearProperty(TRACE_PROPERTY);
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        String errorType = null;
+        byte[] body;
+        try {
+            InvocationContext context = new InvocationContext(requestId,
+              connection.getHeaderField(HEADER_FUNCTION_ARN), deadline(connection.getHeaderField(HEADER_DEADLINE)));
+            this.invoker.invoke(event, response, context);
+            body = response.toByteArray();
+        } catch (Throwable e) {
+            errorType = ERROR_TYPE_UNHANDLED;
+            body = error(e);
+        } finally {
+            report(requestId, start);
+        }
+        String outcome = errorType == null ? "/response" : "/error";
+        try {
+            post(API_VERSION + "/invocation/" + requestId + outcome, body, errorType);
+        } catch (IOException e) {
+            // the service times out an invocation never answered; the runtime carries on with the next
+            logger(requestId).error("unable to post the " + outcome.substring(1) + " of the invocation: " + e);
+        }
+    }
+
+    private void report(final String requestId, final long start) {
+        if (this.reported)
+            return;
+        this.reported = true;
+        long done = System.nanoTime();
+        logger(requestId).info("runtime ready "
+          + TimeUnit.NANOSECONDS.toMillis(this.readyNanos - LOADED_NANOS) + " ms after start, first invocation "
+          + TimeUnit.NANOSECONDS.toMillis(done - start) + " ms, peak rss " + peakRssMb() + " MB");
+    }
+
+    private StructuredLogger logger(final String requestId) {
+        return new StructuredLogger(StdoutLogger.INSTANCE::log, getClass().getSimpleName(), requestId);
+    }
+
+    private static long deadline(final String value) {
+        if (value == null)
+            return Long.MAX_VALUE;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static Invoker invoker(final String handler) throws ReflectiveOperationException {
+        int separator = handler.indexOf("::");
+        String className = separator < 0 ? handler : handler.substring(0, separator);
+        String method = separator < 0 ? null : handler.substring(separator + 2);
+        FunctionSupport function =
+          (FunctionSupport) Class.forName(className).getDeclaredConstructor().newInstance();
+        if (STREAM_METHOD.equals(method)) {
+            if (!(function instanceof StreamFunctionSupport))
+                throw new IllegalArgumentException(className + " is not a stream handler");
+            StreamFunctionSupport<?, ?> stream = (StreamFunctionSupport<?, ?>) function;
+            return (event, response, context) -> stream.handleStream(new ByteArrayInputStream(event), response,
+              context);
+        }
+        return (event, response, context) -> MAPPER.writeValue(response,
+          function.handleRequest(MAPPER.readValue(event, ProxyRequest.class), context));
+    }
+
+    private HttpURLConnection open(final String path) throws IOException {
+        return (HttpURLConnection) new URL("http://" + this.runtimeApi + path).openConnection();
+    }
+
+    private void post(final String path, final byte[] body, final String errorType) throws IOException {
+        HttpURLConnection connection = open(path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        if (errorType != null)
+            connection.setRequestProperty(HEADER_ERROR_TYPE, errorType);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        read(connection);
+    }
+
+    private static byte[] read(final HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[READ_BUFFER];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static byte[] error(final Throwable e) throws IOException {
+        Map<String, String> error = new LinkedHashMap<>();
+        error.put("errorMessage", String.valueOf(e.getMessage()));
+        error.put("errorType", e.getClass().getName());
+        return MAPPER.writeValueAsBytes(error);
+    }
+
+    private static long peakRssMb() {
+        Path status = Paths.get(STATUS_FILE);
+        try {
+            List<String> lines = Files.readAllLines(status, StandardCharsets.UTF_8);
+            for (String line : lines)
+                if (line.startsWith(PEAK_RSS_FIELD))
+                    return Long.parseLong(line.substring(PEAK_RSS_FIELD.length()).replace("kB", "").trim())
+                      / KB_PER_MB;
+        } catch (IOException | NumberFormatException e) {
+            // not Linux; report nothing rather than fail the invocation
+        }
+        return -1;
+    }
+
+    /**
+     * Calls the handler for one invocation.
+     */
+    private interface Invoker {
+        /**
+         * Handle an invocation.
+         * @param event the event
+         * @param response the stream for the response
+         * @param context the invocation context
+         * @throws IOException if the event cannot be read or the response written
+         */
+        void invoke(byte[] event, OutputStream response, InvocationContext context) throws IOException;
+    }
+
+    /**
+     * Serve invocations until the runtime is shut down. Reads the runtime API address and handler from the
+     * environment the Lambda service sets for a custom runtime.
+     * @param args not used
+     * @throws IOException if the handler cannot be created or the runtime API cannot be reached
+     */
+    public static void main(final String[] args) throws IOException {
+        Bootstrap bootstrap = new Bootstrap(System.getenv("AWS_LAMBDA_RUNTIME_API"), System.getenv("_HANDLER"));
+        bootstrap.init();
+        while (true)
+            bootstrap.next();
+    }
+}
@@ -0,0 +1,96 @@
+package org.getmarco.medtextanalyze.runtime;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import org.getmarco.medtextanalyze.support.StdoutLogger;
+
+/**
+ * The Lambda {@link Context} for one invocation fetched from the runtime API: the request id, ARN and deadline from
+ * the invocation headers, and the function details the runtime sets in the environment. Log lines go to standard
+ * output, which Lambda sends to CloudWatch for a custom runtime.
+ */
+final class InvocationContext implements Context {
+    private static final String FUNCTION_NAME = System.getenv("AWS_LAMBDA_FUNCTION_NAME");
+    private static final String FUNCTION_VERSION = System.getenv("AWS_LAMBDA_FUNCTION_VERSION");
+    private static final String LOG_GROUP_NAME = System.getenv("AWS_LAMBDA_LOG_GROUP_NAME");
+    private static final String LOG_STREAM_NAME = System.getenv("AWS_LAMBDA_LOG_STREAM_NAME");
+    private static final int MEMORY_LIMIT_MB = memoryLimit(System.getenv("AWS_LAMBDA_FUNCTION_MEMORY_SIZE"));
+
+    private final String requestId;
+    private final String functionArn;
+    private final long deadlineMillis;
+
+    /**
+     * Constructor.
+     * @param requestId the request id
+     * @param functionArn the invoked function ARN
+     * @param deadlineMillis when the invocation times out, in epoch milliseconds
+     */
+    InvocationContext(final String requestId, final String functionArn, final long deadlineMillis) {
+        this.requestId = requestId;
+        this.functionArn = functionArn;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    @Override
+    public String getAwsRequestId() {
+        return this.requestId;
+    }
+
+    @Override
+    public String getLogGroupName() {
+        return LOG_GROUP_NAME;
+    }
+
+    @Override
+    public String getLogStreamName() {
+        return LOG_STREAM_NAME;
+    }
+
+    @Override
+    public String getFunctionName() {
+        return FUNCTION_NAME;
+    }
+
+    @Override
+    public String getFunctionVersion() {
+        return FUNCTION_VERSION;
+    }
+
+    @Override
+    public String getInvokedFunctionArn() {
+        return this.functionArn;
+    }
+
+    @Override
+    public CognitoIdentity getIdentity() {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext() {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return (int) Math.max(0, this.deadlineMillis - System.currentTimeMillis());
+    }
+
+    @Override
+    public int getMemoryLimitInMB() {
+        return MEMORY_LIMIT_MB;
+    }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return StdoutLogger.INSTANCE;
+    }
+
+    private static int memoryLimit(final String value) {
+        return value == null || value.isEmpty() ? 0 : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Classes to run the functions as a Lambda custom runtime, for the ahead-of-time compiled native build.
+ */
+package org.getmarco.medtextanalyze.runtime;
@@ -0,0 +1,352 @@
+package org.getmarco.medtextanalyze.server;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.getmarco.medtextanalyze.functions.EntitiesFromText;
+import org.getmarco.medtextanalyze.functions.FunctionSupport;
+import org.getmarco.medtextanalyze.functions.SignedUrlForUpload;
+import org.getmarco.medtextanalyze.functions.TextFromImage;
+import org.getmarco.medtextanalyze.functions.TextFromPdf;
+import org.getmarco.medtextanalyze.support.InvalidRequestException;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.ProxyResponse;
+import org.getmarco.medtextanalyze.support.StructuredLogger;
+
+/**
+ * Serves the functions over HTTP from a long-lived JVM. Each route maps a path to a function; a request is adapted
+ * into a {@link ProxyRequest}, handled by {@link FunctionSupport#handleRequest} exactly as under API Gateway, and
+ * the {@link ProxyResponse} written back. Function instances hold per-request state, so each worker thread keeps
+ * its own instance of each function.
+ *
+ * <p>Requests run on a fixed pool of workers fed by a bounded queue. When the queue is full the server answers 503
+ * with a Retry-After header straight away rather than letting requests pile up, and on shutdown it stops taking
+ * requests and lets those already queued finish within a grace period.</p>
+ *
+ * <p>Configured from the environment: MED_SERVER_PORT (default 8080), MED_SERVER_THREADS (default 64),
+ * MED_SERVER_QUEUE (default 256), MED_SERVER_TIMEOUT_MILLIS (the time a request may take; default 29000) and
+ * MED_SERVER_GRACE_MILLIS (how long shutdown waits for queued requests; default 30000). The functions themselves
+ * read the same variables as under Lambda.</p>
+ */
+public final class FunctionServer {
+    private static final int DEFAULT_PORT = 8080;
+    // the functions mostly wait on AWS calls, so far more workers than cores
+    private static final int DEFAULT_THREADS = 64;
+    private static final int DEFAULT_QUEUE = 256;
+    private static final long DEFAULT_TIMEOUT_MILLIS = 29000;
+    private static final long DEFAULT_GRACE_MILLIS = 30000;
+    // the API Gateway payload limit, kept so a request that works here also works under Lambda
+    private static final int MAX_BODY_BYTES = 6 * 1024 * 1024;
+    private static final int READ_BUFFER = 8192;
+    private static final int BACKLOG = 1024;
+    private static final int STATUS_TOO_LARGE = 413;
+    private static final int STATUS_UNAVAILABLE = 503;
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String JSON = "application/json";
+    // no response body, as the HTTP server spells it
+    private static final long NO_BODY = -1;
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static {
+        // the server writes headers and body separately, so with Nagle on a small response waits out a delayed ACK
+        if (System.getProperty(NODELAY_PROPERTY) == null)
+            System.setProperty(NODELAY_PROPERTY, "true");
+    }
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    private final long timeoutMillis;
+    private volatile boolean draining;
+
+    /**
+     * Constructor. The server listens once {@link #start() started}.
+     * @param port the port to listen on, or 0 for any free port
+     * @param threads the number of worker threads
+     * @param queueCapacity the number of requests that may wait for a worker
+     * @param timeoutMillis the time a request may take
+     * @throws IOException if the port cannot be bound
+     */
+    public FunctionServer(final int port, final int threads, final int queueCapacity, final long timeoutMillis)
+      throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(queueCapacity), workerThreads(), new ThreadPoolExecutor.AbortPolicy());
+        this.workers.prestartAllCoreThreads();
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Serve a function at a path.
+     * @param path the request path
+     * @param function creates the function, once for each worker thread
+     * @return this server
+     */
+    public FunctionServer route(final String path, final Supplier<? extends FunctionSupport> function) {
+        ThreadLocal<FunctionSupport> instances = ThreadLocal.withInitial(function);
+        String name = path.startsWith("/") ? path.substring(1) : path;
+        this.server.createContext(path, exchange -> dispatch(exchange, path, name, instances));
+        return this;
+    }
+
+    /**
+     * Start listening.
+     * @return this server
+     */
+    public FunctionServer start() {
+        this.server.start();
+        return this;
+    }
+
+    /**
+     * Returns the port the server listens on.
+     * @return the port
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stop the server: new requests are refused with 503, and requests already accepted are given a grace period to
+     * finish before the workers are interrupted and the listener closed.
+     * @param graceMillis how long to wait for accepted requests
+     * @return true if every accepted request finished within the grace period
+     */
+    public boolean shutdown(final long graceMillis) {
+        this.draining = true;
+        this.workers.shutdown();
+        boolean drained;
+        try {
+            drained = this.workers.awaitTermination(graceMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        if (!drained)
+            this.workers.shutdownNow();
+        this.server.stop(0);
+        return drained;
+    }
+
+    // runs on the server's dispatcher thread, so does no more than hand the exchange over
+    private void dispatch(final HttpExchange exchange, final String resource, final String name,
+      final ThreadLocal<FunctionSupport> instances) throws IOException {
+        if (this.draining) {
+            unavailable(exchange);
+            return;
+        }
+        try {
+            this.workers.execute(() -> serve(exchange, resource, name, instances));
+        } catch (RejectedExecutionException e) {
+            unavailable(exchange);
+        }
+    }
+
+    private void serve(final HttpExchange exchange, final String resource, final String name,
+      final ThreadLocal<FunctionSupport> instances) {
+        try {
+            ProxyRequest request = adapt(exchange, resource);
+            if (request == null) {
+                send(exchange, STATUS_TOO_LARGE, error("request body too large"));
+                return;
+            }
+            send(exchange, instances.get().handleRequest(request, new LocalContext(name, this.timeoutMillis)));
+        } catch (InvalidRequestException e) {
+            try {
+                send(exchange, ProxyResponse.STATUS_CODE_BAD_REQUEST, error(e.getMessage()));
+            } catch (IOException ignored) {
+                exchange.close();
+            }
+        } catch (IOException e) {
+            // the client went away
+            exchange.close();
+        } catch (RuntimeException e) {
+            try {
+                send(exchange, ProxyResponse.STATUS_CODE_SERVER_ERROR, error(String.valueOf(e.getMessage())));
+            } catch (IOException ignored) {
+                exchange.close();
+            }
+        }
+    }
+
+    private static ProxyRequest adapt(final HttpExchange exchange, final String resource) throws IOException {
+        if (contentLength(exchange.getRequestHeaders()) > MAX_BODY_BYTES)
+            return null;
+        byte[] body = readBody(exchange.getRequestBody());
+        if (body == null)
+            return null;
+        ProxyRequest request = new ProxyRequest();
+        request.setResource(resource);
+        request.setPath(exchange.getRequestURI().getPath());
+        request.setHttpMethod(exchange.getRequestMethod());
+        request.setHeaders(headers(exchange.getRequestHeaders()));
+        request.setQueryStringParameters(query(exchange.getRequestURI().getRawQuery()));
+        request.setBody(body.length == 0 ? null : new String(body, StandardCharsets.UTF_8));
+        request.setIsBase64Encoded(false);
+        return request;
+    }
+
+    // the declared body length, or -1 if none is declared
+    private static long contentLength(final Headers headers) {
+        String length = headers.getFirst(HEADER_CONTENT_LENGTH);
+        if (length == null)
+            return -1;
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            throw new InvalidRequestException("invalid Content-Length: " + length, e);
+        }
+    }
+
+    private static byte[] readBody(final InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_BUFFER];
+        try (InputStream stream = in) {
+            int n;
+            while ((n = stream.read(buffer)) > 0) {
+                if (body.size() + n > MAX_BODY_BYTES)
+                    return null;
+                body.write(buffer, 0, n);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    // API Gateway passes one value per header, repeated headers joined by commas
+    private static Map<String, String> headers(final Headers headers) {
+        Map<String, String> single = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet())
+            single.put(header.getKey(), String.join(",", header.getValue()));
+        return single;
+    }
+
+    static Map<String, String> query(final String rawQuery) throws UnsupportedEncodingException {
+        if (rawQuery == null || rawQuery.isEmpty())
+            return null;
+        Map<String, String> params = new HashMap<>();
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            String key = eq < 0 ? param : param.substring(0, eq);
+            String value = eq < 0 ? "" : param.substring(eq + 1);
+            params.put(decode(key), decode(value));
+        }
+        return params;
+    }
+
+    private static String decode(final String component) throws UnsupportedEncodingException {
+        try {
+            return URLDecoder.decode(component, "UTF-8");
+        } catch (IllegalArgumentException e) {
+            // a malformed % escape
+            throw new InvalidRequestException("invalid query string", e);
+        }
+    }
+
+    private static void send(final HttpExchange exchange, final ProxyResponse response) throws IOException {
+        if (response.getHeaders() != null)
+            for (Map.Entry<String, String> header : response.getHeaders().entrySet())
+                exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+        String body = response.getBody() == null ? "" : response.getBody();
+        byte[] bytes = response.getIsBase64Encoded()
+          ? Base64.getDecoder().decode(body) : body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(response.getStatusCode(), bytes.length == 0 ? NO_BODY : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(HEADER_CONTENT_TYPE, JSON);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void unavailable(final HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+        exchange.sendResponseHeaders(STATUS_UNAVAILABLE, NO_BODY);
+        exchange.close();
+    }
+
+    private static String error(final String message) {
+        try {
+            return MAPPER.writeValueAsString(Collections.singletonMap("message", message));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ThreadFactory workerThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "function-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Serve the functions at the paths API Gateway gives them, until the JVM is stopped.
+     * @param args not used
+     * @throws IOException if the port cannot be bound
+     */
+    public static void main(final String[] args) throws IOException {
+        long grace = env("MED_SERVER_GRACE_MILLIS", DEFAULT_GRACE_MILLIS);
+        FunctionServer server = new FunctionServer((int) env("MED_SERVER_PORT", DEFAULT_PORT),
+          (int) env("MED_SERVER_THREADS", DEFAULT_THREADS), (int) env("MED_SERVER_QUEUE", DEFAULT_QUEUE),
+          env("MED_SERVER_TIMEOUT_MILLIS", DEFAULT_TIMEOUT_MILLIS))
+          .route("/uploadurl", SignedUrlForUpload::new)
+          .route("/imagetext", TextFromImage::new)
+          .route("/pdftext", TextFromPdf::new)
+          .route("/textentities", EntitiesFromText::new)
+          .start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.shutdown(grace), "function-server-shutdown"));
+        System.out.println("serving functions on port " + server.getPort());
+    }
+
+    // a bad setting falls back to the default, with a warning logged by the first request
+    private static long env(final String name, final long fallback) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty())
+            return fallback;
+        long parsed;
+        try {
+            parsed = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            parsed = -1;
+        }
+        if (parsed < 0 || parsed > Integer.MAX_VALUE) {
+            StructuredLogger.deferWarning("ignoring invalid " + name + " '" + value + "', using " + fallback);
+            return fallback;
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,103 @@
+package org.getmarco.medtextanalyze.server;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.util.UUID;
+
+import org.getmarco.medtextanalyze.support.StdoutLogger;
+
+/**
+ * A Lambda {@link Context} for a request handled outside Lambda, as by the {@link FunctionServer}: a fresh request
+ * id, the route as the function name, the time left before the request timeout, and a logger writing to standard
+ * output unless another is given.
+ */
+public final class LocalContext implements Context {
+    private static final String VERSION = "$LOCAL";
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private final String requestId = UUID.randomUUID().toString();
+    private final String functionName;
+    private final long deadlineMillis;
+    private final int memoryLimitMb;
+    private final LambdaLogger logger;
+
+    /**
+     * Constructor.
+     * @param functionName the function name
+     * @param timeoutMillis the time the request may take
+     */
+    public LocalContext(final String functionName, final long timeoutMillis) {
+        this(functionName, timeoutMillis, StdoutLogger.INSTANCE);
+    }
+
+    /**
+     * Constructor.
+     * @param functionName the function name
+     * @param timeoutMillis the time the request may take
+     * @param logger the logger for the function
+     */
+    public LocalContext(final String functionName, final long timeoutMillis, final LambdaLogger logger) {
+        this.functionName = functionName;
+        this.deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        this.memoryLimitMb = (int) (Runtime.getRuntime().maxMemory() / BYTES_PER_MB);
+        this.logger = logger;
+    }
+
+    @Override
+    public String getAwsRequestId() {
+        return this.requestId;
+    }
+
+    @Override
+    public String getLogGroupName() {
+        return null;
+    }
+
+    @Override
+    public String getLogStreamName() {
+        return null;
+    }
+
+    @Override
+    public String getFunctionName() {
+        return this.functionName;
+    }
+
+    @Override
+    public String getFunctionVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public String getInvokedFunctionArn() {
+        return null;
+    }
+
+    @Override
+    public CognitoIdentity getIdentity() {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext() {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return (int) Math.max(0, this.deadlineMillis - System.currentTimeMillis());
+    }
+
+    @Override
+    public int getMemoryLimitInMB() {
+        return this.memoryLimitMb;
+    }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return this.logger;
+    }
+}
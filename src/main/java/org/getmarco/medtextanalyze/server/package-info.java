@@ -0,0 +1,4 @@
+/**
+ * Classes to run the functions in a long-lived JVM behind an embedded HTTP server instead of AWS Lambda.
+ */
+package org.getmarco.medtextanalyze.server;
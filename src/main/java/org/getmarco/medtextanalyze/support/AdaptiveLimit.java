@@ -0,0 +1,206 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Concurrency limit adjusted by additive increase, multiplicative decrease (AIMD). Each successful call grows the
+ * limit a little, by one for every four limit's worth of calls, so it probes gently for spare capacity; a throttled
+ * call halves it, at most once per cool down period so a burst of throttles from the same overload counts once.
+ * <p>
+ * Callers waiting for a slot, blocking or not, are served in the order they asked.
+ */
+public final class AdaptiveLimit {
+    private static final double INCREASE_PER_LIMIT = 0.25;
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final long DECREASE_COOL_DOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Queue<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    private long decreasedAtNanos;
+
+    /**
+     * Constructor.
+     * @param initialLimit the starting concurrency limit
+     * @param minLimit the lowest the limit may go
+     * @param maxLimit the highest the limit may go
+     */
+    public AdaptiveLimit(final int initialLimit, final int minLimit, final int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("invalid limits " + minLimit + " - " + maxLimit);
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.decreasedAtNanos = System.nanoTime() - DECREASE_COOL_DOWN_NANOS;
+    }
+
+    /**
+     * Wait for a slot under the current limit and take it.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        acquire(Long.MAX_VALUE);
+    }
+
+    /**
+     * Wait for a slot under the current limit and take it, giving up after the longest wait allowed.
+     * @param maxWaitNanos the longest wait allowed, in nanoseconds
+     * @return true if a slot was taken, false if none came free in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean acquire(final long maxWaitNanos) throws InterruptedException {
+        CompletableFuture<Void> waiter = acquireAsync();
+        try {
+            if (maxWaitNanos == Long.MAX_VALUE)
+                waiter.get();
+            else
+                waiter.get(maxWaitNanos, TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            // a slot handed over just as the wait ran out is kept
+            return !withdraw(waiter);
+        } catch (InterruptedException e) {
+            if (!withdraw(waiter))
+                abandon();
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("slot wait failed", e.getCause());
+        }
+    }
+
+    /**
+     * Take a slot without blocking: the returned future completes once a slot is free, in turn with other callers
+     * waiting this way, on the thread that frees it.
+     * @return the future, already complete if a slot was free
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        synchronized (this) {
+            if (this.waiters.isEmpty() && this.inFlight < (int) this.limit) {
+                this.inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            this.waiters.add(waiter);
+            return waiter;
+        }
+    }
+
+    /**
+     * Take a slot without blocking, as {@link #acquireAsync()} does, giving up after the longest wait allowed.
+     * @param maxWaitNanos the longest wait allowed, in nanoseconds
+     * @param scheduler the scheduler the wait is timed on
+     * @return the future, completed with true once a slot is taken, or false if none came free in time
+     */
+    public CompletableFuture<Boolean> acquireAsync(final long maxWaitNanos, final ScheduledExecutorService scheduler) {
+        CompletableFuture<Void> waiter = acquireAsync();
+        CompletableFuture<Boolean> acquired = waiter.thenApply(v -> true);
+        if (waiter.isDone() || maxWaitNanos == Long.MAX_VALUE)
+            return acquired;
+        try {
+            ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+                // a slot handed over just as the wait ran out is kept
+                if (withdraw(waiter))
+                    acquired.complete(false);
+            }, maxWaitNanos, TimeUnit.NANOSECONDS);
+            waiter.thenRun(() -> timeout.cancel(false));
+        } catch (RuntimeException e) {
+            if (withdraw(waiter))
+                acquired.completeExceptionally(e);
+        }
+        return acquired;
+    }
+
+    /**
+     * Take a slot if one is free under the current limit.
+     * @return true if a slot was taken
+     */
+    public synchronized boolean tryAcquire() {
+        if (!this.waiters.isEmpty() || this.inFlight >= (int) this.limit)
+            return false;
+        this.inFlight++;
+        return true;
+    }
+
+    /**
+     * Give back a slot and adjust the limit from the outcome of the call.
+     * @param throttled true if the service throttled the call
+     */
+    public void release(final boolean throttled) {
+        List<CompletableFuture<Void>> granted;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (throttled) {
+                if (now - this.decreasedAtNanos >= DECREASE_COOL_DOWN_NANOS) {
+                    this.limit = Math.max(this.minLimit, this.limit * DECREASE_FACTOR);
+                    this.decreasedAtNanos = now;
+                }
+            } else {
+                this.limit = Math.min(this.maxLimit, this.limit + INCREASE_PER_LIMIT / this.limit);
+            }
+            granted = handOff();
+        }
+        // completed outside the lock, since completing runs the waiter's call
+        for (CompletableFuture<Void> waiter : granted)
+            waiter.complete(null);
+    }
+
+    /**
+     * Give back a slot without adjusting the limit, for a call cancelled before its outcome was known.
+     */
+    public void abandon() {
+        List<CompletableFuture<Void>> granted;
+        synchronized (this) {
+            granted = handOff();
+        }
+        for (CompletableFuture<Void> waiter : granted)
+            waiter.complete(null);
+    }
+
+    // free the caller's slot and pass free slots on to queued waiters; called holding the lock
+    private List<CompletableFuture<Void>> handOff() {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        this.inFlight--;
+        while (!this.waiters.isEmpty() && this.inFlight < (int) this.limit) {
+            this.inFlight++;
+            granted.add(this.waiters.remove());
+        }
+        return granted;
+    }
+
+    // take a waiter out of the queue, returning false if it was already handed a slot
+    private synchronized boolean withdraw(final CompletableFuture<Void> waiter) {
+        return this.waiters.remove(waiter);
+    }
+
+    /**
+     * Returns the current concurrency limit.
+     * @return the limit
+     */
+    public synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    // the number of callers waiting for a slot
+    synchronized int getWaiting() {
+        return this.waiters.size();
+    }
+
+    /**
+     * Returns the number of calls holding a slot.
+     * @return calls in flight
+     */
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+}
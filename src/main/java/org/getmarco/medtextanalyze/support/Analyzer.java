@@ -1,5 +1,7 @@
 package org.getmarco.medtextanalyze.support;
 
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
 import com.amazonaws.services.comprehendmedical.AWSComprehendMedical;
 import com.amazonaws.services.comprehendmedical.model.DetectEntitiesRequest;
 import com.amazonaws.services.comprehendmedical.model.DetectEntitiesResult;
@@ -24,12 +26,26 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 import lombok.Getter;
 import lombok.Setter;
 
@@ -37,11 +53,51 @@ import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.rendering.ImageType;
 import org.apache.pdfbox.rendering.PDFRenderer;
 import org.apache.pdfbox.tools.imageio.ImageIOUtil;
+import org.getmarco.medtextanalyze.corpus.CorpusStore;
 
 public final class Analyzer {
+    /** Name of the environment variable holding the secret continuation tokens are signed with. */
+    public static final String CONTINUATION_KEY_VAR_NAME = "MED_CONTINUATION_KEY";
     private static final int IMAGE_RESOLUTION_DPI = 300;
+    private static final String IMAGE_FORMAT = "png";
     private static final int TEXT_DETECTION_MAX_RESULTS = 1000;
-    private static final int TEXT_DETECTION_MAX_WAIT = 10;
+    static final int TEXT_DETECTION_MAX_WAIT = 10;
+    static final long TEXT_DETECTION_FIRST_WAIT_MILLIS = 1000;
+    // time kept in hand after waiting so at least one page of results can still be fetched and returned
+    static final long PAGE_RESERVE_MILLIS = 2000;
+    static final String JOB_IN_PROGRESS = "IN_PROGRESS";
+    static final String CONTINUATION_WAIT = "W";
+    static final String CONTINUATION_PAGE = "P";
+    private static final String CONTINUATION_LOCAL_PAGE = "L";
+    private static final String CONTINUATION_SEPARATOR = "\n";
+    // separates a token's state from its signature
+    private static final char SIGNATURE_SEPARATOR = '.';
+    private static final String CONTINUATION_MAC = "HmacSHA256";
+    private static final int RANDOM_KEY_BYTES = 32;
+    // without a configured secret, tokens are signed with a key only this process knows
+    private static final SecretKeySpec CONTINUATION_KEY = continuationKeyFromEnvironment();
+    // separates a job id from the region the job runs in
+    private static final String JOB_REGION_SEPARATOR = "@";
+    static final String DETECT_DOCUMENT_TEXT = "DetectDocumentText";
+    static final String START_TEXT_DETECTION = "StartDocumentTextDetection";
+    static final String GET_TEXT_DETECTION = "GetDocumentTextDetection";
+    static final String DETECT_ENTITIES = "DetectEntities";
+    // default account quotas in calls per second; MED_CALL_QUOTAS overrides them where an account has more
+    private static final double DETECT_DOCUMENT_TEXT_TPS = 10;
+    private static final double START_TEXT_DETECTION_TPS = 2;
+    private static final double GET_TEXT_DETECTION_TPS = 10;
+    private static final double DETECT_ENTITIES_TPS = 10;
+    private static final int MAX_CONCURRENT_CALLS = 16;
+    private static final double PERCENT = 100;
+
+    static {
+        CallGovernor textract = CallGovernor.forService(CallGovernor.TEXTRACT);
+        textract.setQuotaIfAbsent(DETECT_DOCUMENT_TEXT, quota(DETECT_DOCUMENT_TEXT_TPS));
+        textract.setQuotaIfAbsent(START_TEXT_DETECTION, quota(START_TEXT_DETECTION_TPS));
+        textract.setQuotaIfAbsent(GET_TEXT_DETECTION, quota(GET_TEXT_DETECTION_TPS));
+        CallGovernor.forService(CallGovernor.COMPREHEND_MEDICAL)
+          .setQuotaIfAbsent(DETECT_ENTITIES, quota(DETECT_ENTITIES_TPS));
+    }
 
     @Getter
     @Setter
@@ -51,10 +107,121 @@ public final class Analyzer {
     @Setter
     private AWSComprehendMedical comprehendClient;
 
-    private String detectText(final DetectDocumentTextRequest request) {
-        DetectDocumentTextResult result = textractClient.detectDocumentText(request);
+    @Getter
+    @Setter
+    private CallGovernor textractGovernor = CallGovernor.forService(CallGovernor.TEXTRACT);
+
+    @Getter
+    @Setter
+    private CallGovernor comprehendGovernor = CallGovernor.forService(CallGovernor.COMPREHEND_MEDICAL);
+
+    /**
+     * Regions Textract calls are spread over, or null to make them all with the Textract client under the Textract
+     * governor. Calls on S3 objects go to the regions their bucket can be read from, and text detection jobs are
+     * followed up in the region they were started in.
+     */
+    @Getter
+    @Setter
+    private RegionPool<AmazonTextract> textractRegions;
+
+    /**
+     * Regions Comprehend Medical calls are spread over, or null to make them all with the Comprehend client under the
+     * Comprehend governor.
+     */
+    @Getter
+    @Setter
+    private RegionPool<AWSComprehendMedical> comprehendRegions;
+
+    /**
+     * Metrics for the stages of analysis.
+     */
+    @Getter
+    @Setter
+    private Metrics metrics = new Metrics();
+
+    /**
+     * Resolution PDF pages are rendered at for text detection.
+     */
+    @Getter
+    @Setter
+    private int imageResolutionDpi = IMAGE_RESOLUTION_DPI;
+
+    /**
+     * Format rendered PDF pages are encoded in for text detection: png or jpg, both of which Textract accepts.
+     */
+    @Getter
+    @Setter
+    private String imageFormat = IMAGE_FORMAT;
+
+    /**
+     * Preprocessor image files are shrunk with before they are sent for text detection, or null to send them as
+     * they are.
+     */
+    @Getter
+    @Setter
+    private ImagePreprocessor imagePreprocessor = new ImagePreprocessor();
+
+    /**
+     * Cache of the text detected on PDF pages, so pages seen before are not sent to Textract again, or null to send
+     * every page.
+     */
+    @Getter
+    @Setter
+    private PageCache pageCache = PageCache.shared();
+
+    /**
+     * Store the text detected in whole PDFs is appended to, so they can be analyzed again without detecting it again,
+     * or null to keep nothing.
+     */
+    @Getter
+    @Setter
+    private CorpusStore corpusStore = CorpusStore.shared();
+
+    /**
+     * Whether text detected in a whole PDF in one call comes with its {@link TextLayout layout}: where its lines and
+     * words are and how confident Textract was of them.
+     */
+    @Getter
+    @Setter
+    private boolean retainLayout;
+
+    /**
+     * Hedger for the synchronous text and entity detection calls, or null to make them without hedging.
+     */
+    @Getter
+    @Setter
+    private Hedger hedger;
+
+    private static CallGovernor.Quota quota(final double ratePerSecond) {
+        return new CallGovernor.Quota(ratePerSecond, ratePerSecond, MAX_CONCURRENT_CALLS);
+    }
+
+    private String detectText(final DetectDocumentTextRequest request, final Deadline deadline) {
+        return lines(detectBlocks(request, deadline));
+    }
+
+    private List<Block> detectBlocks(final DetectDocumentTextRequest request, final Deadline deadline) {
+        return detectBlocks(null, region -> request, deadline);
+    }
+
+    private List<Block> detectBlocks(final Collection<String> regions,
+      final Function<String, DetectDocumentTextRequest> request, final Deadline deadline) {
+        DetectDocumentTextResult result;
+        long start = metrics.start();
+        try {
+            result = hedged(DETECT_DOCUMENT_TEXT, () -> textract(DETECT_DOCUMENT_TEXT, deadline, regions,
+              (client, region) -> client.detectDocumentText(withDeadline(request.apply(region).clone(), deadline))));
+        } catch (ClientExecutionTimeoutException e) {
+            throw new DeadlineExceededException("text detection did not finish before the deadline", e);
+        } finally {
+            metrics.stop(Metrics.Metric.TEXTRACT_CALL, start);
+        }
+        return result.getBlocks();
+    }
+
+    static String lines(final List<Block> blocks) {
         StringBuilder s = new StringBuilder();
-        for (Block block : result.getBlocks()) {
+        for (Block block : blocks) {
             if ("LINE".equals(block.getBlockType())) {
                 s.append(block.getText()).append("\n");
             }
@@ -69,16 +236,33 @@ public final class Analyzer {
      * @return text contents detected in the image
      */
     public String detectTextImageS3(final String bucket, final String name) {
+        return detectTextImageS3(bucket, name, Deadline.none());
+    }
+
+    /**
+     * Use the AWS Textract detect document text API to process an image stored in S3.
+     * @param bucket the S3 bucket
+     * @param name the S3 object key
+     * @param deadline the time by which detection must finish
+     * @return text contents detected in the image
+     * @throws DeadlineExceededException if detection does not finish before the deadline
+     */
+    public String detectTextImageS3(final String bucket, final String name, final Deadline deadline) {
+        return lines(detectBlocks(regionsOf(bucket), region -> s3ImageRequest(bucketIn(bucket, region), name),
+          deadline));
+    }
+
+    static DetectDocumentTextRequest s3ImageRequest(final String bucket, final String name) {
         S3Object s3Object = new S3Object().withBucket(bucket).withName(name);
-        DetectDocumentTextRequest request = new DetectDocumentTextRequest()
-          .withDocument(new Document().withS3Object(s3Object));
-        return detectText(request);
+        return new DetectDocumentTextRequest().withDocument(new Document().withS3Object(s3Object));
+    }
+
+    private String detectText(final ByteBuffer imageBytes, final Deadline deadline) {
+        return detectText(imageRequest(imageBytes), deadline);
     }
 
-    private String detectText(final ByteBuffer imageBytes) {
-        DetectDocumentTextRequest request = new DetectDocumentTextRequest()
-          .withDocument(new Document().withBytes(imageBytes));
-        return detectText(request);
+    static DetectDocumentTextRequest imageRequest(final ByteBuffer imageBytes) {
+        return new DetectDocumentTextRequest().withDocument(new Document().withBytes(imageBytes));
     }
 
     /**
@@ -88,12 +272,37 @@ public final class Analyzer {
      * @throws IOException if the file cannot be opened or read from
      */
     public String detectTextImage(final String filename) throws IOException {
-        File file = new File(filename);
-        ByteBuffer imageBytes = null;
-        try (InputStream inputStream = new FileInputStream(file)) {
-            imageBytes = ByteBuffer.wrap(IOUtils.toByteArray(inputStream));
+        return detectTextImage(filename, Deadline.none());
+    }
+
+    /**
+     * Use the AWS Textract detect document text API to process an image, shrunk first by the
+     * {@link #getImagePreprocessor image preprocessor}.
+     * @param filename the local file path for the image
+     * @param deadline the time by which detection must finish
+     * @return text contents detected in the image
+     * @throws IOException if the file cannot be opened or read from
+     * @throws DeadlineExceededException if detection does not finish before the deadline
+     */
+    public String detectTextImage(final String filename, final Deadline deadline) throws IOException {
+        return detectText(prepareImage(readImage(filename)), deadline);
+    }
+
+    // the image shrunk for text detection, with the time taken and the bytes saved recorded
+    ByteBuffer prepareImage(final ByteBuffer image) {
+        if (imagePreprocessor == null)
+            return image;
+        ImagePreprocessor.Result prepared = imagePreprocessor.prepare(image);
+        metrics.record(Metrics.Metric.IMAGE_PREPROCESS, prepared.getMicros());
+        metrics.record(Metrics.Metric.IMAGE_BYTES_SAVED, prepared.getBytesSaved());
+        metrics.record(Metrics.Metric.ENCODED_BYTES, prepared.getBytes().remaining());
+        return prepared.getBytes();
+    }
+
+    static ByteBuffer readImage(final String filename) throws IOException {
+        try (InputStream inputStream = new FileInputStream(new File(filename))) {
+            return ByteBuffer.wrap(IOUtils.toByteArray(inputStream));
         }
-        return detectText(imageBytes);
     }
 
     /**
@@ -102,26 +311,144 @@ public final class Analyzer {
      * @return text contents detected in the PDF
      */
     public String detectTextPdf(final String filename) {
-        BufferedImage bim = null;
-        ByteArrayOutputStream byteArrayOutputStream = null;
-        ByteBuffer imageBytes = null;
+        return detectTextPdf(filename, Deadline.none(), null).getText();
+    }
+
+    /**
+     * Use the AWS Textract detect document text API to process a PDF, one rendered page at a time. Pages found in the
+     * {@link #getPageCache page cache} are not sent, and the share that were is recorded per call. Stops before
+     * starting a page the deadline leaves no time for, or at a page whose text detection runs out of time. Text
+     * detected in the whole PDF in one call is appended to the {@link #getCorpusStore corpus store} under the file
+     * path, and comes with its layout if {@link #isRetainLayout retained}; pages found in the cache have lines without
+     * geometry or words.
+     * @param filename the local file path for the PDF file
+     * @param deadline the time by which detection must finish
+     * @param continuation the token returned by a previous partial result, or null to start at the first page
+     * @return text contents detected in the PDF, partial if the deadline was reached
+     * @throws InvalidRequestException if the continuation token was not issued for the file
+     */
+    public DetectedText detectTextPdf(final String filename, final Deadline deadline, final String continuation) {
+        int firstPage = 0;
+        if (continuation != null)
+            firstPage = Integer.parseInt(decodeContinuation(continuation, filename, CONTINUATION_LOCAL_PAGE)[2]);
         StringBuilder s = new StringBuilder();
+        long pageMillis = PAGE_RESERVE_MILLIS;
+        long loadStart = metrics.start();
+        PageCache cache = pageCache;
+        int pages = 0;
+        int detectedPages = 0;
+        List<String> kept = corpusStore != null && firstPage == 0 ? new ArrayList<>() : null;
+        TextLayout.Builder layout = retainLayout && firstPage == 0 ? new TextLayout.Builder(false) : null;
         try (PDDocument document = PDDocument.load(new File(filename))) {
+            metrics.stop(Metrics.Metric.PDF_LOAD, loadStart);
             PDFRenderer pdfRenderer = new PDFRenderer(document);
-            for (int page = 0; page < document.getNumberOfPages(); ++page) {
-                bim = pdfRenderer.renderImageWithDPI(page, IMAGE_RESOLUTION_DPI, ImageType.RGB);
-//              String fileName = "fax/image-" + page + ".png";
-//              ImageIOUtil.writeImage(bim, fileName, IMAGE_RESOLUTION_DPI);
-                byteArrayOutputStream = new ByteArrayOutputStream();
-                ImageIOUtil.writeImage(bim, "png", byteArrayOutputStream);
-                byteArrayOutputStream.flush();
-                imageBytes = ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
-                s.append(detectText(imageBytes));
+            for (int page = firstPage; page < document.getNumberOfPages(); ++page) {
+                if (!deadline.hasTimeFor(pageMillis)) {
+                    recordCacheHitRate(pages, detectedPages);
+                    return new DetectedText(s.toString(), encodeContinuation(filename, CONTINUATION_LOCAL_PAGE, "",
+                      page));
+                }
+                long start = System.currentTimeMillis();
+                // a page seen before, unchanged or if so set rendering the same, is not sent to Textract again
+                String contentHash = cache == null ? null : PageCache.contentHash(document.getPage(page));
+                String text = contentHash == null ? null : cache.get(contentHash);
+                List<Block> blocks = null;
+                if (text == null) {
+                    BufferedImage image = renderPageImage(pdfRenderer, page);
+                    boolean hashImage = cache != null && cache.isMatchingRenderings();
+                    long[] perceptualHash = hashImage ? PageCache.perceptualHash(image) : null;
+                    String renderingHash = hashImage ? PageCache.renderingHash(image) : null;
+                    if (cache != null)
+                        text = cache.getSimilar(contentHash, perceptualHash, renderingHash);
+                    if (text == null) {
+                        try {
+                            blocks = detectBlocks(imageRequest(encodePage(image)), deadline);
+                        } catch (DeadlineExceededException e) {
+                            // the pages done so far are returned, and the rest resumed from this one
+                            recordCacheHitRate(pages, detectedPages);
+                            return new DetectedText(s.toString(), encodeContinuation(filename,
+                              CONTINUATION_LOCAL_PAGE, "", page));
+                        }
+                        text = lines(blocks);
+                        detectedPages++;
+                        if (cache != null)
+                            cache.put(contentHash, perceptualHash, renderingHash, text);
+                    }
+                }
+                s.append(text);
+                if (kept != null)
+                    kept.add(text);
+                if (layout != null)
+                    addPage(layout, page + 1, blocks, text);
+                pages++;
+                pageMillis = Math.max(pageMillis, System.currentTimeMillis() - start);
             }
+            if (kept != null)
+                keep(filename, kept);
         } catch (IOException e) {
             // to-do
         }
-        return s.toString();
+        recordCacheHitRate(pages, detectedPages);
+        return new DetectedText(s.toString(), null, layout == null ? null : layout.build());
+    }
+
+    private static void addPage(final TextLayout.Builder layout, final int number, final List<Block> blocks,
+      final String text) {
+        layout.startPage(number);
+        if (blocks == null) {
+            layout.addText(text);
+            return;
+        }
+        for (Block block : blocks)
+            layout.add(block);
+    }
+
+    // append the text of a document to the corpus store; a failure is counted rather than failing the detection
+    private void keep(final String id, final List<String> pages) {
+        long start = metrics.start();
+        try {
+            corpusStore.append(id, pages);
+        } catch (IOException e) {
+            metrics.record(Metrics.Metric.CORPUS_APPEND_FAILURES, 1);
+        } finally {
+            metrics.stop(Metrics.Metric.CORPUS_APPEND, start);
+        }
+    }
+
+    private void recordCacheHitRate(final int pages, final int detectedPages) {
+        if (pageCache != null && pages > 0)
+            metrics.record(Metrics.Metric.PAGE_CACHE_HIT_RATE, Math.round(PERCENT * (pages - detectedPages) / pages));
+    }
+
+    /**
+     * Render a PDF page and encode it as an image for text detection, at the configured resolution and format.
+     * @param pdfRenderer the renderer for the document
+     * @param page the page index, starting at 0
+     * @return the encoded image
+     * @throws IOException if the page cannot be rendered or encoded
+     */
+    ByteBuffer renderPage(final PDFRenderer pdfRenderer, final int page) throws IOException {
+        return encodePage(renderPageImage(pdfRenderer, page));
+    }
+
+    private BufferedImage renderPageImage(final PDFRenderer pdfRenderer, final int page) throws IOException {
+        long stageStart = metrics.start();
+        BufferedImage bim = pdfRenderer.renderImageWithDPI(page, imageResolutionDpi, ImageType.RGB);
+        metrics.stop(Metrics.Metric.PAGE_RENDER, stageStart);
+//      String fileName = "fax/image-" + page + ".png";
+//      ImageIOUtil.writeImage(bim, fileName, IMAGE_RESOLUTION_DPI);
+        return bim;
+    }
+
+    private ByteBuffer encodePage(final BufferedImage bim) throws IOException {
+        long stageStart = metrics.start();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ImageIOUtil.writeImage(bim, imageFormat, byteArrayOutputStream);
+        byteArrayOutputStream.flush();
+        ByteBuffer imageBytes = ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
+        metrics.stop(Metrics.Metric.IMAGE_ENCODE, stageStart);
+        metrics.record(Metrics.Metric.ENCODED_BYTES, imageBytes.remaining());
+        return imageBytes;
     }
 
     /**
@@ -131,65 +458,301 @@ public final class Analyzer {
      * @return text contents detected in the image
      */
     public String detectTextPdf2(final String bucket, final String name) {
-        String jobId = startTextDetection(bucket, name);
+        return detectTextPdf2(bucket, name, Deadline.none(), null).getText();
+    }
+
+    /**
+     * Use the AWS Textract asynchronous text detection API to process a PDF stored in S3. Polling and result paging
+     * are budgeted against the deadline; when it draws near, or a call runs out of time, the text detected so far is
+     * returned along with a continuation token for the rest, signed and good only for this object. Text detected in
+     * the whole PDF without paging across calls is appended to the {@link #getCorpusStore corpus store} under the
+     * object's s3:// URI, and comes with its layout if {@link #isRetainLayout retained}.
+     * @param bucket the S3 bucket
+     * @param name the S3 object key
+     * @param deadline the time by which detection must finish
+     * @param continuation the token returned by a previous partial result, or null to start a new detection job
+     * @return text contents detected in the PDF, partial if the deadline was reached
+     * @throws InvalidRequestException if the continuation token was not issued for the object, or names a region
+     * Textract calls are no longer spread over
+     */
+    public DetectedText detectTextPdf2(final String bucket, final String name, final Deadline deadline,
+      final String continuation) {
+        String jobId;
+        String object = s3Uri(bucket, name);
+        if (continuation == null) {
+            jobId = startTextDetection(bucket, name);
+        } else {
+            String[] state = decodeContinuation(continuation, object, null);
+            jobId = state[1];
+            if (CONTINUATION_PAGE.equals(state[0]))
+                return getDetectedText(object, jobId, state[2].isEmpty() ? null : state[2], deadline, null);
+        }
+        // the text is kept under the object requested, never under anything carried in the continuation
+        String documentId = documentId(bucket, name);
         try {
-            String jobStatus = waitForTextDetection(jobId);
+            String jobStatus = waitForTextDetection(jobId, deadline);
+            if (JOB_IN_PROGRESS.equals(jobStatus))
+                return new DetectedText("", encodeContinuation(object, CONTINUATION_WAIT, jobId, ""));
         } catch (InterruptedException e) {
-            return "error - text processing was interrupted";
+            return new DetectedText("error - text processing was interrupted", null);
         }
-        String result = getDetectedText(jobId);
-        return result;
+        return getDetectedText(object, jobId, null, deadline, documentId);
+    }
+
+    // the URI of an object in S3, which continuation tokens for it are bound to
+    static String s3Uri(final String bucket, final String name) {
+        return "s3://" + bucket + "/" + name;
     }
 
-    private String waitForTextDetection(final String jobId) throws InterruptedException {
-        String jobStatus = "IN_PROGRESS";
-        while (jobStatus.equals("IN_PROGRESS")) {
-            TimeUnit.SECONDS.sleep(TEXT_DETECTION_MAX_WAIT);
-            GetDocumentTextDetectionRequest documentTextDetectionRequest =
-              new GetDocumentTextDetectionRequest().withJobId(jobId).withMaxResults(1);
-            GetDocumentTextDetectionResult response =
-              textractClient.getDocumentTextDetection(documentTextDetectionRequest);
+    // the id the text of a PDF in S3 is kept under
+    static String documentId(final String bucket, final String name) {
+        return s3Uri(bucket, name);
+    }
+
+    private String waitForTextDetection(final String jobId, final Deadline deadline) throws InterruptedException {
+        long start = metrics.start();
+        try {
+            return pollTextDetection(jobId, deadline);
+        } finally {
+            metrics.stop(Metrics.Metric.JOB_WAIT, start);
+        }
+    }
+
+    private String pollTextDetection(final String jobId, final Deadline deadline) throws InterruptedException {
+        long wait = TEXT_DETECTION_FIRST_WAIT_MILLIS;
+        String jobStatus = JOB_IN_PROGRESS;
+        while (jobStatus.equals(JOB_IN_PROGRESS)) {
+            long sleep = deadline.budget(wait, PAGE_RESERVE_MILLIS);
+            if (sleep <= 0)
+                break;
+            TimeUnit.MILLISECONDS.sleep(sleep);
+            wait = Math.min(wait * 2, TimeUnit.SECONDS.toMillis(TEXT_DETECTION_MAX_WAIT));
+            GetDocumentTextDetectionRequest documentTextDetectionRequest = pollRequest(jobId);
+            GetDocumentTextDetectionResult response;
+            try {
+                response = metrics.time(Metrics.Metric.TEXTRACT_CALL,
+                  () -> textract(GET_TEXT_DETECTION, deadline, jobRegions(jobId),
+                    (client, region) -> client.getDocumentTextDetection(withDeadline(documentTextDetectionRequest,
+                      deadline))));
+            } catch (ClientExecutionTimeoutException | DeadlineExceededException e) {
+                // out of time to ask; the caller resumes waiting with a continuation
+                break;
+            }
             jobStatus = response.getJobStatus();
         }
         return jobStatus;
     }
 
-    private String startTextDetection(final String bucket, final String name) {
-        StartDocumentTextDetectionRequest req = new StartDocumentTextDetectionRequest()
+    static GetDocumentTextDetectionRequest pollRequest(final String job) {
+        return new GetDocumentTextDetectionRequest().withJobId(jobId(job)).withMaxResults(1);
+    }
+
+    static StartDocumentTextDetectionRequest startRequest(final String bucket, final String name) {
+        return new StartDocumentTextDetectionRequest()
           .withDocumentLocation(new DocumentLocation()
             .withS3Object(new S3Object()
               .withBucket(bucket)
               .withName(name)))
           .withJobTag("DetectingText");
-        StartDocumentTextDetectionResult startDocumentTextDetectionResult =
-          textractClient.startDocumentTextDetection(req);
-        String startJobId = startDocumentTextDetectionResult.getJobId();
-        return startJobId;
     }
 
-    private String getDetectedText(final String jobId) {
-        String paginationToken = null;
-        StringBuilder s = new StringBuilder();
+    // the job started, with the region it runs in if there are several
+    private String startTextDetection(final String bucket, final String name) {
+        return metrics.time(Metrics.Metric.TEXTRACT_CALL,
+          () -> textract(START_TEXT_DETECTION, Deadline.none(), regionsOf(bucket), (client, region) -> {
+              StartDocumentTextDetectionResult result = client.startDocumentTextDetection(
+                startRequest(bucketIn(bucket, region), name));
+              return region == null ? result.getJobId() : result.getJobId() + JOB_REGION_SEPARATOR + region;
+          }));
+    }
+
+    // the Textract job id of a job, without its region
+    static String jobId(final String job) {
+        int separator = job.indexOf(JOB_REGION_SEPARATOR);
+        return separator < 0 ? job : job.substring(0, separator);
+    }
+
+    // the region a job runs in, the primary region for one started without a region pool; a job naming a region
+    // that is not in the pool, e.g. after the pool was configured again, cannot be followed up
+    private Collection<String> jobRegions(final String job) {
+        if (textractRegions == null)
+            return null;
+        int separator = job.indexOf(JOB_REGION_SEPARATOR);
+        if (separator < 0)
+            return Collections.singleton(textractRegions.getPrimaryRegion());
+        String region = job.substring(separator + 1);
+        if (!textractRegions.getRegions().contains(region))
+            throw new InvalidRequestException("text detection job is in an unknown region: " + region);
+        return Collections.singleton(region);
+    }
+
+    // the regions an object in the bucket can be read from, or null if Textract calls are not spread over regions
+    private Collection<String> regionsOf(final String bucket) {
+        return textractRegions == null ? null : textractRegions.getBucketLocations(bucket).keySet();
+    }
+
+    // the name of the bucket, or of its replica, in a region
+    private String bucketIn(final String bucket, final String region) {
+        return region == null ? bucket : textractRegions.getBucketLocations(bucket).get(region);
+    }
+
+    private DetectedText getDetectedText(final String object, final String jobId, final String startToken,
+      final Deadline deadline, final String documentId) {
+        String paginationToken = startToken;
+        JobText text = newJobText(startToken, documentId);
+        long pageMillis = PAGE_RESERVE_MILLIS;
         while (true) {
-            GetDocumentTextDetectionRequest request = new GetDocumentTextDetectionRequest()
-              .withJobId(jobId)
-              .withMaxResults(TEXT_DETECTION_MAX_RESULTS)
-              .withNextToken(paginationToken);
-            GetDocumentTextDetectionResult response = textractClient.getDocumentTextDetection(request);
-
-            for (Block block : response.getBlocks()) {
-                if (block.getBlockType().equals("PAGE")) {
-                    s.append("\n");
-                } else if (block.getBlockType().equals("LINE")) {
-                    s.append(block.getText()).append("\n");
-                }
+            if (!deadline.hasTimeFor(pageMillis))
+                return partialJobText(text, object, jobId, paginationToken);
+            long start = System.currentTimeMillis();
+            GetDocumentTextDetectionRequest request = resultPageRequest(jobId, paginationToken);
+            GetDocumentTextDetectionResult response;
+            try {
+                response = metrics.time(Metrics.Metric.TEXTRACT_CALL,
+                  () -> textract(GET_TEXT_DETECTION, deadline, jobRegions(jobId),
+                    (client, region) -> client.getDocumentTextDetection(withDeadline(request, deadline))));
+            } catch (ClientExecutionTimeoutException | DeadlineExceededException e) {
+                // the pages fetched so far are returned, and the rest resumed from the page that timed out
+                return partialJobText(text, object, jobId, paginationToken);
             }
+            metrics.record(Metrics.Metric.RESULT_PAGES, 1);
+            text.add(response);
 
             paginationToken = response.getNextToken();
             if (paginationToken == null)
                 break;
+            pageMillis = Math.max(pageMillis, 2 * (System.currentTimeMillis() - start));
         }
-        return s.toString();
+        return finishJobText(text, documentId);
+    }
+
+    // the text of a job read from its first result page is kept whole, with its layout
+    JobText newJobText(final String startToken, final String documentId) {
+        return new JobText(corpusStore != null && documentId != null && startToken == null,
+          retainLayout && startToken == null);
+    }
+
+    DetectedText partialJobText(final JobText text, final String object, final String jobId,
+      final String paginationToken) {
+        String token = paginationToken == null ? "" : paginationToken;
+        return new DetectedText(text.getText(), encodeContinuation(object, CONTINUATION_PAGE, jobId, token));
+    }
+
+    DetectedText finishJobText(final JobText text, final String documentId) {
+        List<String> pages = text.getPages();
+        if (pages != null)
+            keep(documentId, pages);
+        return new DetectedText(text.getText(), null, text.buildLayout());
+    }
+
+    static GetDocumentTextDetectionRequest resultPageRequest(final String job, final String paginationToken) {
+        return new GetDocumentTextDetectionRequest()
+          .withJobId(jobId(job))
+          .withMaxResults(TEXT_DETECTION_MAX_RESULTS)
+          .withNextToken(paginationToken);
+    }
+
+    private <T> T hedged(final String api, final Supplier<T> call) {
+        return hedger == null ? call.get() : hedger.call(api, call);
+    }
+
+    // a Textract call in the best of the given regions, or with the one client if calls are not spread over regions
+    private <T> T textract(final String api, final Deadline deadline, final Collection<String> regions,
+      final BiFunction<AmazonTextract, String, T> call) {
+        if (textractRegions == null)
+            return textractGovernor.call(api, deadline, () -> call.apply(textractClient, null));
+        return textractRegions.call(api, deadline, regions, call);
+    }
+
+    // a Comprehend Medical call in the best region, or with the one client if calls are not spread over regions
+    private <T> T comprehend(final String api, final Deadline deadline,
+      final BiFunction<AWSComprehendMedical, String, T> call) {
+        if (comprehendRegions == null)
+            return comprehendGovernor.call(api, deadline, () -> call.apply(comprehendClient, null));
+        return comprehendRegions.call(api, deadline, null, call);
+    }
+
+    static <T extends AmazonWebServiceRequest> T withDeadline(final T request, final Deadline deadline) {
+        if (!deadline.isNone())
+            request.setSdkClientExecutionTimeout(deadline.sdkTimeoutMillis());
+        return request;
+    }
+
+    /**
+     * Returns a continuation token: the state to resume with, signed so that it cannot be altered and is good only
+     * for the document it was issued for.
+     * @param document the S3 URI or file path of the document
+     * @param phase the phase to resume in
+     * @param jobId the text detection job, empty for a local file
+     * @param position where to resume in the phase
+     * @return the token
+     */
+    static String encodeContinuation(final String document, final String phase, final String jobId,
+      final Object position) {
+        byte[] state = (phase + CONTINUATION_SEPARATOR + jobId + CONTINUATION_SEPARATOR + position)
+          .getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+        return base64.encodeToString(state) + SIGNATURE_SEPARATOR + base64.encodeToString(sign(document, state));
+    }
+
+    /**
+     * Returns the state in a continuation token.
+     * @param continuation the token
+     * @param document the S3 URI or file path of the document the token is given for
+     * @param expectedPhase the phase the token must be in, or null for either phase of an S3 document
+     * @return the phase, job id and position
+     * @throws InvalidRequestException if the token is malformed, altered, issued for another document or with
+     * another key, or in an unexpected phase
+     */
+    static String[] decodeContinuation(final String continuation, final String document, final String expectedPhase) {
+        String[] state;
+        try {
+            int separator = continuation.indexOf(SIGNATURE_SEPARATOR);
+            if (separator < 0)
+                throw new IllegalArgumentException("unsigned continuation token");
+            byte[] bytes = Base64.getUrlDecoder().decode(continuation.substring(0, separator));
+            byte[] signature = Base64.getUrlDecoder().decode(continuation.substring(separator + 1));
+            if (!MessageDigest.isEqual(sign(document, bytes), signature))
+                throw new IllegalArgumentException("continuation token signature mismatch");
+            state = new String(bytes, StandardCharsets.UTF_8).split(CONTINUATION_SEPARATOR, -1);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException("invalid continuation token", e);
+        }
+        boolean knownPhase = CONTINUATION_WAIT.equals(state[0]) || CONTINUATION_PAGE.equals(state[0])
+          || CONTINUATION_LOCAL_PAGE.equals(state[0]);
+        boolean phaseMismatch = expectedPhase == null
+          ? CONTINUATION_LOCAL_PAGE.equals(state[0]) : !expectedPhase.equals(state[0]);
+        if (state.length != 3 || !knownPhase || phaseMismatch
+          || (CONTINUATION_LOCAL_PAGE.equals(expectedPhase) && !state[2].matches("\\d+")))
+            throw new InvalidRequestException("invalid continuation token");
+        return state;
+    }
+
+    // an HMAC of the document a token is for and its state; the document's length goes first, so no other document
+    // and state run together into the same bytes
+    private static byte[] sign(final String document, final byte[] state) {
+        byte[] bound = document.getBytes(StandardCharsets.UTF_8);
+        try {
+            Mac mac = Mac.getInstance(CONTINUATION_MAC);
+            mac.init(CONTINUATION_KEY);
+            mac.update(ByteBuffer.allocate(Integer.BYTES).putInt(bound.length).array());
+            mac.update(bound);
+            return mac.doFinal(state);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("unable to sign continuation token", e);
+        }
+    }
+
+    private static SecretKeySpec continuationKeyFromEnvironment() {
+        String secret = System.getenv(CONTINUATION_KEY_VAR_NAME);
+        byte[] key;
+        if (secret == null || secret.isEmpty()) {
+            key = new byte[RANDOM_KEY_BYTES];
+            new SecureRandom().nextBytes(key);
+        } else {
+            key = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        return new SecretKeySpec(key, CONTINUATION_MAC);
     }
 
     /**
@@ -198,14 +761,50 @@ public final class Analyzer {
      * @return report of identified entities
      */
     public String getEntities(final String text) {
+        return getEntities(text, Deadline.none());
+    }
+
+    /**
+     * Identify medical domain entities in the give text.
+     * @param text the text to analyze
+     * @param deadline the time by which entity detection must finish
+     * @return report of identified entities
+     * @throws DeadlineExceededException if detection does not finish before the deadline
+     */
+    public String getEntities(final String text, final Deadline deadline) {
+        return report(detectEntities(text, deadline));
+    }
+
+    // the medications and names among entities, with the attributes of the medications
+    static String report(final List<Entity> entities) {
+        return entities.stream().map(Analyzer::printEntity).collect(Collectors.joining(""));
+    }
+
+    /**
+     * Identify medical domain entities in the given text.
+     * @param text the text to analyze
+     * @param deadline the time by which entity detection must finish
+     * @return the entities, with offsets into the text
+     * @throws DeadlineExceededException if detection does not finish before the deadline
+     */
+    public List<Entity> detectEntities(final String text, final Deadline deadline) {
         DetectEntitiesRequest comprehendRequest = new DetectEntitiesRequest();
         comprehendRequest.setText(text);
 
-        DetectEntitiesResult comprehendResult = comprehendClient.detectEntities(comprehendRequest);
-        return comprehendResult.getEntities().stream().map(this::printEntity).collect(Collectors.joining(""));
+        DetectEntitiesResult comprehendResult;
+        long start = metrics.start();
+        try {
+            comprehendResult = hedged(DETECT_ENTITIES, () -> comprehend(DETECT_ENTITIES, deadline,
+              (client, region) -> client.detectEntities(withDeadline(comprehendRequest.clone(), deadline))));
+        } catch (ClientExecutionTimeoutException e) {
+            throw new DeadlineExceededException("entity detection did not finish before the deadline", e);
+        } finally {
+            metrics.stop(Metrics.Metric.COMPREHEND_CALL, start);
+        }
+        return comprehendResult.getEntities();
     }
 
-    private String printEntity(final Entity entity) {
+    private static String printEntity(final Entity entity) {
         StringBuilder s = new StringBuilder();
         if (entity.getCategory().equals("MEDICATION")) {
             s.append(printMedication(entity));
@@ -218,11 +817,11 @@ public final class Analyzer {
         return s.toString();
     }
 
-    private String printPhi(final Entity entity) {
+    private static String printPhi(final Entity entity) {
         return "PHI - " + entity.getType().toLowerCase() + ": " + entity.getText() + "\n";
     }
 
-    private String printMedication(final Entity entity) {
+    private static String printMedication(final Entity entity) {
         StringBuilder s = new StringBuilder();
         s.append("Medication: " + entity.getText() + "\n");
         Optional.ofNullable(entity.getAttributes()).map(Collection::stream).orElseGet(Stream::empty)
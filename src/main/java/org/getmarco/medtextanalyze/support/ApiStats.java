@@ -0,0 +1,107 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the calls a {@link CallGovernor} makes to one API.
+ */
+public final class ApiStats {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder cancels = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+
+    void recordCall(final long nanos) {
+        this.calls.increment();
+        this.latencyNanos.add(nanos);
+    }
+
+    void recordSuccess() {
+        this.successes.increment();
+    }
+
+    void recordThrottle() {
+        this.throttles.increment();
+    }
+
+    void recordRetry() {
+        this.retries.increment();
+    }
+
+    void recordFailure() {
+        this.failures.increment();
+    }
+
+    void recordCancel() {
+        this.cancels.increment();
+    }
+
+    /**
+     * Returns the number of attempts sent to the service, including retries.
+     * @return attempts made
+     */
+    public long getCalls() {
+        return this.calls.sum();
+    }
+
+    /**
+     * Returns the number of operations that completed successfully.
+     * @return successful operations
+     */
+    public long getSuccesses() {
+        return this.successes.sum();
+    }
+
+    /**
+     * Returns the number of attempts the service throttled.
+     * @return throttled attempts
+     */
+    public long getThrottles() {
+        return this.throttles.sum();
+    }
+
+    /**
+     * Returns the number of attempts that were retried.
+     * @return retried attempts
+     */
+    public long getRetries() {
+        return this.retries.sum();
+    }
+
+    /**
+     * Returns the number of operations that failed after any retries.
+     * @return failed operations
+     */
+    public long getFailures() {
+        return this.failures.sum();
+    }
+
+    /**
+     * Returns the number of attempts cancelled before they returned, such as hedged attempts that lost the race.
+     * They count as neither calls nor failures.
+     * @return cancelled attempts
+     */
+    public long getCancels() {
+        return this.cancels.sum();
+    }
+
+    /**
+     * Returns the mean latency of an attempt.
+     * @return mean attempt latency in milliseconds, zero if no attempts were made
+     */
+    public long getMeanLatencyMillis() {
+        long n = this.calls.sum();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(this.latencyNanos.sum() / n);
+    }
+
+    @Override
+    public String toString() {
+        return "calls=" + getCalls() + " successes=" + getSuccesses() + " throttles=" + getThrottles()
+          + " retries=" + getRetries() + " failures=" + getFailures() + " cancels=" + getCancels()
+          + " meanLatencyMs=" + getMeanLatencyMillis();
+    }
+}
@@ -0,0 +1,328 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
+import com.amazonaws.services.comprehendmedical.AWSComprehendMedicalAsync;
+import com.amazonaws.services.comprehendmedical.model.DetectEntitiesRequest;
+import com.amazonaws.services.comprehendmedical.model.DetectEntitiesResult;
+import com.amazonaws.services.comprehendmedical.model.Entity;
+import com.amazonaws.services.textract.AmazonTextractAsync;
+import com.amazonaws.services.textract.model.DetectDocumentTextRequest;
+import com.amazonaws.services.textract.model.DetectDocumentTextResult;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionResult;
+import com.amazonaws.services.textract.model.StartDocumentTextDetectionResult;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * The operations of an {@link Analyzer} without blocking: each returns a future at once and completes it as the
+ * service calls it makes come back. The calls are made with the SDK's asynchronous clients, through the analyzer's
+ * call governors, and the waits between them, for a rate limit, a retry or a text detection job, are timed on a
+ * scheduler instead of slept, so a handful of threads keep any number of documents in flight.
+ * <p>
+ * Settings other than the clients, such as the governors, metrics, corpus store and layout retention, are those of
+ * the analyzer, which is not otherwise used. Calls are not hedged.
+ */
+public final class AsyncAnalyzer {
+    /** Name of the environment variable setting the number of threads of the shared scheduler. */
+    public static final String THREADS_VAR_NAME = "MED_ASYNC_THREADS";
+    private static final int DEFAULT_THREADS = 2;
+    private static final ScheduledExecutorService SHARED_SCHEDULER = schedulerFromEnvironment();
+
+    private final Analyzer analyzer;
+
+    @Getter
+    @Setter
+    private AmazonTextractAsync textractClient;
+
+    @Getter
+    @Setter
+    private AWSComprehendMedicalAsync comprehendClient;
+
+    /**
+     * Scheduler the waits between calls are timed on.
+     */
+    @Getter
+    @Setter
+    private ScheduledExecutorService scheduler = SHARED_SCHEDULER;
+
+    /**
+     * Constructor.
+     * @param analyzer the analyzer whose settings to use
+     */
+    public AsyncAnalyzer(final Analyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Returns the scheduler shared by the asynchronous analyzers of a process, with as many daemon threads as
+     * {@value #THREADS_VAR_NAME} sets, two by default.
+     * @return the scheduler
+     */
+    public static ScheduledExecutorService sharedScheduler() {
+        return SHARED_SCHEDULER;
+    }
+
+    private static ScheduledExecutorService schedulerFromEnvironment() {
+        AtomicInteger count = new AtomicInteger();
+        int threads = threads(System.getenv(THREADS_VAR_NAME));
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(threads, r -> {
+              Thread thread = new Thread(r, "analyzer-scheduler-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+          });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    // a bad setting falls back to the default rather than failing every function of the container
+    private static int threads(final String value) {
+        if (value == null || value.trim().isEmpty())
+            return DEFAULT_THREADS;
+        int threads;
+        try {
+            threads = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            threads = 0;
+        }
+        if (threads < 1) {
+            StructuredLogger.deferWarning("ignoring invalid " + THREADS_VAR_NAME + " '" + value + "', using "
+              + DEFAULT_THREADS);
+            return DEFAULT_THREADS;
+        }
+        return threads;
+    }
+
+    /**
+     * Use the AWS Textract detect document text API to process an image stored in S3.
+     * @param bucket the S3 bucket
+     * @param name the S3 object key
+     * @param deadline the time by which detection must finish
+     * @return the future text contents detected in the image, failed with {@link DeadlineExceededException} if
+     * detection does not finish before the deadline
+     */
+    public CompletableFuture<String> detectTextImageS3(final String bucket, final String name,
+      final Deadline deadline) {
+        return detectText(Analyzer.s3ImageRequest(bucket, name), deadline);
+    }
+
+    /**
+     * Use the AWS Textract detect document text API to process an image. The image is read before this returns.
+     * @param filename the local file path for the image
+     * @param deadline the time by which detection must finish
+     * @return the future text contents detected in the image, failed with {@link DeadlineExceededException} if
+     * detection does not finish before the deadline
+     * @throws IOException if the file cannot be opened or read from
+     */
+    public CompletableFuture<String> detectTextImage(final String filename, final Deadline deadline)
+      throws IOException {
+        return detectText(Analyzer.imageRequest(analyzer.prepareImage(Analyzer.readImage(filename))), deadline);
+    }
+
+    private CompletableFuture<String> detectText(final DetectDocumentTextRequest request, final Deadline deadline) {
+        Supplier<CompletableFuture<DetectDocumentTextResult>> call = () ->
+          async(textractClient::detectDocumentTextAsync, Analyzer.withDeadline(request.clone(), deadline));
+        return deadlineExceeded(timed(Metrics.Metric.TEXTRACT_CALL, analyzer.getTextractGovernor().callAsync(
+          Analyzer.DETECT_DOCUMENT_TEXT, deadline, scheduler, call)), "text detection")
+          .thenApply(result -> Analyzer.lines(result.getBlocks()));
+    }
+
+    /**
+     * Use the AWS Textract asynchronous text detection API to process a PDF stored in S3, as
+     * {@link Analyzer#detectTextPdf2(String, String, Deadline, String)} does, polling the job on the scheduler.
+     * @param bucket the S3 bucket
+     * @param name the S3 object key
+     * @param deadline the time by which detection must finish
+     * @param continuation the token returned by a previous partial result, or null to start a new detection job
+     * @return the future text contents detected in the PDF, partial if the deadline was reached
+     * @throws InvalidRequestException if the continuation token was not issued for the object
+     */
+    public CompletableFuture<DetectedText> detectTextPdf2(final String bucket, final String name,
+      final Deadline deadline, final String continuation) {
+        String object = Analyzer.s3Uri(bucket, name);
+        // the text is kept under the object requested, never under anything carried in the continuation
+        String documentId = Analyzer.documentId(bucket, name);
+        if (continuation == null) {
+            Supplier<CompletableFuture<StartDocumentTextDetectionResult>> call = () ->
+              async(textractClient::startDocumentTextDetectionAsync, Analyzer.startRequest(bucket, name));
+            return timed(Metrics.Metric.TEXTRACT_CALL, analyzer.getTextractGovernor().callAsync(
+              Analyzer.START_TEXT_DETECTION, Deadline.none(), scheduler, call))
+              .thenCompose(started -> waitAndFetch(object, started.getJobId(), deadline, documentId));
+        }
+        String[] state = Analyzer.decodeContinuation(continuation, object, null);
+        String position = state[2].isEmpty() ? null : state[2];
+        if (Analyzer.CONTINUATION_PAGE.equals(state[0]))
+            return fetch(object, state[1], position, deadline, null);
+        return waitAndFetch(object, state[1], deadline, documentId);
+    }
+
+    private CompletableFuture<DetectedText> waitAndFetch(final String object, final String jobId,
+      final Deadline deadline, final String documentId) {
+        return timed(Metrics.Metric.JOB_WAIT, poll(jobId, deadline, Analyzer.TEXT_DETECTION_FIRST_WAIT_MILLIS))
+          .thenCompose(jobStatus -> {
+              if (Analyzer.JOB_IN_PROGRESS.equals(jobStatus)) {
+                  return CompletableFuture.completedFuture(new DetectedText("", Analyzer.encodeContinuation(
+                    object, Analyzer.CONTINUATION_WAIT, jobId, "")));
+              }
+              return fetch(object, jobId, null, deadline, documentId);
+          });
+    }
+
+    private CompletableFuture<String> poll(final String jobId, final Deadline deadline, final long wait) {
+        long sleep = deadline.budget(wait, Analyzer.PAGE_RESERVE_MILLIS);
+        if (sleep <= 0)
+            return CompletableFuture.completedFuture(Analyzer.JOB_IN_PROGRESS);
+        long nextWait = Math.min(wait * 2, TimeUnit.SECONDS.toMillis(Analyzer.TEXT_DETECTION_MAX_WAIT));
+        // a poll that runs out of time leaves the job in progress, to be waited for again with the continuation
+        return CallGovernor.delay(scheduler, TimeUnit.MILLISECONDS.toNanos(sleep))
+          .thenCompose(v -> resultPage(Analyzer.pollRequest(jobId), deadline).handle((response, error) -> {
+              Throwable cause = CallGovernor.unwrap(error);
+              if (outOfTime(cause))
+                  return null;
+              if (cause != null)
+                  throw new CompletionException(cause);
+              return response;
+          }))
+          .thenCompose(response -> {
+              if (response == null)
+                  return CompletableFuture.completedFuture(Analyzer.JOB_IN_PROGRESS);
+              return Analyzer.JOB_IN_PROGRESS.equals(response.getJobStatus())
+                ? poll(jobId, deadline, nextWait) : CompletableFuture.completedFuture(response.getJobStatus());
+          });
+    }
+
+    private CompletableFuture<DetectedText> fetch(final String object, final String jobId, final String startToken,
+      final Deadline deadline, final String documentId) {
+        CompletableFuture<DetectedText> result = new CompletableFuture<>();
+        fetch(object, jobId, startToken, deadline, documentId, analyzer.newJobText(startToken, documentId),
+          Analyzer.PAGE_RESERVE_MILLIS, result);
+        return result;
+    }
+
+    // each result page is asked for once the one before it is in, completing one future for the whole text
+    private void fetch(final String object, final String jobId, final String paginationToken,
+      final Deadline deadline, final String documentId, final JobText text, final long pageMillis,
+      final CompletableFuture<DetectedText> result) {
+        if (!deadline.hasTimeFor(pageMillis)) {
+            result.complete(analyzer.partialJobText(text, object, jobId, paginationToken));
+            return;
+        }
+        long start = System.currentTimeMillis();
+        resultPage(Analyzer.resultPageRequest(jobId, paginationToken), deadline).whenComplete((response, error) -> {
+            Throwable cause = CallGovernor.unwrap(error);
+            if (outOfTime(cause)) {
+                // the pages fetched so far are returned, and the rest resumed from this one
+                result.complete(analyzer.partialJobText(text, object, jobId, paginationToken));
+                return;
+            }
+            if (cause != null) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            try {
+                analyzer.getMetrics().record(Metrics.Metric.RESULT_PAGES, 1);
+                text.add(response);
+                if (response.getNextToken() == null)
+                    result.complete(analyzer.finishJobText(text, documentId));
+                else
+                    fetch(object, jobId, response.getNextToken(), deadline, documentId, text,
+                      Math.max(pageMillis, 2 * (System.currentTimeMillis() - start)), result);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static boolean outOfTime(final Throwable cause) {
+        return cause instanceof ClientExecutionTimeoutException || cause instanceof DeadlineExceededException;
+    }
+
+    private CompletableFuture<GetDocumentTextDetectionResult> resultPage(final GetDocumentTextDetectionRequest request,
+      final Deadline deadline) {
+        Supplier<CompletableFuture<GetDocumentTextDetectionResult>> call = () ->
+          async(textractClient::getDocumentTextDetectionAsync, Analyzer.withDeadline(request, deadline));
+        return timed(Metrics.Metric.TEXTRACT_CALL, analyzer.getTextractGovernor().callAsync(
+          Analyzer.GET_TEXT_DETECTION, deadline, scheduler, call));
+    }
+
+    /**
+     * Identify medical domain entities in the given text.
+     * @param text the text to analyze
+     * @param deadline the time by which entity detection must finish
+     * @return the future report of identified entities, failed with {@link DeadlineExceededException} if
+     * detection does not finish before the deadline
+     */
+    public CompletableFuture<String> getEntities(final String text, final Deadline deadline) {
+        return detectEntities(text, deadline).thenApply(Analyzer::report);
+    }
+
+    /**
+     * Identify medical domain entities in the given text.
+     * @param text the text to analyze
+     * @param deadline the time by which entity detection must finish
+     * @return the future entities, with offsets into the text, failed with {@link DeadlineExceededException} if
+     * detection does not finish before the deadline
+     */
+    public CompletableFuture<List<Entity>> detectEntities(final String text, final Deadline deadline) {
+        DetectEntitiesRequest request = new DetectEntitiesRequest();
+        request.setText(text);
+        Supplier<CompletableFuture<DetectEntitiesResult>> call = () ->
+          async(comprehendClient::detectEntitiesAsync, Analyzer.withDeadline(request.clone(), deadline));
+        return deadlineExceeded(timed(Metrics.Metric.COMPREHEND_CALL, analyzer.getComprehendGovernor().callAsync(
+          Analyzer.DETECT_ENTITIES, deadline, scheduler, call)), "entity detection")
+          .thenApply(DetectEntitiesResult::getEntities);
+    }
+
+    private <T> CompletableFuture<T> timed(final Metrics.Metric metric, final CompletableFuture<T> future) {
+        long start = analyzer.getMetrics().start();
+        return future.whenComplete((value, error) -> analyzer.getMetrics().stop(metric, start));
+    }
+
+    private static <T> CompletableFuture<T> deadlineExceeded(final CompletableFuture<T> future, final String what) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, error) -> {
+            Throwable cause = CallGovernor.unwrap(error);
+            if (cause == null)
+                result.complete(value);
+            else if (cause instanceof ClientExecutionTimeoutException)
+                result.completeExceptionally(
+                  new DeadlineExceededException(what + " did not finish before the deadline", cause));
+            else
+                result.completeExceptionally(cause);
+        });
+        return result;
+    }
+
+    // a call of an SDK asynchronous client, as a completable future
+    private static <Q extends AmazonWebServiceRequest, R> CompletableFuture<R> async(
+      final BiFunction<Q, AsyncHandler<Q, R>, Future<R>> client, final Q request) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        client.apply(request, new AsyncHandler<Q, R>() {
+            @Override
+            public void onError(final Exception exception) {
+                result.completeExceptionally(exception);
+            }
+
+            @Override
+            public void onSuccess(final Q q, final R r) {
+                result.complete(r);
+            }
+        });
+        return result;
+    }
+}
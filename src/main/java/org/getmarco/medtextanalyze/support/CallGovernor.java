@@ -0,0 +1,527 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Governs the calls made to one AWS service. Each API of the service gets its own token bucket, sized to the
+ * account quota for that API, and its own {@link AdaptiveLimit} on concurrent calls, which backs off when the
+ * service throttles. Throttled and transient failures are retried with full-jitter exponential backoff, so the
+ * SDK clients used under a governor should have their own retries turned off; see
+ * {@link #governedClientConfiguration()}.
+ *
+ * <p>Governors are shared per service so every caller in the JVM draws on the same quota. Quotas are regional, so
+ * calls spread over several regions go through a governor per region, which applies the service's quotas unless
+ * given its own.</p>
+ */
+public final class CallGovernor {
+    /** Service name for AWS Textract. */
+    public static final String TEXTRACT = "textract";
+    /** Service name for AWS Comprehend Medical. */
+    public static final String COMPREHEND_MEDICAL = "comprehendmedical";
+
+    private static final ConcurrentMap<String, CallGovernor> GOVERNORS = new ConcurrentHashMap<>();
+    // Textract reports exhausted concurrent job quotas this way; it clears like a throttle
+    private static final String LIMIT_EXCEEDED = "LimitExceededException";
+    private static final Quota DEFAULT_QUOTA = new Quota(5, 5, 16);
+    private static final int INITIAL_CONCURRENCY = 4;
+    private static final int DEFAULT_MAX_ATTEMPTS = 6;
+    private static final long BASE_DELAY_MILLIS = 100;
+    private static final long MAX_DELAY_MILLIS = 5000;
+
+    private final String service;
+    private final CallGovernor parent;
+    private final ConcurrentMap<String, Quota> quotas = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gate> gates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ApiStats> stats = new ConcurrentHashMap<>();
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private CallGovernor(final String service, final CallGovernor parent) {
+        this.service = service;
+        this.parent = parent;
+    }
+
+    /**
+     * Returns the shared governor for a service, creating it on first use.
+     * @param service the service name
+     * @return the governor
+     */
+    public static CallGovernor forService(final String service) {
+        return GOVERNORS.computeIfAbsent(service, s -> new CallGovernor(s, null));
+    }
+
+    /**
+     * Returns the shared governor for a service in one region, creating it on first use. It is named
+     * {@code service@region}, the name its own quotas are configured under; APIs without one get the quota of the
+     * service.
+     * @param service the service name
+     * @param region the region name
+     * @return the governor
+     */
+    public static CallGovernor forService(final String service, final String region) {
+        CallGovernor parent = forService(service);
+        return GOVERNORS.computeIfAbsent(service + "@" + region, s -> new CallGovernor(s, parent));
+    }
+
+    /**
+     * Returns every governor created so far.
+     * @return the governors, keyed by service name
+     */
+    public static Map<String, CallGovernor> all() {
+        return Collections.unmodifiableMap(new TreeMap<>(GOVERNORS));
+    }
+
+    /**
+     * Apply quotas from a comma separated list of {@code service.Api=rate[:burst]} entries, for example
+     * {@code textract.DetectDocumentText=10,comprehendmedical.DetectEntitiesV2=20:40}. Every entry is parsed before
+     * any is applied, so a list that cannot be parsed changes nothing.
+     * @param spec the quota list, may be null or empty
+     * @throws IllegalArgumentException if an entry cannot be parsed
+     */
+    public static void configure(final String spec) {
+        if (spec == null || spec.trim().isEmpty())
+            return;
+        List<Runnable> quotas = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] nameValue = entry.trim().split("=", 2);
+            int dot = nameValue[0].indexOf('.');
+            if (nameValue.length != 2 || dot <= 0)
+                throw new IllegalArgumentException("invalid call quota: " + entry);
+            String[] rateBurst = nameValue[1].split(":", 2);
+            Quota quota;
+            try {
+                double rate = Double.parseDouble(rateBurst[0]);
+                double burst = rateBurst.length > 1 ? Double.parseDouble(rateBurst[1]) : Math.max(1, rate);
+                if (!(rate > 0) || !(burst >= 1))
+                    throw new IllegalArgumentException("invalid call quota: " + entry);
+                quota = new Quota(rate, burst, DEFAULT_QUOTA.getMaxConcurrency());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid call quota: " + entry, e);
+            }
+            quotas.add(() -> forService(nameValue[0].substring(0, dot)).setQuota(nameValue[0].substring(dot + 1),
+              quota));
+        }
+        quotas.forEach(Runnable::run);
+    }
+
+    /**
+     * Returns a client configuration for SDK clients whose calls go through a governor. SDK retries are turned
+     * off, since retrying inside the client would hide throttles from the governor and multiply load on a
+     * service that is already shedding it.
+     * @return the client configuration
+     */
+    public static ClientConfiguration governedClientConfiguration() {
+        return new ClientConfiguration().withRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
+    }
+
+    /**
+     * Returns the service this governor is for.
+     * @return the service name
+     */
+    public String getService() {
+        return this.service;
+    }
+
+    /**
+     * Set the quota for an API, replacing any earlier quota. Calls already waiting keep the old limits.
+     * @param api the API name
+     * @param quota the quota
+     */
+    public void setQuota(final String api, final Quota quota) {
+        this.quotas.put(api, quota);
+        this.gates.remove(api);
+    }
+
+    /**
+     * Set the quota for an API unless one has been set already, as when defaults are applied after configuration.
+     * @param api the API name
+     * @param quota the quota
+     */
+    public void setQuotaIfAbsent(final String api, final Quota quota) {
+        if (this.quotas.putIfAbsent(api, quota) == null)
+            this.gates.remove(api);
+    }
+
+    /**
+     * Set the most attempts made for one call, including the first.
+     * @param maxAttempts the attempt limit, at least one
+     */
+    public void setMaxAttempts(final int maxAttempts) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("invalid max attempts " + maxAttempts);
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Make a call to an API of this service, waiting for rate and concurrency limits and retrying throttled or
+     * transient failures.
+     * @param api the API name
+     * @param call the call to make
+     * @param <T> the result type
+     * @return the call result
+     */
+    public <T> T call(final String api, final Supplier<T> call) {
+        return call(api, Deadline.none(), call);
+    }
+
+    /**
+     * Make a call to an API of this service, waiting for rate and concurrency limits and retrying throttled or
+     * transient failures while the deadline leaves time for the backoff.
+     * @param api the API name
+     * @param deadline the time by which the call must finish
+     * @param call the call to make
+     * @param <T> the result type
+     * @return the call result
+     * @throws AbortedException if interrupted while waiting
+     * @throws DeadlineExceededException if the limits leave the call no turn before the deadline
+     */
+    public <T> T call(final String api, final Deadline deadline, final Supplier<T> call) {
+        return call(api, deadline, this.maxAttempts, call);
+    }
+
+    /**
+     * Make a call to an API of this service, as {@link #call(String, Deadline, Supplier)} does, with its own limit
+     * on attempts.
+     * @param api the API name
+     * @param deadline the time by which the call must finish
+     * @param maxAttempts the most attempts made, including the first
+     * @param call the call to make
+     * @param <T> the result type
+     * @return the call result
+     */
+    <T> T call(final String api, final Deadline deadline, final int maxAttempts, final Supplier<T> call) {
+        ApiStats apiStats = getStats(api);
+        for (int attempt = 1;; attempt++) {
+            Gate gate = gate(api);
+            try {
+                // a call that cannot get its turn before the deadline is not made at all
+                if (!gate.bucket.acquire(maxWaitNanos(deadline)) || !gate.limit.acquire(maxWaitNanos(deadline)))
+                    throw noTurn(api);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException(e);
+            }
+            long start = System.nanoTime();
+            try {
+                T result = call.get();
+                apiStats.recordCall(System.nanoTime() - start);
+                gate.limit.release(false);
+                apiStats.recordSuccess();
+                return result;
+            } catch (SdkBaseException e) {
+                if (isCancelled(e)) {
+                    // a hedged attempt that lost the race says nothing about the service
+                    gate.limit.abandon();
+                    apiStats.recordCancel();
+                    throw e;
+                }
+                apiStats.recordCall(System.nanoTime() - start);
+                boolean throttled = isThrottle(e);
+                gate.limit.release(throttled);
+                if (throttled)
+                    apiStats.recordThrottle();
+                long delay = backoffMillis(attempt);
+                if (attempt >= maxAttempts || !(throttled || isTransient(e)) || !deadline.hasTimeFor(delay)) {
+                    apiStats.recordFailure();
+                    throw e;
+                }
+                apiStats.recordRetry();
+                sleep(delay);
+            } catch (RuntimeException | Error e) {
+                gate.limit.release(false);
+                apiStats.recordFailure();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Make a call to an API of this service without blocking: the waits for rate and concurrency limits and the
+     * backoff before retries are scheduled rather than slept, so no thread is held while the call waits its turn.
+     * @param api the API name
+     * @param deadline the time by which the call must finish
+     * @param scheduler the scheduler waits are timed on
+     * @param call starts the call and returns its result as a future
+     * @param <T> the result type
+     * @return the future call result, failed with the last failure if the call does not succeed
+     */
+    public <T> CompletableFuture<T> callAsync(final String api, final Deadline deadline,
+      final ScheduledExecutorService scheduler, final Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(api, deadline, scheduler, call, 1, result);
+        return result;
+    }
+
+    // a failure anywhere in arranging an attempt, e.g. the scheduler refusing it, fails the call rather than leaving
+    // it never to complete
+    private <T> void attempt(final String api, final Deadline deadline, final ScheduledExecutorService scheduler,
+      final Supplier<CompletableFuture<T>> call, final int attempt, final CompletableFuture<T> result) {
+        try {
+            tryAttempt(api, deadline, scheduler, call, attempt, result).whenComplete((v, error) -> {
+                if (error != null)
+                    result.completeExceptionally(unwrap(error));
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private <T> CompletableFuture<Void> tryAttempt(final String api, final Deadline deadline,
+      final ScheduledExecutorService scheduler, final Supplier<CompletableFuture<T>> call, final int attempt,
+      final CompletableFuture<T> result) {
+        ApiStats apiStats = getStats(api);
+        Gate gate = gate(api);
+        // as on the blocking path, a call that cannot get its turn before the deadline is not made at all
+        long waitNanos = gate.bucket.reserve(maxWaitNanos(deadline));
+        if (waitNanos < 0)
+            throw noTurn(api);
+        return delay(scheduler, waitNanos)
+          .thenCompose(v -> gate.limit.acquireAsync(maxWaitNanos(deadline), scheduler))
+          .thenAccept(acquired -> {
+            if (!acquired)
+                throw noTurn(api);
+            long start = System.nanoTime();
+            CompletableFuture<T> attempted;
+            try {
+                attempted = call.get();
+                if (attempted == null)
+                    throw new IllegalStateException(this.service + "." + api + " call returned no future");
+            } catch (RuntimeException e) {
+                attempted = new CompletableFuture<>();
+                attempted.completeExceptionally(e);
+            }
+            attempted.whenComplete((value, error) -> {
+                apiStats.recordCall(System.nanoTime() - start);
+                Throwable cause = unwrap(error);
+                if (cause == null) {
+                    gate.limit.release(false);
+                    apiStats.recordSuccess();
+                    result.complete(value);
+                    return;
+                }
+                boolean throttled = cause instanceof SdkBaseException && isThrottle((SdkBaseException) cause);
+                gate.limit.release(throttled);
+                if (throttled)
+                    apiStats.recordThrottle();
+                long delay = backoffMillis(attempt);
+                if (attempt >= this.maxAttempts || !(throttled || (cause instanceof SdkBaseException
+                  && isTransient((SdkBaseException) cause))) || !deadline.hasTimeFor(delay)) {
+                    apiStats.recordFailure();
+                    result.completeExceptionally(cause);
+                    return;
+                }
+                apiStats.recordRetry();
+                try {
+                    scheduler.schedule(() -> attempt(api, deadline, scheduler, call, attempt + 1, result), delay,
+                      TimeUnit.MILLISECONDS);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        });
+    }
+
+    private DeadlineExceededException noTurn(final String api) {
+        return new DeadlineExceededException(this.service + "." + api
+          + " call did not get its turn before the deadline");
+    }
+
+    /**
+     * Returns a future completed after a wait timed on a scheduler.
+     * @param scheduler the scheduler
+     * @param nanos the wait, in nanoseconds
+     * @return the future, already complete if there is no wait, or failed if the scheduler refuses the wait
+     */
+    static CompletableFuture<Void> delay(final ScheduledExecutorService scheduler, final long nanos) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (nanos <= 0) {
+            done.complete(null);
+            return done;
+        }
+        try {
+            scheduler.schedule(() -> done.complete(null), nanos, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    /**
+     * Returns the failure wrapped in the exception a future completed with.
+     * @param error the exception, may be null
+     * @return the failure
+     */
+    static Throwable unwrap(final Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+          && cause.getCause() != null)
+            cause = cause.getCause();
+        return cause;
+    }
+
+    /**
+     * Returns the counters for one API.
+     * @param api the API name
+     * @return the counters
+     */
+    public ApiStats getStats(final String api) {
+        return this.stats.computeIfAbsent(api, a -> new ApiStats());
+    }
+
+    /**
+     * Returns the counters for every API called through this governor.
+     * @return the counters, keyed by API name
+     */
+    public Map<String, ApiStats> getStats() {
+        return Collections.unmodifiableMap(new TreeMap<>(this.stats));
+    }
+
+    /**
+     * Returns the current adaptive concurrency limit for one API.
+     * @param api the API name
+     * @return the concurrency limit
+     */
+    public int getConcurrencyLimit(final String api) {
+        return gate(api).limit.getLimit();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<String, ApiStats> entry : getStats().entrySet()) {
+            if (s.length() > 0)
+                s.append("; ");
+            s.append(this.service).append('.').append(entry.getKey()).append(": ").append(entry.getValue())
+              .append(" limit=").append(getConcurrencyLimit(entry.getKey()));
+        }
+        return s.toString();
+    }
+
+    private Gate gate(final String api) {
+        return this.gates.computeIfAbsent(api, a -> new Gate(quota(a)));
+    }
+
+    private Quota quota(final String api) {
+        Quota quota = this.quotas.get(api);
+        if (quota == null)
+            quota = this.parent == null ? DEFAULT_QUOTA : this.parent.quota(api);
+        return quota;
+    }
+
+    static boolean isThrottle(final SdkBaseException e) {
+        if (RetryUtils.isThrottlingException(e))
+            return true;
+        return e instanceof AmazonServiceException
+          && LIMIT_EXCEEDED.equals(((AmazonServiceException) e).getErrorCode());
+    }
+
+    // whether the call was aborted by interrupting its thread, as a hedger cancels the attempt that lost
+    private static boolean isCancelled(final SdkBaseException e) {
+        return e instanceof AbortedException || Thread.currentThread().isInterrupted();
+    }
+
+    static boolean isTransient(final SdkBaseException e) {
+        if (e instanceof ClientExecutionTimeoutException || e instanceof AbortedException)
+            return false;
+        return RetryUtils.isRetryableServiceException(e) || RetryUtils.isClockSkewError(e)
+          || (e instanceof SdkClientException && !(e instanceof AmazonServiceException)
+            && e.getCause() instanceof IOException);
+    }
+
+    // how long a call may wait for its turn, all of the time left before the deadline
+    private static long maxWaitNanos(final Deadline deadline) {
+        return deadline.isNone() ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(deadline.remainingMillis());
+    }
+
+    private static long backoffMillis(final int attempt) {
+        long ceiling = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt - 1, Integer.SIZE - 2));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException(e);
+        }
+    }
+
+    /**
+     * The sustained rate, burst size and most concurrent calls allowed for one API.
+     */
+    public static final class Quota {
+        private final double ratePerSecond;
+        private final double burst;
+        private final int maxConcurrency;
+
+        /**
+         * Constructor.
+         * @param ratePerSecond the sustained calls per second
+         * @param burst the most calls that may be made at once after a quiet period
+         * @param maxConcurrency the most calls that may be in flight
+         */
+        public Quota(final double ratePerSecond, final double burst, final int maxConcurrency) {
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        /**
+         * Returns the sustained calls per second.
+         * @return the rate
+         */
+        public double getRatePerSecond() {
+            return this.ratePerSecond;
+        }
+
+        /**
+         * Returns the most calls that may be made at once after a quiet period.
+         * @return the burst size
+         */
+        public double getBurst() {
+            return this.burst;
+        }
+
+        /**
+         * Returns the most calls that may be in flight.
+         * @return the concurrency ceiling
+         */
+        public int getMaxConcurrency() {
+            return this.maxConcurrency;
+        }
+    }
+
+    private static final class Gate {
+        private final TokenBucket bucket;
+        private final AdaptiveLimit limit;
+
+        Gate(final Quota quota) {
+            this.bucket = new TokenBucket(quota.getRatePerSecond(), quota.getBurst());
+            this.limit = new AdaptiveLimit(Math.min(INITIAL_CONCURRENCY, quota.getMaxConcurrency()), 1,
+              quota.getMaxConcurrency());
+        }
+    }
+}
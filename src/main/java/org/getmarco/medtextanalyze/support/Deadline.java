@@ -0,0 +1,97 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which an operation must finish, typically derived from the remaining execution time of a
+ * Lambda invocation. Long running operations check the deadline between steps and hand back partial results while
+ * there is still time to return them.
+ */
+public final class Deadline {
+    private static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private final long expiresAtNanos;
+
+    private Deadline(final long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    /**
+     * Returns a deadline that never expires.
+     * @return the unbounded deadline
+     */
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * Returns a deadline the given number of milliseconds from now.
+     * @param millis the time allowed, in milliseconds
+     * @return the deadline
+     */
+    public static Deadline after(final long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis)));
+    }
+
+    /**
+     * Determine if this deadline is unbounded.
+     * @return true if this deadline never expires
+     */
+    public boolean isNone() {
+        return this == NONE;
+    }
+
+    /**
+     * Returns the time left before the deadline.
+     * @return remaining milliseconds, zero once expired
+     */
+    public long remainingMillis() {
+        if (isNone())
+            return Long.MAX_VALUE;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(this.expiresAtNanos - System.nanoTime()));
+    }
+
+    /**
+     * Determine if the deadline has passed.
+     * @return true if no time is left
+     */
+    public boolean isExpired() {
+        return remainingMillis() == 0;
+    }
+
+    /**
+     * Determine if there is time left for a step expected to take the given time.
+     * @param millis the expected duration of the step
+     * @return true if the step should fit before the deadline
+     */
+    public boolean hasTimeFor(final long millis) {
+        return remainingMillis() > millis;
+    }
+
+    /**
+     * Clip a desired wait to what the deadline allows, keeping a reserve for the work that follows the wait.
+     * @param desiredMillis the desired wait
+     * @param reserveMillis the time to keep in hand after waiting
+     * @return the allowed wait, zero if there is no time for it
+     */
+    public long budget(final long desiredMillis, final long reserveMillis) {
+        long remaining = remainingMillis();
+        if (remaining == Long.MAX_VALUE)
+            return desiredMillis;
+        return Math.max(0, Math.min(desiredMillis, remaining - reserveMillis));
+    }
+
+    /**
+     * Returns a timeout suitable for an AWS SDK request made under this deadline.
+     * @return the timeout in milliseconds, or zero for no timeout
+     * @throws DeadlineExceededException if the deadline has already passed
+     */
+    public int sdkTimeoutMillis() {
+        if (isNone())
+            return 0;
+        long remaining = remainingMillis();
+        if (remaining == 0)
+            throw new DeadlineExceededException("deadline exceeded before request was sent");
+        return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+}
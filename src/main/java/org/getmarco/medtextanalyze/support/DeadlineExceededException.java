@@ -0,0 +1,25 @@
+package org.getmarco.medtextanalyze.support;
+
+/**
+ * Thrown when an operation that cannot return partial results runs out of time.
+ */
+public class DeadlineExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     * @param message the detail message
+     */
+    public DeadlineExceededException(final String message) {
+        super(message);
+    }
+
+    /**
+     * Constructor.
+     * @param message the detail message
+     * @param cause the cause
+     */
+    public DeadlineExceededException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,43 @@
+package org.getmarco.medtextanalyze.support;
+
+import lombok.Getter;
+
+/**
+ * Text detected by an {@link Analyzer} operation. When the operation stopped early to meet its deadline the text is
+ * partial and the continuation token resumes the operation where it left off.
+ */
+@Getter
+public final class DetectedText {
+    private final String text;
+    private final String continuation;
+    private final TextLayout layout;
+
+    /**
+     * Constructor.
+     * @param text the detected text
+     * @param continuation the token to resume detection with, or null if the text is complete
+     */
+    public DetectedText(final String text, final String continuation) {
+        this(text, continuation, null);
+    }
+
+    /**
+     * Constructor.
+     * @param text the detected text
+     * @param continuation the token to resume detection with, or null if the text is complete
+     * @param layout where the lines and words of the text are, or null if it was not retained
+     */
+    public DetectedText(final String text, final String continuation, final TextLayout layout) {
+        this.text = text;
+        this.continuation = continuation;
+        this.layout = layout;
+    }
+
+    /**
+     * Determine if all of the text has been detected.
+     * @return true if there is nothing left to resume
+     */
+    public boolean isComplete() {
+        return this.continuation == null;
+    }
+}
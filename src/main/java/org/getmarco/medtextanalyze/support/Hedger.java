@@ -0,0 +1,201 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.AbortedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Hedges slow calls. A call that has not returned by the given percentile of recent latencies for its API is
+ * duplicated; whichever attempt returns first wins and the other is cancelled. Hedges draw on a budget that earns a
+ * fraction of a hedge for every call made, so they never add more than that fraction of extra load.
+ *
+ * <p>Attempts run on a pool of daemon threads. Cancelling the losing attempt interrupts its thread, which the AWS SDK
+ * treats as an abort of the request in flight.</p>
+ */
+public final class Hedger {
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_EVERY = 16;
+    private static final long MIN_DELAY_MILLIS = 20;
+    private static final double MAX_BUDGET = 10;
+    private static final double PERCENT = 100;
+
+    private final double percentile;
+    private final double budgetPerCall;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Tracker> trackers = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private double budget;
+
+    /**
+     * Constructor.
+     * @param percentile the latency percentile after which a call is hedged, for example 95
+     * @param budgetPercent the most extra calls hedging may add, as a percentage of calls made
+     */
+    public Hedger(final double percentile, final double budgetPercent) {
+        if (!(percentile > 0 && percentile < PERCENT) || !(budgetPercent >= 0))
+            throw new IllegalArgumentException("invalid hedge percentile " + percentile + " or budget "
+              + budgetPercent);
+        this.percentile = percentile;
+        this.budgetPerCall = budgetPercent / PERCENT;
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "hedger");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Make a call, hedging it if it runs past the latency percentile for its API and the budget allows.
+     * @param api the API name, which keys the latency history
+     * @param call the call to make; it must be safe to make twice
+     * @param <T> the result type
+     * @return the result of the first attempt to succeed
+     * @throws AbortedException if interrupted while waiting
+     */
+    public <T> T call(final String api, final Supplier<T> call) {
+        Tracker tracker = this.trackers.computeIfAbsent(api, a -> new Tracker());
+        earn();
+        CompletionService<T> attempts = new ExecutorCompletionService<>(this.executor);
+        List<Future<T>> pending = new ArrayList<>(2);
+        pending.add(attempts.submit(() -> timed(tracker, call)));
+        RuntimeException failure = null;
+        try {
+            long delay = tracker.threshold();
+            Future<T> done = delay < 0 ? null : attempts.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null && delay >= 0 && spend()) {
+                pending.add(attempts.submit(() -> timed(tracker, call)));
+                this.hedges.increment();
+            }
+            while (!pending.isEmpty()) {
+                if (done == null)
+                    done = attempts.take();
+                int index = pending.indexOf(done);
+                pending.remove(done);
+                try {
+                    T result = done.get();
+                    if (index > 0)
+                        this.hedgeWins.increment();
+                    return result;
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = unwrap(e.getCause());
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException(e);
+        } finally {
+            for (Future<T> loser : pending)
+                loser.cancel(true);
+        }
+    }
+
+    /**
+     * Returns the number of calls made.
+     * @return calls made
+     */
+    public long getCalls() {
+        return this.calls.sum();
+    }
+
+    /**
+     * Returns the number of hedged attempts started.
+     * @return hedges started
+     */
+    public long getHedges() {
+        return this.hedges.sum();
+    }
+
+    /**
+     * Returns the number of calls won by the hedged attempt.
+     * @return hedges that returned first
+     */
+    public long getHedgeWins() {
+        return this.hedgeWins.sum();
+    }
+
+    /**
+     * Returns the current hedge threshold for an API.
+     * @param api the API name
+     * @return the threshold in milliseconds, or -1 if there is not yet enough latency history to hedge
+     */
+    public long getThresholdMillis(final String api) {
+        Tracker tracker = this.trackers.get(api);
+        return tracker == null ? -1 : tracker.threshold();
+    }
+
+    @Override
+    public String toString() {
+        return "calls=" + getCalls() + " hedges=" + getHedges() + " hedgeWins=" + getHedgeWins();
+    }
+
+    private synchronized void earn() {
+        this.calls.increment();
+        this.budget = Math.min(MAX_BUDGET, this.budget + this.budgetPerCall);
+    }
+
+    private synchronized boolean spend() {
+        if (this.budget < 1)
+            return false;
+        this.budget -= 1;
+        return true;
+    }
+
+    private static <T> T timed(final Tracker tracker, final Supplier<T> call) {
+        long start = System.nanoTime();
+        T result = call.get();
+        if (!Thread.currentThread().isInterrupted())
+            tracker.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+    private static RuntimeException unwrap(final Throwable cause) {
+        if (cause instanceof RuntimeException)
+            return (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        return new IllegalStateException(cause);
+    }
+
+    /**
+     * Recent latencies of one API, with the hedge threshold recomputed from them every few samples.
+     */
+    private final class Tracker {
+        private final long[] samples = new long[WINDOW];
+        private long count;
+        private long threshold = -1;
+
+        synchronized void record(final long millis) {
+            this.samples[(int) (this.count % WINDOW)] = millis;
+            this.count++;
+            if (this.count == MIN_SAMPLES || (this.count > MIN_SAMPLES && this.count % RECOMPUTE_EVERY == 0)) {
+                long[] sorted = Arrays.copyOf(this.samples, (int) Math.min(this.count, WINDOW));
+                Arrays.sort(sorted);
+                int index = (int) Math.ceil(Hedger.this.percentile / PERCENT * sorted.length) - 1;
+                this.threshold = Math.max(MIN_DELAY_MILLIS, sorted[Math.max(0, index)]);
+            }
+        }
+
+        synchronized long threshold() {
+            return this.threshold;
+        }
+    }
+}
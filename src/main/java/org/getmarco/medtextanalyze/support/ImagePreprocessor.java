@@ -0,0 +1,296 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Shrinks a single image before it is sent to Textract. Phone photos and colour scans are often several megabytes,
+ * at resolutions well beyond what text detection needs, so they upload slowly and now and then exceed the size
+ * Textract takes. The image is decoded with subsampling when it is much larger than needed, scaled down to the
+ * target density and made grayscale, cropped of uniform borders, and encoded as PNG, which keeps the edges of text
+ * in scans and screenshots sharp, or as JPEG if it came as one: a photo, whose noise PNG compresses poorly. Over the
+ * byte budget, it is encoded as JPEG at falling quality and then at falling size.
+ * <p>
+ * An image that cannot be decoded is sent as it is, as is one that could not be made smaller and is within the
+ * budget already.
+ */
+public final class ImagePreprocessor {
+    private static final int DEFAULT_TARGET_DPI = 200;
+    // Textract takes up to 10 MB of image bytes in a synchronous call; stay well inside it
+    private static final long DEFAULT_MAX_BYTES = 5L * 1024 * 1024;
+    // an image is taken to be a letter or A4 page, about this long on its long side
+    private static final double PAGE_LONG_SIDE_INCHES = 11;
+    // rows and columns whose pixels span no more than this many gray levels are border
+    private static final int BORDER_TOLERANCE = 24;
+    // border kept around the content, as a fraction of the long side, so text at the edge is not clipped
+    private static final double BORDER_MARGIN = 0.01;
+    private static final float[] JPEG_QUALITIES = {0.85f, 0.7f, 0.55f};
+    private static final double SHRINK_STEP = 0.75;
+    private static final int MIN_LONG_SIDE = 600;
+    private static final int GRAY_MASK = 0xff;
+    private static final byte[] JPEG_MAGIC = {(byte) 0xff, (byte) 0xd8};
+
+    /**
+     * Density the image is scaled down to, in pixels per inch of a letter size page.
+     */
+    @Getter
+    @Setter
+    private int targetDpi = DEFAULT_TARGET_DPI;
+
+    /**
+     * Most bytes the encoded image may take.
+     */
+    @Getter
+    @Setter
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * Whether uniform borders are cropped.
+     */
+    @Getter
+    @Setter
+    private boolean cropBorders = true;
+
+    /**
+     * Prepare an image for text detection.
+     * @param image the encoded image
+     * @return the prepared image, the original if it could not be improved on
+     */
+    public Result prepare(final ByteBuffer image) {
+        long start = System.nanoTime();
+        byte[] original = new byte[image.remaining()];
+        image.duplicate().get(original);
+        BufferedImage decoded;
+        try {
+            decoded = decode(original);
+        } catch (IOException | RuntimeException e) {
+            decoded = null;
+        }
+        if (decoded == null)
+            return new Result(ByteBuffer.wrap(original), original.length, false, start);
+
+        BufferedImage gray = scaleToGray(decoded, targetLongSide());
+        if (this.cropBorders)
+            gray = crop(gray);
+        byte[] encoded = encode(gray, isJpeg(original));
+        if (encoded == null || (encoded.length >= original.length && original.length <= this.maxBytes))
+            return new Result(ByteBuffer.wrap(original), original.length, false, start);
+        return new Result(ByteBuffer.wrap(encoded), original.length, true, start);
+    }
+
+    private int targetLongSide() {
+        return (int) Math.round(this.targetDpi * PAGE_LONG_SIDE_INCHES);
+    }
+
+    // decode, skipping rows and columns of an image more than twice the size needed, which leaves enough to scale
+    // down smoothly from
+    private BufferedImage decode(final byte[] bytes) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int longSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int subsampling = Math.max(1, longSide / (2 * targetLongSide()));
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (subsampling > 1)
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // scale down to at most the given long side, drawing over white so transparency reads as paper, into a new
+    // grayscale image whose pixels are laid out one byte each, row after row
+    private static BufferedImage scaleToGray(final BufferedImage image, final int longSide) {
+        double scale = Math.min(1, (double) longSide / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = gray.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return gray;
+    }
+
+    // crop the rows and columns at the edges whose pixels are all close to one level, keeping a small margin
+    private static BufferedImage crop(final BufferedImage gray) {
+        int width = gray.getWidth();
+        int height = gray.getHeight();
+        byte[] pixels = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+        int top = 0;
+        while (top < height && uniform(pixels, top * width, 1, width))
+            top++;
+        if (top == height)
+            return gray;
+        int bottom = height;
+        while (bottom > top && uniform(pixels, (bottom - 1) * width, 1, width))
+            bottom--;
+        int left = 0;
+        while (left < width && uniform(pixels, top * width + left, width, bottom - top))
+            left++;
+        int right = width;
+        while (right > left && uniform(pixels, top * width + right - 1, width, bottom - top))
+            right--;
+
+        int margin = (int) Math.ceil(Math.max(width, height) * BORDER_MARGIN);
+        top = Math.max(0, top - margin);
+        bottom = Math.min(height, bottom + margin);
+        left = Math.max(0, left - margin);
+        right = Math.min(width, right + margin);
+        if (top == 0 && left == 0 && bottom == height && right == width)
+            return gray;
+        BufferedImage cropped = new BufferedImage(right - left, bottom - top, BufferedImage.TYPE_BYTE_GRAY);
+        cropped.getRaster().setRect(-left, -top, gray.getRaster().createChild(left, top, right - left,
+          bottom - top, left, top, null));
+        return cropped;
+    }
+
+    // whether the pixels of a row or column, count of them a step apart, span no more than the tolerance
+    private static boolean uniform(final byte[] pixels, final int offset, final int step, final int count) {
+        int min = GRAY_MASK;
+        int max = 0;
+        for (int i = 0, p = offset; i < count; i++, p += step) {
+            int level = pixels[p] & GRAY_MASK;
+            min = Math.min(min, level);
+            max = Math.max(max, level);
+            if (max - min > BORDER_TOLERANCE)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isJpeg(final byte[] image) {
+        return image.length >= JPEG_MAGIC.length && image[0] == JPEG_MAGIC[0] && image[1] == JPEG_MAGIC[1];
+    }
+
+    // PNG, or JPEG for a photo, if that fits the budget; then JPEG at falling quality, then at falling size
+    private byte[] encode(final BufferedImage gray, final boolean photo) {
+        try {
+            byte[] encoded = photo ? write(gray, "jpg", JPEG_QUALITIES[0]) : write(gray, "png", null);
+            if (encoded.length <= this.maxBytes)
+                return encoded;
+            BufferedImage image = gray;
+            while (true) {
+                for (float quality : JPEG_QUALITIES) {
+                    byte[] jpeg = write(image, "jpg", quality);
+                    if (jpeg.length <= this.maxBytes)
+                        return jpeg;
+                }
+                int longSide = (int) (Math.max(image.getWidth(), image.getHeight()) * SHRINK_STEP);
+                if (longSide < MIN_LONG_SIDE)
+                    return null;
+                image = scaleToGray(image, longSide);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] write(final BufferedImage image, final String format, final Float quality)
+      throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (quality != null) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * An image prepared for text detection.
+     */
+    public static final class Result {
+        private final ByteBuffer bytes;
+        private final long originalBytes;
+        private final boolean processed;
+        private final long micros;
+
+        Result(final ByteBuffer bytes, final long originalBytes, final boolean processed, final long startNanos) {
+            this.bytes = bytes;
+            this.originalBytes = originalBytes;
+            this.processed = processed;
+            this.micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Returns the image to send.
+         * @return the encoded image
+         */
+        public ByteBuffer getBytes() {
+            return this.bytes.duplicate();
+        }
+
+        /**
+         * Returns the size of the image given.
+         * @return the original size in bytes
+         */
+        public long getOriginalBytes() {
+            return this.originalBytes;
+        }
+
+        /**
+         * Returns how much smaller the image to send is than the image given.
+         * @return the bytes saved
+         */
+        public long getBytesSaved() {
+            return this.originalBytes - this.bytes.remaining();
+        }
+
+        /**
+         * Determine if the image was processed, rather than passed on as it was.
+         * @return true if the image to send is the processed image
+         */
+        public boolean isProcessed() {
+            return this.processed;
+        }
+
+        /**
+         * Returns the time taken to prepare the image.
+         * @return the time in microseconds
+         */
+        public long getMicros() {
+            return this.micros;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.getmarco.medtextanalyze.support;
+
+/**
+ * Thrown when a request cannot be served as given, such as one with a continuation token that is not valid for it.
+ * The functions answer it with 400 Bad Request rather than failing the invocation.
+ */
+public class InvalidRequestException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     * @param message the detail message
+     */
+    public InvalidRequestException(final String message) {
+        super(message);
+    }
+
+    /**
+     * Constructor.
+     * @param message the detail message
+     * @param cause the cause
+     */
+    public InvalidRequestException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,74 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The text of an asynchronous text detection job, put together from its result pages as they are fetched: a line
+ * break for each PAGE block and each LINE block's text followed by a line break, and optionally the text of each
+ * document page on its own and the layout.
+ */
+final class JobText {
+    private final StringBuilder text = new StringBuilder();
+    // where each page's text starts
+    private final List<Integer> pageStarts;
+    private final TextLayout.Builder layout;
+
+    /**
+     * Constructor.
+     * @param keepPages whether to keep where each document page starts
+     * @param retainLayout whether to build the layout
+     */
+    JobText(final boolean keepPages, final boolean retainLayout) {
+        this.pageStarts = keepPages ? new ArrayList<>() : null;
+        this.layout = retainLayout ? new TextLayout.Builder(true) : null;
+    }
+
+    /**
+     * Add the blocks of a result page.
+     * @param response the result page
+     */
+    void add(final GetDocumentTextDetectionResult response) {
+        for (Block block : response.getBlocks()) {
+            if (this.layout != null)
+                this.layout.add(block);
+            if (block.getBlockType().equals("PAGE")) {
+                this.text.append("\n");
+                if (this.pageStarts != null)
+                    this.pageStarts.add(this.text.length());
+            } else if (block.getBlockType().equals("LINE")) {
+                this.text.append(block.getText()).append("\n");
+            }
+        }
+    }
+
+    String getText() {
+        return this.text.toString();
+    }
+
+    /**
+     * Returns the text of each document page, without the line break that starts it.
+     * @return the pages, or null if they were not kept
+     */
+    List<String> getPages() {
+        if (this.pageStarts == null)
+            return null;
+        List<String> pages = new ArrayList<>(this.pageStarts.size());
+        for (int i = 0; i < this.pageStarts.size(); i++) {
+            int end = i + 1 < this.pageStarts.size() ? this.pageStarts.get(i + 1) - 1 : this.text.length();
+            pages.add(this.text.substring(this.pageStarts.get(i), end));
+        }
+        return pages;
+    }
+
+    /**
+     * Build the layout.
+     * @return the layout, or null if it was not retained
+     */
+    TextLayout buildLayout() {
+        return this.layout == null ? null : this.layout.build();
+    }
+}
@@ -0,0 +1,452 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.AbortedException;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admits analyses to a fixed number of slots by priority lane, so a backfill cannot crowd out the requests of
+ * people waiting on a screen. Interactive work is admitted ahead of batch work and has slots of its own that batch
+ * work never takes; within a lane, tenants waiting at once are admitted by start-time fair queueing, in proportion
+ * to their weights, so one tenant's backlog does not hold up the others.
+ * <p>
+ * The slots bound the analyses in flight, and so the calls queued at the {@link CallGovernor call governors} behind
+ * them; size them to what the service quotas sustain, so that admitted work does not wait long for its calls.
+ */
+public final class LaneScheduler {
+    /** Name of the environment variable setting the number of slots. */
+    public static final String CAPACITY_VAR_NAME = "MED_LANE_CAPACITY";
+    /** Name of the environment variable setting the number of slots only interactive work may take. */
+    public static final String RESERVE_VAR_NAME = "MED_LANE_INTERACTIVE_RESERVE";
+    /** Name of the environment variable setting tenant weights, as a comma separated list of tenant=weight. */
+    public static final String WEIGHTS_VAR_NAME = "MED_LANE_TENANT_WEIGHTS";
+    /** Tenant of work that names none. */
+    public static final String DEFAULT_TENANT = "default";
+    private static final int DEFAULT_CAPACITY = 8;
+    private static final int DEFAULT_RESERVE = 2;
+    private static final LaneScheduler SHARED = fromEnvironment();
+
+    private final int capacity;
+    private final int reserve;
+    private final Map<String, Double> weights = new ConcurrentHashMap<>();
+    private final Map<Lane, LaneQueue> queues = new EnumMap<>(Lane.class);
+    private int running;
+    private long arrivals;
+
+    /**
+     * The priority classes of work.
+     */
+    public enum Lane {
+        /** Work someone is waiting on, admitted first. */
+        INTERACTIVE(Metrics.Metric.INTERACTIVE_WAIT, Metrics.Metric.INTERACTIVE_QUEUE_DEPTH),
+        /** Work no one is waiting on, such as backfills, given the slots interactive work leaves. */
+        BATCH(Metrics.Metric.BATCH_WAIT, Metrics.Metric.BATCH_QUEUE_DEPTH);
+
+        private final Metrics.Metric waitMetric;
+        private final Metrics.Metric depthMetric;
+
+        Lane(final Metrics.Metric waitMetric, final Metrics.Metric depthMetric) {
+            this.waitMetric = waitMetric;
+            this.depthMetric = depthMetric;
+        }
+
+        /**
+         * Returns the lane with a name, in any case.
+         * @param name the name, interactive or batch
+         * @param otherwise the lane to return if the name is null or empty
+         * @return the lane
+         * @throws InvalidRequestException if the name is not that of a lane
+         */
+        public static Lane parse(final String name, final Lane otherwise) {
+            if (name == null || name.trim().isEmpty())
+                return otherwise;
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidRequestException("unknown priority: expected interactive or batch", e);
+            }
+        }
+
+        /**
+         * Returns the metric the time work waited in this lane is recorded as.
+         * @return the metric
+         */
+        public Metrics.Metric getWaitMetric() {
+            return this.waitMetric;
+        }
+
+        /**
+         * Returns the metric the work found waiting ahead of it in this lane is recorded as.
+         * @return the metric
+         */
+        public Metrics.Metric getDepthMetric() {
+            return this.depthMetric;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param capacity the number of slots
+     * @param reserve the number of slots only interactive work may take, less than the capacity
+     */
+    public LaneScheduler(final int capacity, final int reserve) {
+        if (capacity < 1 || reserve < 0 || reserve >= capacity)
+            throw new IllegalArgumentException("invalid lane capacity " + capacity + " or reserve " + reserve);
+        this.capacity = capacity;
+        this.reserve = reserve;
+        for (Lane lane : Lane.values())
+            this.queues.put(lane, new LaneQueue());
+    }
+
+    /**
+     * Returns the scheduler shared by the functions of a process, set up from the environment.
+     * @return the scheduler
+     */
+    public static LaneScheduler shared() {
+        return SHARED;
+    }
+
+    // a bad setting falls back to the default rather than failing every function of the container
+    private static LaneScheduler fromEnvironment() {
+        String capacity = System.getenv(CAPACITY_VAR_NAME);
+        String reserve = System.getenv(RESERVE_VAR_NAME);
+        LaneScheduler scheduler;
+        try {
+            scheduler = new LaneScheduler(parseInt(capacity, DEFAULT_CAPACITY), parseInt(reserve, DEFAULT_RESERVE));
+        } catch (IllegalArgumentException e) {
+            StructuredLogger.deferWarning("ignoring invalid " + CAPACITY_VAR_NAME + " '" + capacity + "' or "
+              + RESERVE_VAR_NAME + " '" + reserve + "', using " + DEFAULT_CAPACITY + " and " + DEFAULT_RESERVE);
+            scheduler = new LaneScheduler(DEFAULT_CAPACITY, DEFAULT_RESERVE);
+        }
+        try {
+            scheduler.configureWeights(System.getenv(WEIGHTS_VAR_NAME));
+        } catch (IllegalArgumentException e) {
+            StructuredLogger.deferWarning("ignoring invalid " + WEIGHTS_VAR_NAME + " (" + e.getMessage()
+              + "), using equal weights");
+        }
+        return scheduler;
+    }
+
+    private static int parseInt(final String value, final int fallback) {
+        return value == null || value.trim().isEmpty() ? fallback : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Apply tenant weights from a comma separated list of {@code tenant=weight} entries. Every entry is checked
+     * before any is applied, so a list with a bad entry changes nothing.
+     * @param spec the weight list, may be null or empty
+     * @throws IllegalArgumentException if an entry cannot be parsed
+     */
+    public void configureWeights(final String spec) {
+        if (spec == null || spec.trim().isEmpty())
+            return;
+        Map<String, Double> parsed = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            String[] nameValue = entry.trim().split("=", 2);
+            double weight;
+            try {
+                if (nameValue.length != 2)
+                    throw new IllegalArgumentException("invalid tenant weight: " + entry);
+                weight = Double.parseDouble(nameValue[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid tenant weight: " + entry, e);
+            }
+            if (!(weight > 0))
+                throw new IllegalArgumentException("invalid tenant weight: " + entry);
+            parsed.put(nameValue[0].trim(), weight);
+        }
+        parsed.forEach(this::setWeight);
+    }
+
+    /**
+     * Set a tenant's weight: its share of admissions, relative to the other tenants waiting in the same lane.
+     * Tenants have a weight of one until set.
+     * @param tenant the tenant
+     * @param weight the weight, greater than zero
+     */
+    public void setWeight(final String tenant, final double weight) {
+        if (!(weight > 0))
+            throw new IllegalArgumentException("invalid weight " + weight + " for tenant " + tenant);
+        this.weights.put(tenant, weight);
+    }
+
+    /**
+     * Wait for a slot for a piece of work. Close the permit when the work is done to give the slot back.
+     * @param lane the lane of the work
+     * @param tenant the tenant the work is for, or null for the {@link #DEFAULT_TENANT default tenant}
+     * @param deadline the time by which the work must finish; it is not admitted after that
+     * @return the permit
+     * @throws DeadlineExceededException if the deadline passes before a slot is free
+     * @throws AbortedException if interrupted while waiting
+     */
+    public Permit admit(final Lane lane, final String tenant, final Deadline deadline) {
+        long start = System.nanoTime();
+        LaneQueue queue = this.queues.get(lane);
+        Waiter waiter;
+        int depth;
+        synchronized (this) {
+            depth = queue.waiting.size();
+            waiter = queue.enqueue(tenant == null ? DEFAULT_TENANT : tenant, this.arrivals++);
+            dispatch();
+            try {
+                while (!waiter.admitted) {
+                    if (deadline.isNone()) {
+                        wait();
+                    } else if (deadline.isExpired()) {
+                        queue.withdraw(waiter);
+                        throw new DeadlineExceededException("no " + lane.name().toLowerCase(Locale.ROOT)
+                          + " slot was free before the deadline");
+                    } else {
+                        wait(Math.max(1, deadline.remainingMillis()));
+                    }
+                }
+            } catch (InterruptedException e) {
+                if (waiter.admitted)
+                    release(lane);
+                else
+                    queue.withdraw(waiter);
+                Thread.currentThread().interrupt();
+                throw new AbortedException(e);
+            }
+        }
+        long waitNanos = System.nanoTime() - start;
+        queue.admitted.increment();
+        queue.waitNanos.add(waitNanos);
+        return new Permit(lane, depth, TimeUnit.NANOSECONDS.toMicros(waitNanos));
+    }
+
+    // admit waiting work to the free slots: interactive first, batch only outside the reserve
+    private void dispatch() {
+        boolean admitted = false;
+        LaneQueue interactive = this.queues.get(Lane.INTERACTIVE);
+        LaneQueue batch = this.queues.get(Lane.BATCH);
+        while (this.running < this.capacity) {
+            LaneQueue next = !interactive.waiting.isEmpty() ? interactive
+              : !batch.waiting.isEmpty() && batch.running < this.capacity - this.reserve ? batch : null;
+            if (next == null)
+                break;
+            next.admit();
+            this.running++;
+            admitted = true;
+        }
+        if (admitted)
+            notifyAll();
+    }
+
+    private synchronized void release(final Lane lane) {
+        this.queues.get(lane).running--;
+        this.running--;
+        dispatch();
+    }
+
+    /**
+     * Returns the number of pieces of work waiting in a lane.
+     * @param lane the lane
+     * @return the queue depth
+     */
+    public synchronized int getQueueDepth(final Lane lane) {
+        return this.queues.get(lane).waiting.size();
+    }
+
+    /**
+     * Returns the number of slots held by work in a lane.
+     * @param lane the lane
+     * @return the slots in use
+     */
+    public synchronized int getRunning(final Lane lane) {
+        return this.queues.get(lane).running;
+    }
+
+    // the number of tenants in a lane whose finish times are kept
+    synchronized int getTenants(final Lane lane) {
+        return this.queues.get(lane).tenants();
+    }
+
+    /**
+     * Returns the number of pieces of work admitted in a lane.
+     * @param lane the lane
+     * @return the admissions
+     */
+    public long getAdmitted(final Lane lane) {
+        return this.queues.get(lane).admitted.sum();
+    }
+
+    /**
+     * Returns the mean time work in a lane waited for its slot.
+     * @param lane the lane
+     * @return the mean wait in milliseconds, zero if nothing was admitted
+     */
+    public long getMeanWaitMillis(final Lane lane) {
+        long admitted = getAdmitted(lane);
+        return admitted == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(this.queues.get(lane).waitNanos.sum() / admitted);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Lane lane : Lane.values()) {
+            if (s.length() > 0)
+                s.append("; ");
+            s.append(lane.name().toLowerCase(Locale.ROOT)).append(": running=").append(getRunning(lane))
+              .append(" queued=").append(getQueueDepth(lane)).append(" admitted=").append(getAdmitted(lane))
+              .append(" meanWait=").append(getMeanWaitMillis(lane)).append("ms");
+        }
+        return s.toString();
+    }
+
+    /**
+     * A slot held by a piece of work, given back on close.
+     */
+    public final class Permit implements AutoCloseable {
+        private final Lane lane;
+        private final int queueDepth;
+        private final long waitMicros;
+        private boolean closed;
+
+        private Permit(final Lane lane, final int queueDepth, final long waitMicros) {
+            this.lane = lane;
+            this.queueDepth = queueDepth;
+            this.waitMicros = waitMicros;
+        }
+
+        /**
+         * Returns the lane the work was admitted in.
+         * @return the lane
+         */
+        public Lane getLane() {
+            return this.lane;
+        }
+
+        /**
+         * Returns the number of pieces of work waiting ahead of this one in its lane when it arrived.
+         * @return the queue depth
+         */
+        public int getQueueDepth() {
+            return this.queueDepth;
+        }
+
+        /**
+         * Returns the time the work waited for its slot.
+         * @return the wait in microseconds
+         */
+        public long getWaitMicros() {
+            return this.waitMicros;
+        }
+
+        /**
+         * Record the wait and queue depth as metrics.
+         * @param metrics the metrics
+         */
+        public void record(final Metrics metrics) {
+            metrics.record(this.lane.getWaitMetric(), this.waitMicros);
+            metrics.record(this.lane.getDepthMetric(), this.queueDepth);
+        }
+
+        @Override
+        public void close() {
+            if (this.closed)
+                return;
+            this.closed = true;
+            release(this.lane);
+        }
+    }
+
+    /**
+     * A piece of work waiting for a slot, tagged with its virtual start and finish times.
+     */
+    private static final class Waiter {
+        private final String tenant;
+        private final double start;
+        private final double finish;
+        private final long arrival;
+        private boolean admitted;
+
+        Waiter(final String tenant, final double start, final double finish, final long arrival) {
+            this.tenant = tenant;
+            this.start = start;
+            this.finish = finish;
+            this.arrival = arrival;
+        }
+    }
+
+    /**
+     * The work waiting in and holding slots for one lane. Each piece of work waiting is tagged with a virtual start
+     * time, the later of the lane's virtual time and its tenant's last finish time; a tenant's finish time advances
+     * by the inverse of its weight with each piece, and the lane's virtual time to the start of each admitted piece.
+     * A finish time the virtual time has passed no longer counts, so it is dropped; once nothing is waiting the
+     * virtual time moves up to the latest finish time admitted and none are kept, so only tenants with recent work
+     * are.
+     */
+    private final class LaneQueue {
+        private final PriorityQueue<Waiter> waiting = new PriorityQueue<>(
+          Comparator.<Waiter>comparingDouble(w -> w.start).thenComparingLong(w -> w.arrival));
+        private final Map<String, Double> finishes = new HashMap<>();
+        // the work whose finish times are kept, soonest first, to drop them once passed
+        private final PriorityQueue<Waiter> finishing = new PriorityQueue<>(
+          Comparator.comparingDouble(w -> w.finish));
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private double virtualTime;
+        private double latestFinish;
+        private int running;
+
+        Waiter enqueue(final String tenant, final long arrival) {
+            double start = Math.max(this.virtualTime, this.finishes.getOrDefault(tenant, 0.0));
+            Waiter waiter = new Waiter(tenant, start, start + 1 / weights.getOrDefault(tenant, 1.0), arrival);
+            this.finishes.put(tenant, waiter.finish);
+            this.finishing.add(waiter);
+            this.waiting.add(waiter);
+            return waiter;
+        }
+
+        void admit() {
+            Waiter waiter = this.waiting.remove();
+            this.virtualTime = waiter.start;
+            waiter.admitted = true;
+            this.running++;
+            this.latestFinish = Math.max(this.latestFinish, waiter.finish);
+            if (this.waiting.isEmpty()) {
+                idle();
+                return;
+            }
+            while (!this.finishing.isEmpty() && this.finishing.peek().finish <= this.virtualTime) {
+                Waiter passed = this.finishing.remove();
+                this.finishes.remove(passed.tenant, passed.finish);
+            }
+        }
+
+        // take back work that gave up waiting; if it was its tenant's latest, the tenant's finish time goes back
+        void withdraw(final Waiter waiter) {
+            this.waiting.remove(waiter);
+            this.finishing.remove(waiter);
+            if (this.waiting.isEmpty()) {
+                idle();
+                return;
+            }
+            if (!this.finishes.remove(waiter.tenant, waiter.finish))
+                return;
+            if (waiter.start > this.virtualTime)
+                this.finishes.put(waiter.tenant, waiter.start);
+        }
+
+        private void idle() {
+            this.virtualTime = this.latestFinish;
+            this.finishes.clear();
+            this.finishing.clear();
+        }
+
+        // the number of tenants whose finish times are kept
+        int tenants() {
+            return this.finishes.size();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Timers and counters for the stages of a request, emitted as CloudWatch embedded metric format log lines. Every
+ * metric has a fixed-size sample slot array allocated up front; recording a value is a couple of atomic operations
+ * and allocates nothing. Past the slot count, samples are kept by reservoir sampling so the emitted values stay a
+ * fair sample for percentiles.
+ *
+ * <p>Values recorded while {@link #flush} runs may land in either the flushed or the next set of samples.</p>
+ */
+public final class Metrics {
+    // CloudWatch accepts at most 100 values per metric in one log event
+    private static final int MAX_SAMPLES = 100;
+
+    /**
+     * Units of metric values, named as CloudWatch names them.
+     */
+    public enum Unit {
+        /** Elapsed time. */
+        MICROSECONDS("Microseconds"),
+        /** Sizes. */
+        BYTES("Bytes"),
+        /** Counts. */
+        COUNT("Count"),
+        /** Shares of a whole. */
+        PERCENT("Percent");
+
+        private final String label;
+
+        Unit(final String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * The metrics recorded.
+     */
+    public enum Metric {
+        /** Loading a PDF for local rendering. */
+        PDF_LOAD("PdfLoad", Unit.MICROSECONDS),
+        /** Rendering one PDF page to an image. */
+        PAGE_RENDER("PageRender", Unit.MICROSECONDS),
+        /** Encoding one rendered page as PNG. */
+        IMAGE_ENCODE("ImageEncode", Unit.MICROSECONDS),
+        /** Size of one encoded page image. */
+        ENCODED_BYTES("EncodedBytes", Unit.BYTES),
+        /** Preparing one image file for text detection. */
+        IMAGE_PREPROCESS("ImagePreprocess", Unit.MICROSECONDS),
+        /** Bytes taken off one image file by preparing it for text detection. */
+        IMAGE_BYTES_SAVED("ImageBytesSaved", Unit.BYTES),
+        /** One Textract call, including rate limiting, retries and hedging. */
+        TEXTRACT_CALL("TextractCall", Unit.MICROSECONDS),
+        /** One Comprehend Medical call, including rate limiting, retries and hedging. */
+        COMPREHEND_CALL("ComprehendCall", Unit.MICROSECONDS),
+        /** Waiting for an asynchronous Textract job to finish. */
+        JOB_WAIT("JobWait", Unit.MICROSECONDS),
+        /** Pages of results fetched from an asynchronous Textract job. */
+        RESULT_PAGES("ResultPages", Unit.COUNT),
+        /** Share of the pages of a PDF whose text came from the page cache rather than Textract. */
+        PAGE_CACHE_HIT_RATE("PageCacheHitRate", Unit.PERCENT),
+        /** Appending the text detected in a document to the corpus store. */
+        CORPUS_APPEND("CorpusAppend", Unit.MICROSECONDS),
+        /** Documents whose text could not be appended to the corpus store. */
+        CORPUS_APPEND_FAILURES("CorpusAppendFailures", Unit.COUNT),
+        /** Waiting for a slot in the interactive lane. */
+        INTERACTIVE_WAIT("InteractiveWait", Unit.MICROSECONDS),
+        /** Interactive work found waiting on arrival in the interactive lane. */
+        INTERACTIVE_QUEUE_DEPTH("InteractiveQueueDepth", Unit.COUNT),
+        /** Waiting for a slot in the batch lane. */
+        BATCH_WAIT("BatchWait", Unit.MICROSECONDS),
+        /** Batch work found waiting on arrival in the batch lane. */
+        BATCH_QUEUE_DEPTH("BatchQueueDepth", Unit.COUNT),
+        /** Binding a request body to the function input. */
+        JSON_PARSE("JsonParse", Unit.MICROSECONDS),
+        /** Serializing the function output. */
+        JSON_SERIALIZE("JsonSerialize", Unit.MICROSECONDS),
+        /** Size of a response body before compression. */
+        RESPONSE_BYTES("ResponseBytes", Unit.BYTES),
+        /** Size of a response body after compression. */
+        RESPONSE_COMPRESSED_BYTES("ResponseCompressedBytes", Unit.BYTES),
+        /** Compressing and encoding a response body. */
+        RESPONSE_COMPRESS("ResponseCompress", Unit.MICROSECONDS);
+
+        private final String label;
+        private final Unit unit;
+
+        Metric(final String label, final Unit unit) {
+            this.label = label;
+            this.unit = unit;
+        }
+
+        /**
+         * Returns the metric name as emitted.
+         * @return the name
+         */
+        public String getLabel() {
+            return this.label;
+        }
+    }
+
+    private static final Metric[] METRICS = Metric.values();
+
+    private final AtomicReference<Samples> current = new AtomicReference<>(new Samples());
+
+    /**
+     * Returns the start time for a timer.
+     * @return the current value of {@link System#nanoTime()}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time elapsed since a timer was started.
+     * @param metric the timer metric
+     * @param startNanos the value returned by {@link #start()}
+     */
+    public void stop(final Metric metric, final long startNanos) {
+        record(metric, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Time a call.
+     * @param metric the timer metric
+     * @param call the call
+     * @param <T> the result type
+     * @return the result of the call
+     */
+    public <T> T time(final Metric metric, final Supplier<T> call) {
+        long start = start();
+        try {
+            return call.get();
+        } finally {
+            stop(metric, start);
+        }
+    }
+
+    /**
+     * Record a value.
+     * @param metric the metric
+     * @param value the value, in the metric's unit
+     */
+    public void record(final Metric metric, final long value) {
+        // a set being flushed refuses the value, which then goes to the set that replaced it
+        while (!this.current.get().record(metric, value))
+            Thread.yield();
+    }
+
+    /**
+     * Returns the number of values recorded for a metric since the last flush.
+     * @param metric the metric
+     * @return the count
+     */
+    public long getCount(final Metric metric) {
+        return this.current.get().counts.get(metric.ordinal());
+    }
+
+    /**
+     * Returns the recorded values as an embedded metric format log line and starts a new set of samples.
+     * @param namespace the CloudWatch namespace
+     * @param dimension the dimension name
+     * @param value the dimension value
+     * @return the log line, or null if nothing was recorded
+     */
+    public String flush(final String namespace, final String dimension, final String value) {
+        Samples flushed = this.current.getAndSet(new Samples());
+        flushed.seal();
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (Metric metric : METRICS) {
+            long n = flushed.counts.get(metric.ordinal());
+            if (n == 0)
+                continue;
+            if (names.length() > 0)
+                names.append(',');
+            names.append("{\"Name\":\"").append(metric.label).append("\",\"Unit\":\"").append(metric.unit.label)
+              .append("\"}");
+            values.append(",\"").append(metric.label).append("\":[");
+            int base = metric.ordinal() * MAX_SAMPLES;
+            for (int i = 0; i < Math.min(n, MAX_SAMPLES); i++) {
+                if (i > 0)
+                    values.append(',');
+                values.append(flushed.values.get(base + i));
+            }
+            values.append(']');
+        }
+        if (names.length() == 0)
+            return null;
+        return "{\"_aws\":{\"Timestamp\":" + System.currentTimeMillis() + ",\"CloudWatchMetrics\":[{\"Namespace\":\""
+          + namespace + "\",\"Dimensions\":[[\"" + dimension + "\"]],\"Metrics\":[" + names + "]}]},\"" + dimension
+          + "\":\"" + value + "\"" + values + "}";
+    }
+
+    /**
+     * One set of samples, from one flush to the next. A flush swaps in a fresh set and seals the old one, waiting
+     * for values already being recorded into it, so every count it reads has its sample in place.
+     */
+    private static final class Samples {
+        private final AtomicLongArray counts = new AtomicLongArray(METRICS.length);
+        private final AtomicLongArray values = new AtomicLongArray(METRICS.length * MAX_SAMPLES);
+        // values being recorded, offset by Integer.MIN_VALUE once sealed
+        private final AtomicInteger writers = new AtomicInteger();
+
+        boolean record(final Metric metric, final long value) {
+            try {
+                if (this.writers.incrementAndGet() < 0)
+                    return false;
+                long n = this.counts.getAndIncrement(metric.ordinal());
+                long slot = n < MAX_SAMPLES ? n : ThreadLocalRandom.current().nextLong(n + 1);
+                if (slot < MAX_SAMPLES)
+                    this.values.set(metric.ordinal() * MAX_SAMPLES + (int) slot, value);
+                return true;
+            } finally {
+                this.writers.decrementAndGet();
+            }
+        }
+
+        void seal() {
+            this.writers.addAndGet(Integer.MIN_VALUE);
+            while (this.writers.get() != Integer.MIN_VALUE)
+                Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+
+/**
+ * A bounded cache of the text detected on PDF pages, so a page seen before is not sent to Textract again. Pages are
+ * looked up first by a hash of their content, before rendering, which finds a page re-sent in another document
+ * unchanged.
+ * <p>
+ * Pages can also be matched by their rendering, which finds a page whose PDF was written again, e.g. re-compressed,
+ * without changing how it looks. This is off unless MED_PAGE_CACHE_DISTANCE is set, to the number of the
+ * {@value #HASH_BITS} bits of a perceptual hash of the rendered page that a candidate may differ by. A perceptual
+ * match is only a hint: its text is used only if the rendered pixels are also exactly the same, so a page that merely
+ * looks alike, such as the same form filled in differently or a fax with a new time stamp, is sent to Textract. The
+ * number of pages kept is set by MED_PAGE_CACHE_PAGES; 0 turns the cache off. The least recently used page is evicted
+ * first.
+ */
+public final class PageCache {
+    /** Number of bits in a perceptual hash. */
+    public static final int HASH_BITS = 256;
+    /** Environment variable for the number of pages kept. */
+    public static final String PAGES_VAR_NAME = "MED_PAGE_CACHE_PAGES";
+    /** Environment variable for the bits two perceptual hashes may differ by and still match. */
+    public static final String DISTANCE_VAR_NAME = "MED_PAGE_CACHE_DISTANCE";
+    private static final int DEFAULT_PAGES = 2000;
+    private static final int DEFAULT_DISTANCE = -1;
+    // candidates for a perceptual match are found by bands of the hash: two hashes that differ by fewer bits than
+    // there are bands agree on at least one band
+    private static final int BANDS = 16;
+    private static final int BAND_BITS = HASH_BITS / BANDS;
+    private static final long BAND_MASK = (1L << BAND_BITS) - 1;
+    // the perceptual hash compares each cell of a grid over the page with the cell to its right
+    private static final int GRID = 16;
+    private static final int SAMPLES_PER_CELL = 16;
+    private static final int HASH_WORDS = HASH_BITS / Long.SIZE;
+    private static final int MAX_FORM_DEPTH = 4;
+    // the resources besides XObjects that change how a page's content draws
+    private static final COSName[] DRAWN_WITH = {COSName.FONT, COSName.EXT_G_STATE, COSName.PATTERN, COSName.SHADING};
+    // markers keeping the structure of digested objects apart from their values
+    private static final byte NULL = 0;
+    private static final byte SEEN = 1;
+    private static final byte BEGIN = 2;
+    private static final byte END = 3;
+    private static final int RED_WEIGHT = 299;
+    private static final int GREEN_WEIGHT = 587;
+    private static final int BLUE_WEIGHT = 114;
+    // brightness, on the weighted scale up to 255000, a cell must exceed its neighbor by to count as brighter, so
+    // specks of noise in blank areas of the page do not flip bits
+    private static final double MARGIN = 5000;
+    private static final int BYTE_MASK = 0xff;
+    private static final int RED_SHIFT = 16;
+    private static final int GREEN_SHIFT = 8;
+    private static final double PERCENT = 100;
+    private static final PageCache SHARED = fromEnvironment();
+
+    private final int capacity;
+    private final int maxDistance;
+    private final Map<String, Entry> pages;
+    private final Map<Long, List<Entry>> bands = new HashMap<>();
+    private final AtomicLong contentHits = new AtomicLong();
+    private final AtomicLong renderingHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param capacity the number of pages kept
+     * @param maxDistance the bits the perceptual hash of a candidate may differ by, or -1 to match only by content
+     */
+    public PageCache(final int capacity, final int maxDistance) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("invalid page cache capacity: " + capacity);
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+        this.pages = new LinkedHashMap<String, Entry>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                if (size() <= PageCache.this.capacity)
+                    return false;
+                release(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by the analyzers of a process, set up from the environment.
+     * @return the cache, or null if it is turned off
+     */
+    public static PageCache shared() {
+        return SHARED;
+    }
+
+    private static PageCache fromEnvironment() {
+        int capacity = parseInt(PAGES_VAR_NAME, System.getenv(PAGES_VAR_NAME), DEFAULT_PAGES, 0);
+        if (capacity == 0)
+            return null;
+        return new PageCache(capacity, parseInt(DISTANCE_VAR_NAME, System.getenv(DISTANCE_VAR_NAME),
+          DEFAULT_DISTANCE, -1));
+    }
+
+    // a value that is not a number, or is below the minimum, is logged and the default used instead
+    private static int parseInt(final String name, final String value, final int fallback, final int min) {
+        if (value == null || value.trim().isEmpty())
+            return fallback;
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= min)
+                return parsed;
+        } catch (NumberFormatException e) {
+            // logged below
+        }
+        StructuredLogger.deferWarning("ignoring invalid " + name + " '" + value + "', using " + fallback);
+        return fallback;
+    }
+
+    /**
+     * Check whether pages are matched by their rendering, so the analyzer should hash the pages it renders.
+     * @return true if a distance is set
+     */
+    public boolean isMatchingRenderings() {
+        return this.maxDistance >= 0;
+    }
+
+    /**
+     * Returns the text detected on a page with the same content hash.
+     * @param contentHash the page's {@link #contentHash content hash}
+     * @return the text, or null if no such page is cached
+     */
+    public synchronized String get(final String contentHash) {
+        Entry entry = this.pages.get(contentHash);
+        if (entry == null)
+            return null;
+        this.contentHits.incrementAndGet();
+        return entry.text;
+    }
+
+    /**
+     * Returns the text detected on a page that renders the same, and remembers it under this page's content hash too
+     * so the page is found by content the next time. Pages whose perceptual hashes are close enough are candidates,
+     * and a candidate matches only if its rendering hash is the same. Counts a miss if there is none, as the page is
+     * then sent for detection.
+     * @param contentHash the page's {@link #contentHash content hash}
+     * @param perceptualHash the rendered page's {@link #perceptualHash perceptual hash}, or null if pages are not
+     * matched by rendering
+     * @param renderingHash the rendered page's {@link #renderingHash rendering hash}, or null if pages are not matched
+     * by rendering
+     * @return the text, or null if no such page is cached
+     */
+    public synchronized String getSimilar(final String contentHash, final long[] perceptualHash,
+      final String renderingHash) {
+        Entry match = isMatchingRenderings() && perceptualHash != null && renderingHash != null
+          ? find(perceptualHash, renderingHash) : null;
+        if (match == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.renderingHits.incrementAndGet();
+        match.keys++;
+        Entry replaced = this.pages.put(contentHash, match);
+        if (replaced != null)
+            release(replaced);
+        return match.text;
+    }
+
+    private Entry find(final long[] perceptualHash, final String renderingHash) {
+        for (int band = 0; band < BANDS; band++) {
+            List<Entry> candidates = this.bands.get(bandKey(perceptualHash, band));
+            if (candidates == null)
+                continue;
+            for (Entry candidate : candidates) {
+                if (renderingHash.equals(candidate.renderingHash)
+                  && distance(candidate.perceptualHash, perceptualHash) <= this.maxDistance)
+                    return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remember the text detected on a page.
+     * @param contentHash the page's {@link #contentHash content hash}
+     * @param perceptualHash the rendered page's {@link #perceptualHash perceptual hash}, or null if pages are not
+     * matched by rendering
+     * @param renderingHash the rendered page's {@link #renderingHash rendering hash}, or null if pages are not matched
+     * by rendering
+     * @param text the detected text
+     */
+    public synchronized void put(final String contentHash, final long[] perceptualHash, final String renderingHash,
+      final String text) {
+        Entry entry = new Entry(perceptualHash, renderingHash, text);
+        if (isMatchingRenderings() && perceptualHash != null && renderingHash != null) {
+            for (int band = 0; band < BANDS; band++)
+                this.bands.computeIfAbsent(bandKey(perceptualHash, band), key -> new ArrayList<>(1)).add(entry);
+            entry.indexed = true;
+        }
+        Entry replaced = this.pages.put(contentHash, entry);
+        if (replaced != null)
+            release(replaced);
+    }
+
+    // drop a page from the bands once no content hash refers to it any more
+    private void release(final Entry entry) {
+        if (--entry.keys > 0 || !entry.indexed)
+            return;
+        for (int band = 0; band < BANDS; band++) {
+            Long key = bandKey(entry.perceptualHash, band);
+            List<Entry> candidates = this.bands.get(key);
+            if (candidates == null)
+                continue;
+            candidates.removeIf(candidate -> candidate == entry);
+            if (candidates.isEmpty())
+                this.bands.remove(key);
+        }
+    }
+
+    // the band's bits, kept apart from the same bits of other bands and of pages of other sizes
+    private static Long bandKey(final long[] perceptualHash, final int band) {
+        int bit = band * BAND_BITS;
+        long value = perceptualHash[bit / Long.SIZE] >>> (bit % Long.SIZE) & BAND_MASK;
+        return (perceptualHash[HASH_WORDS] * BANDS + band) << BAND_BITS | value;
+    }
+
+    /**
+     * Returns the share of lookups answered from the cache.
+     * @return the hit rate, from 0 to 1, or 0 before any lookups
+     */
+    public double getHitRate() {
+        long hits = this.contentHits.get() + this.renderingHits.get();
+        long lookups = hits + this.misses.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d pages cached, %d content hits, %d rendering hits, %d misses, hit rate %.1f%%",
+          this.pages.size(), this.contentHits.get(), this.renderingHits.get(), this.misses.get(),
+          getHitRate() * PERCENT);
+    }
+
+    /**
+     * Returns a hash of what a page draws: its content, size and rotation, the images and forms it draws, and the
+     * fonts, graphics states, patterns and shadings it and its forms draw with, including embedded font programs,
+     * encodings and ToUnicode maps, since text in the same content can come out differently under another font.
+     * @param page the page
+     * @return the hash
+     * @throws IOException if the page cannot be read
+     */
+    public static String contentHash(final PDPage page) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update((page.getMediaBox() + "/" + page.getRotation()).getBytes(StandardCharsets.UTF_8));
+        try (InputStream contents = page.getContents()) {
+            update(digest, contents);
+        }
+        update(digest, page.getResources(), 0);
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static void update(final MessageDigest digest, final PDResources resources, final int depth)
+      throws IOException {
+        if (resources == null || depth > MAX_FORM_DEPTH)
+            return;
+        for (COSName name : resources.getXObjectNames()) {
+            PDXObject object = resources.getXObject(name);
+            if (object == null)
+                continue;
+            digest.update(name.getName().getBytes(StandardCharsets.UTF_8));
+            try (InputStream stream = object.getCOSObject().createRawInputStream()) {
+                update(digest, stream);
+            }
+            if (object instanceof PDFormXObject)
+                update(digest, ((PDFormXObject) object).getResources(), depth + 1);
+        }
+        for (COSName type : DRAWN_WITH) {
+            digest.update(type.getName().getBytes(StandardCharsets.UTF_8));
+            update(digest, resources.getCOSObject().getDictionaryObject(type),
+              Collections.newSetFromMap(new IdentityHashMap<>()));
+        }
+    }
+
+    // digest an object and everything it refers to, following each dictionary or array only once
+    private static void update(final MessageDigest digest, final COSBase object, final Set<COSBase> seen)
+      throws IOException {
+        COSBase value = object instanceof COSObject ? ((COSObject) object).getObject() : object;
+        if (value == null) {
+            digest.update(NULL);
+            return;
+        }
+        if ((value instanceof COSDictionary || value instanceof COSArray) && !seen.add(value)) {
+            digest.update(SEEN);
+            return;
+        }
+        if (value instanceof COSDictionary) {
+            COSDictionary dictionary = (COSDictionary) value;
+            digest.update(BEGIN);
+            for (COSName key : new TreeSet<>(dictionary.keySet())) {
+                digest.update(key.getName().getBytes(StandardCharsets.UTF_8));
+                update(digest, dictionary.getItem(key), seen);
+            }
+            digest.update(END);
+            if (value instanceof COSStream) {
+                try (InputStream stream = ((COSStream) value).createRawInputStream()) {
+                    update(digest, stream);
+                }
+            }
+        } else if (value instanceof COSArray) {
+            digest.update(BEGIN);
+            for (COSBase item : (COSArray) value)
+                update(digest, item, seen);
+            digest.update(END);
+        } else if (value instanceof COSString) {
+            digest.update(((COSString) value).getBytes());
+        } else {
+            digest.update(value.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void update(final MessageDigest digest, final InputStream stream) throws IOException {
+        if (stream == null)
+            return;
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = stream.read(buffer)) > 0)
+            digest.update(buffer, 0, n);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Returns a perceptual hash of a rendered page: the page is reduced to a grid of average brightness, and each bit
+     * says whether a cell is clearly brighter than the cell to its right. The size of the page is kept alongside, so
+     * pages of different sizes never match.
+     * @param image the rendered page
+     * @return the hash
+     */
+    public static long[] perceptualHash(final BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int columns = GRID + 1;
+        long[] brightness = new long[columns * GRID];
+        int[] counts = new int[columns * GRID];
+        int stepX = Math.max(1, width / (columns * SAMPLES_PER_CELL));
+        int stepY = Math.max(1, height / (GRID * SAMPLES_PER_CELL));
+        for (int y = 0; y < height; y += stepY) {
+            int row = (int) ((long) y * GRID / height);
+            for (int x = 0; x < width; x += stepX) {
+                int rgb = image.getRGB(x, y);
+                int cell = row * columns + (int) ((long) x * columns / width);
+                brightness[cell] += ((rgb >> RED_SHIFT) & BYTE_MASK) * RED_WEIGHT
+                  + ((rgb >> GREEN_SHIFT) & BYTE_MASK) * GREEN_WEIGHT + (rgb & BYTE_MASK) * BLUE_WEIGHT;
+                counts[cell]++;
+            }
+        }
+        long[] hash = new long[HASH_WORDS + 1];
+        for (int row = 0; row < GRID; row++) {
+            for (int column = 0; column < GRID; column++) {
+                int cell = row * columns + column;
+                if (average(brightness, counts, cell) - average(brightness, counts, cell + 1) > MARGIN) {
+                    int bit = row * GRID + column;
+                    hash[bit / Long.SIZE] |= 1L << (bit % Long.SIZE);
+                }
+            }
+        }
+        hash[HASH_WORDS] = (long) width << Integer.SIZE | height;
+        return hash;
+    }
+
+    /**
+     * Returns a hash of the pixels of a rendered page, which is the same only for pages that render exactly alike.
+     * @param image the rendered page
+     * @return the hash
+     */
+    public static String renderingHash(final BufferedImage image) {
+        MessageDigest digest = sha256();
+        int width = image.getWidth();
+        int[] row = new int[width];
+        digest.update(ByteBuffer.allocate(2 * Integer.BYTES).putInt(width).putInt(image.getHeight()).array());
+        ByteBuffer bytes = ByteBuffer.allocate(width * Integer.BYTES);
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            digest.update(bytes.array());
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static double average(final long[] brightness, final int[] counts, final int cell) {
+        return counts[cell] == 0 ? 0 : (double) brightness[cell] / counts[cell];
+    }
+
+    /**
+     * Returns the number of bits two perceptual hashes differ by.
+     * @param a one hash
+     * @param b the other hash
+     * @return the distance, or {@link Integer#MAX_VALUE} if the pages are not the same size
+     */
+    public static int distance(final long[] a, final long[] b) {
+        if (a[HASH_WORDS] != b[HASH_WORDS])
+            return Integer.MAX_VALUE;
+        int distance = 0;
+        for (int i = 0; i < HASH_WORDS; i++)
+            distance += Long.bitCount(a[i] ^ b[i]);
+        return distance;
+    }
+
+    private static final class Entry {
+        private final long[] perceptualHash;
+        private final String renderingHash;
+        private final String text;
+        // the content hashes the page is kept under, and whether it is in the bands
+        private int keys = 1;
+        private boolean indexed;
+
+        Entry(final long[] perceptualHash, final String renderingHash, final String text) {
+            this.perceptualHash = perceptualHash;
+            this.renderingHash = renderingHash;
+            this.text = text;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.getmarco.medtextanalyze.support;
 import java.util.HashMap;
 import java.util.Map;
 
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -20,14 +21,26 @@ public class ProxyResponse {
 
     /** HTTP response status code - 200 OK. */
     public static final int STATUS_CODE_OK = 200;
+    /** HTTP response status code - 400 Bad Request. */
+    public static final int STATUS_CODE_BAD_REQUEST = 400;
     /** HTTP response status code - 500 Internal Server Error. */
     public static final int STATUS_CODE_SERVER_ERROR = 500;
 
     private int statusCode;
     private Map<String, String> headers;
     private String body;
+    @Getter(AccessLevel.NONE)
     private boolean isBase64Encoded;
 
+    /**
+     * Returns whether the body is Base64 encoded. Named so the flag serializes as {@code isBase64Encoded}, the name
+     * API Gateway looks for.
+     * @return whether the body is Base64
+     */
+    public boolean getIsBase64Encoded() {
+        return isBase64Encoded;
+    }
+
     /**
      * Builder class for {@link ProxyResponse}.
      */
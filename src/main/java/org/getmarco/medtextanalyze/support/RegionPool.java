@@ -0,0 +1,308 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.SdkBaseException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Spreads the calls to one AWS service over clients in several regions, so throughput is bounded by the sum of the
+ * regional quotas rather than by one region's, and a region having a bad time is routed around. Each call goes to the
+ * region with the least outstanding work, counted as its calls in flight weighted by an exponentially weighted moving
+ * average of its latency. A region that throttles or fails transiently is cooled down for a while, longer each time
+ * in a row, and the call fails over to the next region at once rather than backing off where it was turned away.
+ * Calls go through a {@link CallGovernor#forService(String, String) governor per region}, so each region's quota is
+ * still kept; the last region a call can go to retries as a governor does.
+ * <p>
+ * Textract reads S3 objects only from buckets in its own region, so calls on S3 objects are limited to the
+ * {@link #getBucketLocations regions their bucket can be read from}: its own and those holding a replica. Buckets not
+ * configured are taken to be in the primary region, the first added.
+ * @param <C> the client type
+ */
+public final class RegionPool<C> {
+    private static final double LATENCY_WEIGHT = 0.2;
+    // a region not called for this long is sent one call to find out if it has got faster
+    private static final long PROBE_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long BASE_COOL_DOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_COOL_DOWN_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final String service;
+    private final List<Region<C>> regions = new CopyOnWriteArrayList<>();
+    private final Map<String, Map<String, String>> buckets = new ConcurrentHashMap<>();
+    private final LongAdder failovers = new LongAdder();
+
+    /**
+     * Constructor.
+     * @param service the service name, which with each region names the governor its calls go through
+     */
+    public RegionPool(final String service) {
+        this.service = service;
+    }
+
+    /**
+     * Add a region. The first added is the primary region.
+     * @param region the region name
+     * @param client the client for the region
+     * @throws IllegalArgumentException if the region has been added already
+     */
+    public void add(final String region, final C client) {
+        if (getRegions().contains(region))
+            throw new IllegalArgumentException("duplicate region " + region);
+        this.regions.add(new Region<>(region, client, CallGovernor.forService(this.service, region)));
+    }
+
+    /**
+     * Returns the names of the regions, the primary first.
+     * @return the region names
+     */
+    public List<String> getRegions() {
+        List<String> names = new ArrayList<>();
+        for (Region<C> region : this.regions)
+            names.add(region.name);
+        return names;
+    }
+
+    /**
+     * Returns the primary region.
+     * @return the region name
+     * @throws IllegalStateException if no region has been added
+     */
+    public String getPrimaryRegion() {
+        if (this.regions.isEmpty())
+            throw new IllegalStateException("no " + this.service + " regions");
+        return this.regions.get(0).name;
+    }
+
+    /**
+     * Apply bucket locations from a comma separated list of {@code bucket=region[:name]} entries, one for each
+     * region a bucket can be read from, with the name of its replica there if the name differs; for example
+     * {@code scans=us-east-1,scans=us-west-2:scans-west}.
+     * @param spec the location list, may be null or empty
+     * @throws IllegalArgumentException if an entry cannot be parsed
+     */
+    public void configureBuckets(final String spec) {
+        if (spec == null || spec.trim().isEmpty())
+            return;
+        for (String entry : spec.split(",")) {
+            String[] nameValue = entry.trim().split("=", 2);
+            if (nameValue.length != 2 || nameValue[0].trim().isEmpty() || nameValue[1].trim().isEmpty())
+                throw new IllegalArgumentException("invalid bucket location: " + entry);
+            String[] regionName = nameValue[1].trim().split(":", 2);
+            String bucket = nameValue[0].trim();
+            setBucketLocation(bucket, regionName[0], regionName.length > 1 ? regionName[1] : bucket);
+        }
+    }
+
+    /**
+     * Add a region a bucket can be read from.
+     * @param bucket the bucket name
+     * @param region the region name
+     * @param name the name of the bucket, or of its replica, in the region
+     */
+    public void setBucketLocation(final String bucket, final String region, final String name) {
+        this.buckets.compute(bucket, (b, locations) -> {
+            Map<String, String> updated = locations == null ? new LinkedHashMap<>() : new LinkedHashMap<>(locations);
+            updated.put(region, name);
+            return Collections.unmodifiableMap(updated);
+        });
+    }
+
+    /**
+     * Returns the regions a bucket can be read from.
+     * @param bucket the bucket name
+     * @return the name of the bucket or its replica, keyed by region name; the primary region alone for a bucket not
+     *   configured
+     */
+    public Map<String, String> getBucketLocations(final String bucket) {
+        Map<String, String> locations = this.buckets.get(bucket);
+        return locations != null ? locations : Collections.singletonMap(getPrimaryRegion(), bucket);
+    }
+
+    /**
+     * Make a call in the best of the given regions, failing over to the next best when a region throttles or fails
+     * transiently.
+     * @param api the API name
+     * @param deadline the time by which the call must finish
+     * @param regions the regions the call may be made in, or null for any
+     * @param call makes the call with the client of a region, given the region name
+     * @param <T> the result type
+     * @return the call result
+     * @throws IllegalArgumentException if none of the regions is in the pool
+     */
+    public <T> T call(final String api, final Deadline deadline, final Collection<String> regions,
+      final BiFunction<C, String, T> call) {
+        List<Region<C>> candidates = rank(regions);
+        if (candidates.isEmpty())
+            throw new IllegalArgumentException("no " + this.service + " region among " + regions);
+        for (int i = 0;; i++) {
+            Region<C> region = candidates.get(i);
+            boolean last = i == candidates.size() - 1;
+            long start = System.nanoTime();
+            region.outstanding.incrementAndGet();
+            region.lastCallNanos = start;
+            try {
+                T result = last
+                  ? region.governor.call(api, deadline, () -> call.apply(region.client, region.name))
+                  : region.governor.call(api, deadline, 1, () -> call.apply(region.client, region.name));
+                region.succeeded(System.nanoTime() - start);
+                return result;
+            } catch (SdkBaseException e) {
+                boolean failover = CallGovernor.isThrottle(e) || CallGovernor.isTransient(e);
+                if (failover)
+                    region.failed(System.nanoTime());
+                if (last || !failover)
+                    throw e;
+                this.failovers.increment();
+            } finally {
+                region.outstanding.decrementAndGet();
+            }
+        }
+    }
+
+    // the regions allowed, healthy ones by least outstanding work, then cooling ones by how soon they are done
+    private List<Region<C>> rank(final Collection<String> allowed) {
+        long now = System.nanoTime();
+        List<Choice<C>> choices = new ArrayList<>();
+        for (Region<C> region : this.regions) {
+            if (allowed == null || allowed.contains(region.name))
+                choices.add(new Choice<>(region, Math.max(0, region.coolUntilNanos - now), region.score(now)));
+        }
+        choices.sort(Comparator.<Choice<C>>comparingLong(c -> c.coolingNanos).thenComparingDouble(c -> c.score));
+        List<Region<C>> ranked = new ArrayList<>(choices.size());
+        for (Choice<C> choice : choices)
+            ranked.add(choice.region);
+        return ranked;
+    }
+
+    /**
+     * Returns the number of calls in flight in a region.
+     * @param region the region name
+     * @return the calls in flight
+     */
+    public int getOutstanding(final String region) {
+        return region(region).outstanding.get();
+    }
+
+    /**
+     * Returns the number of calls that succeeded in a region.
+     * @param region the region name
+     * @return the calls
+     */
+    public long getCalls(final String region) {
+        return region(region).calls.sum();
+    }
+
+    /**
+     * Returns the moving average latency of the calls made in a region.
+     * @param region the region name
+     * @return the latency in milliseconds, or -1 if no call has succeeded there yet
+     */
+    public long getLatencyMillis(final String region) {
+        double latency = region(region).latencyNanos;
+        return Double.isNaN(latency) ? -1 : Math.round(latency / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Returns the number of calls moved to another region after a throttle or transient failure.
+     * @return the failovers
+     */
+    public long getFailovers() {
+        return this.failovers.sum();
+    }
+
+    private Region<C> region(final String name) {
+        for (Region<C> region : this.regions) {
+            if (region.name.equals(name))
+                return region;
+        }
+        throw new IllegalArgumentException("unknown " + this.service + " region " + name);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Region<C> region : this.regions) {
+            if (s.length() > 0)
+                s.append("; ");
+            s.append(this.service).append('@').append(region.name).append(": calls=").append(region.calls.sum())
+              .append(" failures=").append(region.failures.sum()).append(" outstanding=")
+              .append(region.outstanding.get()).append(" latency=").append(getLatencyMillis(region.name))
+              .append("ms");
+        }
+        return s.append(" failovers=").append(getFailovers()).toString();
+    }
+
+    /**
+     * A region's client and what is known of how it is doing.
+     */
+    private static final class Region<C> {
+        private final String name;
+        private final C client;
+        private final CallGovernor governor;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private volatile double latencyNanos = Double.NaN;
+        private volatile long lastCallNanos;
+        private volatile long coolUntilNanos;
+        private int failuresInRow;
+
+        Region(final String name, final C client, final CallGovernor governor) {
+            this.name = name;
+            this.client = client;
+            this.governor = governor;
+            this.coolUntilNanos = System.nanoTime();
+        }
+
+        // calls in flight weighted by latency; an idle region not heard from lately comes first, to probe it
+        double score(final long now) {
+            int inFlight = this.outstanding.get();
+            double latency = this.latencyNanos;
+            if (inFlight == 0 && (Double.isNaN(latency) || now - this.lastCallNanos > PROBE_NANOS))
+                return -1;
+            return Double.isNaN(latency) ? Double.MAX_VALUE : (inFlight + 1) * latency;
+        }
+
+        synchronized void succeeded(final long nanos) {
+            this.calls.increment();
+            this.latencyNanos = Double.isNaN(this.latencyNanos)
+              ? nanos : this.latencyNanos + LATENCY_WEIGHT * (nanos - this.latencyNanos);
+            this.failuresInRow = 0;
+        }
+
+        synchronized void failed(final long now) {
+            this.failures.increment();
+            long coolDown = Math.min(MAX_COOL_DOWN_NANOS,
+              BASE_COOL_DOWN_NANOS << Math.min(this.failuresInRow, Integer.SIZE - 2));
+            this.failuresInRow++;
+            this.coolUntilNanos = now + coolDown;
+        }
+    }
+
+    /**
+     * A snapshot of a region's standing, so ranking sees values that do not change as it sorts.
+     */
+    private static final class Choice<C> {
+        private final Region<C> region;
+        private final long coolingNanos;
+        private final double score;
+
+        Choice(final Region<C> region, final long coolingNanos, final double score) {
+            this.region = region;
+            this.coolingNanos = coolingNanos;
+            this.score = score;
+        }
+    }
+}
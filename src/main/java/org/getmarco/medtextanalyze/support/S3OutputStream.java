@@ -0,0 +1,137 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes an S3 object of unknown length. Content is buffered one part at a time; an object that fits in one part is
+ * stored with a single PUT when the stream is closed, a larger one as a multipart upload whose parts are sent as they
+ * fill. If writing fails the multipart upload is aborted.
+ */
+public final class S3OutputStream extends OutputStream {
+    // S3 requires every part except the last to be at least 5 MB
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final ObjectMetadata metadata;
+    private final byte[] buffer = new byte[PART_SIZE];
+    private final List<PartETag> parts = new ArrayList<>();
+    private int used;
+    private String uploadId;
+    private long size;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     * @param s3 the S3 client
+     * @param bucket the S3 bucket name
+     * @param key the S3 object key
+     * @param metadata the object metadata, content length excluded
+     */
+    public S3OutputStream(final AmazonS3 s3, final String bucket, final String key, final ObjectMetadata metadata) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.metadata = metadata;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (this.used == PART_SIZE)
+            uploadPart();
+        this.buffer[this.used++] = (byte) b;
+        this.size++;
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            if (this.used == PART_SIZE)
+                uploadPart();
+            int n = Math.min(length - done, PART_SIZE - this.used);
+            System.arraycopy(bytes, offset + done, this.buffer, this.used, n);
+            this.used += n;
+            done += n;
+        }
+        this.size += length;
+    }
+
+    /**
+     * Returns the number of bytes written.
+     * @return the object size so far
+     */
+    public long size() {
+        return this.size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed)
+            return;
+        this.closed = true;
+        try {
+            if (this.uploadId == null) {
+                this.metadata.setContentLength(this.used);
+                this.s3.putObject(new PutObjectRequest(this.bucket, this.key,
+                  new ByteArrayInputStream(this.buffer, 0, this.used), this.metadata));
+                return;
+            }
+            uploadPart();
+            this.s3.completeMultipartUpload(
+              new CompleteMultipartUploadRequest(this.bucket, this.key, this.uploadId, this.parts));
+        } catch (SdkBaseException e) {
+            abort();
+            throw new IOException("unable to write s3://" + this.bucket + "/" + this.key, e);
+        }
+    }
+
+    private void uploadPart() throws IOException {
+        try {
+            if (this.uploadId == null)
+                this.uploadId = this.s3.initiateMultipartUpload(
+                  new InitiateMultipartUploadRequest(this.bucket, this.key, this.metadata)).getUploadId();
+            this.parts.add(this.s3.uploadPart(new UploadPartRequest()
+              .withBucketName(this.bucket)
+              .withKey(this.key)
+              .withUploadId(this.uploadId)
+              .withPartNumber(this.parts.size() + 1)
+              .withInputStream(new ByteArrayInputStream(this.buffer, 0, this.used))
+              .withPartSize(this.used)).getPartETag());
+            this.used = 0;
+        } catch (SdkBaseException e) {
+            abort();
+            throw new IOException("unable to write s3://" + this.bucket + "/" + this.key, e);
+        }
+    }
+
+    /**
+     * Abandon the object. A multipart upload in progress is aborted; nothing is stored.
+     */
+    public void abort() {
+        this.closed = true;
+        if (this.uploadId == null)
+            return;
+        try {
+            this.s3.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, this.key, this.uploadId));
+        } catch (SdkBaseException e) {
+            // the bucket lifecycle rule cleans up incomplete uploads
+        }
+        this.uploadId = null;
+    }
+}
@@ -0,0 +1,30 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes log lines to standard output: where the Lambda service collects them for CloudWatch under a custom runtime,
+ * and the console when the functions run outside Lambda.
+ */
+public final class StdoutLogger implements LambdaLogger {
+    /** The logger; it holds no state, so one serves every context. */
+    public static final LambdaLogger INSTANCE = new StdoutLogger();
+
+    private StdoutLogger() {
+    }
+
+    @Override
+    public void log(final String string) {
+        System.out.println(string);
+    }
+
+    /**
+     * Log a message given as UTF-8 bytes.
+     * @param message the message
+     */
+    public void log(final byte[] message) {
+        log(new String(message, StandardCharsets.UTF_8));
+    }
+}
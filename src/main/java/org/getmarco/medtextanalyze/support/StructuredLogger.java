@@ -0,0 +1,271 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Writes log lines as single-line JSON objects tagged with the function and request id. Lines below the configured
+ * level are dropped before their message is built, messages are capped in length, and request bodies are only ever
+ * logged as a bounded summary, so the cost of logging a request does not grow with its payload.
+ *
+ * <p>Configured from the environment: MED_LOG_LEVEL (DEBUG, INFO, WARN or ERROR; default INFO),
+ * MED_LOG_SAMPLE_PERCENT (the share of requests that log at DEBUG whatever the level; default 1) and MED_LOG_BODY
+ * (how bodies are summarized: length, prefix or hash; default length). A value that cannot be parsed is ignored in
+ * favor of the default, with a warning written by the first logger created.</p>
+ */
+public final class StructuredLogger {
+    private static final int MAX_MESSAGE_CHARS = 1024;
+    private static final int BODY_PREFIX_CHARS = 64;
+    private static final int BODY_HASH_CHARS = 64 * 1024;
+    private static final int HASH_HEX_CHARS = 16;
+    private static final double PERCENT = 100;
+    private static final double DEFAULT_SAMPLE_PERCENT = 1;
+    // declared ahead of the settings, which may add to it as they are read
+    private static final Queue<String> DEFERRED_WARNINGS = new ConcurrentLinkedQueue<>();
+    private static final Level LEVEL = parseEnum("MED_LOG_LEVEL", System.getenv("MED_LOG_LEVEL"), Level.INFO);
+    private static final double SAMPLE_PERCENT = parseDouble("MED_LOG_SAMPLE_PERCENT",
+      System.getenv("MED_LOG_SAMPLE_PERCENT"), DEFAULT_SAMPLE_PERCENT);
+    private static final BodyMode BODY_MODE =
+      parseEnum("MED_LOG_BODY", System.getenv("MED_LOG_BODY"), BodyMode.LENGTH);
+
+    /**
+     * Log levels, least severe first.
+     */
+    public enum Level {
+        /** Detail for diagnosing a problem. */
+        DEBUG,
+        /** Normal progress. */
+        INFO,
+        /** Something unexpected that was handled. */
+        WARN,
+        /** A failure. */
+        ERROR
+    }
+
+    /**
+     * How request and response bodies are summarized.
+     */
+    enum BodyMode {
+        LENGTH, PREFIX, HASH
+    }
+
+    private final Consumer<String> sink;
+    private final String prefix;
+    private final Level level;
+
+    /**
+     * Constructor. Decides once whether this logger is one of the sampled few that log at DEBUG.
+     * @param sink where finished lines go
+     * @param function the function name
+     * @param requestId the request id
+     */
+    public StructuredLogger(final Consumer<String> sink, final String function, final String requestId) {
+        this(sink, function, requestId, ThreadLocalRandom.current().nextDouble(PERCENT) < SAMPLE_PERCENT);
+    }
+
+    /**
+     * Constructor.
+     * @param sink where finished lines go
+     * @param function the function name
+     * @param requestId the request id
+     * @param sampled true if this logger logs at DEBUG whatever the configured level
+     */
+    StructuredLogger(final Consumer<String> sink, final String function, final String requestId,
+      final boolean sampled) {
+        this.sink = sink;
+        StringBuilder line = new StringBuilder("{\"function\":");
+        quote(line, function);
+        line.append(",\"requestId\":");
+        quote(line, requestId);
+        this.prefix = line.toString();
+        this.level = sampled ? Level.DEBUG : LEVEL;
+        // written whatever the level, since they explain why the configuration is not what was asked for
+        for (String warning = DEFERRED_WARNINGS.poll(); warning != null; warning = DEFERRED_WARNINGS.poll())
+            write(Level.WARN, warning);
+    }
+
+    /**
+     * Queue a warning for the next logger created to write, for a problem found where there is no request to log
+     * against, such as a bad setting read while a class is initialized.
+     * @param message the warning
+     */
+    public static void deferWarning(final String message) {
+        DEFERRED_WARNINGS.add(message);
+    }
+
+    /**
+     * Check whether lines at a level are written.
+     * @param at the level
+     * @return true if written
+     */
+    public boolean isEnabled(final Level at) {
+        return at.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * Log a message.
+     * @param at the level
+     * @param message the message
+     */
+    public void log(final Level at, final String message) {
+        if (isEnabled(at))
+            write(at, message);
+    }
+
+    /**
+     * Log a message built only if the level is enabled.
+     * @param at the level
+     * @param message supplies the message
+     */
+    public void log(final Level at, final Supplier<String> message) {
+        if (isEnabled(at))
+            write(at, message.get());
+    }
+
+    /**
+     * Log a message at DEBUG, built only if DEBUG is enabled.
+     * @param message supplies the message
+     */
+    public void debug(final Supplier<String> message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Log a message at INFO.
+     * @param message the message
+     */
+    public void info(final String message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Log a message at WARN.
+     * @param message the message
+     */
+    public void warn(final String message) {
+        log(Level.WARN, message);
+    }
+
+    /**
+     * Log a message at ERROR.
+     * @param message the message
+     */
+    public void error(final String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Write a line as is, for output with a format of its own such as embedded metrics.
+     * @param line the line
+     */
+    public void raw(final String line) {
+        this.sink.accept(line);
+    }
+
+    /**
+     * Returns a summary of a body that is safe to log: its length, and a short prefix or a hash of its start if so
+     * configured. Bodies may hold PHI, so by default nothing of the content is shown.
+     * @param body the body, may be null
+     * @return the summary
+     */
+    public static String summarize(final CharSequence body) {
+        return summarize(body, BODY_MODE);
+    }
+
+    static String summarize(final CharSequence body, final BodyMode mode) {
+        if (body == null)
+            return "[no body]";
+        String length = "[" + body.length() + " chars";
+        switch (mode) {
+            case PREFIX:
+                return length + "] " + body.subSequence(0, Math.min(body.length(), BODY_PREFIX_CHARS));
+            case HASH:
+                return length + " sha256:" + hash(body.subSequence(0, Math.min(body.length(), BODY_HASH_CHARS)))
+                  + "]";
+            default:
+                return length + "]";
+        }
+    }
+
+    private void write(final Level at, final String message) {
+        StringBuilder line = new StringBuilder(this.prefix.length() + Math.min(message.length(), MAX_MESSAGE_CHARS)
+          + HASH_HEX_CHARS * 2);
+        line.append(this.prefix).append(",\"level\":\"").append(at.name()).append("\",\"message\":");
+        if (message.length() > MAX_MESSAGE_CHARS)
+            quote(line, message.substring(0, MAX_MESSAGE_CHARS) + "...[" + message.length() + " chars]");
+        else
+            quote(line, message);
+        line.append('}');
+        this.sink.accept(line.toString());
+    }
+
+    private static void quote(final StringBuilder line, final String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                line.append('\\').append(c);
+            else if (c == '\n')
+                line.append("\\n");
+            else if (c < ' ')
+                line.append(String.format("\\u%04x", (int) c));
+            else
+                line.append(c);
+        }
+        line.append('"');
+    }
+
+    private static String hash(final CharSequence value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+              .digest(value.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < HASH_HEX_CHARS / 2; i++)
+                hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parse a setting naming a constant, in any case, falling back to a default if it is not set or not valid.
+     * @param name the setting name, for the warning
+     * @param value the value, may be null
+     * @param fallback the default
+     * @param <E> the enum type
+     * @return the constant
+     */
+    static <E extends Enum<E>> E parseEnum(final String name, final String value, final E fallback) {
+        if (value == null || value.trim().isEmpty())
+            return fallback;
+        try {
+            return Enum.valueOf(fallback.getDeclaringClass(), value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            deferWarning("ignoring invalid " + name + " '" + value + "', using " + fallback);
+            return fallback;
+        }
+    }
+
+    private static double parseDouble(final String name, final String value, final double fallback) {
+        if (value == null || value.trim().isEmpty())
+            return fallback;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            deferWarning("ignoring invalid " + name + " '" + value + "', using " + fallback);
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,646 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.BoundingBox;
+import com.amazonaws.services.textract.model.Relationship;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Where the lines and words of detected text are on their pages, and how confident Textract was of them, kept in
+ * primitive arrays, a column per property, rather than as the SDK's block objects, which take tens of times the
+ * memory. Lines and words are numbered from 0 in reading order, and their text is given by offsets into the layout's
+ * {@link #getText text}, which is the detected text as the analyzer returns it, so the offsets of matches and
+ * entities found in it locate lines and words too.
+ * <p>
+ * Bounding boxes are the left, top, width and height of a line or word as fractions of the page's width and height,
+ * and confidence runs from 0 to 100. Both are NaN for lines whose text came from somewhere other than Textract, such
+ * as the page cache, and which have no words. The {@link #toBytes binary form} keeps them to 16 bits, finer than a
+ * hundredth of a millimeter on a letter-size page.
+ */
+public final class TextLayout {
+    private static final int BOX = 4;
+    private static final int LEFT = 0;
+    private static final int TOP = 1;
+    private static final int WIDTH = 2;
+    private static final int HEIGHT = 3;
+    private static final int MAGIC = 0x4d45444c;
+    private static final float FIXED_SCALE = 0xfffe;
+    private static final float CONFIDENCE_SCALE = 100;
+    // a NaN, unknown box or confidence, in the 16 bit binary form
+    private static final int FIXED_NAN = 0xffff;
+    private static final int VARINT_BITS = 7;
+    private static final int VARINT_MORE = 0x80;
+    private static final int VARINT_MASK = 0x7f;
+
+    private final String text;
+    private final int[] pageNumbers;
+    private final int[] pageFirstLines;
+    private final int[] lineStarts;
+    private final int[] lineEnds;
+    private final float[] lineBoxes;
+    private final float[] lineConfidences;
+    private final int[] lineFirstWords;
+    private final int[] wordStarts;
+    private final int[] wordEnds;
+    private final float[] wordBoxes;
+    private final float[] wordConfidences;
+
+    private TextLayout(final String text, final int[] pageNumbers, final int[] pageFirstLines, final int[] lineStarts,
+      final int[] lineEnds, final float[] lineBoxes, final float[] lineConfidences, final int[] lineFirstWords,
+      final int[] wordStarts, final int[] wordEnds, final float[] wordBoxes, final float[] wordConfidences) {
+        this.text = text;
+        this.pageNumbers = pageNumbers;
+        this.pageFirstLines = pageFirstLines;
+        this.lineStarts = lineStarts;
+        this.lineEnds = lineEnds;
+        this.lineBoxes = lineBoxes;
+        this.lineConfidences = lineConfidences;
+        this.lineFirstWords = lineFirstWords;
+        this.wordStarts = wordStarts;
+        this.wordEnds = wordEnds;
+        this.wordBoxes = wordBoxes;
+        this.wordConfidences = wordConfidences;
+    }
+
+    /**
+     * Returns the detected text.
+     * @return the text
+     */
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     * Returns the number of pages.
+     * @return the page count
+     */
+    public int getPageCount() {
+        return this.pageNumbers.length;
+    }
+
+    /**
+     * Returns the number of a page in the document.
+     * @param page the page index, from 0
+     * @return the page number, from 1
+     */
+    public int getPageNumber(final int page) {
+        return this.pageNumbers[page];
+    }
+
+    /**
+     * Returns the first line of a page.
+     * @param page the page index, from 0
+     * @return the line index; the page's lines run up to the next page's first line
+     */
+    public int getPageFirstLine(final int page) {
+        return this.pageFirstLines[page];
+    }
+
+    /**
+     * Returns the page index of a line.
+     * @param line the line index
+     * @return the page index, or -1 for a line before the first page started
+     */
+    public int getLinePage(final int line) {
+        int page = Arrays.binarySearch(this.pageFirstLines, line);
+        if (page < 0)
+            return -page - 2;
+        // pages without lines share their first line with the next page
+        while (page + 1 < this.pageFirstLines.length && this.pageFirstLines[page + 1] == line)
+            page++;
+        return page;
+    }
+
+    /**
+     * Returns the number of lines.
+     * @return the line count
+     */
+    public int getLineCount() {
+        return this.lineStarts.length;
+    }
+
+    /**
+     * Returns the offset of a line's first character in the text.
+     * @param line the line index
+     * @return the offset
+     */
+    public int getLineStart(final int line) {
+        return this.lineStarts[line];
+    }
+
+    /**
+     * Returns the offset after a line's last character in the text.
+     * @param line the line index
+     * @return the offset
+     */
+    public int getLineEnd(final int line) {
+        return this.lineEnds[line];
+    }
+
+    /**
+     * Returns the text of a line.
+     * @param line the line index
+     * @return the text
+     */
+    public String getLineText(final int line) {
+        return this.text.substring(this.lineStarts[line], this.lineEnds[line]);
+    }
+
+    /**
+     * Returns the bounding box of a line.
+     * @param line the line index
+     * @return the left, top, width and height
+     */
+    public float[] getLineBox(final int line) {
+        return Arrays.copyOfRange(this.lineBoxes, line * BOX, line * BOX + BOX);
+    }
+
+    /**
+     * Returns Textract's confidence in a line.
+     * @param line the line index
+     * @return the confidence, from 0 to 100
+     */
+    public float getLineConfidence(final int line) {
+        return this.lineConfidences[line];
+    }
+
+    /**
+     * Returns the first word of a line.
+     * @param line the line index
+     * @return the word index; the line's words run up to the next line's first word
+     */
+    public int getLineFirstWord(final int line) {
+        return this.lineFirstWords[line];
+    }
+
+    /**
+     * Returns the number of words in a line.
+     * @param line the line index
+     * @return the word count
+     */
+    public int getLineWordCount(final int line) {
+        return this.lineFirstWords[line + 1] - this.lineFirstWords[line];
+    }
+
+    /**
+     * Returns the number of words.
+     * @return the word count
+     */
+    public int getWordCount() {
+        return this.wordStarts.length;
+    }
+
+    /**
+     * Returns the offset of a word's first character in the text.
+     * @param word the word index
+     * @return the offset
+     */
+    public int getWordStart(final int word) {
+        return this.wordStarts[word];
+    }
+
+    /**
+     * Returns the offset after a word's last character in the text.
+     * @param word the word index
+     * @return the offset
+     */
+    public int getWordEnd(final int word) {
+        return this.wordEnds[word];
+    }
+
+    /**
+     * Returns the text of a word.
+     * @param word the word index
+     * @return the text
+     */
+    public String getWordText(final int word) {
+        return this.text.substring(this.wordStarts[word], this.wordEnds[word]);
+    }
+
+    /**
+     * Returns the bounding box of a word.
+     * @param word the word index
+     * @return the left, top, width and height
+     */
+    public float[] getWordBox(final int word) {
+        return Arrays.copyOfRange(this.wordBoxes, word * BOX, word * BOX + BOX);
+    }
+
+    /**
+     * Returns Textract's confidence in a word.
+     * @param word the word index
+     * @return the confidence, from 0 to 100
+     */
+    public float getWordConfidence(final int word) {
+        return this.wordConfidences[word];
+    }
+
+    /**
+     * Returns the words that overlap a stretch of the text, such as a match or an entity, to highlight it.
+     * @param start the offset of the first character
+     * @param end the offset after the last character
+     * @return the first word index and the index after the last, equal if no word overlaps
+     */
+    public int[] getWordsBetween(final int start, final int end) {
+        // words are in order of their offsets, so the first word ending after the start is the first that overlaps
+        int first = firstAfter(this.wordEnds, start);
+        int last = first;
+        while (last < this.wordStarts.length && this.wordStarts[last] < end)
+            last++;
+        return new int[] {first, last};
+    }
+
+    /**
+     * Returns the words Textract was less confident of than a threshold, to flag them for review.
+     * @param threshold the confidence, from 0 to 100
+     * @return the word indexes, in order
+     */
+    public int[] getLowConfidenceWords(final float threshold) {
+        int[] words = new int[this.wordConfidences.length];
+        int count = 0;
+        for (int word = 0; word < this.wordConfidences.length; word++) {
+            if (this.wordConfidences[word] < threshold)
+                words[count++] = word;
+        }
+        return Arrays.copyOf(words, count);
+    }
+
+    private static int firstAfter(final int[] sorted, final int value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] <= value)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the layout in a compact binary form: the text as UTF-8, offsets as variable-length differences, and
+     * boxes and confidence as 16 bit fixed point numbers.
+     * @return the bytes
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            byte[] utf8 = this.text.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, utf8.length);
+            out.write(utf8);
+            writeVarInt(out, this.pageNumbers.length);
+            writeVarInt(out, this.lineStarts.length);
+            writeVarInt(out, this.wordStarts.length);
+            for (int page = 0; page < this.pageNumbers.length; page++) {
+                writeVarInt(out, this.pageNumbers[page]);
+                writeVarInt(out, this.pageFirstLines[page] - (page == 0 ? 0 : this.pageFirstLines[page - 1]));
+            }
+            int previous = 0;
+            for (int line = 0; line < this.lineStarts.length; line++) {
+                writeVarInt(out, this.lineStarts[line] - previous);
+                writeVarInt(out, this.lineEnds[line] - this.lineStarts[line]);
+                writeVarInt(out, getLineWordCount(line));
+                writeFixed(out, this.lineBoxes, line * BOX, this.lineConfidences[line]);
+                previous = this.lineStarts[line];
+            }
+            previous = 0;
+            for (int word = 0; word < this.wordStarts.length; word++) {
+                writeVarInt(out, this.wordStarts[word] - previous);
+                writeVarInt(out, this.wordEnds[word] - this.wordStarts[word]);
+                writeFixed(out, this.wordBoxes, word * BOX, this.wordConfidences[word]);
+                previous = this.wordStarts[word];
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read a layout from its binary form.
+     * @param bytes the bytes returned by {@link #toBytes}
+     * @return the layout
+     * @throws IllegalArgumentException if the bytes are not a layout
+     */
+    public static TextLayout fromBytes(final byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC)
+                throw new IllegalArgumentException("not a text layout");
+            byte[] utf8 = new byte[readVarInt(in)];
+            in.readFully(utf8);
+            String text = new String(utf8, StandardCharsets.UTF_8);
+            int[] pageNumbers = new int[readVarInt(in)];
+            int lines = readVarInt(in);
+            int words = readVarInt(in);
+            int[] pageFirstLines = new int[pageNumbers.length];
+            for (int page = 0; page < pageNumbers.length; page++) {
+                pageNumbers[page] = readVarInt(in);
+                pageFirstLines[page] = readVarInt(in) + (page == 0 ? 0 : pageFirstLines[page - 1]);
+            }
+            int[] lineStarts = new int[lines];
+            int[] lineEnds = new int[lines];
+            int[] lineFirstWords = new int[lines + 1];
+            float[] lineBoxes = new float[lines * BOX];
+            float[] lineConfidences = new float[lines];
+            int previous = 0;
+            for (int line = 0; line < lines; line++) {
+                lineStarts[line] = previous + readVarInt(in);
+                lineEnds[line] = lineStarts[line] + readVarInt(in);
+                lineFirstWords[line + 1] = lineFirstWords[line] + readVarInt(in);
+                lineConfidences[line] = readFixed(in, lineBoxes, line * BOX);
+                previous = lineStarts[line];
+            }
+            int[] wordStarts = new int[words];
+            int[] wordEnds = new int[words];
+            float[] wordBoxes = new float[words * BOX];
+            float[] wordConfidences = new float[words];
+            previous = 0;
+            for (int word = 0; word < words; word++) {
+                wordStarts[word] = previous + readVarInt(in);
+                wordEnds[word] = wordStarts[word] + readVarInt(in);
+                wordConfidences[word] = readFixed(in, wordBoxes, word * BOX);
+                previous = wordStarts[word];
+            }
+            return new TextLayout(text, pageNumbers, pageFirstLines, lineStarts, lineEnds, lineBoxes, lineConfidences,
+              lineFirstWords, wordStarts, wordEnds, wordBoxes, wordConfidences);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("truncated text layout", e);
+        }
+    }
+
+    private static void writeFixed(final DataOutputStream out, final float[] boxes, final int at,
+      final float confidence) throws IOException {
+        for (int i = 0; i < BOX; i++)
+            out.writeShort(toFixed(boxes[at + i], 1));
+        out.writeShort(toFixed(confidence, CONFIDENCE_SCALE));
+    }
+
+    private static float readFixed(final DataInputStream in, final float[] boxes, final int at) throws IOException {
+        for (int i = 0; i < BOX; i++)
+            boxes[at + i] = fromFixed(in.readUnsignedShort(), 1);
+        return fromFixed(in.readUnsignedShort(), CONFIDENCE_SCALE);
+    }
+
+    private static int toFixed(final float value, final float scale) {
+        if (Float.isNaN(value))
+            return FIXED_NAN;
+        return Math.round(Math.max(0, Math.min(1, value / scale)) * FIXED_SCALE);
+    }
+
+    private static float fromFixed(final int value, final float scale) {
+        return value == FIXED_NAN ? Float.NaN : value / FIXED_SCALE * scale;
+    }
+
+    private static void writeVarInt(final DataOutputStream out, final int value) throws IOException {
+        int v = value;
+        while ((v & ~VARINT_MASK) != 0) {
+            out.writeByte(v & VARINT_MASK | VARINT_MORE);
+            v >>>= VARINT_BITS;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarInt(final DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & VARINT_MASK) << shift;
+            shift += VARINT_BITS;
+        } while ((b & VARINT_MORE) != 0);
+        return value;
+    }
+
+    /**
+     * Builds a layout from Textract's blocks as they are paged through, keeping only the columns. Each LINE block's
+     * text is added to the text followed by a line break; a word is placed in the line that lists it as a child,
+     * whichever comes first, or if lines list no children, in the line before it. Words no line claims are left out.
+     */
+    public static final class Builder {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private final boolean separatePages;
+        private final StringBuilder text = new StringBuilder();
+        private int[] pageNumbers = new int[INITIAL_CAPACITY];
+        private int[] pageFirstLines = new int[INITIAL_CAPACITY];
+        private int pages;
+        private int[] lineStarts = new int[INITIAL_CAPACITY];
+        private int[] lineEnds = new int[INITIAL_CAPACITY];
+        private float[] lineBoxes = new float[INITIAL_CAPACITY * BOX];
+        private float[] lineConfidences = new float[INITIAL_CAPACITY];
+        private int lines;
+        private int[] wordLines = new int[INITIAL_CAPACITY];
+        // the word's position among its line's children, or its order of arrival for words placed by order
+        private int[] wordRanks = new int[INITIAL_CAPACITY];
+        private int[] wordLengths = new int[INITIAL_CAPACITY];
+        private float[] wordBoxes = new float[INITIAL_CAPACITY * BOX];
+        private float[] wordConfidences = new float[INITIAL_CAPACITY];
+        private String[] wordTexts = new String[INITIAL_CAPACITY];
+        private int words;
+        // child word ids of the lines seen, to the line and rank; and words seen before their line
+        private final Map<String, long[]> childWords = new HashMap<>();
+        private final Map<String, Block> orphanWords = new HashMap<>();
+        private boolean lastLineHasChildren;
+
+        /**
+         * Constructor.
+         * @param separatePages whether each PAGE block adds a line break to the text, as in the text of an
+         * asynchronous job
+         */
+        public Builder(final boolean separatePages) {
+            this.separatePages = separatePages;
+        }
+
+        /**
+         * Add a block; blocks other than PAGE, LINE and WORD are ignored.
+         * @param block the block
+         * @return this builder
+         */
+        public Builder add(final Block block) {
+            switch (block.getBlockType()) {
+                case "PAGE":
+                    startPage(block.getPage() == null ? this.pages + 1 : block.getPage());
+                    break;
+                case "LINE":
+                    addLine(block);
+                    break;
+                case "WORD":
+                    long[] parent = block.getId() == null ? null : this.childWords.remove(block.getId());
+                    if (parent != null)
+                        addWord(block, (int) parent[0], (int) parent[1]);
+                    else if (block.getId() != null && (this.lines == 0 || this.lastLineHasChildren))
+                        this.orphanWords.put(block.getId(), block);
+                    else if (this.lines > 0)
+                        addWord(block, this.lines - 1, this.words);
+                    break;
+                default:
+                    break;
+            }
+            return this;
+        }
+
+        /**
+         * Add lines of text that came without geometry, such as from the page cache, with unknown boxes and
+         * confidence and no words.
+         * @param lineText the text, a line break after each line
+         * @return this builder
+         */
+        public Builder addText(final String lineText) {
+            int start = 0;
+            while (start < lineText.length()) {
+                int end = lineText.indexOf('\n', start);
+                if (end < 0)
+                    end = lineText.length();
+                addLine(lineText.substring(start, end), null, null);
+                start = end + 1;
+            }
+            return this;
+        }
+
+        /**
+         * Start a page without a PAGE block, as for the pages of a PDF detected one at a time.
+         * @param number the page number
+         * @return this builder
+         */
+        public Builder startPage(final int number) {
+            if (this.pages == this.pageNumbers.length) {
+                this.pageNumbers = Arrays.copyOf(this.pageNumbers, this.pages * 2);
+                this.pageFirstLines = Arrays.copyOf(this.pageFirstLines, this.pages * 2);
+            }
+            this.pageNumbers[this.pages] = number;
+            this.pageFirstLines[this.pages++] = this.lines;
+            if (this.separatePages)
+                this.text.append('\n');
+            return this;
+        }
+
+        private void addLine(final Block block) {
+            int line = this.lines;
+            addLine(block.getText() == null ? "" : block.getText(), block.getGeometry() == null ? null
+              : block.getGeometry().getBoundingBox(), block.getConfidence());
+            this.lastLineHasChildren = false;
+            if (block.getRelationships() == null)
+                return;
+            int rank = 0;
+            for (Relationship relationship : block.getRelationships()) {
+                if (!"CHILD".equals(relationship.getType()) || relationship.getIds() == null)
+                    continue;
+                for (String id : relationship.getIds()) {
+                    Block orphan = this.orphanWords.remove(id);
+                    if (orphan != null)
+                        addWord(orphan, line, rank);
+                    else
+                        this.childWords.put(id, new long[] {line, rank});
+                    rank++;
+                    this.lastLineHasChildren = true;
+                }
+            }
+        }
+
+        private void addLine(final String lineText, final BoundingBox box, final Float confidence) {
+            if (this.lines == this.lineStarts.length) {
+                this.lineStarts = Arrays.copyOf(this.lineStarts, this.lines * 2);
+                this.lineEnds = Arrays.copyOf(this.lineEnds, this.lines * 2);
+                this.lineBoxes = Arrays.copyOf(this.lineBoxes, this.lines * 2 * BOX);
+                this.lineConfidences = Arrays.copyOf(this.lineConfidences, this.lines * 2);
+            }
+            this.lineStarts[this.lines] = this.text.length();
+            this.text.append(lineText);
+            this.lineEnds[this.lines] = this.text.length();
+            this.text.append('\n');
+            setBox(this.lineBoxes, this.lines * BOX, box);
+            this.lineConfidences[this.lines++] = confidence == null ? Float.NaN : confidence;
+        }
+
+        private void addWord(final Block block, final int line, final int rank) {
+            if (this.words == this.wordLines.length) {
+                int capacity = this.words * 2;
+                this.wordLines = Arrays.copyOf(this.wordLines, capacity);
+                this.wordRanks = Arrays.copyOf(this.wordRanks, capacity);
+                this.wordLengths = Arrays.copyOf(this.wordLengths, capacity);
+                this.wordBoxes = Arrays.copyOf(this.wordBoxes, capacity * BOX);
+                this.wordConfidences = Arrays.copyOf(this.wordConfidences, capacity);
+                this.wordTexts = Arrays.copyOf(this.wordTexts, capacity);
+            }
+            this.wordLines[this.words] = line;
+            this.wordRanks[this.words] = rank;
+            this.wordTexts[this.words] = block.getText() == null ? "" : block.getText();
+            setBox(this.wordBoxes, this.words * BOX, block.getGeometry() == null ? null
+              : block.getGeometry().getBoundingBox());
+            this.wordConfidences[this.words++] = block.getConfidence() == null ? Float.NaN : block.getConfidence();
+        }
+
+        private static void setBox(final float[] boxes, final int at, final BoundingBox box) {
+            boxes[at + LEFT] = box == null || box.getLeft() == null ? Float.NaN : box.getLeft();
+            boxes[at + TOP] = box == null || box.getTop() == null ? Float.NaN : box.getTop();
+            boxes[at + WIDTH] = box == null || box.getWidth() == null ? Float.NaN : box.getWidth();
+            boxes[at + HEIGHT] = box == null || box.getHeight() == null ? Float.NaN : box.getHeight();
+        }
+
+        /**
+         * Returns the text added so far.
+         * @return the text
+         */
+        public String getText() {
+            return this.text.toString();
+        }
+
+        /**
+         * Build the layout. Words are put in the order of their lines and, within a line, of their rank, and
+         * located in the line's text in that order; a word whose text is not found in the rest of its line is left
+         * out.
+         * @return the layout
+         */
+        public TextLayout build() {
+            Integer[] order = new Integer[this.words];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            Arrays.sort(order, (a, b) -> this.wordLines[a] != this.wordLines[b]
+              ? Integer.compare(this.wordLines[a], this.wordLines[b]) : Integer.compare(this.wordRanks[a],
+              this.wordRanks[b]));
+            String all = this.text.toString();
+            int[] lineFirstWords = new int[this.lines + 1];
+            int[] starts = new int[this.words];
+            int[] ends = new int[this.words];
+            float[] boxes = new float[this.words * BOX];
+            float[] confidences = new float[this.words];
+            int count = 0;
+            int line = -1;
+            int from = 0;
+            for (int i : order) {
+                while (line < this.wordLines[i]) {
+                    lineFirstWords[++line] = count;
+                    from = this.lineStarts[line];
+                }
+                int start = all.indexOf(this.wordTexts[i], from);
+                if (start < 0 || start + this.wordTexts[i].length() > this.lineEnds[line])
+                    continue;
+                starts[count] = start;
+                ends[count] = start + this.wordTexts[i].length();
+                System.arraycopy(this.wordBoxes, i * BOX, boxes, count * BOX, BOX);
+                confidences[count++] = this.wordConfidences[i];
+                from = ends[count - 1];
+            }
+            while (line < this.lines)
+                lineFirstWords[++line] = count;
+            return new TextLayout(all, Arrays.copyOf(this.pageNumbers, this.pages),
+              Arrays.copyOf(this.pageFirstLines, this.pages), Arrays.copyOf(this.lineStarts, this.lines),
+              Arrays.copyOf(this.lineEnds, this.lines), Arrays.copyOf(this.lineBoxes, this.lines * BOX),
+              Arrays.copyOf(this.lineConfidences, this.lines), lineFirstWords, Arrays.copyOf(starts, count),
+              Arrays.copyOf(ends, count), Arrays.copyOf(boxes, count * BOX), Arrays.copyOf(confidences, count));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. Tokens accrue at a fixed rate up to the burst size and each call takes one.
+ */
+public final class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double ratePerSecond;
+    private final double burst;
+    private double tokens;
+    private long refilledAtNanos;
+
+    /**
+     * Constructor. The bucket starts full.
+     * @param ratePerSecond the sustained rate in tokens per second
+     * @param burst the most tokens that can accumulate
+     */
+    public TokenBucket(final double ratePerSecond, final double burst) {
+        if (ratePerSecond <= 0 || burst < 1)
+            throw new IllegalArgumentException("invalid token bucket rate " + ratePerSecond + " or burst " + burst);
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilledAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the sustained rate of this bucket.
+     * @return tokens per second
+     */
+    public double getRatePerSecond() {
+        return this.ratePerSecond;
+    }
+
+    /**
+     * Take a token, waiting for one to accrue if the bucket is empty.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        acquire(Long.MAX_VALUE);
+    }
+
+    /**
+     * Take a token, waiting for one to accrue if the bucket is empty, unless that would take longer than allowed.
+     * @param maxWaitNanos the longest wait allowed, in nanoseconds
+     * @return true if a token was taken, false, without taking one, if it would not accrue in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean acquire(final long maxWaitNanos) throws InterruptedException {
+        long waitNanos = reserve(maxWaitNanos);
+        if (waitNanos < 0)
+            return false;
+        if (waitNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        return true;
+    }
+
+    /**
+     * Take a token without waiting. If the bucket is empty the token is borrowed from the future and the caller
+     * must hold off for the returned time before making its call.
+     * @return nanoseconds to wait before the token may be used, zero if it is available now
+     */
+    public long reserve() {
+        return reserve(Long.MAX_VALUE);
+    }
+
+    /**
+     * Take a token without waiting, as {@link #reserve()} does, unless it would be usable only after the longest
+     * wait allowed.
+     * @param maxWaitNanos the longest wait allowed, in nanoseconds
+     * @return nanoseconds to wait before the token may be used, zero if it is available now, or -1, without taking
+     * a token, if the wait would be longer than allowed
+     */
+    public synchronized long reserve(final long maxWaitNanos) {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.burst, this.tokens + (now - this.refilledAtNanos) * this.ratePerSecond
+          / NANOS_PER_SECOND);
+        this.refilledAtNanos = now;
+        long waitNanos = this.tokens >= 1 ? 0 : (long) ((1 - this.tokens) * NANOS_PER_SECOND / this.ratePerSecond);
+        if (waitNanos > maxWaitNanos)
+            return -1;
+        this.tokens -= 1;
+        return waitNanos;
+    }
+}
@@ -0,0 +1,192 @@
+package org.getmarco.medtextanalyze;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.getmarco.medtextanalyze.functions.SignedUrlForUpload;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class FileUploaderTests {
+
+    private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.US_ASCII);
+    private static final long PART_SIZE = 4;
+
+    @TempDir
+    public Path directory;
+
+    private StubS3 s3;
+    private CloseableHttpClient httpClient;
+    private ExecutorService executor;
+    private FileUploader uploader;
+
+    @BeforeEach
+    public void start() throws IOException {
+        this.s3 = new StubS3();
+        this.httpClient = HttpClients.custom().setMaxConnPerRoute(4).setMaxConnTotal(4).build();
+        this.executor = Executors.newFixedThreadPool(3);
+        this.uploader = new FileUploader(this.httpClient, this.executor);
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        this.executor.shutdownNow();
+        this.httpClient.close();
+        this.s3.server.stop(0);
+    }
+
+    /**
+     * Parts should be sent as byte ranges of the file and named by their ETags in part order in the completion, with
+     * a part that fails with a server error retried on its own.
+     */
+    @Test
+    public void testRetriesFailedPart() throws IOException {
+        this.s3.partStatus = part -> part == 2 && this.s3.hits("/part2") == 1 ? 500 : 200;
+
+        this.uploader.upload(file(), target(3));
+
+        assertEquals("0123", this.s3.bodies.get("/part1"));
+        assertEquals("4567", this.s3.bodies.get("/part2"));
+        assertEquals("89", this.s3.bodies.get("/part3"));
+        assertEquals(1, this.s3.hits("/part1"));
+        assertEquals(2, this.s3.hits("/part2"));
+        assertEquals("<CompleteMultipartUpload>"
+          + "<Part><PartNumber>1</PartNumber><ETag>\"etag-1\"</ETag></Part>"
+          + "<Part><PartNumber>2</PartNumber><ETag>\"etag-2\"</ETag></Part>"
+          + "<Part><PartNumber>3</PartNumber><ETag>\"etag-3\"</ETag></Part>"
+          + "</CompleteMultipartUpload>", this.s3.bodies.get("/complete"));
+        assertEquals(0, this.s3.hits("/abort"));
+    }
+
+    /**
+     * A part refused with a client error should not be retried, and the upload should be aborted rather than
+     * completed.
+     */
+    @Test
+    public void testClientErrorAborts() throws IOException {
+        this.s3.partStatus = part -> part == 2 ? 403 : 200;
+
+        assertThrows(IOException.class, () -> this.uploader.upload(file(), target(3)));
+        assertEquals(1, this.s3.hits("/part2"));
+        assertEquals(0, this.s3.hits("/complete"));
+        assertEquals(1, this.s3.hits("/abort"));
+    }
+
+    /**
+     * A completion that S3 reports as failed in a 200 response should fail the upload and abort it.
+     */
+    @Test
+    public void testCompletionErrorAborts() throws IOException {
+        this.s3.completion = "<Error><Code>InternalError</Code></Error>";
+
+        assertThrows(IOException.class, () -> this.uploader.upload(file(), target(3)));
+        assertEquals(1, this.s3.hits("/complete"));
+        assertEquals(1, this.s3.hits("/abort"));
+    }
+
+    /**
+     * Part links that do not cover the file at the given part size should be refused before anything is sent.
+     */
+    @Test
+    public void testPartCountMismatch() throws IOException {
+        assertThrows(IOException.class, () -> this.uploader.upload(file(), target(2)));
+        assertTrue(this.s3.hits.isEmpty(), this.s3.hits.toString());
+    }
+
+    private File file() throws IOException {
+        return Files.write(this.directory.resolve("upload.bin"), CONTENT).toFile();
+    }
+
+    private SignedUrlForUpload.Output target(final int parts) {
+        String base = "http://localhost:" + this.s3.server.getAddress().getPort();
+        SignedUrlForUpload.Output target = new SignedUrlForUpload.Output("bucket", "key", null);
+        target.setUploadId("upload-1");
+        target.setPartSize(PART_SIZE);
+        String[] partLinks = new String[parts];
+        for (int i = 0; i < parts; ++i)
+            partLinks[i] = base + "/part" + (i + 1);
+        target.setPartLinks(Arrays.asList(partLinks));
+        target.setCompleteLink(base + "/complete");
+        target.setAbortLink(base + "/abort");
+        return target;
+    }
+
+    /**
+     * Answers part uploads, completion and abort at fixed paths, counting the requests made to each.
+     */
+    private static final class StubS3 {
+        private final HttpServer server;
+        private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+        private final Map<String, String> bodies = new ConcurrentHashMap<>();
+        private volatile Function<Integer, Integer> partStatus = part -> 200;
+        private volatile String completion = "<CompleteMultipartUploadResult/>";
+
+        StubS3() throws IOException {
+            this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            this.server.createContext("/", this::handle);
+            this.server.setExecutor(Executors.newCachedThreadPool());
+            this.server.start();
+        }
+
+        int hits(final String path) {
+            AtomicInteger count = this.hits.get(path);
+            return count == null ? 0 : count.get();
+        }
+
+        private void handle(final HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            this.hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+            String body = read(exchange.getRequestBody());
+            int status = 200;
+            String response = "";
+            if (path.startsWith("/part")) {
+                int part = Integer.parseInt(path.substring("/part".length()));
+                status = this.partStatus.apply(part);
+                if (status == 200) {
+                    this.bodies.put(path, body);
+                    exchange.getResponseHeaders().set("ETag", "\"etag-" + part + "\"");
+                }
+            } else if (path.equals("/complete")) {
+                this.bodies.put(path, body);
+                response = this.completion;
+            }
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            if (bytes.length > 0)
+                exchange.getResponseBody().write(bytes);
+            exchange.close();
+        }
+
+        private static String read(final InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int n; (n = in.read(buffer)) > 0;)
+                out.write(buffer, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.getmarco.medtextanalyze.corpus;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.getmarco.medtextanalyze.match.RuleMatch;
+import org.getmarco.medtextanalyze.match.RuleSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class CorpusStoreTests {
+
+    @TempDir
+    public Path directory;
+
+    /**
+     * Documents should be read back page by page, from the segment being written and after opening the store again,
+     * with a later copy superseding an earlier one.
+     */
+    @Test
+    public void testAppendAndReopen() throws IOException {
+        try (CorpusStore store = new CorpusStore(this.directory, 64)) {
+            store.append("a.pdf", Arrays.asList("Page one\n", "P\u00e1gina dos\n"));
+            store.append("b.pdf", Collections.singletonList("Only page\n"));
+            store.append("a.pdf", Arrays.asList("Revised one\n", "P\u00e1gina dos\n", "Three\n"));
+            StoredDocument a = store.get("a.pdf");
+            assertEquals(3, a.getPageCount());
+            assertEquals("P\u00e1gina dos\n", a.getPage(1));
+            assertEquals("\nRevised one\n\nP\u00e1gina dos\n\nThree\n", a.getText());
+            assertNull(store.get("c.pdf"));
+        }
+        // the small segments make each record roll over to a new one
+        try (Stream<Path> segments = Files.list(this.directory)) {
+            assertEquals(3, segments.count());
+        }
+        try (CorpusStore store = new CorpusStore(this.directory, 64)) {
+            assertEquals(2, store.size());
+            assertEquals(Arrays.asList("Revised one\n", "P\u00e1gina dos\n", "Three\n"), store.get("a.pdf").getPages());
+            assertEquals(Arrays.asList("b.pdf", "a.pdf"),
+              store.documents().map(StoredDocument::getId).collect(Collectors.toList()));
+            store.append("c.pdf", Collections.singletonList("New\n"));
+            assertEquals("New\n", store.get("c.pdf").getPage(0));
+        }
+    }
+
+    /**
+     * A record cut short by a writer that stopped midway should be skipped, and the records before it kept.
+     */
+    @Test
+    public void testIncompleteRecord() throws IOException {
+        try (CorpusStore store = new CorpusStore(this.directory)) {
+            store.append("a.pdf", Collections.singletonList("First\n"));
+            store.append("b.pdf", Collections.singletonList("Second, cut short\n"));
+        }
+        Path segment;
+        try (Stream<Path> segments = Files.list(this.directory)) {
+            segment = segments.findFirst().get();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        try (CorpusStore store = new CorpusStore(this.directory)) {
+            assertEquals(Collections.singleton("a.pdf"), store.ids());
+            assertEquals("First\n", store.get("a.pdf").getPage(0));
+        }
+    }
+
+    /**
+     * Records in a segment still being written should be found by a store opened on the same directory, and the
+     * segment cut to what was written once the writer is closed.
+     */
+    @Test
+    public void testOpenWhileWriting() throws IOException {
+        Path segment;
+        try (CorpusStore writer = new CorpusStore(this.directory, 4096)) {
+            writer.append("a.pdf", Collections.singletonList("First\n"));
+            writer.append("b.pdf", Collections.singletonList("Second\n"));
+            try (Stream<Path> segments = Files.list(this.directory)) {
+                segment = segments.findFirst().get();
+            }
+            assertEquals(4096, Files.size(segment));
+            try (CorpusStore reader = new CorpusStore(this.directory, 4096)) {
+                assertEquals(2, reader.size());
+                assertEquals("Second\n", reader.get("b.pdf").getPage(0));
+            }
+            writer.append("c.pdf", Collections.singletonList("Third\n"));
+            assertEquals("First\n", writer.get("a.pdf").getPage(0));
+        }
+        assertTrue(Files.size(segment) < 4096);
+        try (CorpusStore reader = new CorpusStore(this.directory, 4096)) {
+            assertEquals(3, reader.size());
+        }
+    }
+
+    /**
+     * A re-analysis should run every document through the stage, and report the ones it failed on.
+     */
+    @Test
+    public void testReanalysis() throws Exception {
+        RuleSet rules = RuleSet.builder().keyword("drug", "aspirin", true).build();
+        try (CorpusStore store = new CorpusStore(this.directory)) {
+            for (int i = 0; i < 100; i++)
+                store.append("doc-" + i, Arrays.asList("Cover page\n", "Take aspirin " + i + " times\n"));
+            store.append("broken", Collections.singletonList("Aspirin\n"));
+
+            Map<String, List<RuleMatch>> results = new ConcurrentHashMap<>();
+            Reanalysis.Report report = new Reanalysis(store, 4).run(document -> {
+                if (document.getId().equals("broken"))
+                    throw new IllegalStateException("stage failed");
+                return Reanalysis.rules(rules).apply(document);
+            }, (document, matches) -> results.put(document.getId(), matches));
+
+            assertEquals(100, report.getDocuments());
+            assertEquals(200, report.getPages());
+            assertEquals(1, report.getFailures());
+            assertEquals(Collections.singletonList("broken"), report.getFailedIds());
+            assertEquals(100, results.size());
+            RuleMatch match = results.get("doc-7").get(0);
+            assertEquals(2, match.getPage());
+            assertEquals("aspirin", match.getText());
+        }
+    }
+}
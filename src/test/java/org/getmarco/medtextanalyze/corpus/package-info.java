@@ -0,0 +1,4 @@
+/**
+ * Tests for the corpus store and bulk re-analysis.
+ */
+package org.getmarco.medtextanalyze.corpus;
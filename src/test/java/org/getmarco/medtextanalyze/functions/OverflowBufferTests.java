@@ -0,0 +1,248 @@
+package org.getmarco.medtextanalyze.functions;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.getmarco.medtextanalyze.server.LocalContext;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.ProxyResponse;
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class OverflowBufferTests {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String KEY = new String(new char[3000]).replace('\0', 'k');
+
+    /**
+     * Output up to the limit should be held in memory across chunks and read back whole, without opening the spill.
+     */
+    @Test
+    public void testHoldsUpToLimit() throws IOException {
+        byte[] content = bytes(200000);
+        AtomicInteger opened = new AtomicInteger();
+        OverflowBuffer buffer = new OverflowBuffer(content.length, () -> {
+            opened.incrementAndGet();
+            return new ByteArrayOutputStream();
+        });
+        write(buffer, content);
+
+        assertFalse(buffer.isSpilled());
+        assertEquals(content.length, buffer.size());
+        assertArrayEquals(content, read(buffer.read()));
+        assertEquals(0, opened.get());
+    }
+
+    /**
+     * One byte past the limit should spill everything held, then send the rest straight to the spill stream, which
+     * closing the buffer closes.
+     */
+    @Test
+    public void testSpillsPastLimit() throws IOException {
+        byte[] content = bytes(200001);
+        Spilled spilled = new Spilled();
+        OverflowBuffer buffer = new OverflowBuffer(content.length - 1, () -> spilled);
+        write(buffer, content);
+        buffer.close();
+
+        assertTrue(buffer.isSpilled());
+        assertEquals(content.length, buffer.size());
+        assertArrayEquals(content, spilled.toByteArray());
+        assertTrue(spilled.closed);
+        assertThrows(IllegalStateException.class, buffer::read);
+    }
+
+    /**
+     * A response body of exactly the limit should be returned inline on both the request and stream paths, and one
+     * byte over should be written to S3 and replaced by a link to it, which an HTTP client can follow to the output.
+     */
+    @Test
+    public void testThresholdAndLink() throws IOException {
+        StubS3 s3 = new StubS3();
+        try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+            String inline = handleRequest(new OverflowFunction(s3, Long.MAX_VALUE)).getBody();
+            long bytes = inline.getBytes(StandardCharsets.UTF_8).length;
+
+            assertEquals(inline, handleRequest(new OverflowFunction(s3, bytes)).getBody());
+            assertEquals(inline, handleStream(new OverflowFunction(s3, bytes)));
+            assertTrue(s3.objects.isEmpty(), s3.objects.keySet().toString());
+
+            for (String body : new String[] {handleRequest(new OverflowFunction(s3, bytes - 1)).getBody(),
+              handleStream(new OverflowFunction(s3, bytes - 1))}) {
+                FunctionOutput summary = MAPPER.readValue(body, FunctionOutput.class);
+                assertEquals(bytes, (long) summary.getResultBytes());
+                try (CloseableHttpResponse response = client.execute(new HttpGet(summary.getResultLink()))) {
+                    assertEquals(200, response.getStatusLine().getStatusCode());
+                    assertEquals(MAPPER.readTree(inline), MAPPER.readTree(EntityUtils.toString(response.getEntity())));
+                }
+            }
+            assertEquals(2, s3.objects.size());
+        } finally {
+            s3.server.stop(0);
+        }
+    }
+
+    private static ProxyResponse handleRequest(final FunctionSupport function) {
+        ProxyRequest request = new ProxyRequest();
+        request.setHttpMethod(ProxyRequest.HTTP_POST);
+        request.setBody("{\"bucket\":\"uploads\",\"key\":\"" + KEY + "\"}");
+        ProxyResponse response = function.handleRequest(request, new LocalContext("overflow", 29000));
+        assertEquals(ProxyResponse.STATUS_CODE_OK, response.getStatusCode());
+        return response;
+    }
+
+    private static String handleStream(final StreamFunctionSupport<?, ?> function) throws IOException {
+        JsonNode response = StreamFunctionSupportTests.handle(function, MAPPER.createObjectNode()
+          .put("httpMethod", "POST")
+          .put("body", "{\"bucket\":\"uploads\",\"key\":\"" + KEY + "\"}"));
+        assertEquals(ProxyResponse.STATUS_CODE_OK, response.get("statusCode").asInt());
+        return response.get("body").asText();
+    }
+
+    private static byte[] bytes(final int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (i * 31);
+        return bytes;
+    }
+
+    private static void write(final OutputStream out, final byte[] content) throws IOException {
+        // uneven writes, so chunk boundaries fall inside them
+        int done = 0;
+        for (int n = 1; done < content.length; n = n * 3 + 1) {
+            int length = Math.min(n, content.length - done);
+            if (length == 1)
+                out.write(content[done]);
+            else
+                out.write(content, done, length);
+            done += length;
+        }
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0;)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    /**
+     * Spill stream that records whether it was closed.
+     */
+    private static final class Spilled extends ByteArrayOutputStream {
+        private boolean closed;
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+
+    /**
+     * Echo function with an overflow limit, writing overflow to a stub S3.
+     */
+    private static final class OverflowFunction extends StreamFunctionSupportTests.EchoFunction {
+        private final StubS3 s3;
+        private final long overflowBytes;
+
+        OverflowFunction(final StubS3 s3, final long overflowBytes) {
+            this.s3 = s3;
+            this.overflowBytes = overflowBytes;
+        }
+
+        @Override
+        protected long getOverflowBytes() {
+            return this.overflowBytes;
+        }
+
+        @Override
+        protected String getUploadBucket() {
+            return "uploads";
+        }
+
+        @Override
+        protected AWSCredentialsProvider getCredentialsProvider() {
+            return new AWSStaticCredentialsProvider(new BasicAWSCredentials("id", "secret"));
+        }
+
+        @Override
+        protected AmazonS3 getS3Client() {
+            return this.s3.client;
+        }
+    }
+
+    /**
+     * Keeps the objects put to it and serves them over HTTP at the links it signs, with their stored headers.
+     */
+    private static final class StubS3 {
+        private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        private final Map<String, ObjectMetadata> metadata = new ConcurrentHashMap<>();
+        private final HttpServer server;
+        private final AmazonS3 client;
+
+        StubS3() throws IOException {
+            this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            this.server.createContext("/", exchange -> {
+                String path = exchange.getRequestURI().getPath();
+                byte[] object = this.objects.get(path);
+                if (object == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    ObjectMetadata stored = this.metadata.get(path);
+                    exchange.getResponseHeaders().set("Content-Type", stored.getContentType());
+                    exchange.getResponseHeaders().set("Content-Encoding", stored.getContentEncoding());
+                    exchange.sendResponseHeaders(200, object.length);
+                    exchange.getResponseBody().write(object);
+                }
+                exchange.close();
+            });
+            this.server.start();
+            this.client = (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+              new Class<?>[] {AmazonS3.class}, (proxy, method, args) -> {
+                  if (method.getName().equals("putObject") && args[0] instanceof PutObjectRequest) {
+                      PutObjectRequest put = (PutObjectRequest) args[0];
+                      String path = "/" + put.getBucketName() + "/" + put.getKey();
+                      this.objects.put(path, read(put.getInputStream()));
+                      this.metadata.put(path, put.getMetadata());
+                      return new PutObjectResult();
+                  }
+                  if (method.getName().equals("generatePresignedUrl") && args.length == 1) {
+                      GeneratePresignedUrlRequest request = (GeneratePresignedUrlRequest) args[0];
+                      return new URL("http://localhost:" + this.server.getAddress().getPort() + "/"
+                        + request.getBucketName() + "/" + request.getKey() + "?X-Amz-Signature=stub");
+                  }
+                  throw new UnsupportedOperationException(method.getName());
+              });
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.getmarco.medtextanalyze.functions;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.getmarco.medtextanalyze.server.LocalContext;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.ProxyResponse;
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class ResponseEncodingTests {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectMapper CBOR_MAPPER = new ObjectMapper(new CBORFactory());
+    private static final String LARGE_KEY = new String(new char[4096]).replace('\0', 'k');
+
+    /**
+     * Encodings should be accepted whatever the header case, and refused when listed with a zero quality.
+     */
+    @Test
+    public void testNegotiate() {
+        assertTrue(negotiate().isIdentity());
+        assertTrue(negotiate("Accept", "application/json", "Accept-Encoding", "identity").isIdentity());
+        assertFalse(negotiate("accept-encoding", "deflate, GZIP;q=0.5").isIdentity());
+        assertTrue(negotiate("Accept-Encoding", "gzip;q=0").isIdentity());
+        assertTrue(negotiate("Accept-Encoding", "gzip;q=zero").isIdentity());
+        assertTrue(negotiate("ACCEPT", "application/json, application/cbor").isCbor());
+        assertFalse(negotiate("Accept", "application/cbor;q=0.0").isCbor());
+    }
+
+    /**
+     * A body worth compressing should be gzipped and base64 encoded for API Gateway, and decompress to the JSON it
+     * would have been sent as, on both the request and the stream paths.
+     */
+    @Test
+    public void testGzipRoundTrip() throws IOException {
+        String json = requestBody(LARGE_KEY);
+        ProxyResponse response = handleRequest(LARGE_KEY, "Accept-Encoding", "gzip");
+        assertTrue(response.getIsBase64Encoded());
+        assertEquals("gzip", response.getHeaders().get("Content-Encoding"));
+        assertEquals("application/json", response.getHeaders().get("Content-Type"));
+        byte[] compressed = Base64.getDecoder().decode(response.getBody());
+        assertTrue(compressed.length < json.length(), compressed.length + " bytes");
+        assertEquals(MAPPER.readTree(json), MAPPER.readTree(gunzip(compressed)));
+
+        JsonNode streamed = handleStream(LARGE_KEY, "Accept-Encoding", "gzip");
+        assertTrue(streamed.get("isBase64Encoded").asBoolean());
+        assertEquals("gzip", streamed.get("headers").get("Content-Encoding").asText());
+        assertEquals(MAPPER.readTree(json),
+          MAPPER.readTree(gunzip(Base64.getDecoder().decode(streamed.get("body").asText()))));
+    }
+
+    /**
+     * A body too small to gain from compression should be sent as plain text even when gzip is accepted.
+     */
+    @Test
+    public void testSmallBodyNotCompressed() throws IOException {
+        ProxyResponse response = handleRequest("scan.png", "Accept-Encoding", "gzip");
+        assertFalse(response.getIsBase64Encoded());
+        assertNull(response.getHeaders().get("Content-Encoding"));
+        assertEquals(MAPPER.readTree(requestBody("scan.png")), MAPPER.readTree(response.getBody()));
+
+        JsonNode streamed = handleStream("scan.png", "Accept-Encoding", "gzip");
+        assertFalse(streamed.get("isBase64Encoded").asBoolean());
+        assertEquals("uploads/scan.png", MAPPER.readTree(streamed.get("body").asText()).get("text").asText());
+    }
+
+    /**
+     * A CBOR body, compressed or not, should decode to the same output as the JSON body on both paths.
+     */
+    @Test
+    public void testCborRoundTrip() throws IOException {
+        for (String key : new String[] {"scan.png", LARGE_KEY}) {
+            TextFromImage.Output expected = MAPPER.readValue(requestBody(key), TextFromImage.Output.class);
+
+            ProxyResponse response = handleRequest(key, "Accept", ResponseEncoding.CBOR_CONTENT_TYPE);
+            assertTrue(response.getIsBase64Encoded());
+            assertEquals(ResponseEncoding.CBOR_CONTENT_TYPE, response.getHeaders().get("Content-Type"));
+            assertEquals(expected.getText(), CBOR_MAPPER.readValue(Base64.getDecoder().decode(response.getBody()),
+              TextFromImage.Output.class).getText());
+
+            JsonNode streamed = handleStream(key, "Accept", ResponseEncoding.CBOR_CONTENT_TYPE,
+              "Accept-Encoding", "gzip");
+            assertEquals(ResponseEncoding.CBOR_CONTENT_TYPE, streamed.get("headers").get("Content-Type").asText());
+            byte[] body = Base64.getDecoder().decode(streamed.get("body").asText());
+            if (streamed.get("headers").has("Content-Encoding"))
+                body = gunzip(body);
+            assertEquals(expected.getText(), CBOR_MAPPER.readValue(body, TextFromImage.Output.class).getText());
+        }
+    }
+
+    /**
+     * A client that reads responses the way the command line client does, relying on the HTTP client to decompress
+     * and on the content type to tell CBOR apart, should read the same output whatever encoding is negotiated.
+     */
+    @Test
+    public void testClientDecoding() throws IOException {
+        HttpServer gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        gateway.createContext("/imagetext", exchange -> {
+            Map<String, String> headers = new HashMap<>();
+            exchange.getRequestHeaders().forEach((name, values) -> headers.put(name, String.join(",", values)));
+            ProxyResponse response = handle(MAPPER.readTree(exchange.getRequestBody())
+              .get("key").asText(), headers);
+            byte[] body = response.getIsBase64Encoded() ? Base64.getDecoder().decode(response.getBody())
+              : response.getBody().getBytes(StandardCharsets.UTF_8);
+            response.getHeaders().forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+            exchange.sendResponseHeaders(response.getStatusCode(), body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        gateway.start();
+        try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+            String url = "http://localhost:" + gateway.getAddress().getPort() + "/imagetext";
+            for (String accept : new String[] {"application/json", ResponseEncoding.CBOR_CONTENT_TYPE}) {
+                for (String key : new String[] {"scan.png", LARGE_KEY}) {
+                    HttpPost post = new HttpPost(url);
+                    post.setHeader("Accept", accept);
+                    post.setEntity(new StringEntity("{\"key\":\"" + key + "\"}", ContentType.APPLICATION_JSON));
+                    try (CloseableHttpResponse response = client.execute(post)) {
+                        Header contentType = response.getEntity().getContentType();
+                        byte[] content = EntityUtils.toByteArray(response.getEntity());
+                        ObjectMapper mapper = contentType.getValue().startsWith(ResponseEncoding.CBOR_CONTENT_TYPE)
+                          ? CBOR_MAPPER : MAPPER;
+                        assertEquals(accept, contentType.getValue());
+                        assertEquals("uploads/" + key, mapper.readValue(content, TextFromImage.Output.class)
+                          .getText());
+                    }
+                }
+            }
+        } finally {
+            gateway.stop(0);
+        }
+    }
+
+    private static ResponseEncoding negotiate(final String... headers) {
+        ProxyRequest request = new ProxyRequest();
+        request.setHeaders(headers.length == 0 ? null : headers(headers));
+        return ResponseEncoding.negotiate(request);
+    }
+
+    private static Map<String, String> headers(final String... namesAndValues) {
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2)
+            headers.put(namesAndValues[i], namesAndValues[i + 1]);
+        return headers;
+    }
+
+    private static String requestBody(final String key) {
+        return handleRequest(key).getBody();
+    }
+
+    private static ProxyResponse handleRequest(final String key, final String... headers) {
+        return handle(key, headers(headers));
+    }
+
+    private static ProxyResponse handle(final String key, final Map<String, String> headers) {
+        ProxyRequest request = new ProxyRequest();
+        request.setHttpMethod(ProxyRequest.HTTP_POST);
+        request.setHeaders(headers);
+        request.setBody("{\"bucket\":\"uploads\",\"key\":\"" + key + "\"}");
+        ProxyResponse response = new StreamFunctionSupportTests.EchoFunction().handleRequest(request,
+          new LocalContext("echo", 29000));
+        assertEquals(ProxyResponse.STATUS_CODE_OK, response.getStatusCode());
+        return response;
+    }
+
+    private static JsonNode handleStream(final String key, final String... headers) throws IOException {
+        ObjectNode event = MAPPER.createObjectNode()
+          .put("httpMethod", "POST")
+          .put("body", "{\"bucket\":\"uploads\",\"key\":\"" + key + "\"}");
+        event.set("headers", MAPPER.valueToTree(headers(headers)));
+        return StreamFunctionSupportTests.handle(new StreamFunctionSupportTests.EchoFunction(), event);
+    }
+
+    private static byte[] gunzip(final byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) > 0;)
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        }
+    }
+}
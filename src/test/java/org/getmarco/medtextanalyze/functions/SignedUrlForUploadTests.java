@@ -0,0 +1,199 @@
+package org.getmarco.medtextanalyze.functions;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.getmarco.medtextanalyze.server.LocalContext;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.ProxyResponse;
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class SignedUrlForUploadTests {
+
+    private static final long MIB = 1024L * 1024;
+    private static final long GIB = 1024 * MIB;
+
+    /**
+     * Parts should be 8 MiB until a file would need more than the 10,000 parts S3 allows, then just large enough to
+     * fit the file in 10,000 parts.
+     */
+    @Test
+    public void testPartSize() {
+        assertEquals(8 * MIB, SignedUrlForUpload.partSize(SignedUrlForUpload.MULTIPART_THRESHOLD));
+        assertEquals(8 * MIB, SignedUrlForUpload.partSize(8 * MIB * 10000));
+        assertEquals(8 * MIB + 1, SignedUrlForUpload.partSize(8 * MIB * 10000 + 1));
+
+        long size = 100 * GIB;
+        long partSize = SignedUrlForUpload.partSize(size);
+        assertTrue(partSize * 10000 >= size);
+        assertTrue((partSize - 1) * 10000 < size);
+    }
+
+    /**
+     * A file of the multipart size should get an upload id and a signed link for each part, for completing and for
+     * aborting, with the last part holding the remainder.
+     */
+    @Test
+    public void testMultipart() throws Exception {
+        StubSignedUrlForUpload function = new StubSignedUrlForUpload();
+        SignedUrlForUpload.Output output = function.unjsonify(body(function, query(SignedUrlForUpload.SIZE_PARAM,
+          Long.toString(2 * 8 * MIB + 1))), SignedUrlForUpload.Output.class);
+
+        assertEquals("upload-1", output.getUploadId());
+        assertEquals(8 * MIB, (long) output.getPartSize());
+        assertEquals(3, output.getPartLinks().size());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals("PUT " + output.getKey() + " partNumber=" + (i + 1) + "&uploadId=upload-1",
+              StubSignedUrlForUpload.describe(output.getPartLinks().get(i)));
+        }
+        assertEquals("POST " + output.getKey() + " uploadId=upload-1",
+          StubSignedUrlForUpload.describe(output.getCompleteLink()));
+        assertEquals("DELETE " + output.getKey() + " uploadId=upload-1",
+          StubSignedUrlForUpload.describe(output.getAbortLink()));
+        assertNull(output.getLink());
+    }
+
+    /**
+     * A file too large for 8 MiB parts should still be covered by at most 10,000 signed part links.
+     */
+    @Test
+    public void testLargestPartCount() throws Exception {
+        StubSignedUrlForUpload function = new StubSignedUrlForUpload();
+        SignedUrlForUpload.Output output = function.unjsonify(body(function, query(SignedUrlForUpload.SIZE_PARAM,
+          Long.toString(100 * GIB))), SignedUrlForUpload.Output.class);
+
+        assertEquals(10000, output.getPartLinks().size());
+        assertEquals(SignedUrlForUpload.partSize(100 * GIB), (long) output.getPartSize());
+    }
+
+    /**
+     * A batch should start a multipart upload only for the files at or over the threshold.
+     */
+    @Test
+    public void testBatch() throws Exception {
+        StubSignedUrlForUpload function = new StubSignedUrlForUpload();
+        Map<String, String> query = query(SignedUrlForUpload.COUNT_PARAM, "2");
+        query.put(SignedUrlForUpload.SIZES_PARAM, SignedUrlForUpload.MULTIPART_THRESHOLD + ",100");
+        SignedUrlForUpload.BatchOutput output = function.unjsonify(body(function, query),
+          SignedUrlForUpload.BatchOutput.class);
+
+        assertEquals(2, output.getUploads().size());
+        assertTrue(output.getUploads().get(0).isMultipart());
+        assertEquals(2, output.getUploads().get(0).getPartLinks().size());
+        assertFalse(output.getUploads().get(1).isMultipart());
+        assertEquals("PUT " + output.getUploads().get(1).getKey() + " ",
+          StubSignedUrlForUpload.describe(output.getUploads().get(1).getLink()));
+        assertEquals(1, function.initiated.get());
+    }
+
+    /**
+     * Counts and sizes that are not positive numbers, or that are too large for a batch even once narrowed to an
+     * int, should be refused with a 400 before anything is signed.
+     */
+    @Test
+    public void testInvalidRequests() {
+        StubSignedUrlForUpload function = new StubSignedUrlForUpload();
+        for (String count : new String[] {"4294967297", "2147483648", "1001", "0", "-1", "many"})
+            assertEquals(ProxyResponse.STATUS_CODE_BAD_REQUEST, status(function, query(SignedUrlForUpload.COUNT_PARAM,
+              count)), count);
+        assertEquals(ProxyResponse.STATUS_CODE_BAD_REQUEST, status(function, query(SignedUrlForUpload.SIZE_PARAM,
+          "big")));
+
+        Map<String, String> query = query(SignedUrlForUpload.COUNT_PARAM, "2");
+        query.put(SignedUrlForUpload.SIZES_PARAM, "100");
+        assertEquals(ProxyResponse.STATUS_CODE_BAD_REQUEST, status(function, query));
+        assertEquals(0, function.initiated.get());
+    }
+
+    private static Map<String, String> query(final String name, final String value) {
+        Map<String, String> query = new HashMap<>();
+        query.put(name, value);
+        return query;
+    }
+
+    private static String body(final FunctionSupport function, final Map<String, String> query) {
+        ProxyResponse response = handle(function, query);
+        assertEquals(ProxyResponse.STATUS_CODE_OK, response.getStatusCode(), response.getBody());
+        return response.getBody();
+    }
+
+    private static int status(final FunctionSupport function, final Map<String, String> query) {
+        return handle(function, query).getStatusCode();
+    }
+
+    private static ProxyResponse handle(final FunctionSupport function, final Map<String, String> query) {
+        ProxyRequest request = new ProxyRequest();
+        request.setHttpMethod(ProxyRequest.HTTP_GET);
+        request.setPath("/signedurl");
+        request.setQueryStringParameters(query);
+        return function.handleRequest(request, new LocalContext("signedurl", 29000));
+    }
+
+    /**
+     * Signs links as the HTTP method, key and request parameters in a URL, with a stub S3 client that numbers the
+     * multipart uploads it starts.
+     */
+    private static final class StubSignedUrlForUpload extends SignedUrlForUpload {
+        private final AtomicInteger initiated = new AtomicInteger();
+        private final AmazonS3 s3 = (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+          new Class<?>[] {AmazonS3.class}, (proxy, method, args) -> {
+              if (method.getName().equals("generatePresignedUrl") && args.length == 1)
+                  return sign((GeneratePresignedUrlRequest) args[0]);
+              if (method.getName().equals("initiateMultipartUpload")) {
+                  InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+                  result.setUploadId("upload-" + this.initiated.incrementAndGet());
+                  return result;
+              }
+              throw new UnsupportedOperationException(method.getName());
+          });
+
+        @Override
+        protected String getUploadBucket() {
+            return "uploads";
+        }
+
+        @Override
+        protected AWSCredentialsProvider getCredentialsProvider() {
+            return new AWSStaticCredentialsProvider(new BasicAWSCredentials("id", "secret"));
+        }
+
+        @Override
+        protected AmazonS3 getS3Client() {
+            return this.s3;
+        }
+
+        private static URL sign(final GeneratePresignedUrlRequest request) throws MalformedURLException {
+            StringBuilder query = new StringBuilder();
+            for (Map.Entry<String, String> param : new TreeMap<>(request.getRequestParameters()).entrySet()) {
+                query.append(query.length() == 0 ? "" : "&")
+                  .append(param.getKey()).append('=').append(param.getValue());
+            }
+            return new URL("https://" + request.getBucketName() + ".s3.amazonaws.com/" + request.getKey()
+              + "?method=" + request.getMethod() + (query.length() == 0 ? "" : "&" + query));
+        }
+
+        static String describe(final String link) throws MalformedURLException {
+            URL url = new URL(link);
+            String query = url.getQuery();
+            int params = query.indexOf('&');
+            return query.substring("method=".length(), params < 0 ? query.length() : params) + " "
+              + url.getPath().substring(1) + " " + (params < 0 ? "" : query.substring(params + 1));
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.getmarco.medtextanalyze.functions;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.getmarco.medtextanalyze.server.LocalContext;
+import org.getmarco.medtextanalyze.support.InvalidRequestException;
+import org.getmarco.medtextanalyze.support.Metrics;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.ProxyResponse;
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class StreamFunctionSupportTests {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String INPUT = "{\"bucket\":\"uploads\",\"key\":\"scan.png\"}";
+
+    /**
+     * A plain JSON body should be bound to the input, with the rest of the event read into the request and fields the
+     * function does not know about skipped, however deeply nested.
+     */
+    @Test
+    public void testBindsPlainBody() throws IOException {
+        EchoFunction function = new EchoFunction();
+        ObjectNode event = event(INPUT);
+        event.putObject("requestContext").putObject("identity").putArray("sourceIp").add("127.0.0.1");
+        event.putObject("queryStringParameters").put("mode", "fast");
+        event.putNull("stageVariables");
+
+        JsonNode response = handle(function, event);
+        assertEquals(ProxyResponse.STATUS_CODE_OK, response.get("statusCode").asInt());
+        assertFalse(response.get("isBase64Encoded").asBoolean());
+        assertEquals("application/json", response.get("headers").get("Content-Type").asText());
+        assertEquals("uploads/scan.png", MAPPER.readTree(response.get("body").asText()).get("text").asText());
+        assertEquals("/imagetext", function.request.getPath());
+        assertEquals("fast", function.request.getQueryStringParameters().get("mode"));
+        assertEquals("POST", function.request.getHttpMethod());
+    }
+
+    /**
+     * A base64 body should be bound once the flag is read, whether the flag comes before or after the body.
+     */
+    @Test
+    public void testBindsBase64Body() throws IOException {
+        String encoded = Base64.getEncoder().encodeToString(INPUT.getBytes(StandardCharsets.UTF_8));
+        for (boolean flagFirst : new boolean[] {true, false}) {
+            ObjectNode event = MAPPER.createObjectNode();
+            if (flagFirst)
+                event.put("isBase64Encoded", true);
+            event.put("httpMethod", "POST").put("body", encoded);
+            if (!flagFirst)
+                event.put("isBase64Encoded", true);
+
+            JsonNode response = handle(new EchoFunction(), event);
+            assertEquals(ProxyResponse.STATUS_CODE_OK, response.get("statusCode").asInt());
+            assertEquals("uploads/scan.png", MAPPER.readTree(response.get("body").asText()).get("text").asText());
+        }
+    }
+
+    /**
+     * Output with characters JSON must escape should come back intact in the response body, and the same as when
+     * handled as a request, including a surrogate pair at every position around the end of a replay buffer.
+     */
+    @Test
+    public void testEscapesOutput() throws IOException {
+        for (int padding = 8150; padding < 8200; padding++) {
+            String key = "line \"one\"\n\ttab \\ back \u0001 " + new String(new char[padding]).replace('\0', 'x')
+              + "\uD83D\uDE00";
+            String input = MAPPER.writeValueAsString(new TextFromImage.Input("uploads", key));
+
+            JsonNode response = handle(new EchoFunction(), event(input));
+            String streamed = response.get("body").asText();
+            assertEquals("uploads/" + key, MAPPER.readTree(streamed).get("text").asText());
+
+            ProxyRequest request = new ProxyRequest();
+            request.setHttpMethod(ProxyRequest.HTTP_POST);
+            request.setBody(input);
+            ProxyResponse handled = new EchoFunction().handleRequest(request, new LocalContext("echo", 29000));
+            assertEquals(MAPPER.readTree(streamed), MAPPER.readTree(handled.getBody()));
+        }
+    }
+
+    /**
+     * A preflight request should be answered without a body, and an event that is not a JSON object refused.
+     */
+    @Test
+    public void testPreflightAndMalformedEvent() throws IOException {
+        ObjectNode event = MAPPER.createObjectNode().put("httpMethod", ProxyRequest.HTTP_OPTIONS);
+        EchoFunction function = new EchoFunction();
+        JsonNode response = handle(function, event);
+        assertEquals(ProxyResponse.STATUS_CODE_OK, response.get("statusCode").asInt());
+        assertEquals("", response.get("body").asText());
+        assertNull(function.request);
+
+        assertThrows(IOException.class, () -> new EchoFunction().handleStream(
+          new ByteArrayInputStream("[]".getBytes(StandardCharsets.UTF_8)), new ByteArrayOutputStream(),
+          new LocalContext("echo", 29000)));
+    }
+
+    /**
+     * The metrics of a request that fails should still be flushed with that request, on both paths.
+     */
+    @Test
+    public void testFailedRequestFlushesMetrics() {
+        RecordingLogger logger = new RecordingLogger();
+        List<String> lines = logger.lines;
+        LocalContext context = new LocalContext("echo", 29000, logger);
+        ProxyRequest request = new ProxyRequest();
+        request.setHttpMethod(ProxyRequest.HTTP_POST);
+        request.setBody("{\"bucket\":\"uploads\",\"key\":\"fail\"}");
+        assertThrows(RuntimeException.class, () -> new EchoFunction().handleRequest(request, context));
+        assertTrue(lines.stream().anyMatch(line -> line.contains("\"EncodedBytes\":[42]")), lines.toString());
+
+        lines.clear();
+        assertThrows(RuntimeException.class, () -> new EchoFunction().handleStream(new ByteArrayInputStream(
+          MAPPER.writeValueAsBytes(event(request.getBody()))), new ByteArrayOutputStream(), context));
+        assertTrue(lines.stream().anyMatch(line -> line.contains("\"EncodedBytes\":[42]")), lines.toString());
+    }
+
+    /**
+     * An error message with characters JSON must escape should come back as a well-formed error body, on both paths.
+     */
+    @Test
+    public void testEscapesErrorMessage() throws IOException {
+        String message = "invalid \"key\"\n\\ \u0001";
+        String input = MAPPER.writeValueAsString(new TextFromImage.Input("uploads", message));
+
+        JsonNode response = handle(new EchoFunction(), event(input));
+        assertEquals(ProxyResponse.STATUS_CODE_BAD_REQUEST, response.get("statusCode").asInt());
+        assertEquals(message, MAPPER.readTree(response.get("body").asText()).get("message").asText());
+
+        ProxyRequest request = new ProxyRequest();
+        request.setHttpMethod(ProxyRequest.HTTP_POST);
+        request.setBody(input);
+        ProxyResponse handled = new EchoFunction().handleRequest(request, new LocalContext("echo", 29000));
+        assertEquals(ProxyResponse.STATUS_CODE_BAD_REQUEST, handled.getStatusCode());
+        assertEquals(message, MAPPER.readTree(handled.getBody()).get("message").asText());
+    }
+
+    /**
+     * Each request should record into metrics of its own, so functions handling requests at once do not share them.
+     */
+    @Test
+    public void testMetricsPerRequest() throws IOException {
+        EchoFunction function = new EchoFunction();
+        handle(function, event(INPUT));
+        Metrics first = function.getMetrics();
+        handle(function, event(INPUT));
+        assertTrue(first != function.getMetrics());
+
+        EchoFunction other = new EchoFunction();
+        handle(other, event(INPUT));
+        assertTrue(function.getMetrics() != other.getMetrics());
+    }
+
+    private static ObjectNode event(final String body) {
+        ObjectNode event = MAPPER.createObjectNode()
+          .put("resource", "/imagetext")
+          .put("path", "/imagetext")
+          .put("httpMethod", "POST")
+          .put("body", body)
+          .put("isBase64Encoded", false);
+        event.putObject("headers").put("Content-Type", "application/json");
+        return event;
+    }
+
+    static JsonNode handle(final StreamFunctionSupport<?, ?> function, final JsonNode event) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        function.handleStream(new ByteArrayInputStream(MAPPER.writeValueAsBytes(event)), output,
+          new LocalContext("echo", 29000));
+        return MAPPER.readTree(output.toByteArray());
+    }
+
+    /**
+     * Echoes the object named by the input as the detected text, keeping the request it was given.
+     */
+    static class EchoFunction extends StreamFunctionSupport<TextFromImage.Input, TextFromImage.Output> {
+        private ProxyRequest request;
+
+        EchoFunction() {
+            super(TextFromImage.Input.class, TextFromImage.Output.class);
+        }
+
+        @Override
+        protected TextFromImage.Output createOutput(final ProxyRequest proxyRequest, final TextFromImage.Input input) {
+            this.request = proxyRequest;
+            if (input.getKey().startsWith("invalid "))
+                throw new InvalidRequestException(input.getKey());
+            if ("fail".equals(input.getKey())) {
+                getMetrics().record(Metrics.Metric.ENCODED_BYTES, 42);
+                throw new IllegalStateException("failed");
+            }
+            return new TextFromImage.Output(input.getBucket() + "/" + input.getKey());
+        }
+    }
+
+    /**
+     * Keeps the lines a function logs.
+     */
+    private static final class RecordingLogger implements LambdaLogger {
+        private final List<String> lines = new ArrayList<>();
+
+        @Override
+        public void log(final String string) {
+            this.lines.add(string);
+        }
+
+        /**
+         * Keep a message given as UTF-8 bytes.
+         * @param message the message
+         */
+        public void log(final byte[] message) {
+            log(new String(message, StandardCharsets.UTF_8));
+        }
+    }
+}
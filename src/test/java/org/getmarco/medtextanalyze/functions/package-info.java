@@ -0,0 +1,4 @@
+/**
+ * Function tests.
+ */
+package org.getmarco.medtextanalyze.functions;
@@ -0,0 +1,82 @@
+package org.getmarco.medtextanalyze.index;
+
+import com.amazonaws.services.comprehendmedical.model.Attribute;
+import com.amazonaws.services.comprehendmedical.model.Entity;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class EntityIndexTests {
+
+    @TempDir
+    public Path directory;
+
+    /**
+     * Medication names, their attributes and the words of names should be found by their normalized values.
+     */
+    @Test
+    public void testTerms() throws IOException {
+        try (EntityIndex index = new EntityIndex(this.directory)) {
+            index.add("a.pdf", Arrays.asList(
+              new Entity().withCategory("MEDICATION").withType("GENERIC_NAME").withText("Metformin").withBeginOffset(10)
+                .withAttributes(Collections.singletonList(
+                  new Attribute().withType("DOSAGE").withText("500 mg").withBeginOffset(20))),
+              new Entity().withCategory("PROTECTED_HEALTH_INFORMATION").withType("NAME").withText("Jane  O'Neil")
+                .withBeginOffset(40),
+              new Entity().withCategory("PROTECTED_HEALTH_INFORMATION").withType("DATE").withText("1/2/2019")
+                .withBeginOffset(60)));
+            index.add("b.pdf", Collections.singletonList(
+              new Entity().withCategory("MEDICATION").withText("metformin").withBeginOffset(3)));
+
+            assertEquals(Arrays.asList(new Posting("a.pdf", 10), new Posting("b.pdf", 3)),
+              index.find(EntityIndex.MEDICATION, "METFORMIN"));
+            assertEquals(Collections.singletonList(new Posting("a.pdf", 20)), index.find("dosage", "500 MG"));
+            assertEquals(Collections.singletonList(new Posting("a.pdf", 48)), index.find(EntityIndex.NAME, "Neil"));
+            assertEquals(Collections.singletonList("a.pdf"), index.documents(EntityIndex.NAME, "jane"));
+            assertTrue(index.find("date", "1 2 2019").isEmpty());
+        }
+    }
+
+    /**
+     * Postings should be found in memory, in segments and after merges and reopening, with a document indexed again
+     * found only by its latest terms.
+     */
+    @Test
+    public void testSegmentsAndMerges() throws IOException {
+        try (EntityIndex index = new EntityIndex(this.directory, 3)) {
+            for (int i = 0; i < 100; i++)
+                add(index, "doc-" + i, "medication:drug " + i % 7, "name:smith");
+            add(index, "doc-3", "medication:other");
+            assertTrue(index.getSegmentCount() < 10, "segments " + index.getSegmentCount());
+            assertEquals(Arrays.asList("doc-0", "doc-7", "doc-14"),
+              index.documents(EntityIndex.MEDICATION, "drug 0").subList(0, 3));
+            assertFalse(index.documents(EntityIndex.MEDICATION, "drug 3").contains("doc-3"));
+            assertEquals(Collections.singletonList("doc-3"), index.documents(EntityIndex.MEDICATION, "other"));
+            assertEquals(99, index.find(EntityIndex.NAME, "smith").size());
+        }
+        try (EntityIndex index = new EntityIndex(this.directory, 3)) {
+            assertEquals(100, index.size());
+            assertEquals(99, index.find(EntityIndex.NAME, "smith").size());
+            assertEquals(13, index.documents(EntityIndex.MEDICATION, "drug 3").size());
+            assertEquals(Collections.singletonList("doc-3"), index.documents(EntityIndex.MEDICATION, "other"));
+            add(index, "doc-100", "medication:other");
+            assertEquals(Arrays.asList("doc-3", "doc-100"), index.documents(EntityIndex.MEDICATION, "other"));
+        }
+    }
+
+    private static void add(final EntityIndex index, final String id, final String... terms) throws IOException {
+        IntList offsets = new IntList();
+        for (int i = 0; i < terms.length; i++)
+            offsets.add(i);
+        index.add(id, Arrays.asList(terms), offsets);
+    }
+}
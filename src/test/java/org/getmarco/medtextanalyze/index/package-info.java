@@ -0,0 +1,4 @@
+/**
+ * Tests for the entity index.
+ */
+package org.getmarco.medtextanalyze.index;
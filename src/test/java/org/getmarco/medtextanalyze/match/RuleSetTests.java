@@ -0,0 +1,137 @@
+package org.getmarco.medtextanalyze.match;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class RuleSetTests {
+
+    private static final String[] PATTERNS = {
+        "\\d{3}-\\d{2}-\\d{4}",
+        "MRN[: ]*\\d{6,8}",
+        "\\b\\d{1,2}/\\d{1,2}/(?:\\d{4}|\\d{2})\\b",
+        "(?i)\\b\\d+(?:\\.\\d+)? ?(?:mg|mcg|ml)\\b",
+        "\\b[A-Z][a-z]+ine\\b",
+        "[^\\s,.]+@[a-z]+\\.(?:com|org)",
+        "x+y?z",
+    };
+
+    /**
+     * Keywords should match only as whole words, patterns anywhere, each tagged with its rule and page.
+     */
+    @Test
+    public void testRulesAndPages() {
+        RuleSet rules = RuleSet.builder()
+          .keyword("drug", "aspirin", true)
+          .keyword("drug", "ASA")
+          .pattern("mrn", "MRN[: ]*\\d{6,8}")
+          .pattern("date", "\\d{1,2}/\\d{1,2}/\\d{4}")
+          .build();
+        String text = "\nPatient MRN: 1234567\nBASAL rate; gave Aspirin\n\nASA 81 mg on 3/14/2020\n";
+
+        List<RuleMatch> matches = rules.scan(text);
+        assertEquals(Arrays.asList(
+          new RuleMatch("mrn", 1, 9, 21, "MRN: 1234567"),
+          new RuleMatch("drug", 1, 39, 46, "Aspirin"),
+          new RuleMatch("drug", 2, 48, 51, "ASA"),
+          new RuleMatch("date", 2, 61, 70, "3/14/2020")), matches);
+        for (RuleMatch match : matches)
+            assertEquals(match.getText(), text.substring(match.getStart(), match.getEnd()));
+    }
+
+    /**
+     * Each rule should find what repeated Pattern finds would, for patterns where leftmost-longest and the first
+     * alternative agree, however the text is split into pieces.
+     */
+    @Test
+    public void testMatchesPatternFind() {
+        RuleSet.Builder builder = RuleSet.builder();
+        for (String pattern : PATTERNS)
+            builder.pattern(pattern, pattern);
+        RuleSet rules = builder.build();
+        Random random = new Random(7);
+        String[] words = {"Pt", "MRN:", "MRN 12345678", "123-45-6789", "12/1/2019", "3/4/21", "500", "mg", "2.5mcg",
+          "10 ML", "Caffeine", "Morphine", "lidocaine", "a.b@host.com", "x", "xxyz", "xz", ",", ".", "\n", "\t"};
+        for (int trial = 0; trial < 50; trial++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 60; i++)
+                text.append(words[random.nextInt(words.length)]).append(random.nextBoolean() ? " " : "");
+            // one page, as there is no empty line
+            String page = text.toString().replace("\n\n", "\n").replaceAll("^\n", "");
+
+            List<RuleMatch> expected = new ArrayList<>();
+            for (String pattern : PATTERNS) {
+                Matcher matcher = Pattern.compile(pattern).matcher(page);
+                while (matcher.find()) {
+                    if (matcher.end() > matcher.start())
+                        expected.add(new RuleMatch(pattern, 1, matcher.start(), matcher.end(), matcher.group()));
+                }
+            }
+            Collections.sort(expected);
+            assertEquals(expected, rules.scan(page), page);
+
+            List<RuleMatch> streamed = new ArrayList<>();
+            RuleScanner scanner = rules.scanner(streamed::add);
+            for (int i = 0; i < page.length(); ) {
+                int next = Math.min(page.length(), i + 1 + random.nextInt(8));
+                scanner.accept(page.substring(i, next));
+                i = next;
+            }
+            scanner.finish();
+            Collections.sort(streamed);
+            assertEquals(expected, streamed);
+        }
+    }
+
+    /**
+     * Where a rule's candidates overlap the leftmost should win, then the longest, and a later match that does not
+     * overlap should still be found.
+     */
+    @Test
+    public void testOverlappingCandidates() {
+        RuleSet rules = RuleSet.builder().pattern("r", "b|abcz|c").pattern("s", "a\\w*").build();
+        assertEquals(Arrays.asList(
+          new RuleMatch("r", 1, 0, 4, "abcz"),
+          new RuleMatch("s", 1, 0, 4, "abcz"),
+          new RuleMatch("r", 1, 5, 6, "b"),
+          new RuleMatch("r", 1, 6, 7, "c")), rules.scan("abcz bc"));
+    }
+
+    /**
+     * Constructs that need backtracking or anchors should be rejected when the rule is added.
+     */
+    @Test
+    public void testUnsupportedPatterns() {
+        for (String pattern : new String[] {"a+?", "a*+", "(a)\\1", "(?=a)", "^a", "a$", "[a", "(a", "a)", "*a",
+          "a{3,1}", "\\p{L}"}) {
+            assertThrows(IllegalArgumentException.class, () -> RuleSet.builder().pattern("r", pattern));
+        }
+        assertThrows(IllegalArgumentException.class, () -> RuleSet.builder().keyword("r", ""));
+    }
+
+    /**
+     * A thousand keywords should compile and all be found in one pass.
+     */
+    @Test
+    public void testManyKeywords() {
+        RuleSet.Builder builder = RuleSet.builder();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.keyword("k" + i, "term" + i);
+            text.append("term").append(i).append(i % 10 == 0 ? "\n" : " ");
+        }
+        List<RuleMatch> matches = builder.build().scan(text.toString());
+        assertEquals(1000, matches.size());
+        assertEquals("k999", matches.get(999).getRuleId());
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Tests for the multi-rule matcher.
+ */
+package org.getmarco.medtextanalyze.match;
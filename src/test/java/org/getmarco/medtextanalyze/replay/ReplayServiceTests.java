@@ -0,0 +1,159 @@
+package org.getmarco.medtextanalyze.replay;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.DetectDocumentTextRequest;
+import com.amazonaws.services.textract.model.DetectDocumentTextResult;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionResult;
+import com.amazonaws.services.textract.model.InvalidJobIdException;
+import com.amazonaws.services.textract.model.StartDocumentTextDetectionRequest;
+
+import java.lang.reflect.Proxy;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.getmarco.medtextanalyze.support.CallGovernor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class ReplayServiceTests {
+
+    @TempDir
+    public Path fixtures;
+
+    /**
+     * Results recorded from a client should be replayed as they were, and only result pages of finished jobs
+     * recorded, grouped by job.
+     */
+    @Test
+    public void testRecordAndReplay() {
+        AmazonTextract recording = Recorder.wrap(AmazonTextract.class, textract(), this.fixtures);
+        recording.detectDocumentText(new DetectDocumentTextRequest());
+        recording.getDocumentTextDetection(new GetDocumentTextDetectionRequest().withJobId("job").withMaxResults(1));
+        recording.getDocumentTextDetection(new GetDocumentTextDetectionRequest().withJobId("job"));
+        recording.getDocumentTextDetection(new GetDocumentTextDetectionRequest().withJobId("job").withNextToken("2"));
+
+        ReplayService replay = new ReplayService(this.fixtures);
+        replay.setJobDuration(LatencyModel.NONE);
+        DetectDocumentTextResult detected = replay.textract().detectDocumentText(new DetectDocumentTextRequest());
+        assertEquals("recorded line", detected.getBlocks().get(0).getText());
+
+        String jobId = replay.textract().startDocumentTextDetection(new StartDocumentTextDetectionRequest()).getJobId();
+        GetDocumentTextDetectionResult first =
+          replay.textract().getDocumentTextDetection(new GetDocumentTextDetectionRequest().withJobId(jobId));
+        assertEquals("SUCCEEDED", first.getJobStatus());
+        assertEquals("page 1", first.getBlocks().get(0).getText());
+        GetDocumentTextDetectionResult second = replay.textract().getDocumentTextDetection(
+          new GetDocumentTextDetectionRequest().withJobId(jobId).withNextToken(first.getNextToken()));
+        assertEquals("page 2", second.getBlocks().get(0).getText());
+        assertNull(second.getNextToken());
+    }
+
+    /**
+     * A job should stay in progress for its duration before its results can be read, and an unknown job be
+     * rejected as the real service rejects it.
+     */
+    @Test
+    public void testJobStateMachine() throws Exception {
+        ReplayService replay = new ReplayService(shippedFixtures());
+        replay.setJobDuration(LatencyModel.parse("fixed:200"));
+        String jobId = replay.textract().startDocumentTextDetection(new StartDocumentTextDetectionRequest()).getJobId();
+
+        GetDocumentTextDetectionRequest poll = new GetDocumentTextDetectionRequest().withJobId(jobId).withMaxResults(1);
+        assertEquals("IN_PROGRESS", replay.textract().getDocumentTextDetection(poll).getJobStatus());
+        Thread.sleep(250);
+        GetDocumentTextDetectionResult page = replay.textract().getDocumentTextDetection(poll);
+        assertEquals("SUCCEEDED", page.getJobStatus());
+        assertEquals("PAGE", page.getBlocks().get(0).getBlockType());
+        assertEquals("1", page.getNextToken());
+
+        InvalidJobIdException e = assertThrows(InvalidJobIdException.class, () -> replay.textract()
+          .getDocumentTextDetection(new GetDocumentTextDetectionRequest().withJobId("unknown")));
+        assertEquals(400, e.getStatusCode());
+    }
+
+    /**
+     * Injected throttles and errors should look to the SDK's retry logic like the real ones.
+     */
+    @Test
+    public void testFaultInjection() throws Exception {
+        ReplayService replay = new ReplayService(shippedFixtures());
+        replay.setThrottleRate("DetectDocumentText", 1);
+        replay.setErrorRate(ReplayService.ANY_API, 1);
+
+        AmazonServiceException throttle = assertThrows(AmazonServiceException.class,
+          () -> replay.textract().detectDocumentText(new DetectDocumentTextRequest()));
+        assertTrue(RetryUtils.isThrottlingException(throttle), throttle.getErrorCode());
+        AmazonServiceException error = assertThrows(AmazonServiceException.class,
+          () -> replay.textract().startDocumentTextDetection(new StartDocumentTextDetectionRequest()));
+        assertTrue(RetryUtils.isRetryableServiceException(error));
+        assertEquals(500, error.getStatusCode());
+        assertTrue(replay.report().contains("DetectDocumentText calls 1, throttled 1"), replay.report());
+    }
+
+    /**
+     * The load driver should push requests through a function using replayed clients and report on all of them.
+     */
+    @Test
+    public void testLoadDriver() throws Exception {
+        ReplayService replay = new ReplayService(shippedFixtures());
+        replay.setLatency(ReplayService.ANY_API, LatencyModel.parse("fixed:5"));
+        CallGovernor.forService(CallGovernor.COMPREHEND_MEDICAL)
+          .setQuota("DetectEntities", new CallGovernor.Quota(1000000, 1000000, 1024));
+
+        LoadDriver.Report report = LoadDriver.forRoute("textentities", 4, replay).run(40);
+        assertEquals(40, report.getRequests());
+        assertEquals(Integer.valueOf(40), report.getStatuses().get(200), report.toString());
+        assertTrue(report.getPercentileMillis(50) >= 5, report.toString());
+        assertTrue(report.getPercentileMillis(99) >= report.getPercentileMillis(50));
+        assertTrue(replay.report().contains("DetectEntities calls 40"), replay.report());
+    }
+
+    /**
+     * Latency specifications should parse, and bad ones be rejected.
+     */
+    @Test
+    public void testLatencyModel() {
+        assertEquals(20, LatencyModel.parse("20").sampleMillis(new Random()));
+        long uniform = LatencyModel.parse("uniform:10-20").sampleMillis(new Random());
+        assertTrue(uniform >= 10 && uniform <= 20);
+        assertTrue(LatencyModel.parse("lognormal:100/0.5").sampleMillis(new Random()) >= 0);
+        assertEquals(0, LatencyModel.parse("").sampleMillis(new Random()));
+        assertThrows(IllegalArgumentException.class, () -> LatencyModel.parse("uniform:20-10"));
+        assertThrows(IllegalArgumentException.class, () -> LatencyModel.parse("gaussian:1"));
+    }
+
+    private Path shippedFixtures() throws URISyntaxException {
+        return Paths.get(getClass().getResource("/replay/DetectDocumentText.json").toURI()).getParent();
+    }
+
+    private static AmazonTextract textract() {
+        return (AmazonTextract) Proxy.newProxyInstance(AmazonTextract.class.getClassLoader(),
+          new Class<?>[] {AmazonTextract.class}, (proxy, method, args) -> {
+              switch (method.getName()) {
+                  case "detectDocumentText":
+                      return new DetectDocumentTextResult().withBlocks(Arrays.asList(
+                        new Block().withBlockType("LINE").withText("recorded line")));
+                  case "getDocumentTextDetection":
+                      GetDocumentTextDetectionRequest request = (GetDocumentTextDetectionRequest) args[0];
+                      boolean first = request.getNextToken() == null;
+                      return new GetDocumentTextDetectionResult().withJobStatus("SUCCEEDED")
+                        .withBlocks(Arrays.asList(new Block().withBlockType("LINE")
+                          .withText(first ? "page 1" : "page 2")))
+                        .withNextToken(first ? "2" : null);
+                  default:
+                      throw new UnsupportedOperationException(method.getName());
+              }
+          });
+    }
+}
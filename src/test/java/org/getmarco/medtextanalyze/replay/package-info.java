@@ -0,0 +1,4 @@
+/**
+ * Tests for the offline service stand-ins and the load driver.
+ */
+package org.getmarco.medtextanalyze.replay;
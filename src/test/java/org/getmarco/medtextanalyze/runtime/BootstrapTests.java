@@ -0,0 +1,241 @@
+package org.getmarco.medtextanalyze.runtime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.getmarco.medtextanalyze.functions.FunctionOutput;
+import org.getmarco.medtextanalyze.functions.StreamFunctionSupport;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class BootstrapTests {
+
+    private static final String EVENT = "{\"resource\":\"/echo\",\"path\":\"/echo\",\"httpMethod\":\"POST\","
+      + "\"headers\":{},\"requestContext\":{\"stage\":\"Prod\"},\"body\":\"{\\\"text\\\":\\\"hello\\\"}\","
+      + "\"isBase64Encoded\":false}";
+    private static final String REQUEST_ID = "8476a536-e9f4-11e8-9739-2dfe598c3fcd";
+
+    private final Map<String, String> posted = new ConcurrentHashMap<>();
+    private final Map<String, String> errorTypes = new ConcurrentHashMap<>();
+    private volatile boolean failPosts;
+    private HttpServer runtimeApi;
+
+    @BeforeEach
+    public void start() throws IOException {
+        this.runtimeApi = HttpServer.create(new InetSocketAddress(0), 0);
+        this.runtimeApi.createContext("/2018-06-01/runtime/", exchange -> {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Lambda-Runtime-Aws-Request-Id", REQUEST_ID);
+                exchange.getResponseHeaders().set("Lambda-Runtime-Deadline-Ms",
+                  Long.toString(System.currentTimeMillis() + 30000));
+                respond(exchange, EVENT);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            if (this.failPosts) {
+                read(exchange.getRequestBody());
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+            this.posted.put(path, read(exchange.getRequestBody()));
+            String errorType = exchange.getRequestHeaders().getFirst("Lambda-Runtime-Function-Error-Type");
+            if (errorType != null)
+                this.errorTypes.put(path, errorType);
+            respond(exchange, "{\"status\":\"OK\"}");
+        });
+        this.runtimeApi.start();
+    }
+
+    @AfterEach
+    public void stop() {
+        this.runtimeApi.stop(0);
+    }
+
+    /**
+     * A stream handler should get the event fetched from the runtime API, and its response be posted back.
+     */
+    @Test
+    public void testStreamHandlerInvocation() throws Exception {
+        Bootstrap bootstrap = new Bootstrap(address(), Echo.class.getName() + "::handleStream");
+        bootstrap.init();
+        bootstrap.next();
+
+        String response = this.posted.get("/2018-06-01/runtime/invocation/" + REQUEST_ID + "/response");
+        assertNotNull(response, this.posted.toString());
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode proxyResponse = mapper.readTree(response);
+        assertEquals(200, proxyResponse.get("statusCode").asInt());
+        assertEquals("HELLO", mapper.readTree(proxyResponse.get("body").asText()).get("text").asText());
+    }
+
+    /**
+     * A request handler should get the event bound to a proxy request, unknown properties and all.
+     */
+    @Test
+    public void testRequestHandlerInvocation() throws Exception {
+        Bootstrap bootstrap = new Bootstrap(address(), Echo.class.getName());
+        bootstrap.init();
+        bootstrap.next();
+
+        String response = this.posted.get("/2018-06-01/runtime/invocation/" + REQUEST_ID + "/response");
+        assertNotNull(response, this.posted.toString());
+        JsonNode proxyResponse = new ObjectMapper().readTree(response);
+        assertTrue(proxyResponse.get("body").asText().contains("HELLO"));
+        assertFalse(proxyResponse.get("isBase64Encoded").asBoolean());
+    }
+
+    /**
+     * A handler failure should be posted as the invocation's error, and the runtime carry on.
+     */
+    @Test
+    public void testHandlerErrorIsReported() throws Exception {
+        Bootstrap bootstrap = new Bootstrap(address(), Failing.class.getName() + "::handleStream");
+        bootstrap.init();
+        bootstrap.next();
+
+        String path = "/2018-06-01/runtime/invocation/" + REQUEST_ID + "/error";
+        JsonNode error = new ObjectMapper().readTree(this.posted.get(path));
+        assertEquals("Unhandled", this.errorTypes.get(path));
+        assertTrue(error.get("errorMessage").asText().contains("no luck"), error.toString());
+    }
+
+    /**
+     * An error thrown by a handler, not only an exception, should be posted as the invocation's error.
+     */
+    @Test
+    public void testHandlerThrowableIsReported() throws Exception {
+        Bootstrap bootstrap = new Bootstrap(address(), Erring.class.getName() + "::handleStream");
+        bootstrap.init();
+        bootstrap.next();
+
+        String path = "/2018-06-01/runtime/invocation/" + REQUEST_ID + "/error";
+        JsonNode error = new ObjectMapper().readTree(this.posted.get(path));
+        assertEquals(AssertionError.class.getName(), error.get("errorType").asText());
+    }
+
+    /**
+     * A result that cannot be posted should not stop the runtime taking the next invocation.
+     */
+    @Test
+    public void testPostFailureIsSurvived() throws Exception {
+        Bootstrap bootstrap = new Bootstrap(address(), Echo.class.getName() + "::handleStream");
+        bootstrap.init();
+        this.failPosts = true;
+        bootstrap.next();
+        assertTrue(this.posted.isEmpty());
+
+        this.failPosts = false;
+        bootstrap.next();
+        assertNotNull(this.posted.get("/2018-06-01/runtime/invocation/" + REQUEST_ID + "/response"));
+    }
+
+    /**
+     * A handler that cannot be created should be reported as an init error.
+     */
+    @Test
+    public void testInitErrorIsReported() {
+        Bootstrap bootstrap = new Bootstrap(address(), "org.getmarco.medtextanalyze.functions.Missing");
+        assertThrows(IOException.class, bootstrap::init);
+        assertTrue(this.posted.get("/2018-06-01/runtime/init/error").contains("ClassNotFoundException"));
+    }
+
+    private String address() {
+        return "localhost:" + this.runtimeApi.getAddress().getPort();
+    }
+
+    private static void respond(final HttpExchange exchange, final String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            body.write(buffer, 0, n);
+        return body.toString("UTF-8");
+    }
+
+    /**
+     * Returns its input text in upper case.
+     */
+    public static class Echo extends StreamFunctionSupport<Echo.Text, Echo.Text> {
+        /**
+         * Constructor.
+         */
+        public Echo() {
+            super(Text.class, Text.class);
+        }
+
+        @Override
+        protected Text createOutput(final ProxyRequest request, final Text input) {
+            Text output = new Text();
+            output.text = input.text.toUpperCase();
+            return output;
+        }
+
+        /**
+         * Input and output.
+         */
+        public static class Text extends FunctionOutput {
+            /** The text. */
+            public String text;
+        }
+    }
+
+    /**
+     * Always fails.
+     */
+    public static class Failing extends StreamFunctionSupport<Echo.Text, Echo.Text> {
+        /**
+         * Constructor.
+         */
+        public Failing() {
+            super(Echo.Text.class, Echo.Text.class);
+        }
+
+        @Override
+        protected Echo.Text createOutput(final ProxyRequest request, final Echo.Text input) {
+            throw new IllegalStateException("no luck");
+        }
+    }
+
+    /**
+     * Always fails with an error.
+     */
+    public static class Erring extends StreamFunctionSupport<Echo.Text, Echo.Text> {
+        /**
+         * Constructor.
+         */
+        public Erring() {
+            super(Echo.Text.class, Echo.Text.class);
+        }
+
+        @Override
+        protected Echo.Text createOutput(final ProxyRequest request, final Echo.Text input) {
+            throw new AssertionError("no luck at all");
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Runtime tests.
+ */
+package org.getmarco.medtextanalyze.runtime;
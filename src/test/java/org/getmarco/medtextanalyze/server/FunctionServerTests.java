@@ -0,0 +1,236 @@
+package org.getmarco.medtextanalyze.server;
+
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.DetectDocumentTextResult;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.getmarco.medtextanalyze.functions.StreamFunctionSupport;
+import org.getmarco.medtextanalyze.functions.TextFromImage;
+import org.getmarco.medtextanalyze.support.CallGovernor;
+import org.getmarco.medtextanalyze.support.InvalidRequestException;
+import org.getmarco.medtextanalyze.support.ProxyRequest;
+import org.getmarco.medtextanalyze.support.ProxyResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class FunctionServerTests {
+
+    private static final String PATH = "/imagetext";
+    private static final String BODY = "{\"bucket\":\"uploads\",\"key\":\"scan.png\"}";
+    private static final long TIMEOUT_MILLIS = 29000;
+    private static final CallGovernor GOVERNOR = CallGovernor.forService("stub");
+
+    static {
+        GOVERNOR.setQuota("DetectDocumentText", new CallGovernor.Quota(1000000, 1000000, 1024));
+    }
+
+    private FunctionServer server;
+
+    @AfterEach
+    public void stop() {
+        if (this.server != null)
+            this.server.shutdown(0);
+    }
+
+    /**
+     * A request should reach the function as an API Gateway proxy request and its response come back over HTTP.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        this.server = new FunctionServer(0, 2, 2, TIMEOUT_MILLIS)
+          .route(PATH, () -> new StubTextFromImage(() -> { }))
+          .start();
+
+        Response response = post(this.server, BODY);
+        assertEquals(ProxyResponse.STATUS_CODE_OK, response.status);
+        assertTrue(response.body.contains("uploads/scan.png"), response.body);
+        assertEquals(1, response.body.split("\"text\"").length - 1);
+    }
+
+    /**
+     * With every worker busy and the queue full, further requests should be refused at once with a 503.
+     */
+    @Test
+    public void testRejectsWhenSaturated() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        this.server = new FunctionServer(0, 1, 1, TIMEOUT_MILLIS)
+          .route(PATH, () -> new StubTextFromImage(() -> {
+              started.countDown();
+              await(release);
+          }))
+          .start();
+        ExecutorService clients = Executors.newFixedThreadPool(3);
+        Future<Response> running = clients.submit(() -> post(this.server, BODY));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // with the one worker held, one of these takes the queue slot and the other is refused, whichever is first
+        CompletionService<Response> contenders = new ExecutorCompletionService<>(clients);
+        contenders.submit(() -> post(this.server, BODY));
+        contenders.submit(() -> post(this.server, BODY));
+        Response refused = contenders.take().get();
+        assertEquals(503, refused.status);
+        assertEquals("1", refused.retryAfter);
+
+        release.countDown();
+        assertEquals(ProxyResponse.STATUS_CODE_OK, running.get().status);
+        assertEquals(ProxyResponse.STATUS_CODE_OK, contenders.take().get().status);
+        clients.shutdown();
+    }
+
+    /**
+     * A request whose Content-Length is not a number should be answered 400.
+     */
+    @Test
+    public void testMalformedContentLength() throws Exception {
+        this.server = new FunctionServer(0, 1, 1, TIMEOUT_MILLIS)
+          .route(PATH, () -> new StubTextFromImage(() -> { }))
+          .start();
+        try (Socket socket = new Socket("localhost", this.server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST " + PATH + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: ten\r\n\r\n")
+              .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String statusLine = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+              StandardCharsets.US_ASCII)).readLine();
+            assertTrue(statusLine.startsWith("HTTP/1.1 400"), statusLine);
+        }
+    }
+
+    /**
+     * A query string with a malformed escape should be refused as a bad request, without echoing it.
+     */
+    @Test
+    public void testMalformedQuery() throws Exception {
+        assertEquals("fast", FunctionServer.query("mode=fast").get("mode"));
+        InvalidRequestException e = assertThrows(InvalidRequestException.class,
+          () -> FunctionServer.query("mode=%zz"));
+        assertEquals("invalid query string", e.getMessage());
+    }
+
+    /**
+     * Shutdown should let a request already being handled finish, then stop listening.
+     */
+    @Test
+    public void testShutdownDrains() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        this.server = new FunctionServer(0, 2, 2, TIMEOUT_MILLIS)
+          .route(PATH, () -> new StubTextFromImage(() -> {
+              started.countDown();
+              sleep(300);
+          }))
+          .start();
+        ExecutorService clients = Executors.newSingleThreadExecutor();
+        Future<Response> inFlight = clients.submit(() -> post(this.server, BODY));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(this.server.shutdown(5000));
+        assertEquals(ProxyResponse.STATUS_CODE_OK, inFlight.get().status);
+        assertThrows(IOException.class, () -> post(this.server, BODY));
+        clients.shutdown();
+    }
+
+    private static Response post(final FunctionServer server, final String body) throws IOException {
+        HttpURLConnection connection =
+          (HttpURLConnection) new URL("http://localhost:" + server.getPort() + PATH).openConnection();
+        connection.setRequestMethod(ProxyRequest.HTTP_POST);
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        int status = connection.getResponseCode();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try (InputStream stream = in) {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = stream.read(buffer)) > 0)
+                    content.write(buffer, 0, n);
+            }
+        }
+        return new Response(status, content.toString("UTF-8"), connection.getHeaderField("Retry-After"));
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Detects text through the real analyzer, with a Textract stub that runs a delay and echoes the S3 object.
+     */
+    private static final class StubTextFromImage
+      extends StreamFunctionSupport<TextFromImage.Input, TextFromImage.Output> {
+
+        StubTextFromImage(final Runnable delay) {
+            super(TextFromImage.Input.class, TextFromImage.Output.class);
+            getAnalyzer().setTextractGovernor(GOVERNOR);
+            getAnalyzer().setTextractClient((AmazonTextract) Proxy.newProxyInstance(
+              AmazonTextract.class.getClassLoader(), new Class<?>[] {AmazonTextract.class}, (proxy, method, args) -> {
+                  if (!"detectDocumentText".equals(method.getName()))
+                      throw new UnsupportedOperationException(method.getName());
+                  delay.run();
+                  com.amazonaws.services.textract.model.S3Object object =
+                    ((com.amazonaws.services.textract.model.DetectDocumentTextRequest) args[0]).getDocument()
+                      .getS3Object();
+                  return new DetectDocumentTextResult().withBlocks(Arrays.asList(
+                    new Block().withBlockType("LINE").withText(object.getBucket() + "/" + object.getName())));
+              }));
+        }
+
+        @Override
+        protected TextFromImage.Output createOutput(final ProxyRequest request, final TextFromImage.Input input) {
+            return new TextFromImage.Output(getAnalyzer().detectTextImageS3(input.getBucket(), input.getKey(),
+              getDeadline()));
+        }
+    }
+
+    private static final class Response {
+        private final int status;
+        private final String body;
+        private final String retryAfter;
+
+        Response(final int status, final String body, final String retryAfter) {
+            this.status = status;
+            this.body = body;
+            this.retryAfter = retryAfter;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Server tests.
+ */
+package org.getmarco.medtextanalyze.server;
@@ -0,0 +1,135 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
+import com.amazonaws.services.textract.AbstractAmazonTextract;
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionResult;
+import com.amazonaws.services.textract.model.StartDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.StartDocumentTextDetectionResult;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.getmarco.medtextanalyze.corpus.CorpusStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class AnalyzerTests {
+
+    @TempDir
+    public Path directory;
+
+    /**
+     * A result page that times out should end the call with the pages fetched so far and a continuation that
+     * resumes from the page that timed out, and a poll that times out with a continuation to resume waiting.
+     */
+    @Test
+    public void testTimeoutReturnsPartialText() {
+        PagedTextract textract = new PagedTextract();
+        Analyzer analyzer = analyzer("test-analyzer-timeout", textract);
+
+        textract.pollTimeouts.set(1);
+        DetectedText waiting = analyzer.detectTextPdf2("bucket", "doc.pdf", Deadline.none(), null);
+        assertEquals("", waiting.getText());
+        assertFalse(waiting.isComplete());
+
+        textract.pageTimeouts.set(1);
+        DetectedText partial = analyzer.detectTextPdf2("bucket", "doc.pdf", Deadline.none(),
+          waiting.getContinuation());
+        assertEquals("\nfirst page\n", partial.getText());
+        assertFalse(partial.isComplete());
+
+        DetectedText rest = analyzer.detectTextPdf2("bucket", "doc.pdf", Deadline.none(), partial.getContinuation());
+        assertEquals("\nsecond page\n", rest.getText());
+        assertTrue(rest.isComplete());
+    }
+
+    /**
+     * Text detected after waiting across calls should be kept under the object requested, whatever the continuation
+     * carries.
+     */
+    @Test
+    public void testKeptUnderRequestedObject() throws IOException {
+        PagedTextract textract = new PagedTextract();
+        Analyzer analyzer = analyzer("test-analyzer-kept", textract);
+        try (CorpusStore store = new CorpusStore(this.directory)) {
+            analyzer.setCorpusStore(store);
+            String forged = Analyzer.encodeContinuation("s3://bucket/doc.pdf", Analyzer.CONTINUATION_WAIT, "job",
+              "s3://bucket/other.pdf");
+            DetectedText text = analyzer.detectTextPdf2("bucket", "doc.pdf", Deadline.none(), forged);
+            assertTrue(text.isComplete());
+            assertEquals(Collections.singleton("s3://bucket/doc.pdf"), store.ids());
+        }
+    }
+
+    /**
+     * A continuation should be good only for the object it was issued for and only as issued.
+     */
+    @Test
+    public void testContinuationIsSigned() {
+        String token = Analyzer.encodeContinuation("s3://bucket/doc.pdf", Analyzer.CONTINUATION_PAGE, "job", "2");
+        assertArrayEquals(new String[] {"P", "job", "2"},
+          Analyzer.decodeContinuation(token, "s3://bucket/doc.pdf", null));
+
+        assertThrows(InvalidRequestException.class,
+          () -> Analyzer.decodeContinuation(token, "s3://bucket/other.pdf", null));
+        String state = Base64.getUrlEncoder().withoutPadding().encodeToString("P\nother-job\n2".getBytes());
+        String forged = state + token.substring(token.indexOf('.'));
+        assertThrows(InvalidRequestException.class,
+          () -> Analyzer.decodeContinuation(forged, "s3://bucket/doc.pdf", null));
+        assertThrows(InvalidRequestException.class,
+          () -> Analyzer.decodeContinuation(state, "s3://bucket/doc.pdf", null));
+
+        Analyzer analyzer = analyzer("test-analyzer-signed", new PagedTextract());
+        assertThrows(InvalidRequestException.class,
+          () -> analyzer.detectTextPdf2("bucket", "other.pdf", Deadline.none(), token));
+    }
+
+    private static Analyzer analyzer(final String service, final PagedTextract textract) {
+        CallGovernor governor = CallGovernor.forService(service);
+        CallGovernor.Quota unlimited = new CallGovernor.Quota(Double.MAX_VALUE, Double.MAX_VALUE, 16);
+        governor.setQuota(Analyzer.START_TEXT_DETECTION, unlimited);
+        governor.setQuota(Analyzer.GET_TEXT_DETECTION, unlimited);
+        Analyzer analyzer = new Analyzer();
+        analyzer.setTextractGovernor(governor);
+        analyzer.setTextractClient(textract);
+        analyzer.setCorpusStore(null);
+        return analyzer;
+    }
+
+    // a job of two result pages, whose polls and result pages time out as many times as set
+    private static final class PagedTextract extends AbstractAmazonTextract {
+        private final AtomicInteger pollTimeouts = new AtomicInteger();
+        private final AtomicInteger pageTimeouts = new AtomicInteger();
+
+        @Override
+        public StartDocumentTextDetectionResult startDocumentTextDetection(
+          final StartDocumentTextDetectionRequest request) {
+            return new StartDocumentTextDetectionResult().withJobId("job");
+        }
+
+        @Override
+        public GetDocumentTextDetectionResult getDocumentTextDetection(final GetDocumentTextDetectionRequest request) {
+            boolean poll = request.getMaxResults() == 1;
+            boolean first = request.getNextToken() == null;
+            AtomicInteger timeouts = poll ? this.pollTimeouts : first ? null : this.pageTimeouts;
+            if (timeouts != null && timeouts.getAndDecrement() > 0)
+                throw new ClientExecutionTimeoutException();
+            GetDocumentTextDetectionResult result = new GetDocumentTextDetectionResult().withJobStatus("SUCCEEDED");
+            if (poll)
+                return result;
+            return result.withNextToken(first ? "2" : null).withBlocks(Arrays.asList(
+              new Block().withBlockType("PAGE"),
+              new Block().withBlockType("LINE").withText(first ? "first page" : "second page")));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
+import com.amazonaws.services.comprehendmedical.AWSComprehendMedicalAsync;
+import com.amazonaws.services.comprehendmedical.model.DetectEntitiesResult;
+import com.amazonaws.services.comprehendmedical.model.Entity;
+import com.amazonaws.services.textract.AmazonTextractAsync;
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionResult;
+import com.amazonaws.services.textract.model.StartDocumentTextDetectionResult;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class AsyncAnalyzerTests {
+
+    private static final int DOCUMENTS = 500;
+    private static final long SERVICE_LATENCY_MILLIS = 20;
+
+    private final ScheduledExecutorService service = Executors.newScheduledThreadPool(2);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Stop the threads of the fake service and the scheduler.
+     */
+    @AfterEach
+    public void tearDown() {
+        this.service.shutdownNow();
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * Hundreds of PDFs should be in flight at once on one scheduler thread, each polled until its job is done and
+     * its result pages fetched in turn.
+     */
+    @Test
+    public void testManyJobsInFlight() {
+        AtomicInteger jobs = new AtomicInteger();
+        AtomicInteger open = new AtomicInteger();
+        AtomicInteger mostOpen = new AtomicInteger();
+        AsyncAnalyzer analyzer = analyzer("test-async-jobs");
+        analyzer.setTextractClient(textract(method -> {
+            switch (method) {
+                case "startDocumentTextDetectionAsync":
+                    return request -> {
+                        mostOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+                        String jobId = Integer.toString(jobs.incrementAndGet());
+                        return new StartDocumentTextDetectionResult().withJobId(jobId);
+                    };
+                default:
+                    return request -> {
+                        GetDocumentTextDetectionResult page = resultPage((GetDocumentTextDetectionRequest) request);
+                        if (page.getBlocks() != null && page.getNextToken() == null)
+                            open.decrementAndGet();
+                        return page;
+                    };
+            }
+        }));
+        List<CompletableFuture<DetectedText>> detections = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS; i++)
+            detections.add(analyzer.detectTextPdf2("bucket", "doc" + i, Deadline.none(), null));
+        CompletableFuture.allOf(detections.toArray(new CompletableFuture<?>[0])).join();
+
+        assertEquals(DOCUMENTS, jobs.get());
+        for (CompletableFuture<DetectedText> detection : detections) {
+            assertTrue(detection.join().isComplete());
+            assertEquals("\nfirst page\n\nsecond page\n", detection.join().getText());
+        }
+        // one document at a time would have had only one job open at once
+        assertTrue(mostOpen.get() > 1, "at most " + mostOpen.get() + " jobs open at once");
+        assertEquals(0, open.get());
+    }
+
+    /**
+     * A result page that times out should end the call with the pages fetched so far and a continuation that
+     * resumes from the page that timed out, and a poll that times out with a continuation to resume waiting.
+     */
+    @Test
+    public void testTimeoutReturnsPartialText() {
+        AtomicInteger pollTimeouts = new AtomicInteger(1);
+        AtomicInteger pageTimeouts = new AtomicInteger(0);
+        AsyncAnalyzer analyzer = analyzer("test-async-timeout");
+        analyzer.setTextractClient(textract(method -> {
+            switch (method) {
+                case "startDocumentTextDetectionAsync":
+                    return request -> new StartDocumentTextDetectionResult().withJobId("job");
+                default:
+                    return request -> {
+                        GetDocumentTextDetectionRequest get = (GetDocumentTextDetectionRequest) request;
+                        boolean poll = get.getMaxResults() != null && get.getMaxResults() == 1;
+                        AtomicInteger timeouts = poll ? pollTimeouts : get.getNextToken() == null ? null : pageTimeouts;
+                        if (timeouts != null && timeouts.getAndDecrement() > 0)
+                            throw new ClientExecutionTimeoutException();
+                        return resultPage(get);
+                    };
+            }
+        }));
+
+        DetectedText waiting = analyzer.detectTextPdf2("bucket", "doc.pdf", Deadline.none(), null).join();
+        assertEquals("", waiting.getText());
+        assertFalse(waiting.isComplete());
+
+        pageTimeouts.set(1);
+        DetectedText partial = analyzer.detectTextPdf2("bucket", "doc.pdf", Deadline.none(),
+          waiting.getContinuation()).join();
+        assertEquals("\nfirst page\n", partial.getText());
+        assertFalse(partial.isComplete());
+
+        DetectedText rest = analyzer.detectTextPdf2("bucket", "doc.pdf", Deadline.none(),
+          partial.getContinuation()).join();
+        assertEquals("\nsecond page\n", rest.getText());
+        assertTrue(rest.isComplete());
+    }
+
+    /**
+     * A job the deadline leaves no time to wait for should come back at once with a token to resume waiting, and
+     * a throttled entity detection should be retried.
+     */
+    @Test
+    public void testContinuationAndRetry() {
+        AsyncAnalyzer analyzer = analyzer("test-async-retry");
+        analyzer.setTextractClient(textract(method -> request -> new StartDocumentTextDetectionResult()
+          .withJobId("job")));
+        DetectedText waiting = analyzer.detectTextPdf2("bucket", "doc", Deadline.after(100), null).join();
+        assertEquals("", waiting.getText());
+        assertFalse(waiting.isComplete());
+
+        AtomicInteger calls = new AtomicInteger();
+        analyzer.setComprehendClient((AWSComprehendMedicalAsync) fake(AWSComprehendMedicalAsync.class, method -> r -> {
+            if (calls.incrementAndGet() == 1) {
+                AmazonServiceException throttle = new AmazonServiceException("slow down");
+                throttle.setErrorCode("ThrottlingException");
+                throw throttle;
+            }
+            return new DetectEntitiesResult().withEntities(Collections.singletonList(new Entity()
+              .withCategory("MEDICATION").withType("GENERIC_NAME").withText("aspirin")));
+        }));
+        assertEquals("Medication: aspirin\n-----\n", analyzer.getEntities("aspirin", Deadline.none()).join());
+        assertEquals(2, calls.get());
+    }
+
+    private AsyncAnalyzer analyzer(final String service) {
+        CallGovernor governor = CallGovernor.forService(service);
+        CallGovernor.Quota unlimited = new CallGovernor.Quota(Double.MAX_VALUE, Double.MAX_VALUE, 64);
+        for (String api : Arrays.asList("StartDocumentTextDetection", "GetDocumentTextDetection", "DetectEntities"))
+            governor.setQuota(api, unlimited);
+        Analyzer analyzer = new Analyzer();
+        analyzer.setTextractGovernor(governor);
+        analyzer.setComprehendGovernor(governor);
+        analyzer.setCorpusStore(null);
+        AsyncAnalyzer async = new AsyncAnalyzer(analyzer);
+        async.setScheduler(this.scheduler);
+        return async;
+    }
+
+    private static GetDocumentTextDetectionResult resultPage(final GetDocumentTextDetectionRequest request) {
+        GetDocumentTextDetectionResult result = new GetDocumentTextDetectionResult().withJobStatus("SUCCEEDED");
+        if (request.getMaxResults() != null && request.getMaxResults() == 1)
+            return result;
+        boolean first = request.getNextToken() == null;
+        return result.withNextToken(first ? "2" : null).withBlocks(Arrays.asList(new Block().withBlockType("PAGE"),
+          new Block().withBlockType("LINE").withText(first ? "first page" : "second page")));
+    }
+
+    private AmazonTextractAsync textract(final Function<String, Function<Object, Object>> answers) {
+        return (AmazonTextractAsync) fake(AmazonTextractAsync.class, answers);
+    }
+
+    // a client whose asynchronous calls complete on the fake service's threads after its latency
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Object fake(final Class<?> type, final Function<String, Function<Object, Object>> answers) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            Function<Object, Object> answer = answers.apply(method.getName());
+            AsyncHandler handler = (AsyncHandler) args[1];
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            this.service.schedule(() -> {
+                try {
+                    Object result = answer.apply(args[0]);
+                    handler.onSuccess((AmazonWebServiceRequest) args[0], result);
+                    future.complete(result);
+                } catch (RuntimeException e) {
+                    handler.onError(e);
+                    future.completeExceptionally(e);
+                }
+            }, SERVICE_LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+            return future;
+        });
+    }
+}
@@ -0,0 +1,316 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.services.textract.AbstractAmazonTextract;
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.model.DetectDocumentTextRequest;
+import com.amazonaws.services.textract.model.DetectDocumentTextResult;
+import com.amazonaws.services.textract.model.InvalidParameterException;
+import com.amazonaws.services.textract.model.ProvisionedThroughputExceededException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class CallGovernorTests {
+
+    private static final String API = "DetectDocumentText";
+    private static final double QUOTA_TPS = 40;
+    private static final double SERVICE_BURST = 10;
+    private static final long SERVICE_LATENCY_MILLIS = 50;
+    private static final int CALLERS = 16;
+    private static final long WARM_UP_MILLIS = 1000;
+    private static final long MEASURE_MILLIS = 2000;
+
+    /**
+     * With a configured rate well above the service quota, the adaptive limit should back off on throttles until
+     * throughput settles near the quota, and retries should see every call through.
+     * @throws InterruptedException if interrupted while waiting for callers
+     */
+    @Test
+    public void testThroughputSettlesNearQuota() throws InterruptedException {
+        CallGovernor governor = CallGovernor.forService("test-settles");
+        governor.setQuota(API, new CallGovernor.Quota(QUOTA_TPS * 2, QUOTA_TPS * 2, CALLERS * 2));
+        governor.setMaxAttempts(Integer.MAX_VALUE);
+        ThrottlingTextract textract = new ThrottlingTextract(QUOTA_TPS, SERVICE_BURST, SERVICE_LATENCY_MILLIS);
+
+        double tps = drive(governor, textract);
+        ApiStats stats = governor.getStats(API);
+        assertTrue(tps >= QUOTA_TPS * 0.7, "throughput " + tps + " fell well below quota");
+        assertTrue(tps <= QUOTA_TPS * 1.1, "throughput " + tps + " exceeded quota");
+        assertTrue(stats.getThrottles() < stats.getSuccesses() / 4, "throttles dominated: " + stats);
+        assertEquals(0, stats.getFailures());
+    }
+
+    /**
+     * A rate limit matching the quota should keep the service from throttling at all, even with many callers.
+     * @throws InterruptedException if interrupted while waiting for callers
+     */
+    @Test
+    public void testRateLimitAvoidsThrottles() throws InterruptedException {
+        CallGovernor governor = CallGovernor.forService("test-rate");
+        governor.setQuota(API, new CallGovernor.Quota(QUOTA_TPS, SERVICE_BURST, CALLERS));
+        ThrottlingTextract textract = new ThrottlingTextract(QUOTA_TPS, SERVICE_BURST, SERVICE_LATENCY_MILLIS);
+
+        double tps = drive(governor, textract);
+        ApiStats stats = governor.getStats(API);
+        assertTrue(tps >= QUOTA_TPS * 0.8, "throughput " + tps + " fell well below quota");
+        assertTrue(stats.getThrottles() <= 2, "unexpected throttles: " + stats);
+        assertEquals(0, stats.getFailures());
+    }
+
+    /**
+     * Errors that are neither throttles nor transient should fail on the first attempt.
+     */
+    @Test
+    public void testClientErrorIsNotRetried() {
+        CallGovernor governor = CallGovernor.forService("test-client-error");
+        InvalidParameterException error = new InvalidParameterException("bad document");
+        error.setErrorCode("InvalidParameterException");
+        error.setStatusCode(400);
+        AtomicInteger attempts = new AtomicInteger();
+        assertThrows(InvalidParameterException.class, () -> governor.call(API, () -> {
+            attempts.incrementAndGet();
+            throw error;
+        }));
+        assertEquals(1, attempts.get());
+        assertEquals(1, governor.getStats(API).getFailures());
+        assertEquals(0, governor.getStats(API).getRetries());
+    }
+
+    /**
+     * A call that the rate or concurrency limit would hold past its deadline should fail without being made.
+     * @throws Exception if the call holding the concurrency slot fails
+     */
+    @Test
+    public void testTurnIsBoundedByDeadline() throws Exception {
+        CallGovernor rated = CallGovernor.forService("test-turn-rate");
+        rated.setQuota(API, new CallGovernor.Quota(1, 1, CALLERS));
+        AtomicInteger calls = new AtomicInteger();
+        rated.call(API, Deadline.after(100), calls::incrementAndGet);
+        assertThrows(DeadlineExceededException.class, () -> rated.call(API, Deadline.after(100),
+          calls::incrementAndGet));
+        assertEquals(1, calls.get());
+
+        CallGovernor limited = CallGovernor.forService("test-turn-limit");
+        limited.setQuota(API, new CallGovernor.Quota(Double.MAX_VALUE, Double.MAX_VALUE, 1));
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService holder = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> held = holder.submit(() -> limited.call(API, () -> {
+                holding.countDown();
+                try {
+                    return release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+            holding.await();
+            assertThrows(DeadlineExceededException.class, () -> limited.call(API, Deadline.after(100),
+              calls::incrementAndGet));
+            assertEquals(1, calls.get());
+            release.countDown();
+            assertTrue(held.get());
+            assertEquals(2, (int) limited.call(API, Deadline.after(100), calls::incrementAndGet));
+        } finally {
+            holder.shutdownNow();
+        }
+    }
+
+    /**
+     * Callers waiting for a slot should be served in the order they asked, whether they block or not.
+     * @throws Exception if the blocking caller fails
+     */
+    @Test
+    public void testSlotsAreServedInOrder() throws Exception {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 1, 1);
+        assertTrue(limit.tryAcquire());
+        CompletableFuture<Void> first = limit.acquireAsync();
+        ExecutorService blocking = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> second = blocking.submit(() -> limit.acquire(TimeUnit.SECONDS.toNanos(10)));
+            while (limit.getWaiting() < 2)
+                Thread.yield();
+            CompletableFuture<Void> third = limit.acquireAsync();
+            assertFalse(limit.tryAcquire());
+
+            limit.release(false);
+            assertTrue(first.isDone());
+            assertFalse(third.isDone());
+            limit.release(false);
+            assertTrue(second.get());
+            assertFalse(third.isDone());
+            limit.release(false);
+            assertTrue(third.isDone());
+        } finally {
+            blocking.shutdownNow();
+        }
+    }
+
+    /**
+     * An asynchronous call whose wait the scheduler refuses should fail rather than never complete.
+     */
+    @Test
+    public void testRejectedWaitFailsCall() {
+        CallGovernor governor = CallGovernor.forService("test-rejected-wait");
+        governor.setQuota(API, new CallGovernor.Quota(1, 1, CALLERS));
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.shutdown();
+        assertEquals("first", governor.callAsync(API, Deadline.none(), scheduler,
+          () -> CompletableFuture.completedFuture("first")).join());
+        CompletableFuture<String> held = governor.callAsync(API, Deadline.none(), scheduler,
+          () -> CompletableFuture.completedFuture("second"));
+        CompletionException failure = assertThrows(CompletionException.class, held::join);
+        assertTrue(failure.getCause() instanceof RejectedExecutionException, failure.toString());
+    }
+
+    /**
+     * An asynchronous call that cannot get a token or a slot before its deadline should fail as exceeding it without
+     * being made, and a call that returns no future should fail and give its slot back.
+     */
+    @Test
+    public void testAsyncDeadline() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            CallGovernor rated = CallGovernor.forService("test-async-rate");
+            rated.setQuota(API, new CallGovernor.Quota(0.1, 1, CALLERS));
+            assertEquals("first", rated.callAsync(API, Deadline.none(), scheduler,
+              () -> CompletableFuture.completedFuture("first")).join());
+            AtomicInteger made = new AtomicInteger();
+            CompletableFuture<Integer> unrated = rated.callAsync(API, Deadline.after(100), scheduler,
+              () -> CompletableFuture.completedFuture(made.incrementAndGet()));
+            CompletionException failure = assertThrows(CompletionException.class, unrated::join);
+            assertTrue(failure.getCause() instanceof DeadlineExceededException, failure.toString());
+
+            CallGovernor limited = CallGovernor.forService("test-async-slot");
+            limited.setQuota(API, new CallGovernor.Quota(1000, 1000, 1));
+            CompletableFuture<String> holding = new CompletableFuture<>();
+            CompletableFuture<String> held = limited.callAsync(API, Deadline.none(), scheduler, () -> holding);
+            CompletableFuture<Integer> waited = limited.callAsync(API, Deadline.after(100), scheduler,
+              () -> CompletableFuture.completedFuture(made.incrementAndGet()));
+            failure = assertThrows(CompletionException.class, waited::join);
+            assertTrue(failure.getCause() instanceof DeadlineExceededException, failure.toString());
+            holding.complete("held");
+            assertEquals("held", held.join());
+
+            CompletableFuture<String> none = limited.callAsync(API, Deadline.none(), scheduler, () -> null);
+            failure = assertThrows(CompletionException.class, none::join);
+            assertTrue(failure.getCause() instanceof IllegalStateException, failure.toString());
+            assertEquals("after", limited.callAsync(API, Deadline.after(1000), scheduler,
+              () -> CompletableFuture.completedFuture("after")).join());
+            assertEquals(0, made.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Quotas given in configuration should parse, and malformed ones should be rejected without applying any of the
+     * list.
+     */
+    @Test
+    public void testConfigure() {
+        CallGovernor.configure("test-configure.DetectDocumentText=10,test-configure.DetectEntities=20:40");
+        assertTrue(CallGovernor.all().containsKey("test-configure"));
+        assertThrows(IllegalArgumentException.class, () -> CallGovernor.configure("DetectDocumentText=10"));
+        assertThrows(IllegalArgumentException.class, () -> CallGovernor.configure("textract.DetectDocumentText=x"));
+        assertThrows(IllegalArgumentException.class, () -> CallGovernor.configure("textract.DetectDocumentText=0"));
+        assertThrows(IllegalArgumentException.class,
+          () -> CallGovernor.configure("test-configure-partial.DetectDocumentText=10,DetectEntities=20"));
+        assertFalse(CallGovernor.all().containsKey("test-configure-partial"));
+    }
+
+    private static double drive(final CallGovernor governor, final AmazonTextract textract)
+      throws InterruptedException {
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(WARM_UP_MILLIS);
+        long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(MEASURE_MILLIS);
+        AtomicLong measured = new AtomicLong();
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            callers.execute(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        governor.call(API, () -> textract.detectDocumentText(new DetectDocumentTextRequest()));
+                        long now = System.nanoTime();
+                        if (now >= measureFrom && now < end)
+                            measured.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        callers.shutdown();
+        assertTrue(callers.awaitTermination(MEASURE_MILLIS * 5, TimeUnit.MILLISECONDS));
+        assertTrue(errors.isEmpty(), "calls failed: " + errors);
+        return measured.get() * 1000.0 / MEASURE_MILLIS;
+    }
+
+    /**
+     * Fake Textract that enforces a request rate quota the way the service does, by rejecting calls over the quota
+     * with a throughput exceeded error.
+     */
+    private static final class ThrottlingTextract extends AbstractAmazonTextract {
+        private static final int STATUS_BAD_REQUEST = 400;
+
+        private final double ratePerSecond;
+        private final double burst;
+        private final long latencyMillis;
+        private double tokens;
+        private long refilledAtNanos = System.nanoTime();
+
+        ThrottlingTextract(final double ratePerSecond, final double burst, final long latencyMillis) {
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+            this.latencyMillis = latencyMillis;
+            this.tokens = burst;
+        }
+
+        @Override
+        public DetectDocumentTextResult detectDocumentText(final DetectDocumentTextRequest request) {
+            boolean admitted = admit();
+            try {
+                TimeUnit.MILLISECONDS.sleep(admitted ? this.latencyMillis : this.latencyMillis / 5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!admitted) {
+                ProvisionedThroughputExceededException e = new ProvisionedThroughputExceededException("slow down");
+                e.setErrorCode("ProvisionedThroughputExceededException");
+                e.setStatusCode(STATUS_BAD_REQUEST);
+                throw e;
+            }
+            return new DetectDocumentTextResult();
+        }
+
+        private synchronized boolean admit() {
+            long now = System.nanoTime();
+            this.tokens = Math.min(this.burst, this.tokens + (now - this.refilledAtNanos) * this.ratePerSecond / 1e9);
+            this.refilledAtNanos = now;
+            if (this.tokens < 1)
+                return false;
+            this.tokens -= 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.AbortedException;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class HedgerTests {
+
+    private static final String API = "DetectDocumentText";
+    private static final long FAST_MILLIS = 5;
+    private static final long SLOW_MILLIS = 200;
+    private static final int SLOW_EVERY = 25;
+    private static final int BASELINE_CALLS = 150;
+    private static final int HEDGED_CALLS = 300;
+    private static final double PERCENTILE = 95;
+    private static final double BUDGET_PERCENT = 10;
+    private static final double P99 = 0.99;
+
+    /**
+     * Hedging should take the slow outliers out of the p99 while staying within its budget, and the losing
+     * attempts should be cancelled.
+     */
+    @Test
+    public void testHedgingCutsTailLatency() {
+        SlowService baselineService = new SlowService();
+        long baseline = p99(BASELINE_CALLS, baselineService);
+
+        SlowService service = new SlowService();
+        Hedger hedger = new Hedger(PERCENTILE, BUDGET_PERCENT);
+        long hedged = p99(HEDGED_CALLS, () -> hedger.call(API, service));
+
+        assertTrue(baseline >= SLOW_MILLIS, "baseline p99 " + baseline + " should include the slow calls");
+        assertTrue(hedged < SLOW_MILLIS / 2, "hedged p99 " + hedged + " should exclude the slow calls");
+        assertTrue(hedger.getHedges() > 0);
+        assertTrue(hedger.getHedges() <= HEDGED_CALLS * BUDGET_PERCENT / 100, "over budget: " + hedger);
+        assertTrue(hedger.getHedgeWins() > 0);
+        assertTrue(hedger.getThresholdMillis(API) < SLOW_MILLIS);
+        assertTrue(service.cancelled.get() > 0, "losing attempts should be interrupted");
+    }
+
+    /**
+     * A governed attempt cancelled because its hedge won should be counted as cancelled, not as a failure.
+     */
+    @Test
+    public void testCancelledLoserIsNotAFailure() {
+        CallGovernor governor = CallGovernor.forService("test-hedger-cancel");
+        governor.setQuota(API, new CallGovernor.Quota(Double.MAX_VALUE, Double.MAX_VALUE, 16));
+        SlowService service = new SlowService();
+        Hedger hedger = new Hedger(PERCENTILE, BUDGET_PERCENT);
+        p99(HEDGED_CALLS, () -> hedger.call(API, () -> governor.call(API, () -> {
+            String result = service.get();
+            // as the SDK reports an interrupted request
+            if (Thread.currentThread().isInterrupted())
+                throw new AbortedException();
+            return result;
+        })));
+
+        ApiStats stats = governor.getStats(API);
+        assertTrue(hedger.getHedgeWins() > 0);
+        assertTrue(stats.getCancels() > 0, "losing attempts should be counted as cancelled: " + stats);
+        assertEquals(0, stats.getFailures(), "losing attempts should not be counted as failures: " + stats);
+    }
+
+    /**
+     * With no budget there should be no hedges, however slow the calls.
+     */
+    @Test
+    public void testNoBudgetNoHedges() {
+        SlowService service = new SlowService();
+        Hedger hedger = new Hedger(PERCENTILE, 0);
+        p99(BASELINE_CALLS, () -> hedger.call(API, service));
+        assertEquals(0, hedger.getHedges());
+        assertEquals(BASELINE_CALLS, hedger.getCalls());
+    }
+
+    /**
+     * A failed call should surface its own exception.
+     */
+    @Test
+    public void testFailurePropagates() {
+        Hedger hedger = new Hedger(PERCENTILE, BUDGET_PERCENT);
+        IllegalStateException error = new IllegalStateException("failed");
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> hedger.call(API, () -> {
+            throw error;
+        }));
+        assertSame(error, thrown);
+    }
+
+    private static long p99(final int calls, final Supplier<?> call) {
+        long[] latencies = new long[calls];
+        for (int i = 0; i < calls; i++) {
+            long start = System.nanoTime();
+            call.get();
+            latencies[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+        Arrays.sort(latencies);
+        return latencies[(int) Math.ceil(P99 * calls) - 1];
+    }
+
+    /**
+     * Stub service that answers quickly except for every few calls, which stall.
+     */
+    private static final class SlowService implements Supplier<String> {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger cancelled = new AtomicInteger();
+
+        @Override
+        public String get() {
+            boolean slow = calls.incrementAndGet() % SLOW_EVERY == 0;
+            try {
+                TimeUnit.MILLISECONDS.sleep(slow ? SLOW_MILLIS : FAST_MILLIS);
+            } catch (InterruptedException e) {
+                cancelled.incrementAndGet();
+                Thread.currentThread().interrupt();
+            }
+            return slow ? "slow" : "fast";
+        }
+    }
+}
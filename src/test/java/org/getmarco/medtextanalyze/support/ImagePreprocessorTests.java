@@ -0,0 +1,155 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class ImagePreprocessorTests {
+
+    private static final String TEXT = "Current medications: lisinopril 20 mg PO daily; metformin 500 mg PO BID.";
+
+    /**
+     * A large colour photo of a page should come back grayscale, at the target density and a fraction of the size,
+     * with the time and saving recorded.
+     * @throws IOException if the fixture cannot be encoded
+     */
+    @Test
+    public void testPhotoIsShrunk() throws IOException {
+        byte[] photo = encode(page(4032, 3024, new Color(230, 214, 190), 0, 24), "jpg");
+        Analyzer analyzer = new Analyzer();
+        ByteBuffer prepared = analyzer.prepareImage(ByteBuffer.wrap(photo));
+
+        BufferedImage image = decode(prepared);
+        assertEquals(1, image.getColorModel().getNumComponents());
+        assertTrue(Math.max(image.getWidth(), image.getHeight()) <= 2200, image.getWidth() + "x" + image.getHeight());
+        assertTrue(prepared.remaining() < photo.length / 2, prepared.remaining() + " of " + photo.length + " bytes");
+        assertEquals(1, analyzer.getMetrics().getCount(Metrics.Metric.IMAGE_PREPROCESS));
+        assertEquals(1, analyzer.getMetrics().getCount(Metrics.Metric.IMAGE_BYTES_SAVED));
+    }
+
+    /**
+     * Uniform margins around the text should be cropped, leaving a small margin.
+     * @throws IOException if the fixture cannot be encoded
+     */
+    @Test
+    public void testBordersAreCropped() throws IOException {
+        byte[] scan = encode(page(1700, 2200, Color.WHITE, 400, 0), "png");
+        ImagePreprocessor preprocessor = new ImagePreprocessor();
+        ImagePreprocessor.Result result = preprocessor.prepare(ByteBuffer.wrap(scan));
+
+        BufferedImage image = decode(result.getBytes());
+        assertTrue(result.isProcessed());
+        assertTrue(image.getWidth() < 1700 - 600 && image.getHeight() < 2200 - 600,
+          image.getWidth() + "x" + image.getHeight());
+        assertTrue(image.getWidth() > 1700 - 800 - 100, image.getWidth() + "x" + image.getHeight());
+
+        preprocessor.setCropBorders(false);
+        BufferedImage uncropped = decode(preprocessor.prepare(ByteBuffer.wrap(scan)).getBytes());
+        assertEquals(1700, uncropped.getWidth());
+        assertEquals(2200, uncropped.getHeight());
+    }
+
+    /**
+     * An image whose PNG is over the byte budget should be sent as JPEG within it.
+     * @throws IOException if the fixture cannot be encoded
+     */
+    @Test
+    public void testByteBudget() throws IOException {
+        byte[] scan = encode(page(2550, 3300, Color.WHITE, 0, 48), "png");
+        ImagePreprocessor preprocessor = new ImagePreprocessor();
+        preprocessor.setMaxBytes(200 * 1024);
+        ImagePreprocessor.Result result = preprocessor.prepare(ByteBuffer.wrap(scan));
+
+        ByteBuffer bytes = result.getBytes();
+        assertTrue(bytes.remaining() <= 200 * 1024, bytes.remaining() + " bytes");
+        assertEquals((byte) 0xff, bytes.get(0));
+        assertEquals((byte) 0xd8, bytes.get(1));
+        assertEquals(scan.length - bytes.remaining(), result.getBytesSaved());
+        assertNotNull(decode(bytes));
+    }
+
+    /**
+     * An image that cannot be decoded, or that is small and gray already, should be sent as it is.
+     * @throws IOException if the fixture cannot be encoded
+     */
+    @Test
+    public void testPassedThrough() throws IOException {
+        byte[] unknown = new byte[1024];
+        new Random(1).nextBytes(unknown);
+        ImagePreprocessor preprocessor = new ImagePreprocessor();
+        ImagePreprocessor.Result result = preprocessor.prepare(ByteBuffer.wrap(unknown));
+        assertFalse(result.isProcessed());
+        assertEquals(ByteBuffer.wrap(unknown), result.getBytes());
+        assertEquals(0, result.getBytesSaved());
+
+        BufferedImage small = new BufferedImage(400, 300, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = small.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 400, 300);
+        g.setColor(Color.BLACK);
+        g.drawString("aspirin", 0, 150);
+        g.dispose();
+        byte[] png = encode(small, "png");
+        preprocessor.setCropBorders(false);
+        assertEquals(ByteBuffer.wrap(png), preprocessor.prepare(ByteBuffer.wrap(png)).getBytes());
+    }
+
+    // a page of text lines on a background, inset by a margin and with noise of the given amplitude
+    private static BufferedImage page(final int width, final int height, final Color background, final int margin,
+      final int noise) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(background);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.DARK_GRAY);
+        int size = Math.max(width, height) / 90;
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, size));
+        for (int y = Math.max(margin, size) + size; y < height - Math.max(margin, size); y += size * 3 / 2)
+            g.drawString(TEXT, Math.max(margin, size), y);
+        g.dispose();
+        if (noise > 0) {
+            Random random = new Random(1);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int rgb = image.getRGB(x, y);
+                    int delta = random.nextInt(noise) - noise / 2;
+                    int r = clamp(((rgb >> 16) & 0xff) + delta);
+                    int gr = clamp(((rgb >> 8) & 0xff) + delta);
+                    int b = clamp((rgb & 0xff) + delta);
+                    image.setRGB(x, y, (r << 16) | (gr << 8) | b);
+                }
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(final int level) {
+        return Math.max(0, Math.min(255, level));
+    }
+
+    private static byte[] encode(final BufferedImage image, final String format) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, format, bytes);
+        return bytes.toByteArray();
+    }
+
+    private static BufferedImage decode(final ByteBuffer bytes) throws IOException {
+        byte[] array = new byte[bytes.remaining()];
+        bytes.duplicate().get(array);
+        return ImageIO.read(new ByteArrayInputStream(array));
+    }
+}
@@ -0,0 +1,158 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class LaneSchedulerTests {
+
+    /**
+     * Interactive work should be admitted ahead of batch work waiting longer, and batch work should never take the
+     * reserved slots.
+     */
+    @Test
+    public void testInteractiveAheadOfBatch() throws Exception {
+        LaneScheduler lanes = new LaneScheduler(3, 1);
+        List<String> order = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            LaneScheduler.Permit batch = lanes.admit(LaneScheduler.Lane.BATCH, "backfill", Deadline.none());
+            LaneScheduler.Permit more = lanes.admit(LaneScheduler.Lane.BATCH, "backfill", Deadline.none());
+            assertThrows(DeadlineExceededException.class,
+              () -> lanes.admit(LaneScheduler.Lane.BATCH, "backfill", Deadline.after(0)));
+            LaneScheduler.Permit interactive = lanes.admit(LaneScheduler.Lane.INTERACTIVE, null, Deadline.after(0));
+
+            Future<?> queuedBatch = pool.submit(() -> record(lanes, LaneScheduler.Lane.BATCH, order));
+            awaitQueued(lanes, LaneScheduler.Lane.BATCH, 1);
+            Future<?> queuedInteractive = pool.submit(() -> record(lanes, LaneScheduler.Lane.INTERACTIVE, order));
+            awaitQueued(lanes, LaneScheduler.Lane.INTERACTIVE, 1);
+
+            // the slot freed goes to the interactive work, and the batch work waits for the next
+            batch.close();
+            queuedInteractive.get();
+            queuedBatch.get();
+            assertEquals(Arrays.asList("INTERACTIVE", "BATCH"), order);
+            more.close();
+            interactive.close();
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(0, lanes.getRunning(LaneScheduler.Lane.BATCH));
+        assertEquals(0, lanes.getRunning(LaneScheduler.Lane.INTERACTIVE));
+    }
+
+    /**
+     * Tenants with backlogs in the same lane should be admitted in proportion to their weights.
+     */
+    @Test
+    public void testWeightedTenants() throws Exception {
+        LaneScheduler lanes = new LaneScheduler(1, 0);
+        lanes.configureWeights("large=3, small=1");
+        List<String> order = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(40);
+        try {
+            // hold the only slot until both backlogs are queued
+            List<Future<?>> tasks = new ArrayList<>();
+            try (LaneScheduler.Permit holder = lanes.admit(LaneScheduler.Lane.BATCH, "holder", Deadline.none())) {
+                for (int i = 0; i < 20; i++) {
+                    for (String tenant : Arrays.asList("large", "small"))
+                        tasks.add(pool.submit(() -> record(lanes, LaneScheduler.Lane.BATCH, tenant, order)));
+                }
+                awaitQueued(lanes, LaneScheduler.Lane.BATCH, 40);
+            }
+            for (Future<?> task : tasks)
+                task.get();
+        } finally {
+            pool.shutdownNow();
+        }
+        // while both have work waiting, three large are admitted for each small
+        long large = order.subList(0, 20).stream().filter("large"::equals).count();
+        assertEquals(15, large, "order " + order);
+    }
+
+    /**
+     * Work that gives up waiting should not push its tenant's later work back, nor leave its tenant's finish time
+     * behind once the lane is idle.
+     */
+    @Test
+    public void testWithdrawnWorkIsForgotten() throws Exception {
+        LaneScheduler lanes = new LaneScheduler(1, 0);
+        List<String> order = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            try (LaneScheduler.Permit holder = lanes.admit(LaneScheduler.Lane.BATCH, "holder", Deadline.none())) {
+                for (int i = 1; i <= 2; i++) {
+                    tasks.add(pool.submit(() -> record(lanes, LaneScheduler.Lane.BATCH, "b", order)));
+                    awaitQueued(lanes, LaneScheduler.Lane.BATCH, i);
+                }
+                for (int i = 0; i < 5; i++) {
+                    assertThrows(DeadlineExceededException.class,
+                      () -> lanes.admit(LaneScheduler.Lane.BATCH, "a", Deadline.after(0)));
+                }
+                tasks.add(pool.submit(() -> record(lanes, LaneScheduler.Lane.BATCH, "a", order)));
+                awaitQueued(lanes, LaneScheduler.Lane.BATCH, 3);
+            }
+            for (Future<?> task : tasks)
+                task.get();
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(Arrays.asList("b", "a", "b"), order);
+        for (int i = 0; i < 100; i++)
+            lanes.admit(LaneScheduler.Lane.BATCH, "tenant-" + i, Deadline.none()).close();
+        assertEquals(0, lanes.getTenants(LaneScheduler.Lane.BATCH));
+    }
+
+    /**
+     * Work still waiting at its deadline should fail rather than hold its place in the queue, and an unknown
+     * priority should be an invalid request.
+     */
+    @Test
+    public void testDeadline() {
+        LaneScheduler lanes = new LaneScheduler(2, 1);
+        try (LaneScheduler.Permit permit = lanes.admit(LaneScheduler.Lane.BATCH, null, Deadline.none())) {
+            assertThrows(DeadlineExceededException.class,
+              () -> lanes.admit(LaneScheduler.Lane.BATCH, null, Deadline.after(50)));
+            assertEquals(0, lanes.getQueueDepth(LaneScheduler.Lane.BATCH));
+            lanes.admit(LaneScheduler.Lane.INTERACTIVE, null, Deadline.after(50)).close();
+        }
+        assertEquals(LaneScheduler.Lane.BATCH, LaneScheduler.Lane.parse(" batch ", LaneScheduler.Lane.INTERACTIVE));
+        assertEquals(LaneScheduler.Lane.INTERACTIVE, LaneScheduler.Lane.parse(null, LaneScheduler.Lane.INTERACTIVE));
+        InvalidRequestException e = assertThrows(InvalidRequestException.class,
+          () -> LaneScheduler.Lane.parse("<urgent>", null));
+        assertFalse(e.getMessage().contains("urgent"), e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> lanes.configureWeights("tenant=zero"));
+    }
+
+    // wait until a lane has as much work queued; the work is queued by other threads, so this waits on them only
+    private static void awaitQueued(final LaneScheduler lanes, final LaneScheduler.Lane lane, final int depth) {
+        while (lanes.getQueueDepth(lane) < depth)
+            Thread.yield();
+    }
+
+    private static Void record(final LaneScheduler lanes, final LaneScheduler.Lane lane, final List<String> order) {
+        return record(lanes, lane, lane.name(), order);
+    }
+
+    // wait for a slot, and note the work's name in the order of admission
+    private static Void record(final LaneScheduler lanes, final LaneScheduler.Lane lane, final String name,
+      final List<String> order) {
+        try (LaneScheduler.Permit permit = lanes.admit(lane, lane == LaneScheduler.Lane.BATCH ? name : null,
+          Deadline.none())) {
+            synchronized (order) {
+                order.add(name);
+            }
+        }
+        return null;
+    }
+}
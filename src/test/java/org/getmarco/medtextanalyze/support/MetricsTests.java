@@ -0,0 +1,99 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class MetricsTests {
+
+    private static final String NAMESPACE = "MedTextAnalyze";
+    private static final String DIMENSION = "Function";
+    private static final int MANY = 10000;
+    private static final int MAX_SAMPLES = 100;
+    private static final int THREADS = 4;
+
+    /**
+     * A flush should emit embedded metric format with only the metrics recorded, then start over.
+     */
+    @Test
+    public void testFlushEmitsRecordedMetrics() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.record(Metrics.Metric.ENCODED_BYTES, 1234);
+        metrics.record(Metrics.Metric.ENCODED_BYTES, 5678);
+        metrics.stop(Metrics.Metric.PAGE_RENDER, metrics.start());
+
+        JsonNode line = new ObjectMapper().readTree(metrics.flush(NAMESPACE, DIMENSION, "TextFromPdf"));
+        JsonNode directive = line.get("_aws").get("CloudWatchMetrics").get(0);
+        assertEquals(NAMESPACE, directive.get("Namespace").asText());
+        assertEquals(2, directive.get("Metrics").size());
+        assertEquals("TextFromPdf", line.get(DIMENSION).asText());
+        assertEquals(1234, line.get("EncodedBytes").get(0).asLong());
+        assertEquals(5678, line.get("EncodedBytes").get(1).asLong());
+        assertEquals(1, line.get("PageRender").size());
+        assertNull(line.get("TextractCall"));
+
+        assertEquals(0, metrics.getCount(Metrics.Metric.ENCODED_BYTES));
+        assertNull(metrics.flush(NAMESPACE, DIMENSION, "TextFromPdf"));
+    }
+
+    /**
+     * Many values recorded from several threads should all be counted, with a fixed number of samples emitted.
+     */
+    @Test
+    public void testSamplesAreCapped() throws Exception {
+        Metrics metrics = new Metrics();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < MANY; i++)
+                    metrics.record(Metrics.Metric.RESULT_PAGES, 1);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals((long) THREADS * MANY, metrics.getCount(Metrics.Metric.RESULT_PAGES));
+        JsonNode line = new ObjectMapper().readTree(metrics.flush(NAMESPACE, DIMENSION, "TextFromPdf"));
+        assertEquals(MAX_SAMPLES, line.get("ResultPages").size());
+    }
+
+    /**
+     * Flushes made while values are being recorded should emit only samples that were recorded, never a slot
+     * counted before its value was written.
+     */
+    @Test
+    public void testFlushWhileRecording() throws Exception {
+        Metrics metrics = new Metrics();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < MANY; i++)
+                    metrics.record(Metrics.Metric.ENCODED_BYTES, 7);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        int flushes = 0;
+        boolean recording = true;
+        while (recording) {
+            recording = threads.stream().anyMatch(Thread::isAlive);
+            String flushed = metrics.flush(NAMESPACE, DIMENSION, "TextFromPdf");
+            if (flushed == null)
+                continue;
+            flushes++;
+            for (JsonNode sample : new ObjectMapper().readTree(flushed).get("EncodedBytes"))
+                assertEquals(7, sample.asLong(), flushed);
+        }
+        assertTrue(flushes > 0);
+    }
+}
@@ -0,0 +1,173 @@
+package org.getmarco.medtextanalyze.support;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class PageCacheTests {
+
+    /**
+     * A page rendered again with scanner noise should hash close to the original, and a different page far from it.
+     */
+    @Test
+    public void testPerceptualHash() {
+        long[] cover = PageCache.perceptualHash(page("FAX COVER SHEET", "To: Records", null));
+        long[] noisy = PageCache.perceptualHash(page("FAX COVER SHEET", "To: Records", new Random(1)));
+        long[] consent = PageCache.perceptualHash(page("CONSENT TO TREAT", "Patient signature", null));
+
+        assertTrue(PageCache.distance(cover, noisy) <= 4, "distance " + PageCache.distance(cover, noisy));
+        assertTrue(PageCache.distance(cover, consent) > 16, "distance " + PageCache.distance(cover, consent));
+        assertEquals(Integer.MAX_VALUE, PageCache.distance(cover,
+          PageCache.perceptualHash(new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB))));
+    }
+
+    /**
+     * Pages should be found by content, then by a rendering that is exactly the same, and a page found by rendering be
+     * found by content next time. A page that only looks alike should not be found.
+     */
+    @Test
+    public void testLookups() {
+        PageCache cache = new PageCache(10, 4);
+        BufferedImage coverImage = page("FAX COVER SHEET", "To: Records", null);
+        long[] cover = PageCache.perceptualHash(coverImage);
+        String coverPixels = PageCache.renderingHash(coverImage);
+        assertNull(cache.get("a"));
+        assertNull(cache.getSimilar("a", cover, coverPixels));
+        cache.put("a", cover, coverPixels, "cover text");
+
+        assertEquals("cover text", cache.get("a"));
+        assertEquals("cover text", cache.getSimilar("b", cover, coverPixels));
+        assertEquals("cover text", cache.get("b"));
+        BufferedImage noisy = page("FAX COVER SHEET", "To: Records", new Random(2));
+        assertTrue(PageCache.distance(cover, PageCache.perceptualHash(noisy)) <= 4);
+        assertNull(cache.getSimilar("c", PageCache.perceptualHash(noisy), PageCache.renderingHash(noisy)));
+        BufferedImage consent = page("CONSENT TO TREAT", "Patient signature", null);
+        assertNull(cache.getSimilar("d", PageCache.perceptualHash(consent), PageCache.renderingHash(consent)));
+        assertEquals(0.5, cache.getHitRate(), 0.001, cache.toString());
+
+        PageCache contentOnly = new PageCache(10, -1);
+        assertFalse(contentOnly.isMatchingRenderings());
+        contentOnly.put("a", cover, coverPixels, "cover text");
+        assertNull(contentOnly.getSimilar("b", cover, coverPixels));
+    }
+
+    /**
+     * A page should stay a candidate for a rendering match while any content hash it is kept under is cached, and no
+     * longer once they are all evicted.
+     */
+    @Test
+    public void testEvictionFromBands() {
+        PageCache cache = new PageCache(2, 0);
+        BufferedImage image = page("PAGE", "", null);
+        long[] hash = PageCache.perceptualHash(image);
+        String pixels = PageCache.renderingHash(image);
+        cache.put("a", hash, pixels, "a");
+        assertEquals("a", cache.getSimilar("b", hash, pixels));
+        cache.put("c", new long[hash.length], "other", "c");
+        assertNull(cache.get("a"));
+        assertEquals("a", cache.getSimilar("d", hash, pixels));
+        cache.put("e", new long[hash.length], "other", "e");
+        cache.put("f", new long[hash.length], "other", "f");
+        assertNull(cache.getSimilar("g", hash, pixels));
+    }
+
+    /**
+     * The least recently used page should be evicted once the cache is full.
+     */
+    @Test
+    public void testEviction() {
+        PageCache cache = new PageCache(2, -1);
+        long[] hash = PageCache.perceptualHash(page("PAGE", "", null));
+        cache.put("a", hash, null, "a");
+        cache.put("b", hash, null, "b");
+        cache.get("a");
+        cache.put("c", hash, null, "c");
+        assertEquals("a", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("c", cache.get("c"));
+    }
+
+    /**
+     * Pages with the same content and fonts should hash the same, and pages that differ only in a font's encoding,
+     * which changes the text they show, should not.
+     */
+    @Test
+    public void testContentHashCoversFontEncoding() throws IOException {
+        COSArray swapped = new COSArray();
+        swapped.add(COSInteger.get('A'));
+        swapped.add(COSName.getPDFName("B"));
+        COSDictionary differences = new COSDictionary();
+        differences.setItem(COSName.TYPE, COSName.ENCODING);
+        differences.setItem(COSName.BASE_ENCODING, COSName.WIN_ANSI_ENCODING);
+        differences.setItem(COSName.DIFFERENCES, swapped);
+        try (PDDocument document = new PDDocument()) {
+            String plain = PageCache.contentHash(textPage(document, COSName.WIN_ANSI_ENCODING));
+            assertEquals(plain, PageCache.contentHash(textPage(document, COSName.WIN_ANSI_ENCODING)));
+            assertFalse(plain.equals(PageCache.contentHash(textPage(document, differences))));
+        }
+    }
+
+    // a page showing the same text in Helvetica, with the encoding given
+    private static PDPage textPage(final PDDocument document, final COSBase encoding) throws IOException {
+        COSDictionary font = new COSDictionary();
+        font.setItem(COSName.TYPE, COSName.FONT);
+        font.setItem(COSName.SUBTYPE, COSName.TYPE1);
+        font.setItem(COSName.BASE_FONT, COSName.getPDFName("Helvetica"));
+        font.setItem(COSName.ENCODING, encoding);
+        COSDictionary fonts = new COSDictionary();
+        fonts.setItem(COSName.getPDFName("F1"), font);
+        PDResources resources = new PDResources();
+        resources.getCOSObject().setItem(COSName.FONT, fonts);
+
+        PDPage page = new PDPage(PDRectangle.LETTER);
+        page.setResources(resources);
+        PDStream contents = new PDStream(document);
+        try (OutputStream out = contents.createOutputStream()) {
+            out.write("BT /F1 12 Tf 72 720 Td (ABBA) Tj ET".getBytes(StandardCharsets.US_ASCII));
+        }
+        page.setContents(contents);
+        return page;
+    }
+
+    // a letter-size page at 100 dpi, with specks of noise as a scan would have if given a random source
+    private static BufferedImage page(final String title, final String line, final Random noise) {
+        BufferedImage image = new BufferedImage(850, 1100, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        graphics.setColor(Color.BLACK);
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 48));
+        graphics.drawString(title, 100, 150);
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 24));
+        for (int y = 250; y < 1000; y += 40)
+            graphics.drawString(line + " " + y, 100, y);
+        graphics.fillRect(100, 180, 650, 6);
+        graphics.dispose();
+        if (noise != null) {
+            for (int i = 0; i < 2000; i++)
+                image.setRGB(noise.nextInt(image.getWidth()), noise.nextInt(image.getHeight()), 0);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,213 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.services.textract.AbstractAmazonTextract;
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.DetectDocumentTextRequest;
+import com.amazonaws.services.textract.model.DetectDocumentTextResult;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionResult;
+import com.amazonaws.services.textract.model.InvalidJobIdException;
+import com.amazonaws.services.textract.model.InvalidParameterException;
+import com.amazonaws.services.textract.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.textract.model.StartDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.StartDocumentTextDetectionResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class RegionPoolTests {
+
+    private static final String EAST = "us-east-1";
+    private static final String WEST = "us-west-2";
+    private static final String API = "DetectDocumentText";
+    private static final int CALLERS = 8;
+    private static final int CALLS = 100;
+
+    /**
+     * Calls should mostly go to the region answering faster, with none lost, and the per-region governors should
+     * apply the quota set for the service.
+     * @throws Exception if a caller fails
+     */
+    @Test
+    public void testLatencyAwareRouting() throws Exception {
+        CallGovernor.forService("test-region-spread").setQuota(API, unlimited());
+        RegionPool<AmazonTextract> pool = new RegionPool<>("test-region-spread");
+        RegionalTextract east = new RegionalTextract(EAST, 40);
+        RegionalTextract west = new RegionalTextract(WEST, 5);
+        pool.add(EAST, east);
+        pool.add(WEST, west);
+
+        drive(pool);
+        assertEquals(CALLERS * CALLS, pool.getCalls(EAST) + pool.getCalls(WEST));
+        assertTrue(pool.getCalls(WEST) > 3 * pool.getCalls(EAST), "calls: " + pool);
+        assertTrue(pool.getLatencyMillis(WEST) < pool.getLatencyMillis(EAST), "latencies: " + pool);
+        assertEquals(0, pool.getFailovers());
+    }
+
+    /**
+     * A region that throttles every call should be cooled down after turning calls away, with its calls failed
+     * over to the other region at once rather than retried where they were throttled.
+     * @throws Exception if a caller fails
+     */
+    @Test
+    public void testThrottledRegionFailsOver() throws Exception {
+        CallGovernor.forService("test-region-failover").setQuota(API, unlimited());
+        RegionPool<AmazonTextract> pool = new RegionPool<>("test-region-failover");
+        RegionalTextract east = new RegionalTextract(EAST, 5);
+        east.throttling = true;
+        pool.add(EAST, east);
+        pool.add(WEST, new RegionalTextract(WEST, 5));
+
+        drive(pool);
+        assertEquals(0, pool.getCalls(EAST));
+        assertEquals(CALLERS * CALLS, pool.getCalls(WEST));
+        assertTrue(pool.getFailovers() > 0 && pool.getFailovers() <= 2 * CALLERS, "failovers: " + pool);
+        assertTrue(east.calls.get() <= 2 * CALLERS, "throttled calls to " + EAST + ": " + east.calls);
+    }
+
+    /**
+     * Calls on S3 objects should go only to regions their bucket can be read from, under the name of the replica
+     * there, and a text detection job should be followed up in the region it was started in, across a continuation.
+     */
+    @Test
+    public void testBucketAndJobAffinity() {
+        RegionPool<AmazonTextract> pool = new RegionPool<>("test-region-affinity");
+        RegionalTextract east = new RegionalTextract(EAST, 1, "scans", "local");
+        RegionalTextract west = new RegionalTextract(WEST, 1, "scans-west");
+        east.throttling = true;
+        pool.add(EAST, east);
+        pool.add(WEST, west);
+        pool.configureBuckets("scans=us-east-1, scans=us-west-2:scans-west");
+        assertEquals(Arrays.asList(EAST, WEST), new ArrayList<>(pool.getBucketLocations("scans").keySet()));
+        assertEquals(Collections.singletonMap(EAST, "local"), pool.getBucketLocations("local"));
+        assertThrows(IllegalArgumentException.class, () -> pool.configureBuckets("scans"));
+        CallGovernor.forService("test-region-affinity", EAST).setMaxAttempts(2);
+
+        Analyzer analyzer = new Analyzer();
+        analyzer.setCorpusStore(null);
+        analyzer.setTextractRegions(pool);
+        assertEquals(WEST + "\n", analyzer.detectTextImageS3("scans", "page.png"));
+        // only the throttled region can read the bucket, so there is nowhere to fail over to
+        assertThrows(ProvisionedThroughputExceededException.class,
+          () -> analyzer.detectTextImageS3("local", "page.png"));
+
+        DetectedText waiting = analyzer.detectTextPdf2("scans", "doc.pdf", Deadline.after(100), null);
+        assertFalse(waiting.isComplete());
+        east.throttling = false;
+        DetectedText done = analyzer.detectTextPdf2("scans", "doc.pdf", Deadline.none(), waiting.getContinuation());
+        assertTrue(done.isComplete());
+        assertEquals("\n" + WEST + "\n", done.getText());
+        assertEquals(Collections.singleton("job-1"), west.jobs);
+        assertTrue(east.jobs.isEmpty());
+
+        // a job in a region the pool no longer has is not followed up anywhere
+        String elsewhere = Analyzer.encodeContinuation("s3://scans/doc.pdf", Analyzer.CONTINUATION_PAGE,
+          "job-1@eu-west-1", "2");
+        assertThrows(InvalidRequestException.class,
+          () -> analyzer.detectTextPdf2("scans", "doc.pdf", Deadline.none(), elsewhere));
+    }
+
+    private static CallGovernor.Quota unlimited() {
+        return new CallGovernor.Quota(Double.MAX_VALUE, Double.MAX_VALUE, CALLERS * 2);
+    }
+
+    private static void drive(final RegionPool<AmazonTextract> pool) throws Exception {
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int i = 0; i < CALLERS; i++) {
+                done.add(callers.submit(() -> {
+                    for (int call = 0; call < CALLS; call++)
+                        pool.call(API, Deadline.none(), null,
+                          (client, region) -> client.detectDocumentText(new DetectDocumentTextRequest()));
+                    return null;
+                }));
+            }
+            for (Future<?> caller : done)
+                caller.get();
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    // Textract in one region: answers after its latency, naming the region, if not throttling
+    private static final class RegionalTextract extends AbstractAmazonTextract {
+        private static final int STATUS_BAD_REQUEST = 400;
+
+        private final String region;
+        private final long latencyMillis;
+        private final List<String> buckets;
+        private final Set<String> jobs = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean throttling;
+
+        RegionalTextract(final String region, final long latencyMillis, final String... buckets) {
+            this.region = region;
+            this.latencyMillis = latencyMillis;
+            this.buckets = Arrays.asList(buckets);
+        }
+
+        @Override
+        public DetectDocumentTextResult detectDocumentText(final DetectDocumentTextRequest request) {
+            answer(request.getDocument() == null || request.getDocument().getS3Object() == null
+              ? null : request.getDocument().getS3Object().getBucket());
+            return new DetectDocumentTextResult().withBlocks(lines());
+        }
+
+        @Override
+        public StartDocumentTextDetectionResult startDocumentTextDetection(
+          final StartDocumentTextDetectionRequest request) {
+            answer(request.getDocumentLocation().getS3Object().getBucket());
+            String jobId = "job-" + (this.jobs.size() + 1);
+            this.jobs.add(jobId);
+            return new StartDocumentTextDetectionResult().withJobId(jobId);
+        }
+
+        @Override
+        public GetDocumentTextDetectionResult getDocumentTextDetection(final GetDocumentTextDetectionRequest request) {
+            answer(null);
+            if (!this.jobs.contains(request.getJobId()))
+                throw new InvalidJobIdException("no job " + request.getJobId() + " in " + this.region);
+            GetDocumentTextDetectionResult result = new GetDocumentTextDetectionResult().withJobStatus("SUCCEEDED");
+            return request.getMaxResults() == 1 ? result : result.withBlocks(lines());
+        }
+
+        private void answer(final String bucket) {
+            this.calls.incrementAndGet();
+            try {
+                TimeUnit.MILLISECONDS.sleep(this.latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (this.throttling) {
+                ProvisionedThroughputExceededException e = new ProvisionedThroughputExceededException("slow down");
+                e.setErrorCode("ProvisionedThroughputExceededException");
+                e.setStatusCode(STATUS_BAD_REQUEST);
+                throw e;
+            }
+            if (bucket != null && !this.buckets.contains(bucket))
+                throw new InvalidParameterException("no bucket " + bucket + " in " + this.region);
+        }
+
+        private List<Block> lines() {
+            return Arrays.asList(new Block().withBlockType("PAGE"),
+              new Block().withBlockType("LINE").withText(this.region));
+        }
+    }
+}
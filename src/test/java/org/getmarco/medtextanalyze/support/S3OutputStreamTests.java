@@ -0,0 +1,145 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class S3OutputStreamTests {
+
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * An object that fits in one part should be stored with a single PUT of its exact length when the stream closes.
+     */
+    @Test
+    public void testSinglePut() throws IOException {
+        StubS3 s3 = new StubS3();
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentEncoding("gzip");
+        try (S3OutputStream out = new S3OutputStream(s3.client, "bucket", "key", metadata)) {
+            out.write('{');
+            out.write(bytes(PART_SIZE - 2), 0, PART_SIZE - 2);
+            out.write('}');
+            assertTrue(s3.calls.isEmpty(), s3.calls.toString());
+        }
+        assertEquals(Arrays.asList("putObject"), s3.calls);
+        assertEquals(PART_SIZE, s3.content.size());
+        assertEquals(PART_SIZE, s3.metadata.getContentLength());
+        assertEquals("gzip", s3.metadata.getContentEncoding());
+    }
+
+    /**
+     * An object larger than one part should be sent as full parts as they fill, the remainder as the last part, and
+     * the upload completed with every part in order.
+     */
+    @Test
+    public void testMultipart() throws IOException {
+        StubS3 s3 = new StubS3();
+        byte[] content = bytes(2 * PART_SIZE + 3);
+        try (S3OutputStream out = new S3OutputStream(s3.client, "bucket", "key", new ObjectMetadata())) {
+            out.write(content, 0, PART_SIZE + 1);
+            assertEquals(Arrays.asList("initiateMultipartUpload", "uploadPart"), s3.calls);
+            out.write(content, PART_SIZE + 1, content.length - PART_SIZE - 1);
+            assertEquals(content.length, out.size());
+        }
+        assertEquals(Arrays.asList("initiateMultipartUpload", "uploadPart", "uploadPart", "uploadPart",
+          "completeMultipartUpload"), s3.calls);
+        assertArrayEquals(content, s3.content.toByteArray());
+        assertEquals(Arrays.asList(1, 2, 3), s3.completedParts);
+    }
+
+    /**
+     * A part that cannot be sent should fail the write and abort the upload, storing nothing.
+     */
+    @Test
+    public void testFailedPartAborts() throws IOException {
+        StubS3 s3 = new StubS3();
+        s3.failParts = true;
+        S3OutputStream out = new S3OutputStream(s3.client, "bucket", "key", new ObjectMetadata());
+        assertThrows(IOException.class, () -> out.write(bytes(PART_SIZE + 1), 0, PART_SIZE + 1));
+        assertEquals(Arrays.asList("initiateMultipartUpload", "uploadPart", "abortMultipartUpload"), s3.calls);
+        out.close();
+        assertEquals(3, s3.calls.size());
+    }
+
+    private static byte[] bytes(final int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) i;
+        return bytes;
+    }
+
+    /**
+     * Records the S3 calls made and the content they carry.
+     */
+    private static final class StubS3 {
+        private final List<String> calls = new ArrayList<>();
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private final List<Integer> completedParts = new ArrayList<>();
+        private ObjectMetadata metadata;
+        private boolean failParts;
+        private final AmazonS3 client = (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+          new Class<?>[] {AmazonS3.class}, (proxy, method, args) -> {
+              this.calls.add(method.getName());
+              switch (method.getName()) {
+                  case "putObject":
+                      PutObjectRequest put = (PutObjectRequest) args[0];
+                      this.metadata = put.getMetadata();
+                      copy(put.getInputStream());
+                      return new PutObjectResult();
+                  case "initiateMultipartUpload":
+                      InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+                      initiated.setUploadId("upload");
+                      return initiated;
+                  case "uploadPart":
+                      if (this.failParts)
+                          throw new SdkClientException("connection reset");
+                      UploadPartRequest part = (UploadPartRequest) args[0];
+                      assertEquals(part.getPartSize(), copy(part.getInputStream()));
+                      UploadPartResult uploaded = new UploadPartResult();
+                      uploaded.setPartNumber(part.getPartNumber());
+                      uploaded.setETag("etag-" + part.getPartNumber());
+                      return uploaded;
+                  case "completeMultipartUpload":
+                      ((CompleteMultipartUploadRequest) args[0]).getPartETags()
+                        .forEach(etag -> this.completedParts.add(etag.getPartNumber()));
+                      return new CompleteMultipartUploadResult();
+                  case "abortMultipartUpload":
+                      assertEquals("upload", ((AbortMultipartUploadRequest) args[0]).getUploadId());
+                      return null;
+                  default:
+                      throw new UnsupportedOperationException(method.getName());
+              }
+          });
+
+        private long copy(final InputStream in) throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            long copied = 0;
+            for (int n; (n = in.read(buffer)) > 0; copied += n)
+                this.content.write(buffer, 0, n);
+            return copied;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class StructuredLoggerTests {
+
+    private static final int LARGE = 1024 * 1024;
+    private static final int MAX_LINE = 2048;
+
+    /**
+     * Lines are JSON tagged with the function and request, and a disabled level never builds its message.
+     */
+    @Test
+    public void testLinesAreStructuredAndGated() throws Exception {
+        List<String> lines = new ArrayList<>();
+        StructuredLogger logger = new StructuredLogger(lines::add, "TextFromPdf", "req-1", false);
+        logger.info("line \"one\"\n");
+        AtomicBoolean built = new AtomicBoolean();
+        logger.debug(() -> {
+            built.set(true);
+            return "detail";
+        });
+
+        JsonNode line = new ObjectMapper().readTree(lines.get(0));
+        assertEquals("TextFromPdf", line.get("function").asText());
+        assertEquals("req-1", line.get("requestId").asText());
+        assertEquals("INFO", line.get("level").asText());
+        assertEquals("line \"one\"\n", line.get("message").asText());
+        assertFalse(built.get());
+        assertEquals(1, lines.size());
+    }
+
+    /**
+     * A sampled logger logs at DEBUG whatever the configured level.
+     */
+    @Test
+    public void testSampledLoggerLogsDebug() throws Exception {
+        List<String> lines = new ArrayList<>();
+        StructuredLogger logger = new StructuredLogger(lines::add, "TextFromPdf", "req-3", true);
+        logger.debug(() -> "detail");
+
+        assertEquals(1, lines.size());
+        assertEquals("DEBUG", new ObjectMapper().readTree(lines.get(0)).get("level").asText());
+    }
+
+    /**
+     * Settings are read in any case, and a bad one falls back to its default with a warning written by the next
+     * logger created.
+     */
+    @Test
+    public void testInvalidSettingFallsBack() throws Exception {
+        assertEquals(StructuredLogger.Level.DEBUG,
+          StructuredLogger.parseEnum("MED_LOG_LEVEL", "debug", StructuredLogger.Level.INFO));
+        assertEquals(StructuredLogger.Level.INFO,
+          StructuredLogger.parseEnum("MED_LOG_LEVEL", null, StructuredLogger.Level.INFO));
+        assertEquals(StructuredLogger.Level.INFO,
+          StructuredLogger.parseEnum("MED_LOG_LEVEL", "verbose", StructuredLogger.Level.INFO));
+
+        List<String> lines = new ArrayList<>();
+        new StructuredLogger(lines::add, "TextFromPdf", "req-4", false);
+        assertEquals(1, lines.size());
+        JsonNode line = new ObjectMapper().readTree(lines.get(0));
+        assertEquals("WARN", line.get("level").asText());
+        assertTrue(line.get("message").asText().contains("MED_LOG_LEVEL"));
+    }
+
+    /**
+     * Bodies are summarized as configured, from any character sequence.
+     */
+    @Test
+    public void testBodySummaries() {
+        String body = "{\"text\":\"patient notes\"}";
+        assertEquals("[24 chars]", StructuredLogger.summarize(body, StructuredLogger.BodyMode.LENGTH));
+        assertEquals("[24 chars] " + body, StructuredLogger.summarize(body, StructuredLogger.BodyMode.PREFIX));
+        String hash = StructuredLogger.summarize(body, StructuredLogger.BodyMode.HASH);
+        assertTrue(hash.startsWith("[24 chars sha256:"));
+        char[] buffer = ("xx" + body + "yy").toCharArray();
+        assertEquals(hash, StructuredLogger.summarize(CharBuffer.wrap(buffer, 2, body.length()),
+          StructuredLogger.BodyMode.HASH));
+    }
+
+    /**
+     * A large message is capped and a large body is only ever logged as a summary.
+     */
+    @Test
+    public void testLargePayloadsAreBounded() {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < LARGE; i++)
+            payload.append('x');
+        List<String> lines = new ArrayList<>();
+        StructuredLogger logger = new StructuredLogger(lines::add, "EntitiesFromText", "req-2", false);
+        logger.info(payload.toString());
+        logger.info("text " + StructuredLogger.summarize(payload.toString()));
+
+        assertTrue(lines.get(0).length() < MAX_LINE, "line length " + lines.get(0).length());
+        assertTrue(lines.get(0).contains("[" + LARGE + " chars]"));
+        assertTrue(lines.get(1).length() < MAX_LINE, "line length " + lines.get(1).length());
+    }
+}
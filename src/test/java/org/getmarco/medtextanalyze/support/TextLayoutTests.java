@@ -0,0 +1,97 @@
+package org.getmarco.medtextanalyze.support;
+
+import com.amazonaws.services.textract.model.Block;
+import com.amazonaws.services.textract.model.BoundingBox;
+import com.amazonaws.services.textract.model.Geometry;
+import com.amazonaws.services.textract.model.Relationship;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+// CHECKSTYLE:OFF
+import static org.junit.jupiter.api.Assertions.*;
+// CHECKSTYLE:ON
+
+public final class TextLayoutTests {
+
+    /**
+     * Words should be placed in the lines that list them, whichever block comes first, at their offsets in the text.
+     */
+    @Test
+    public void testBuild() {
+        TextLayout layout = new TextLayout.Builder(true)
+          .add(new Block().withBlockType("PAGE").withPage(1))
+          .add(line("l1", "Rx: aspirin 81 mg", 99.5f, "w1", "w2", "w3"))
+          .add(word("w1", "Rx:", 99f))
+          .add(word("w2", "aspirin", 97f))
+          .add(word("w3", "81", 42f))
+          .add(word("w4", "mg", 99f))
+          .add(new Block().withBlockType("PAGE").withPage(2))
+          .add(word("w5", "Neil", 88f))
+          .add(line("l2", "Dr. O'Neil", 90f, "w5"))
+          .build();
+
+        assertEquals("\nRx: aspirin 81 mg\n\nDr. O'Neil\n", layout.getText());
+        assertEquals(2, layout.getPageCount());
+        assertEquals(2, layout.getPageNumber(1));
+        assertEquals(1, layout.getLinePage(1));
+        assertEquals("Dr. O'Neil", layout.getLineText(1));
+        assertEquals(99.5f, layout.getLineConfidence(0));
+        // mg is not listed as a child of any line
+        assertEquals(4, layout.getWordCount());
+        assertEquals(3, layout.getLineWordCount(0));
+        assertEquals("aspirin", layout.getWordText(1));
+        assertEquals("Neil", layout.getWordText(3));
+        assertEquals(layout.getText().indexOf("Neil"), layout.getWordStart(3));
+        assertArrayEquals(new int[] {2}, layout.getLowConfidenceWords(50));
+        assertArrayEquals(new int[] {1, 2}, layout.getWordsBetween(5, 13));
+        assertArrayEquals(new int[] {3, 3}, layout.getWordsBetween(16, 18));
+    }
+
+    /**
+     * The binary form should keep the text and offsets exactly and boxes and confidence to 16 bits.
+     */
+    @Test
+    public void testBytes() {
+        TextLayout.Builder builder = new TextLayout.Builder(false).startPage(3);
+        builder.add(line("l1", "Discharge summary", 98.25f, "w1", "w2"));
+        builder.add(word("w1", "Discharge", 98f)).add(word("w2", "summary", 12.5f));
+        builder.startPage(4).addText("From the cache\nSecond line\n");
+        TextLayout layout = builder.build();
+        TextLayout copy = TextLayout.fromBytes(layout.toBytes());
+
+        assertEquals(layout.getText(), copy.getText());
+        assertEquals(4, copy.getPageNumber(1));
+        assertEquals(1, copy.getPageFirstLine(1));
+        assertEquals(3, copy.getLineCount());
+        assertEquals("Second line", copy.getLineText(2));
+        assertEquals(2, copy.getWordCount());
+        assertEquals("summary", copy.getWordText(1));
+        assertEquals(0, copy.getLineWordCount(2));
+        for (int i = 0; i < 4; i++)
+            assertEquals(layout.getWordBox(1)[i], copy.getWordBox(1)[i], 1e-4);
+        assertEquals(12.5f, copy.getWordConfidence(1), 1e-2);
+        assertTrue(Float.isNaN(copy.getLineConfidence(2)));
+        assertTrue(Float.isNaN(copy.getLineBox(1)[0]));
+        assertThrows(IllegalArgumentException.class, () -> TextLayout.fromBytes(new byte[] {1, 2, 3, 4}));
+    }
+
+    private static Block line(final String id, final String text, final float confidence, final String... words) {
+        return new Block().withBlockType("LINE").withId(id).withText(text).withConfidence(confidence)
+          .withGeometry(box(0.1f, 0.2f, 0.5f, 0.02f))
+          .withRelationships(Collections.singletonList(new Relationship().withType("CHILD")
+            .withIds(Arrays.asList(words))));
+    }
+
+    private static Block word(final String id, final String text, final float confidence) {
+        return new Block().withBlockType("WORD").withId(id).withText(text).withConfidence(confidence)
+          .withGeometry(box(0.1f + text.length() / 100f, 0.2f, text.length() / 50f, 0.02f));
+    }
+
+    private static Geometry box(final float left, final float top, final float width, final float height) {
+        return new Geometry().withBoundingBox(new BoundingBox().withLeft(left).withTop(top).withWidth(width)
+          .withHeight(height));
+    }
+}
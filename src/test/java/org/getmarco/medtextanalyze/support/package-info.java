@@ -0,0 +1,4 @@
+/**
+ * Support class tests.
+ */
+package org.getmarco.medtextanalyze.support;